@@ -20,7 +20,14 @@ package nuxeo.labs.generic.service.call;
 
 import java.time.Instant;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Consumer;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
@@ -28,12 +35,22 @@ import org.apache.logging.log4j.Logger;
 import org.json.JSONObject;
 import org.nuxeo.ecm.core.api.NuxeoException;
 
+import nuxeo.labs.generic.service.call.http.RetryPolicy;
 import nuxeo.labs.generic.service.call.http.ServiceCall;
 import nuxeo.labs.generic.service.call.http.ServiceCallResult;
 
 /**
  * This class handles authentication tokens and their lifespan. If a token was requested before expiration, it is
  * returned as is. Else, a new token is fetched.
+ * <br>
+ * The class is thread safe. Reading a valid token does not lock. When the token expires, only one call is made to
+ * the service, whatever the number of concurrent callers:
+ * <ul>
+ * <li>During the safety margin (the last {@link #EXPIRATION_MARGIN_SECONDS} seconds of the token), callers get the
+ * current token, which is still accepted by the service, while it is refreshed</li>
+ * <li>Once the token is actually expired (or if there is no token yet), callers wait for the result of the refresh
+ * in progress</li>
+ * </ul>
  * 
  * @since 2023
  */
@@ -41,25 +58,89 @@ public class AuthenticationToken {
 
     private static final Logger log = LogManager.getLogger(AuthenticationToken.class);
 
-    protected String id;
+    /**
+     * A token is refreshed this number of seconds before its actual expiration
+     *
+     * @since 2025.4
+     */
+    public static final int EXPIRATION_MARGIN_SECONDS = 15;
 
-    protected String httpMethod;
+    /*
+     * Immutable, so reading a token and its expiration is always consistent, without locking.
+     * - expiration: When the token must be refreshed (actual expiration minus the margin)
+     * - hardExpiration: When the service stops accepting the token
+     * - failures: Number of failed refreshes since the last successful one
+     */
+    protected static class State {
+
+        protected static final State EMPTY = new State(null, null, null, null, null);
+
+        protected final String token;
+
+        protected final Instant expiration;
 
-    protected String token = null;
+        protected final Instant hardExpiration;
 
-    protected Instant tokenExpiration = null;
+        protected final JSONObject serviceResponse;
+
+        protected final ServiceCallResult lastServiceCallresult;
+
+        protected final int failures;
+
+        protected State(String token, Instant expiration, Instant hardExpiration, JSONObject serviceResponse,
+                ServiceCallResult lastServiceCallresult) {
+            this(token, expiration, hardExpiration, serviceResponse, lastServiceCallresult, 0);
+        }
+
+        protected State(String token, Instant expiration, Instant hardExpiration, JSONObject serviceResponse,
+                ServiceCallResult lastServiceCallresult, int failures) {
+            this.token = token;
+            this.expiration = expiration;
+            this.hardExpiration = hardExpiration;
+            this.serviceResponse = serviceResponse;
+            this.lastServiceCallresult = lastServiceCallresult;
+            this.failures = failures;
+        }
+
+        protected boolean isExpired(Instant now) {
+            return StringUtils.isBlank(token) || expiration == null || now.isAfter(expiration);
+        }
+
+        protected boolean isUsable(Instant now) {
+            return StringUtils.isNotBlank(token) && hardExpiration != null && !now.isAfter(hardExpiration);
+        }
+    }
+
+    protected String id;
+
+    protected String descriptorKey;
+
+    protected String httpMethod;
 
     protected String authFullUrl;
 
     protected Map<String, String> headers;
 
     protected String body;
-    
-    protected JSONObject serviceResponse;
 
-    protected ServiceCall serviceCall = new ServiceCall();
-    
-    protected ServiceCallResult lastServiceCallresult = null;
+    protected volatile State state = State.EMPTY;
+
+    protected static final AtomicReferenceFieldUpdater<AuthenticationToken, State> STATE = AtomicReferenceFieldUpdater.newUpdater(
+            AuthenticationToken.class, State.class, "state");
+
+    // The refresh in progress, if any. Shared by all the callers
+    protected final AtomicReference<CompletableFuture<State>> refreshing = new AtomicReference<>();
+
+    protected ServiceCall serviceCall = newServiceCall();
+
+    // Called after each refresh, see TokenRefresher
+    protected volatile Consumer<AuthenticationToken> refreshListener = null;
+
+    // null => not shared with the other nodes
+    protected volatile SharedTokenStore sharedStore = null;
+
+    // The service returned a token at least once
+    protected volatile boolean fetched = false;
 
     public AuthenticationToken(String httpMethod, String authFullUrl, Map<String, String> headers, String body) {
 
@@ -70,46 +151,225 @@ public class AuthenticationToken {
         this.headers = headers;
         this.body = body;
 
+        descriptorKey = descriptorKey(httpMethod, authFullUrl, headers, body);
+
+    }
+
+    /**
+     * Two tokens with the same method, url, headers and body are the same token. Header names are case insensitive
+     * and their order does not matter.
+     * 
+     * @param httpMethod
+     * @param authFullUrl
+     * @param headers, can be null
+     * @param body, can be null
+     * @return a hash of the canonical form of the request (so the credentials it contains are not exposed)
+     * @since 2025.4
+     */
+    public static String descriptorKey(String httpMethod, String authFullUrl, Map<String, String> headers,
+            String body) {
+
+        StringBuilder canonical = new StringBuilder();
+        canonical.append(StringUtils.defaultString(httpMethod).toUpperCase()).append('\n');
+        canonical.append(StringUtils.defaultString(authFullUrl)).append('\n');
+        if (headers != null) {
+            Map<String, String> sorted = new TreeMap<>();
+            headers.forEach((name, value) -> sorted.put(name.toLowerCase(), value));
+            sorted.forEach((name, value) -> canonical.append(name).append(':').append(value).append('\n'));
+        }
+        canonical.append('\n').append(StringUtils.defaultString(body));
+
+        return ServiceCall.sha256Hex(canonical.toString());
     }
 
     public String getId() {
         return id;
     }
 
+    public String getDescriptorKey() {
+        return descriptorKey;
+    }
+
     /**
-     * Will fetch a new token only if the current token is null or expired.
+     * Will fetch a new token only if the current token is null or expired. If other threads are already fetching it,
+     * waits for their result instead of calling the service again.
      * 
-     * @param url, the full authentication URL
-     * @param clientId
-     * @param clientSecret
-     * @return the authentication token
+     * @return the authentication token (null if the service returned an error)
      * @since 2023
      */
     public String getToken() {
 
-        if (!isExpired()) {
-            return token;
+        State current = state;
+        Instant now = Instant.now();
+        if (!current.isExpired(now)) {
+            return current.token;
+        }
+
+        CompletableFuture<State> refresh = refresh(current);
+        // Still accepted by the service => no need to wait
+        if (current.isUsable(now)) {
+            return current.token;
+        }
+
+        try {
+            return refresh.get().token;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException("Interrupted while waiting for an auth token", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw new NuxeoException("Error getting an auth token", e.getCause());
+        }
+    }
+
+    /**
+     * Non-blocking version of <code>getToken</code>: the future completes when the token is fetched, if the caller
+     * has to wait for it.
+     *
+     * @return the future authentication token (null if the service returned an error)
+     * @since 2025.4
+     */
+    public CompletableFuture<String> getTokenAsync() {
+
+        State current = state;
+        Instant now = Instant.now();
+        if (!current.isExpired(now)) {
+            return CompletableFuture.completedFuture(current.token);
+        }
+
+        CompletableFuture<State> refresh = refresh(current);
+        if (current.isUsable(now)) {
+            return CompletableFuture.completedFuture(current.token);
+        }
+        return refresh.thenApply(next -> next.token);
+    }
+
+    /*
+     * Single flight: starts a refresh only if there is none in progress and if the token was not refreshed since the
+     * caller read <code>seen</code>. Else, returns the refresh in progress or the new state.
+     */
+    protected CompletableFuture<State> refresh(State seen) {
+
+        while (true) {
+            CompletableFuture<State> inProgress = refreshing.get();
+            if (inProgress != null) {
+                return inProgress;
+            }
+            if (state != seen) {
+                return CompletableFuture.completedFuture(state);
+            }
+
+            CompletableFuture<State> mine = new CompletableFuture<>();
+            if (!refreshing.compareAndSet(null, mine)) {
+                continue;
+            }
+            // Refreshed between our check and the compareAndSet
+            if (state != seen) {
+                refreshing.compareAndSet(mine, null);
+                mine.complete(state);
+                return mine;
+            }
+
+            CompletableFuture<State> fetch;
+            try {
+                fetch = fetch(seen);
+            } catch (RuntimeException e) {
+                fetch = CompletableFuture.failedFuture(e);
+            }
+            fetch.whenComplete((next, error) -> {
+                if (error != null) {
+                    // Invalid response, error of the shared store, ...: a failed refresh, as an error of the service
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null
+                            ? error.getCause()
+                            : error;
+                    String message = cause.getMessage() != null ? cause.getMessage()
+                            : cause.getClass().getSimpleName();
+                    log.error("Error getting an auth token for token " + id + ": " + message);
+                    state = failedState(state,
+                            new ServiceCallResult("{}", -1, "Error getting an auth token: " + message));
+                    refreshing.compareAndSet(mine, null);
+                    mine.completeExceptionally(error);
+                } else {
+                    // Set the state first, so a caller seeing no refresh in progress sees the new token
+                    state = next;
+                    if (StringUtils.isNotBlank(next.token)) {
+                        fetched = true;
+                    }
+                    refreshing.compareAndSet(mine, null);
+                    mine.complete(next);
+                }
+                notifyRefreshed();
+            });
+            return mine;
         }
+    }
+
+    protected void notifyRefreshed() {
+
+        Consumer<AuthenticationToken> listener = refreshListener;
+        if (listener != null) {
+            try {
+                listener.accept(this);
+            } catch (RuntimeException e) {
+                log.error("Error in the refresh listener of token " + id, e);
+            }
+        }
+    }
+
+    /*
+     * No retry here: a failed refresh is retried by the TokenRefresher (with its own backoff), and the current token
+     * is kept while it is still accepted
+     */
+    protected static ServiceCall newServiceCall() {
 
+        ServiceCall call = new ServiceCall();
+        call.setRetryPolicy(RetryPolicy.NONE);
+        return call;
+    }
+
+    protected CompletableFuture<State> fetch(State previous) {
+
+        SharedTokenStore store = sharedStore;
+        if (store != null) {
+            return store.fetch(this, previous);
+        }
+        return fetchFromService(previous);
+    }
+
+    protected CompletableFuture<State> fetchFromService(State previous) {
+
+        CompletableFuture<ServiceCallResult> call;
         switch (httpMethod) {
         case "GET":
-            lastServiceCallresult = serviceCall.get(authFullUrl, headers);
+            call = serviceCall.getAsync(authFullUrl, headers);
             break;
-            
+
         case "POST":
-            lastServiceCallresult = serviceCall.post(authFullUrl, headers, body);
+            call = serviceCall.postAsync(authFullUrl, headers, body);
             break;
 
         case "PUT":
-            lastServiceCallresult = serviceCall.put(authFullUrl, headers, body);
+            call = serviceCall.putAsync(authFullUrl, headers, body);
             break;
 
         default:
-            throw new NuxeoException("Invalid HTTP method (<" + httpMethod + ">: We support only GET/POST/PUSH.");
+            return CompletableFuture.failedFuture(
+                    new NuxeoException("Invalid HTTP method (<" + httpMethod + ">: We support only GET/POST/PUSH."));
         }
 
-        if (lastServiceCallresult.callWasSuccesful()) {
-            serviceResponse = lastServiceCallresult.getResponseAsJSONObject();
+        return call.thenApply(result -> toState(result, previous));
+    }
+
+    /*
+     * If the call failed, a token still accepted by the service is kept (see failedState)
+     */
+    protected State toState(ServiceCallResult result, State previous) {
+
+        Instant now = Instant.now();
+        if (result.callWasSuccesful()) {
+            JSONObject serviceResponse = result.getResponseAsJSONObject();
             // {"error":"invalid_grant","error_description":"Caller not authorized for requested resource"}
             if (serviceResponse.has("error")) {
                 String msg = "Getting a token failed with error " + serviceResponse.getString("error") + ".";
@@ -117,50 +377,126 @@ public class AuthenticationToken {
                     msg += " " + serviceResponse.getString("error_description");
                 }
                 log.error(msg);
-                token = null;
-                serviceResponse = null;
-            } else {
-                token = serviceResponse.getString("access_token");
-                int expiresIn = serviceResponse.getInt("expires_in");
-                tokenExpiration = Instant.now().plusSeconds(expiresIn - 15);
+                return failedState(previous, result);
             }
-        } else {
-            log.error("Error getting an auth token:\n" + lastServiceCallresult.toJsonString(2));
-            token = null;
-            serviceResponse = null;
+            String token = serviceResponse.getString("access_token");
+            int expiresIn = serviceResponse.getInt("expires_in");
+            return new State(token, now.plusSeconds(expiresIn - EXPIRATION_MARGIN_SECONDS),
+                    now.plusSeconds(expiresIn), serviceResponse, result);
         }
 
-        return token;
+        log.error("Error getting an auth token:\n" + result.toJsonString(2));
+        return failedState(previous, result);
+    }
 
+    /*
+     * A token still accepted by the service is kept. It is not refreshed again by the callers before the backoff
+     * delay of the failure (see TokenRefresher), so they don't call the service in a loop while it fails, and never
+     * after it actually expires.
+     */
+    protected State failedState(State previous, ServiceCallResult result) {
+
+        Instant now = Instant.now();
+        int failures = previous.failures + 1;
+        if (!previous.isUsable(now)) {
+            return new State(null, null, null, null, result, failures);
+        }
+        Instant retryAt = now.plus(TokenRefresher.defaultBackoffDelay(failures));
+        Instant expiration = retryAt.isBefore(previous.hardExpiration) ? retryAt : previous.hardExpiration;
+        return new State(previous.token, expiration, previous.hardExpiration, null, result, failures);
     }
 
-    public boolean isExpired() {
-        if (StringUtils.isNotBlank(token) && !Instant.now().isAfter(tokenExpiration)) {
-            return false;
+    /**
+     * To call when the service rejected the token before its expiration (revoked for example). The next call to
+     * <code>getToken()</code> fetches a new one (only once, whatever the number of callers having the token
+     * rejected). Does nothing if the token was already refreshed.
+     * 
+     * @param rejectedToken, the value rejected by the service
+     * @since 2025.4
+     */
+    public void invalidate(String rejectedToken) {
+
+        if (StringUtils.isBlank(rejectedToken)) {
+            return;
         }
+        while (true) {
+            State current = state;
+            if (!rejectedToken.equals(current.token)) {
+                return;
+            }
+            if (STATE.compareAndSet(this, current,
+                    new State(null, null, null, null, current.lastServiceCallresult))) {
+                log.debug("Token " + id + " was rejected by the service, invalidated.");
+                break;
+            }
+        }
+
+        SharedTokenStore store = sharedStore;
+        if (store != null) {
+            store.invalidate(this, rejectedToken);
+        }
+    }
+
+    public boolean isExpired() {
+        return state.isExpired(Instant.now());
+    }
+
+    /**
+     * @return true if the service returned a token at least once (the current one may have expired since)
+     * @since 2025.4
+     */
+    public boolean hasBeenFetched() {
+        return fetched;
+    }
 
-        return true;
+    /**
+     * @param listener, called after each refresh of the token (successful or not). Can be null.
+     * @since 2025.4
+     */
+    public void setRefreshListener(Consumer<AuthenticationToken> listener) {
+        refreshListener = listener;
+    }
+
+    /**
+     * @param store, to share the token with the other nodes of the cluster. Can be null.
+     * @since 2025.4
+     */
+    public void setSharedStore(SharedTokenStore store) {
+        sharedStore = store;
     }
 
     // Mainly used for moking in unit tests
     public void setToken(String value) {
-        token = value;
+        State current = state;
+        state = new State(value, current.expiration, current.hardExpiration, current.serviceResponse,
+                current.lastServiceCallresult);
     }
 
+    /**
+     * Mainly used for mocking in unit tests. The token must be refreshed in <code>inNSeconds</code> and is accepted
+     * by the service for {@link #EXPIRATION_MARGIN_SECONDS} more seconds.
+     * 
+     * @param inNSeconds
+     * @since 2023
+     */
     public void setTokenExpiration(int inNSeconds) {
-        tokenExpiration = Instant.now().plusSeconds(inNSeconds);
+        State current = state;
+        Instant expiration = Instant.now().plusSeconds(inNSeconds);
+        state = new State(current.token, expiration, expiration.plusSeconds(EXPIRATION_MARGIN_SECONDS),
+                current.serviceResponse, current.lastServiceCallresult);
     }
     
     public JSONObject tokenToJSONObject() {
         
+        State current = state;
         JSONObject obj = null;
-        if(serviceResponse != null) {
-            obj = new JSONObject(serviceResponse.toString());
-            obj.put("responseCode", lastServiceCallresult.getResponseCode());
-            obj.put("responseMessage", lastServiceCallresult.getResponseMessage());
+        if(current.serviceResponse != null) {
+            obj = new JSONObject(current.serviceResponse.toString());
+            obj.put("responseCode", current.lastServiceCallresult.getResponseCode());
+            obj.put("responseMessage", current.lastServiceCallresult.getResponseMessage());
         } else {
             //obj = new JSONObject();
-            obj = lastServiceCallresult.toJsonObject();
+            obj = current.lastServiceCallresult.toJsonObject();
         }
         obj.put("tokenUuid", id);
         
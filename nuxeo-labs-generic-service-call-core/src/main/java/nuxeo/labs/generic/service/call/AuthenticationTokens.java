@@ -18,51 +18,274 @@
  */
 package nuxeo.labs.generic.service.call;
 
-import java.util.HashMap;
+import java.time.Duration;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.runtime.api.Framework;
+
+import io.dropwizard.metrics5.Counter;
+import nuxeo.labs.generic.service.call.http.ServiceCallMetrics;
 
 /**
  * Class to use so we try to reuse token instead of always asking for a new one.
  * <br>
- * NOTE: As a token is a mix of url + headers + body, we don't expect hundreds of them. Not even dozens
- * => The HasMap is never cleaned up. When a caller references a token, if it is expired it will fetch a new value.
+ * A token is a mix of method + url + headers + body: asking for a new token with the same values returns the existing
+ * one (same tokenUuid), so a script can call <code>Services.CallRESTServiceForToken</code> at every run without
+ * creating a new token (and fetching a new value) each time.
+ * <br>
+ * The registry is bounded. Default values can be overridden in nuxeo.conf:
+ * <ul>
+ * <li><code>nuxeo.labs.servicecall.token.maxTokens</code>: Max. number of tokens (default 1000). When reached, the
+ * least recently used token is evicted.</li>
+ * <li><code>nuxeo.labs.servicecall.token.maxIdleSec</code>: A token not used for this time is evicted (default
+ * 3600)</li>
+ * </ul>
+ * Lookups (by tokenUuid or by values) and evictions are counted in the <code>nuxeo.servicecall.tokens.hits</code>,
+ * <code>nuxeo.servicecall.tokens.misses</code> and <code>nuxeo.servicecall.tokens.evictions</code> metrics.
  * 
  * @since LTS2023
  */
 public class AuthenticationTokens {
 
-    protected static HashMap<String, AuthenticationToken> tokens = new HashMap<String, AuthenticationToken>();
+    private static final Logger log = LogManager.getLogger(AuthenticationTokens.class);
+
+    public static final String MAX_TOKENS_PROP = TokenRefresher.PROPERTY_PREFIX + "maxTokens";
+
+    public static final String MAX_IDLE_PROP = TokenRefresher.PROPERTY_PREFIX + "maxIdleSec";
+
+    public static final int DEFAULT_MAX_TOKENS = 1000;
+
+    public static final Duration DEFAULT_MAX_IDLE = Duration.ofHours(1);
 
-    protected static final AuthenticationTokens instance = new AuthenticationTokens();
+    // Idle tokens are looked for at most every...
+    protected static final long MAX_SWEEP_INTERVAL_MS = 60000;
 
-    private AuthenticationTokens() {
+    protected static volatile AuthenticationTokens instance = null;
+
+    protected static class Entry {
+
+        protected final AuthenticationToken token;
+
+        protected volatile long lastAccess = System.currentTimeMillis();
+
+        protected Entry(AuthenticationToken token) {
+            this.token = token;
+        }
+    }
+
+    protected final int maxTokens;
+
+    protected final long maxIdleMs;
+
+    protected final Map<String, Entry> byId = new ConcurrentHashMap<>();
+
+    protected final Map<String, Entry> byDescriptor = new ConcurrentHashMap<>();
+
+    protected volatile long nextSweep;
+
+    protected final Counter hits = ServiceCallMetrics.counter("tokens.hits");
+
+    protected final Counter misses = ServiceCallMetrics.counter("tokens.misses");
+
+    protected final Counter evictions = ServiceCallMetrics.counter("tokens.evictions");
+
+    protected AuthenticationTokens(int maxTokens, Duration maxIdle) {
+
+        this.maxTokens = Math.max(1, maxTokens);
+        maxIdleMs = maxIdle.toMillis();
+        nextSweep = System.currentTimeMillis() + sweepInterval();
 
     }
 
     public static AuthenticationTokens getInstance() {
-        return instance;
+
+        AuthenticationTokens tokens = instance;
+        if (tokens == null) {
+            synchronized (AuthenticationTokens.class) {
+                tokens = instance;
+                if (tokens == null) {
+                    tokens = new AuthenticationTokens(
+                            (int) getLongProperty(MAX_TOKENS_PROP, DEFAULT_MAX_TOKENS),
+                            Duration.ofSeconds(getLongProperty(MAX_IDLE_PROP, DEFAULT_MAX_IDLE.toSeconds())));
+                    instance = tokens;
+                }
+            }
+        }
+        return tokens;
+    }
+
+    protected static long getLongProperty(String key, long defaultValue) {
+
+        String value = Framework.getProperty(key);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value <" + value + "> for " + key + ", using " + defaultValue);
+            return defaultValue;
+        }
     }
 
+    /**
+     * @param tokenUUID
+     * @return the token, null if it does not exist (never created, removed or evicted)
+     * @since LTS2023
+     */
     public AuthenticationToken getToken(String tokenUUID) {
 
-        return tokens.get(tokenUUID);
+        sweepIfNeeded();
+
+        Entry entry = tokenUUID == null ? null : byId.get(tokenUUID);
+        if (entry == null) {
+            misses.inc();
+            return null;
+        }
+        hits.inc();
+        entry.lastAccess = System.currentTimeMillis();
+
+        return entry.token;
     }
 
+    /**
+     * @return the token for these values. Created if needed, else the existing one is returned.
+     * @since LTS2023
+     */
     public AuthenticationToken newToken(String httpMethod, String authFullUrl, Map<String, String> headers,
             String body) {
 
-        AuthenticationToken token = new AuthenticationToken(httpMethod, authFullUrl, headers, body);
-        tokens.put(token.getId(), token);
+        sweepIfNeeded();
+
+        String key = AuthenticationToken.descriptorKey(httpMethod, authFullUrl, headers, body);
+        Entry[] created = { null };
+        Entry entry = byDescriptor.computeIfAbsent(key, k -> {
+            AuthenticationToken token = new AuthenticationToken(httpMethod, authFullUrl, headers, body);
+            // Set before the token can be used by other threads
+            token.setSharedStore(SharedTokenStore.getInstance());
+            created[0] = new Entry(token);
+            byId.put(created[0].token.getId(), created[0]);
+            return created[0];
+        });
+        entry.lastAccess = System.currentTimeMillis();
 
-        return token;
+        if (entry == created[0]) {
+            misses.inc();
+            TokenRefresher.getInstance().register(entry.token);
+            evictIfFull();
+        } else {
+            hits.inc();
+        }
+
+        return entry.token;
     }
 
     public void removeToken(String tokenUUID) {
-        tokens.remove(tokenUUID);
+
+        Entry entry = tokenUUID == null ? null : byId.get(tokenUUID);
+        if (entry != null) {
+            remove(entry);
+        }
+    }
+
+    /**
+     * Removes the token only if the service never returned a value for it. A token shared by other callers (same
+     * values) and which worked at least once is kept: its refresh is retried by the <code>TokenRefresher</code>.
+     *
+     * @param tokenUUID
+     * @return true if the token was removed
+     * @since 2025.4
+     */
+    public boolean removeTokenIfNeverFetched(String tokenUUID) {
+
+        Entry entry = tokenUUID == null ? null : byId.get(tokenUUID);
+        if (entry == null || entry.token.hasBeenFetched()) {
+            return false;
+        }
+        return remove(entry);
+    }
+
+    protected boolean remove(Entry entry) {
+
+        if (!byId.remove(entry.token.getId(), entry)) {
+            return false;
+        }
+        byDescriptor.remove(entry.token.getDescriptorKey(), entry);
+        TokenRefresher.getInstance().unregister(entry.token);
+
+        return true;
+    }
+
+    /*
+     * Evicts the least recently used tokens. Linear, but called only when a token is created, and the registry is
+     * small.
+     */
+    protected void evictIfFull() {
+
+        while (byId.size() > maxTokens) {
+            Entry oldest = null;
+            for (Entry entry : byId.values()) {
+                if (oldest == null || entry.lastAccess < oldest.lastAccess) {
+                    oldest = entry;
+                }
+            }
+            if (oldest != null && remove(oldest)) {
+                evictions.inc();
+                log.debug("Evicted token " + oldest.token.getId() + ", max. number of tokens reached");
+            }
+        }
+    }
+
+    protected void sweepIfNeeded() {
+
+        long now = System.currentTimeMillis();
+        if (now < nextSweep) {
+            return;
+        }
+        nextSweep = now + sweepInterval();
+
+        for (Entry entry : byId.values()) {
+            if (now - entry.lastAccess > maxIdleMs && remove(entry)) {
+                evictions.inc();
+                log.debug("Evicted token " + entry.token.getId() + ", not used for " + maxIdleMs + "ms");
+            }
+        }
+    }
+
+    protected long sweepInterval() {
+        return Math.max(1, Math.min(maxIdleMs, MAX_SWEEP_INTERVAL_MS));
     }
 
     public int size() {
-        return tokens.size();
+        return byId.size();
+    }
+
+    /**
+     * @return the number of lookups that found a token (tokenUuid or values), since the server started
+     * @since 2025.4
+     */
+    public long getHits() {
+        return hits.getCount();
+    }
+
+    /**
+     * @return the number of lookups that did not find a token (tokenUuid or values), since the server started
+     * @since 2025.4
+     */
+    public long getMisses() {
+        return misses.getCount();
+    }
+
+    /**
+     * @return the number of tokens evicted (idle or max. number of tokens reached), since the server started
+     * @since 2025.4
+     */
+    public long getEvictions() {
+        return evictions.getCount();
     }
 
 }
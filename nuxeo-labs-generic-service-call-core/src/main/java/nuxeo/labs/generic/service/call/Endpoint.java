@@ -0,0 +1,245 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.runtime.api.Framework;
+
+import nuxeo.labs.generic.service.call.http.HttpEngine;
+import nuxeo.labs.generic.service.call.http.HttpEngineConfig;
+import nuxeo.labs.generic.service.call.http.RetryPolicy;
+import nuxeo.labs.generic.service.call.http.ServiceCall;
+
+/**
+ * An <code>EndpointDescriptor</code>, resolved once (when the registry starts): the base URL is validated, the headers
+ * are copied, and an <code>HttpEngine</code> is created if the endpoint has its own timeouts or pool size (else, the
+ * calls use the shared engine).
+ * <br>
+ * Calls to the endpoint pass a path, relative to the base URL, and their own headers, added to (or overriding) the
+ * default ones.
+ *
+ * @since 2025.4
+ */
+public class Endpoint implements AutoCloseable {
+
+    protected final String name;
+
+    // Without trailing "/"
+    protected final String baseUrl;
+
+    protected final Map<String, String> headers;
+
+    // null => shared engine
+    protected final HttpEngine engine;
+
+    // null => default policy
+    protected final RetryPolicy retryPolicy;
+
+    protected final EndpointDescriptor.TokenDescriptor tokenDescriptor;
+
+    protected volatile AuthenticationToken token = null;
+
+    /**
+     * @param descriptor
+     * @throws NuxeoException if the descriptor is not valid
+     */
+    public Endpoint(EndpointDescriptor descriptor) {
+
+        name = descriptor.getName();
+        if (StringUtils.isBlank(name)) {
+            throw new NuxeoException("An endpoint has no name");
+        }
+        String url = StringUtils.trimToEmpty(descriptor.getBaseUrl());
+        try {
+            URI uri = URI.create(url);
+            if (uri.getScheme() == null || uri.getHost() == null) {
+                throw new IllegalArgumentException("Not an absolute http(s) URL");
+            }
+        } catch (IllegalArgumentException e) {
+            throw new NuxeoException("Invalid baseUrl <" + url + "> for endpoint " + name, e);
+        }
+        baseUrl = StringUtils.removeEnd(url, "/");
+
+        headers = descriptor.getHeaders() == null ? Map.of() : Map.copyOf(descriptor.getHeaders());
+
+        if (descriptor.getConnectTimeoutMs() != null || descriptor.getRequestTimeoutMs() != null
+                || descriptor.getTotalTimeoutMs() != null || descriptor.getMaxConnections() != null) {
+            HttpEngineConfig config = HttpEngineConfig.fromProperties();
+            if (descriptor.getConnectTimeoutMs() != null) {
+                config.setConnectTimeout(toDuration(descriptor.getConnectTimeoutMs()));
+            }
+            if (descriptor.getRequestTimeoutMs() != null) {
+                config.setRequestTimeout(toDuration(descriptor.getRequestTimeoutMs()));
+            }
+            if (descriptor.getTotalTimeoutMs() != null) {
+                config.setTotalTimeout(toDuration(descriptor.getTotalTimeoutMs()));
+            }
+            if (descriptor.getMaxConnections() != null) {
+                config.setMaxConnectionsPerHost(descriptor.getMaxConnections());
+            }
+            engine = new HttpEngine(config);
+        } else {
+            engine = null;
+        }
+
+        if (descriptor.getMaxRetries() != null || descriptor.getRetryNonIdempotent() != null) {
+            retryPolicy = RetryPolicy.getDefault().with(descriptor.getMaxRetries(), descriptor.getRetryNonIdempotent());
+        } else {
+            retryPolicy = null;
+        }
+
+        EndpointDescriptor.TokenDescriptor tokenDesc = descriptor.getToken();
+        if (tokenDesc != null && StringUtils.isBlank(tokenDesc.getUrl())) {
+            throw new NuxeoException("The token of endpoint " + name + " has no url");
+        }
+        tokenDescriptor = tokenDesc;
+    }
+
+    /*
+     * 0 or less means "no timeout"
+     */
+    protected static Duration toDuration(long millis) {
+        return millis > 0 ? Duration.ofMillis(millis) : null;
+    }
+
+    /**
+     * @param name, can be null
+     * @return the endpoint, null if name is blank
+     * @throws NuxeoException if there is no endpoint with this name
+     * @since 2025.4
+     */
+    public static Endpoint get(String name) {
+
+        if (StringUtils.isBlank(name)) {
+            return null;
+        }
+        Endpoint endpoint = Framework.getService(EndpointRegistry.class).getEndpoint(name);
+        if (endpoint == null) {
+            throw new NuxeoException("Unknown endpoint <" + name + ">");
+        }
+        return endpoint;
+    }
+
+    /**
+     * @param path, relative to the base URL (can hold a query string). Blank for the base URL itself.
+     * @return the full URL
+     * @since 2025.4
+     */
+    public String resolveUrl(String path) {
+
+        if (StringUtils.isBlank(path)) {
+            return baseUrl;
+        }
+        if (path.startsWith("?")) {
+            return baseUrl + path;
+        }
+        return baseUrl + (path.startsWith("/") ? path : "/" + path);
+    }
+
+    /**
+     * @param headersJsonStr, headers of the call, can be null
+     * @return a new (modifiable) map with the default headers, and the headers of the call
+     * @since 2025.4
+     */
+    public Map<String, String> headers(String headersJsonStr) {
+
+        Map<String, String> result = new HashMap<>(headers);
+        if (StringUtils.isNotBlank(headersJsonStr)) {
+            result.putAll(ServiceCall.toHeadersMap(headersJsonStr));
+        }
+        return result;
+    }
+
+    /**
+     * @param maxRetries, null to use the value of the endpoint
+     * @param retryNonIdempotent, null to use the value of the endpoint
+     * @return a ServiceCall using the engine and the retry policy of the endpoint
+     * @since 2025.4
+     */
+    public ServiceCall newServiceCall(Integer maxRetries, Boolean retryNonIdempotent) {
+
+        ServiceCall serviceCall = new ServiceCall(engine);
+        serviceCall.setRetryPolicy(getRetryPolicy().with(maxRetries, retryNonIdempotent));
+        return serviceCall;
+    }
+
+    /**
+     * @return the token of the endpoint (see <code>AuthenticationTokens</code>), null if it has no token
+     * @since 2025.4
+     */
+    public AuthenticationToken getToken() {
+
+        if (tokenDescriptor == null) {
+            return null;
+        }
+        AuthenticationTokens tokens = AuthenticationTokens.getInstance();
+        AuthenticationToken current = token;
+        // Can have been evicted (not used for a long time)
+        if (current == null || tokens.getToken(current.getId()) == null) {
+            current = tokens.newToken(tokenDescriptor.getHttpMethod(), tokenDescriptor.getUrl(),
+                    tokenDescriptor.getHeaders() == null ? new HashMap<>() : new HashMap<>(tokenDescriptor.getHeaders()),
+                    tokenDescriptor.getBody());
+            token = current;
+        }
+        return current;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return the engine of the endpoint, null if it uses the shared one
+     * @since 2025.4
+     */
+    public HttpEngine getEngine() {
+        return engine;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy != null ? retryPolicy : RetryPolicy.getDefault();
+    }
+
+    public boolean hasToken() {
+        return tokenDescriptor != null;
+    }
+
+    @Override
+    public void close() {
+
+        if (engine != null) {
+            engine.close();
+        }
+    }
+
+}
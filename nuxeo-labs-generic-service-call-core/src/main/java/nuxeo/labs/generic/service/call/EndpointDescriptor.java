@@ -0,0 +1,226 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XNodeMap;
+import org.nuxeo.common.xmap.annotation.XObject;
+import org.nuxeo.runtime.model.Descriptor;
+
+/**
+ * A named endpoint, contributed to the <code>endpoint</code> extension point of <code>EndpointRegistry</code>:
+ *
+ * <pre>
+ * &lt;endpoint name="myService"&gt;
+ *   &lt;baseUrl&gt;https://api.example.com/v2&lt;/baseUrl&gt;
+ *   &lt;headers&gt;
+ *     &lt;header name="Accept"&gt;application/json&lt;/header&gt;
+ *   &lt;/headers&gt;
+ *   &lt;token httpMethod="POST"&gt;
+ *     &lt;url&gt;https://auth.example.com/oauth/token&lt;/url&gt;
+ *     &lt;headers&gt;
+ *       &lt;header name="Content-Type"&gt;application/x-www-form-urlencoded&lt;/header&gt;
+ *     &lt;/headers&gt;
+ *     &lt;body&gt;grant_type=client_credentials&amp;amp;client_id=...&amp;amp;client_secret=...&lt;/body&gt;
+ *   &lt;/token&gt;
+ *   &lt;connectTimeoutMs&gt;5000&lt;/connectTimeoutMs&gt;
+ *   &lt;requestTimeoutMs&gt;30000&lt;/requestTimeoutMs&gt;
+ *   &lt;totalTimeoutMs&gt;60000&lt;/totalTimeoutMs&gt;
+ *   &lt;maxConnections&gt;10&lt;/maxConnections&gt;
+ *   &lt;maxRetries&gt;3&lt;/maxRetries&gt;
+ *   &lt;retryNonIdempotent&gt;false&lt;/retryNonIdempotent&gt;
+ * &lt;/endpoint&gt;
+ * </pre>
+ *
+ * Only <code>name</code> and <code>baseUrl</code> are required. Values not set use the nuxeo.conf configuration (see
+ * <code>HttpEngineConfig</code> and <code>RetryPolicy</code>). A contribution with the same name replaces the previous
+ * one.
+ *
+ * @since 2025.4
+ */
+@XObject("endpoint")
+public class EndpointDescriptor implements Descriptor {
+
+    @XObject("token")
+    public static class TokenDescriptor {
+
+        @XNode("@httpMethod")
+        protected String httpMethod = "POST";
+
+        @XNode("url")
+        protected String url;
+
+        @XNodeMap(value = "headers/header", key = "@name", type = HashMap.class, componentType = String.class)
+        protected Map<String, String> headers = new HashMap<>();
+
+        @XNode("body")
+        protected String body;
+
+        public String getHttpMethod() {
+            return httpMethod;
+        }
+
+        public void setHttpMethod(String httpMethod) {
+            this.httpMethod = httpMethod;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public void setUrl(String url) {
+            this.url = url;
+        }
+
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        public void setHeaders(Map<String, String> headers) {
+            this.headers = headers;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        public void setBody(String body) {
+            this.body = body;
+        }
+    }
+
+    @XNode("@name")
+    protected String name;
+
+    @XNode("baseUrl")
+    protected String baseUrl;
+
+    @XNodeMap(value = "headers/header", key = "@name", type = HashMap.class, componentType = String.class)
+    protected Map<String, String> headers = new HashMap<>();
+
+    @XNode("token")
+    protected TokenDescriptor token;
+
+    @XNode("connectTimeoutMs")
+    protected Long connectTimeoutMs;
+
+    @XNode("requestTimeoutMs")
+    protected Long requestTimeoutMs;
+
+    @XNode("totalTimeoutMs")
+    protected Long totalTimeoutMs;
+
+    @XNode("maxConnections")
+    protected Integer maxConnections;
+
+    @XNode("maxRetries")
+    protected Integer maxRetries;
+
+    @XNode("retryNonIdempotent")
+    protected Boolean retryNonIdempotent;
+
+    @Override
+    public String getId() {
+        return name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public void setBaseUrl(String baseUrl) {
+        this.baseUrl = baseUrl;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public void setHeaders(Map<String, String> headers) {
+        this.headers = headers;
+    }
+
+    public TokenDescriptor getToken() {
+        return token;
+    }
+
+    public void setToken(TokenDescriptor token) {
+        this.token = token;
+    }
+
+    public Long getConnectTimeoutMs() {
+        return connectTimeoutMs;
+    }
+
+    public void setConnectTimeoutMs(Long connectTimeoutMs) {
+        this.connectTimeoutMs = connectTimeoutMs;
+    }
+
+    public Long getRequestTimeoutMs() {
+        return requestTimeoutMs;
+    }
+
+    public void setRequestTimeoutMs(Long requestTimeoutMs) {
+        this.requestTimeoutMs = requestTimeoutMs;
+    }
+
+    public Long getTotalTimeoutMs() {
+        return totalTimeoutMs;
+    }
+
+    public void setTotalTimeoutMs(Long totalTimeoutMs) {
+        this.totalTimeoutMs = totalTimeoutMs;
+    }
+
+    public Integer getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(Integer maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public Integer getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(Integer maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public Boolean getRetryNonIdempotent() {
+        return retryNonIdempotent;
+    }
+
+    public void setRetryNonIdempotent(Boolean retryNonIdempotent) {
+        this.retryNonIdempotent = retryNonIdempotent;
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call;
+
+import java.util.Collection;
+
+/**
+ * Named endpoints, contributed to the <code>endpoint</code> extension point (see <code>EndpointDescriptor</code>).
+ * The operations accept an <code>endpoint</code> parameter, and then a <code>url</code> relative to its base URL.
+ *
+ * @since 2025.4
+ */
+public interface EndpointRegistry {
+
+    /**
+     * @param name
+     * @return the endpoint, null if there is no endpoint with this name
+     * @since 2025.4
+     */
+    Endpoint getEndpoint(String name);
+
+    /**
+     * @return all the endpoints
+     * @since 2025.4
+     */
+    Collection<Endpoint> getEndpoints();
+
+}
@@ -0,0 +1,85 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.runtime.model.ComponentContext;
+import org.nuxeo.runtime.model.DefaultComponent;
+
+/**
+ * Holds the named endpoints. They are all resolved when the component starts (an invalid endpoint is logged and
+ * ignored), and their engines are closed when it stops.
+ *
+ * @since 2025.4
+ */
+public class EndpointRegistryComponent extends DefaultComponent implements EndpointRegistry {
+
+    private static final Logger log = LogManager.getLogger(EndpointRegistryComponent.class);
+
+    public static final String NAME = "nuxeo.labs.generic.service.call.EndpointRegistry";
+
+    public static final String XP_ENDPOINT = "endpoint";
+
+    protected volatile Map<String, Endpoint> endpoints = Map.of();
+
+    @Override
+    public void start(ComponentContext context) {
+        super.start(context);
+
+        Map<String, Endpoint> resolved = new HashMap<>();
+        List<EndpointDescriptor> descriptors = getDescriptors(XP_ENDPOINT);
+        for (EndpointDescriptor descriptor : descriptors) {
+            try {
+                resolved.put(descriptor.getName(), new Endpoint(descriptor));
+            } catch (RuntimeException e) {
+                log.error("Invalid endpoint <" + descriptor.getName() + ">, ignored: " + e.getMessage());
+            }
+        }
+        endpoints = Collections.unmodifiableMap(resolved);
+        log.debug(resolved.size() + " endpoint(s) registered");
+    }
+
+    @Override
+    public void stop(ComponentContext context) throws InterruptedException {
+
+        Map<String, Endpoint> previous = endpoints;
+        endpoints = Map.of();
+        previous.values().forEach(Endpoint::close);
+
+        super.stop(context);
+    }
+
+    @Override
+    public Endpoint getEndpoint(String name) {
+        return name == null ? null : endpoints.get(name);
+    }
+
+    @Override
+    public Collection<Endpoint> getEndpoints() {
+        return endpoints.values();
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call;
+
+import org.nuxeo.runtime.model.ComponentContext;
+import org.nuxeo.runtime.model.DefaultComponent;
+
+import nuxeo.labs.generic.service.call.http.HttpEngine;
+import nuxeo.labs.generic.service.call.http.RateLimiters;
+import nuxeo.labs.generic.service.call.http.RequestCoalescer;
+import nuxeo.labs.generic.service.call.http.HttpResponseCache;
+import nuxeo.labs.generic.service.call.http.RetryPolicy;
+
+/**
+ * Handles the lifecycle of the shared resources of the plugin (HTTP engine, token refresher, ...): they are created when the component
+ * starts and released when it stops.
+ *
+ * @since 2025.4
+ */
+public class ServiceCallComponent extends DefaultComponent {
+
+    public static final String NAME = "nuxeo.labs.generic.service.call.ServiceCallComponent";
+
+    @Override
+    public void start(ComponentContext context) {
+        super.start(context);
+
+        // Create it now (with the nuxeo.conf configuration), not at the first call
+        HttpEngine.getInstance();
+        TokenRefresher.getInstance();
+    }
+
+    @Override
+    public void stop(ComponentContext context) throws InterruptedException {
+
+        TokenRefresher.shutdownInstance();
+        HttpEngine.shutdownInstance();
+        RetryPolicy.resetDefault();
+        RateLimiters.resetInstance();
+        HttpResponseCache.resetInstance();
+        RequestCoalescer.resetInstance();
+
+        super.stop(context);
+    }
+
+}
@@ -0,0 +1,264 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.kv.KeyValueService;
+import org.nuxeo.runtime.kv.KeyValueStore;
+
+import io.dropwizard.metrics5.Counter;
+import nuxeo.labs.generic.service.call.AuthenticationToken.State;
+import nuxeo.labs.generic.service.call.http.ServiceCallMetrics;
+import nuxeo.labs.generic.service.call.http.ServiceCallResult;
+
+/**
+ * Shares tokens between the nodes of a cluster, using a Nuxeo KeyValueStore, so one node fetches a token and the
+ * others reuse it.
+ * <ul>
+ * <li>Each node keeps its tokens in memory (reading a token never calls the store). The store is read only when a
+ * token must be refreshed: if another node already stored a newer token, it is used as is.</li>
+ * <li>Else, the node takes a lock in the store (<code>compareAndSet</code>) before calling the authentication
+ * service. Other nodes wait for the token to be stored, or for the lock to be released or expired.</li>
+ * <li>Stored tokens expire with the token (TTL).</li>
+ * <li>If the store fails, the node fetches its token itself.</li>
+ * </ul>
+ * Disabled by default. Can be configured in nuxeo.conf:
+ * <ul>
+ * <li><code>nuxeo.labs.servicecall.token.shared</code>: <code>true</code> to share the tokens (default false)</li>
+ * <li><code>nuxeo.labs.servicecall.token.sharedStore</code>: Name of the KeyValueStore (default
+ * <code>servicecall</code>, which uses the configuration of the default store)</li>
+ * <li><code>nuxeo.labs.servicecall.token.sharedLockTimeoutSec</code>: Max. time a node waits for another node to fetch
+ * a token, and TTL of the lock (default 30)</li>
+ * </ul>
+ * Notice the stored tokens are readable by anyone with access to the KeyValueStore (the keys do not expose the
+ * credentials used to get them).
+ *
+ * @since 2025.4
+ */
+public class SharedTokenStore {
+
+    private static final Logger log = LogManager.getLogger(SharedTokenStore.class);
+
+    public static final String SHARED_PROP = TokenRefresher.PROPERTY_PREFIX + "shared";
+
+    public static final String SHARED_STORE_PROP = TokenRefresher.PROPERTY_PREFIX + "sharedStore";
+
+    public static final String SHARED_LOCK_TIMEOUT_PROP = TokenRefresher.PROPERTY_PREFIX + "sharedLockTimeoutSec";
+
+    public static final String DEFAULT_STORE_NAME = "servicecall";
+
+    protected static final String TOKEN_KEY_PREFIX = "token:";
+
+    protected static final String LOCK_KEY_PREFIX = "tokenlock:";
+
+    protected static final long POLL_INTERVAL_MS = 100;
+
+    protected static volatile SharedTokenStore instance = null;
+
+    protected final String storeName;
+
+    protected final Duration lockTimeout;
+
+    protected final Counter reused = ServiceCallMetrics.counter("tokens.shared.reused");
+
+    protected final Counter fetched = ServiceCallMetrics.counter("tokens.shared.fetched");
+
+    public SharedTokenStore(String storeName, Duration lockTimeout) {
+        this.storeName = storeName;
+        this.lockTimeout = lockTimeout;
+    }
+
+    /**
+     * @return the shared store, or null if sharing tokens is not enabled in nuxeo.conf
+     * @since 2025.4
+     */
+    public static SharedTokenStore getInstance() {
+
+        SharedTokenStore store = instance;
+        if (store == null && Boolean.parseBoolean(Framework.getProperty(SHARED_PROP, "false"))) {
+            synchronized (SharedTokenStore.class) {
+                store = instance;
+                if (store == null) {
+                    String name = Framework.getProperty(SHARED_STORE_PROP, DEFAULT_STORE_NAME);
+                    long timeoutSec = AuthenticationTokens.getLongProperty(SHARED_LOCK_TIMEOUT_PROP, 30);
+                    store = new SharedTokenStore(StringUtils.defaultIfBlank(name, DEFAULT_STORE_NAME),
+                            Duration.ofSeconds(Math.max(1, timeoutSec)));
+                    instance = store;
+                }
+            }
+        }
+        return store;
+    }
+
+    protected KeyValueStore getStore() {
+        return Framework.getService(KeyValueService.class).getKeyValueStore(storeName);
+    }
+
+    /**
+     * Called by the token instead of calling the service directly.
+     *
+     * @param token
+     * @param previous, the current state of the token
+     * @return the new state, from the store or from the service
+     * @since 2025.4
+     */
+    protected CompletableFuture<State> fetch(AuthenticationToken token, State previous) {
+
+        long deadline = System.currentTimeMillis() + lockTimeout.toMillis();
+        return attempt(token, previous, deadline);
+    }
+
+    protected CompletableFuture<State> attempt(AuthenticationToken token, State previous, long deadline) {
+
+        String tokenKey = TOKEN_KEY_PREFIX + token.getDescriptorKey();
+        String lockKey = LOCK_KEY_PREFIX + token.getDescriptorKey();
+        KeyValueStore store;
+        State stored;
+        try {
+            store = getStore();
+            stored = read(store.getString(tokenKey));
+        } catch (RuntimeException e) {
+            log.warn("Cannot read the shared token store, fetching the token locally", e);
+            return token.fetchFromService(previous);
+        }
+
+        if (isNewer(stored, previous)) {
+            reused.inc();
+            return CompletableFuture.completedFuture(stored);
+        }
+
+        // Unique per attempt, so we release only our lock
+        String owner = UUID.randomUUID().toString();
+        boolean locked;
+        try {
+            locked = store.compareAndSet(lockKey, null, owner, lockTimeout.toSeconds());
+        } catch (RuntimeException e) {
+            log.warn("Cannot lock the shared token store, fetching the token locally", e);
+            return token.fetchFromService(previous);
+        }
+
+        if (locked) {
+            fetched.inc();
+            return token.fetchFromService(previous).whenComplete((state, error) -> {
+                try {
+                    if (error == null && state.serviceResponse != null) {
+                        long ttl = Math.max(1, Duration.between(Instant.now(), state.hardExpiration).toSeconds());
+                        store.put(tokenKey, write(state), ttl);
+                    }
+                } catch (RuntimeException e) {
+                    log.warn("Cannot write the token to the shared store", e);
+                } finally {
+                    try {
+                        store.compareAndSet(lockKey, owner, null);
+                    } catch (RuntimeException e) {
+                        log.warn("Cannot release the lock of the shared token store (it will expire)", e);
+                    }
+                }
+            });
+        }
+
+        if (System.currentTimeMillis() > deadline) {
+            log.warn("Timeout waiting for another node to fetch token " + token.getId() + ", fetching it locally");
+            return token.fetchFromService(previous);
+        }
+
+        // Another node is fetching it
+        return CompletableFuture.runAsync(() -> {
+        }, CompletableFuture.delayedExecutor(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS))
+                                .thenCompose(v -> attempt(token, previous, deadline));
+    }
+
+    /**
+     * Removes the stored token if it is the rejected one, so other nodes don't reuse it
+     *
+     * @param token
+     * @param rejectedToken
+     * @since 2025.4
+     */
+    protected void invalidate(AuthenticationToken token, String rejectedToken) {
+
+        String tokenKey = TOKEN_KEY_PREFIX + token.getDescriptorKey();
+        try {
+            KeyValueStore store = getStore();
+            String value = store.getString(tokenKey);
+            State stored = read(value);
+            if (stored != null && rejectedToken.equals(stored.token)) {
+                store.compareAndSet(tokenKey, value, null);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Cannot invalidate the token in the shared store", e);
+        }
+    }
+
+    /*
+     * A stored token is used only if it is valid and more recent than the one we have
+     */
+    protected boolean isNewer(State stored, State previous) {
+
+        if (stored == null || stored.isExpired(Instant.now())) {
+            return false;
+        }
+        return previous.hardExpiration == null || stored.hardExpiration.isAfter(previous.hardExpiration);
+    }
+
+    protected String write(State state) {
+
+        JSONObject obj = new JSONObject();
+        obj.put("response", state.serviceResponse.toString());
+        obj.put("responseCode", state.lastServiceCallresult.getResponseCode());
+        obj.put("responseMessage", StringUtils.defaultString(state.lastServiceCallresult.getResponseMessage()));
+        obj.put("expiration", state.expiration.toEpochMilli());
+        obj.put("hardExpiration", state.hardExpiration.toEpochMilli());
+
+        return obj.toString();
+    }
+
+    protected State read(String value) {
+
+        if (StringUtils.isBlank(value)) {
+            return null;
+        }
+        JSONObject obj = new JSONObject(value);
+        String response = obj.getString("response");
+        JSONObject serviceResponse = new JSONObject(response);
+
+        return new State(serviceResponse.getString("access_token"), Instant.ofEpochMilli(obj.getLong("expiration")),
+                Instant.ofEpochMilli(obj.getLong("hardExpiration")), serviceResponse,
+                new ServiceCallResult(response, obj.getInt("responseCode"), obj.getString("responseMessage")));
+    }
+
+    public String getStoreName() {
+        return storeName;
+    }
+
+    public Duration getLockTimeout() {
+        return lockTimeout;
+    }
+
+}
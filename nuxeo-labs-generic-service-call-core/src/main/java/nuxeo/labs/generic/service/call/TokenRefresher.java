@@ -0,0 +1,382 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Refreshes the registered tokens in the background, before they expire, so callers do not wait for the
+ * authentication service.
+ * <ul>
+ * <li>A token is refreshed after a fraction of its lifespan (<code>expires_in</code>), minus a random jitter so
+ * tokens fetched at the same time are not all refreshed at the same time. It is never later than the safety margin of
+ * the token, where callers would start refreshing it themselves.</li>
+ * <li>If the refresh fails, it is retried with an exponential backoff. The current token is still used until it
+ * actually expires.</li>
+ * <li>Tokens with a lifespan shorter than the safety margin are not refreshed in the background.</li>
+ * </ul>
+ * Default values can be overridden in nuxeo.conf:
+ * <ul>
+ * <li><code>nuxeo.labs.servicecall.token.refreshEnabled</code>: <code>false</code> to refresh tokens only when they
+ * expire (default true)</li>
+ * <li><code>nuxeo.labs.servicecall.token.refreshFraction</code>: Fraction of the lifespan after which a token is
+ * refreshed (default 0.75)</li>
+ * <li><code>nuxeo.labs.servicecall.token.refreshJitter</code>: Max. random fraction of the lifespan removed from the
+ * delay (default 0.1)</li>
+ * <li><code>nuxeo.labs.servicecall.token.refreshBackoffMinMs</code>: Delay before retrying a failed refresh (default
+ * 1000), doubled at each failure</li>
+ * <li><code>nuxeo.labs.servicecall.token.refreshBackoffMaxMs</code>: Max. delay between two retries (default
+ * 60000)</li>
+ * </ul>
+ * The shared instance is created at startup by <code>ServiceCallComponent</code> and closed when the component stops.
+ *
+ * @since 2025.4
+ */
+public class TokenRefresher implements AutoCloseable {
+
+    private static final Logger log = LogManager.getLogger(TokenRefresher.class);
+
+    public static final String PROPERTY_PREFIX = "nuxeo.labs.servicecall.token.";
+
+    public static final String REFRESH_ENABLED_PROP = PROPERTY_PREFIX + "refreshEnabled";
+
+    public static final String REFRESH_FRACTION_PROP = PROPERTY_PREFIX + "refreshFraction";
+
+    public static final String REFRESH_JITTER_PROP = PROPERTY_PREFIX + "refreshJitter";
+
+    public static final String REFRESH_BACKOFF_MIN_PROP = PROPERTY_PREFIX + "refreshBackoffMinMs";
+
+    public static final String REFRESH_BACKOFF_MAX_PROP = PROPERTY_PREFIX + "refreshBackoffMaxMs";
+
+    protected static volatile TokenRefresher instance = null;
+
+    protected boolean enabled = true;
+
+    protected double fraction = 0.75;
+
+    protected double jitter = 0.1;
+
+    public static final Duration DEFAULT_BACKOFF_MIN = Duration.ofSeconds(1);
+
+    public static final Duration DEFAULT_BACKOFF_MAX = Duration.ofSeconds(60);
+
+    protected Duration backoffMin = DEFAULT_BACKOFF_MIN;
+
+    protected Duration backoffMax = DEFAULT_BACKOFF_MAX;
+
+    protected final ScheduledThreadPoolExecutor scheduler;
+
+    // Registered tokens, with their next background refresh (if any)
+    protected final Map<AuthenticationToken, Scheduled> tokens = new ConcurrentHashMap<>();
+
+    protected static class Scheduled {
+
+        protected final ScheduledFuture<?> future;
+
+        protected final int failures;
+
+        protected Scheduled(ScheduledFuture<?> future, int failures) {
+            this.future = future;
+            this.failures = failures;
+        }
+    }
+
+    public TokenRefresher() {
+
+        // The refresh itself is async (see AuthenticationToken), the thread only starts it
+        scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "servicecall-token-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @return a refresher with the values set in nuxeo.conf (or the default values)
+     * @since 2025.4
+     */
+    public static TokenRefresher fromProperties() {
+
+        TokenRefresher refresher = new TokenRefresher();
+
+        String enabledStr = Framework.getProperty(REFRESH_ENABLED_PROP);
+        if (StringUtils.isNotBlank(enabledStr)) {
+            refresher.enabled = Boolean.parseBoolean(enabledStr.trim());
+        }
+        refresher.fraction = getDoubleProperty(REFRESH_FRACTION_PROP, refresher.fraction);
+        refresher.jitter = getDoubleProperty(REFRESH_JITTER_PROP, refresher.jitter);
+        refresher.backoffMin = getDurationProperty(REFRESH_BACKOFF_MIN_PROP, DEFAULT_BACKOFF_MIN);
+        refresher.backoffMax = getDurationProperty(REFRESH_BACKOFF_MAX_PROP, DEFAULT_BACKOFF_MAX);
+
+        return refresher;
+    }
+
+    protected static double getDoubleProperty(String key, double defaultValue) {
+
+        String value = Framework.getProperty(key);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value <" + value + "> for " + key + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    protected static Duration getDurationProperty(String key, Duration defaultValue) {
+        return Duration.ofMillis((long) getDoubleProperty(key, defaultValue.toMillis()));
+    }
+
+    /**
+     * @return the shared refresher. Created with the nuxeo.conf configuration if needed.
+     * @since 2025.4
+     */
+    public static TokenRefresher getInstance() {
+
+        TokenRefresher refresher = instance;
+        if (refresher == null) {
+            synchronized (TokenRefresher.class) {
+                refresher = instance;
+                if (refresher == null) {
+                    refresher = fromProperties();
+                    instance = refresher;
+                }
+            }
+        }
+        return refresher;
+    }
+
+    /**
+     * Closes the shared refresher, if any. A new one will be created at next call to <code>getInstance()</code>
+     *
+     * @since 2025.4
+     */
+    public static void shutdownInstance() {
+
+        TokenRefresher refresher;
+        synchronized (TokenRefresher.class) {
+            refresher = instance;
+            instance = null;
+        }
+        if (refresher != null) {
+            refresher.close();
+        }
+    }
+
+    /**
+     * The token will be refreshed in the background once it has a value (after its first refresh, whoever triggered
+     * it)
+     *
+     * @param token
+     * @since 2025.4
+     */
+    public void register(AuthenticationToken token) {
+
+        if (!enabled || scheduler.isShutdown()) {
+            return;
+        }
+        tokens.putIfAbsent(token, new Scheduled(null, 0));
+        token.setRefreshListener(this::tokenRefreshed);
+        // Already has a value
+        if (token.state.serviceResponse != null) {
+            tokenRefreshed(token);
+        }
+    }
+
+    /**
+     * Stops refreshing the token in the background. It is still refreshed when it expires.
+     *
+     * @param token
+     * @since 2025.4
+     */
+    public void unregister(AuthenticationToken token) {
+
+        token.setRefreshListener(null);
+        Scheduled scheduled = tokens.remove(token);
+        if (scheduled != null && scheduled.future != null) {
+            scheduled.future.cancel(false);
+        }
+    }
+
+    public boolean isRegistered(AuthenticationToken token) {
+        return tokens.containsKey(token);
+    }
+
+    /*
+     * Called after each refresh of the token (background or not): schedules the next one
+     */
+    protected void tokenRefreshed(AuthenticationToken token) {
+
+        AuthenticationToken.State state = token.state;
+        Instant now = Instant.now();
+        tokens.computeIfPresent(token, (t, previous) -> {
+            if (previous.future != null) {
+                previous.future.cancel(false);
+            }
+            if (scheduler.isShutdown()) {
+                return previous;
+            }
+
+            int failures;
+            Duration delay;
+            if (state.serviceResponse != null) {
+                failures = 0;
+                delay = refreshDelay(state, now);
+                if (delay == null) {
+                    return new Scheduled(null, 0);
+                }
+            } else {
+                failures = previous.failures + 1;
+                delay = backoffDelay(failures);
+                log.warn("Refreshing token " + token.getId() + " failed (" + failures + " time(s)), retrying in "
+                        + delay.toMillis() + "ms");
+            }
+
+            ScheduledFuture<?> future = scheduler.schedule(() -> refresh(token), delay.toMillis(),
+                    TimeUnit.MILLISECONDS);
+            return new Scheduled(future, failures);
+        });
+    }
+
+    protected void refresh(AuthenticationToken token) {
+
+        if (!tokens.containsKey(token)) {
+            return;
+        }
+        log.debug("Refreshing token " + token.getId());
+        // tokenRefreshed is called back when done
+        token.refresh(token.state);
+    }
+
+    /*
+     * null => too short-lived to be refreshed in the background
+     */
+    protected Duration refreshDelay(AuthenticationToken.State state, Instant now) {
+
+        if (state.expiration == null || !state.expiration.isAfter(now)) {
+            return null;
+        }
+
+        long lifespanMs = Duration.between(now, state.hardExpiration).toMillis();
+        double delayFraction = fraction - jitter * ThreadLocalRandom.current().nextDouble();
+        long delayMs = (long) (lifespanMs * Math.max(0, delayFraction));
+        long untilMarginMs = Duration.between(now, state.expiration).toMillis();
+
+        return Duration.ofMillis(Math.min(delayMs, untilMarginMs));
+    }
+
+    protected Duration backoffDelay(int failures) {
+        return backoffDelay(failures, backoffMin, backoffMax);
+    }
+
+    /**
+     * The delay before retrying after <code>failures</code> failed refreshes, with the values of the shared refresher
+     * if it exists, else with the values set in nuxeo.conf. Does not create the shared refresher (and its thread).
+     *
+     * @param failures, 1 or more
+     * @return the delay
+     * @since 2025.4
+     */
+    public static Duration defaultBackoffDelay(int failures) {
+
+        TokenRefresher refresher = instance;
+        if (refresher != null) {
+            return refresher.backoffDelay(failures);
+        }
+        return backoffDelay(failures, getDurationProperty(REFRESH_BACKOFF_MIN_PROP, DEFAULT_BACKOFF_MIN),
+                getDurationProperty(REFRESH_BACKOFF_MAX_PROP, DEFAULT_BACKOFF_MAX));
+    }
+
+    /*
+     * Exponential, with a random part so failed tokens do not retry all at the same time
+     */
+    protected static Duration backoffDelay(int failures, Duration min, Duration max) {
+
+        long maxMs = max.toMillis();
+        long delayMs = min.toMillis() << Math.min(failures - 1, 20);
+        delayMs = Math.min(Math.max(delayMs, 1), maxMs);
+        delayMs = delayMs / 2 + ThreadLocalRandom.current().nextLong(delayMs / 2 + 1);
+
+        return Duration.ofMillis(delayMs);
+    }
+
+    @Override
+    public void close() {
+
+        scheduler.shutdownNow();
+        tokens.keySet().forEach(token -> token.setRefreshListener(null));
+        tokens.clear();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public double getFraction() {
+        return fraction;
+    }
+
+    public void setFraction(double fraction) {
+        this.fraction = fraction;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    public void setJitter(double jitter) {
+        this.jitter = jitter;
+    }
+
+    public Duration getBackoffMin() {
+        return backoffMin;
+    }
+
+    public void setBackoffMin(Duration backoffMin) {
+        this.backoffMin = backoffMin;
+    }
+
+    public Duration getBackoffMax() {
+        return backoffMax;
+    }
+
+    public void setBackoffMax(Duration backoffMax) {
+        this.backoffMax = backoffMax;
+    }
+
+}
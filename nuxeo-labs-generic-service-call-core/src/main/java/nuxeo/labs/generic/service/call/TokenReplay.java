@@ -0,0 +1,186 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.runtime.api.Framework;
+
+import io.dropwizard.metrics5.Counter;
+import nuxeo.labs.generic.service.call.http.ServiceCallMetrics;
+import nuxeo.labs.generic.service.call.http.ServiceCallResult;
+
+/**
+ * Makes a call with a bearer token. If the service rejects the token (revoked before its expiration for example), the
+ * token is invalidated, refreshed (once, whatever the number of callers having it rejected) and the call is replayed
+ * once.
+ * <br>
+ * A token is rejected when the service returns one of the configured status codes. Can be configured in nuxeo.conf:
+ * <ul>
+ * <li><code>nuxeo.labs.servicecall.token.rejectedStatusCodes</code>: Comma separated list of status codes meaning the
+ * token was rejected (default 401)</li>
+ * <li><code>nuxeo.labs.servicecall.token.rejectedStatusCodesWithBody</code>: Comma separated list of status codes
+ * meaning the token was rejected only if the body of the response matches
+ * <code>nuxeo.labs.servicecall.token.rejectedBodyPattern</code> (default none). For example, 403.</li>
+ * <li><code>nuxeo.labs.servicecall.token.rejectedBodyPattern</code>: A regular expression, found in the body of the
+ * response (for example, <code>invalid_token</code>)</li>
+ * </ul>
+ *
+ * @since 2025.4
+ */
+public class TokenReplay {
+
+    private static final Logger log = LogManager.getLogger(TokenReplay.class);
+
+    public static final String REJECTED_STATUS_CODES_PROP = TokenRefresher.PROPERTY_PREFIX + "rejectedStatusCodes";
+
+    public static final String REJECTED_STATUS_CODES_WITH_BODY_PROP = TokenRefresher.PROPERTY_PREFIX
+            + "rejectedStatusCodesWithBody";
+
+    public static final String REJECTED_BODY_PATTERN_PROP = TokenRefresher.PROPERTY_PREFIX + "rejectedBodyPattern";
+
+    protected static volatile TokenReplay instance = null;
+
+    protected final Set<Integer> rejectedStatusCodes;
+
+    protected final Set<Integer> rejectedStatusCodesWithBody;
+
+    protected final Pattern rejectedBodyPattern;
+
+    protected final Counter replays = ServiceCallMetrics.counter("tokens.replays");
+
+    /**
+     * @param rejectedStatusCodes
+     * @param rejectedStatusCodesWithBody
+     * @param rejectedBodyPattern, can be null
+     */
+    public TokenReplay(Set<Integer> rejectedStatusCodes, Set<Integer> rejectedStatusCodesWithBody,
+            Pattern rejectedBodyPattern) {
+        this.rejectedStatusCodes = rejectedStatusCodes;
+        this.rejectedStatusCodesWithBody = rejectedStatusCodesWithBody;
+        this.rejectedBodyPattern = rejectedBodyPattern;
+    }
+
+    /**
+     * @return the instance configured in nuxeo.conf
+     * @since 2025.4
+     */
+    public static TokenReplay getInstance() {
+
+        TokenReplay replay = instance;
+        if (replay == null) {
+            synchronized (TokenReplay.class) {
+                replay = instance;
+                if (replay == null) {
+                    Pattern pattern = null;
+                    String patternStr = Framework.getProperty(REJECTED_BODY_PATTERN_PROP);
+                    if (StringUtils.isNotBlank(patternStr)) {
+                        try {
+                            pattern = Pattern.compile(patternStr);
+                        } catch (PatternSyntaxException e) {
+                            log.warn("Invalid regular expression <" + patternStr + "> for "
+                                    + REJECTED_BODY_PATTERN_PROP + ", ignored");
+                        }
+                    }
+                    replay = new TokenReplay(toStatusCodes(Framework.getProperty(REJECTED_STATUS_CODES_PROP, "401")),
+                            toStatusCodes(Framework.getProperty(REJECTED_STATUS_CODES_WITH_BODY_PROP, "")), pattern);
+                    instance = replay;
+                }
+            }
+        }
+        return replay;
+    }
+
+    protected static Set<Integer> toStatusCodes(String value) {
+
+        if (StringUtils.isBlank(value)) {
+            return Set.of();
+        }
+        try {
+            return Arrays.stream(value.split(","))
+                         .map(String::trim)
+                         .filter(StringUtils::isNotBlank)
+                         .map(Integer::valueOf)
+                         .collect(Collectors.toUnmodifiableSet());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid list of status codes <" + value + ">, ignored");
+            return Set.of();
+        }
+    }
+
+    /**
+     * Adds the <code>Authorization: Bearer</code> header to <code>headers</code> and makes the call. If the token
+     * is rejected, makes the call again, once, with a new token.
+     *
+     * @param token
+     * @param headers, modified by the method
+     * @param call, makes the call with the headers. It can be called twice, so it must not consume a stream.
+     * @return the result of the call
+     * @since 2025.4
+     */
+    public ServiceCallResult call(AuthenticationToken token, Map<String, String> headers,
+            Function<Map<String, String>, ServiceCallResult> call) {
+
+        String tokenStr = token.getToken();
+        headers.put("Authorization", "Bearer " + tokenStr);
+        ServiceCallResult result = call.apply(headers);
+        if (!isTokenRejected(result)) {
+            return result;
+        }
+
+        token.invalidate(tokenStr);
+        String newTokenStr = token.getToken();
+        if (StringUtils.isBlank(newTokenStr) || newTokenStr.equals(tokenStr)) {
+            log.warn("Token " + token.getId() + " was rejected (" + result.getResponseCode()
+                    + ") and could not be refreshed");
+            return result;
+        }
+
+        log.debug("Token " + token.getId() + " was rejected (" + result.getResponseCode()
+                + "), replaying the call with a new token");
+        replays.inc();
+        headers.put("Authorization", "Bearer " + newTokenStr);
+        return call.apply(headers);
+    }
+
+    /**
+     * @param result
+     * @return true if the result says the token was rejected
+     * @since 2025.4
+     */
+    public boolean isTokenRejected(ServiceCallResult result) {
+
+        int status = result.getResponseCode();
+        if (rejectedStatusCodes.contains(status)) {
+            return true;
+        }
+        return rejectedStatusCodesWithBody.contains(status) && rejectedBodyPattern != null
+                && result.getErrorBody() != null && rejectedBodyPattern.matcher(result.getErrorBody()).find();
+    }
+
+}
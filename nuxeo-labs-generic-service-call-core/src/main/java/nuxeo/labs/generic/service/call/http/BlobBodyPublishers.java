@@ -0,0 +1,276 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.http;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * <code>BodyPublisher</code>s sending a <code>Blob</code> as it is read, without first copying it to a local file
+ * (<code>Blob#getCloseableFile</code> downloads the whole object when the blob is stored in S3, for example).
+ * <br>
+ * The stream of the blob is opened when the request is sent, and opened again if it is retried. It is read as the
+ * HTTP client asks for data, so only a few buffers are in memory at a time.
+ *
+ * @since 2025.4
+ */
+public class BlobBodyPublishers {
+
+    private BlobBodyPublishers() {
+        // Static methods only
+    }
+
+    /**
+     * The <code>Content-Length</code> is the length of the blob when it is known, else the body is sent chunked (with
+     * HTTP/1.1).
+     *
+     * @param blob
+     * @return a publisher streaming the blob
+     * @since 2025.4
+     */
+    public static BodyPublisher ofBlob(Blob blob) {
+
+        File file = blob.getFile();
+        if (file != null && file.isFile()) {
+            // Already local, nothing to download
+            try {
+                return BodyPublishers.ofFile(file.toPath());
+            } catch (FileNotFoundException e) {
+                // Fall back to its stream
+            }
+        }
+        BodyPublisher stream = BodyPublishers.ofInputStream(() -> openStream(blob));
+        long length = blob.getLength();
+        return length >= 0 ? BodyPublishers.fromPublisher(stream, length) : stream;
+    }
+
+    /**
+     * A part of the blob. A local file is read from the offset, else the stream of the blob is skipped up to the
+     * offset: to send all the parts of a blob without a local file, use <code>BlobParts</code>, which reads its stream
+     * only once.
+     *
+     * @param blob
+     * @param offset
+     * @param length
+     * @return a publisher streaming <code>length</code> bytes of the blob, from <code>offset</code>
+     * @since 2025.4
+     */
+    public static BodyPublisher ofBlobRange(Blob blob, long offset, long length) {
+
+        BodyPublisher stream = BodyPublishers.ofInputStream(() -> openRange(blob, offset, length));
+        return BodyPublishers.fromPublisher(stream, length);
+    }
+
+    protected static InputStream openRange(Blob blob, long offset, long length) {
+
+        try {
+            InputStream in;
+            File file = blob.getFile();
+            if (file != null && file.isFile()) {
+                in = Channels.newInputStream(FileChannel.open(file.toPath(), StandardOpenOption.READ).position(offset));
+            } else {
+                in = blob.getStream();
+                in.skipNBytes(offset);
+            }
+            return new RangeInputStream(in, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read the blob " + blob.getFilename(), e);
+        }
+    }
+
+    /**
+     * The parts of a blob, for chunked uploads (see <code>ChunkedUpload</code>):
+     * <ul>
+     * <li>A local file is read at the offset of each part.</li>
+     * <li>Else, the stream of the blob (S3, ...) is read only once, from the first part to the last one. Each part is
+     * copied to a temporary file when it is about to be sent, so it can be sent concurrently with the others and
+     * retried. The copy is deleted once the part is uploaded (see <code>release</code>), so there are at most
+     * <code>parallelism</code> copies at a time.</li>
+     * </ul>
+     * The parts must be asked by increasing offset. Asking for a part before the current position of the stream opens
+     * it again.
+     *
+     * @since 2025.4
+     */
+    public static class BlobParts implements AutoCloseable {
+
+        protected final Blob blob;
+
+        protected final File file;
+
+        protected InputStream stream;
+
+        protected long position = 0;
+
+        protected boolean closed = false;
+
+        // Offset of the part => its copy
+        protected final Map<Long, Path> copies = new ConcurrentHashMap<>();
+
+        public BlobParts(Blob blob) {
+
+            this.blob = blob;
+            File blobFile = blob.getFile();
+            file = blobFile != null && blobFile.isFile() ? blobFile : null;
+        }
+
+        /**
+         * @param offset
+         * @param length
+         * @return a publisher sending <code>length</code> bytes of the blob, from <code>offset</code>
+         * @throws IOException if the part cannot be read from the blob
+         * @since 2025.4
+         */
+        public synchronized BodyPublisher part(long offset, long length) throws IOException {
+
+            if (closed) {
+                throw new IOException("The upload of the blob " + blob.getFilename() + " is done");
+            }
+            if (file != null) {
+                return ofBlobRange(blob, offset, length);
+            }
+            if (stream == null || offset < position) {
+                closeStream();
+                stream = blob.getStream();
+                position = 0;
+            }
+            stream.skipNBytes(offset - position);
+            position = offset;
+
+            Path copy = Files.createTempFile("servicecall-part-", ".tmp");
+            copies.put(offset, copy);
+            try (OutputStream out = Files.newOutputStream(copy)) {
+                long copied = new RangeInputStream(stream, length).transferTo(out);
+                position += copied;
+                if (copied != length) {
+                    throw new EOFException("Part at " + offset + " of the blob " + blob.getFilename() + ": " + copied
+                            + " bytes read, " + length + " expected");
+                }
+            }
+            return BodyPublishers.ofFile(copy);
+        }
+
+        /**
+         * Deletes the copy of the part, if any. To call once the part is uploaded.
+         *
+         * @param offset
+         * @since 2025.4
+         */
+        public void release(long offset) {
+            delete(copies.remove(offset));
+        }
+
+        @Override
+        public synchronized void close() {
+
+            closed = true;
+            closeStream();
+            copies.keySet().forEach(this::release);
+        }
+
+        protected void closeStream() {
+
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+                stream = null;
+            }
+        }
+
+        protected static void delete(Path copy) {
+
+            if (copy != null) {
+                try {
+                    Files.deleteIfExists(copy);
+                } catch (IOException e) {
+                    // Ignore, temporary file
+                }
+            }
+        }
+    }
+
+    /*
+     * Reads at most length bytes
+     */
+    protected static class RangeInputStream extends FilterInputStream {
+
+        protected long remaining;
+
+        protected RangeInputStream(InputStream in, long length) {
+            super(in);
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+    }
+
+    protected static InputStream openStream(Blob blob) {
+
+        try {
+            return blob.getStream();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read the blob " + blob.getFilename(), e);
+        }
+    }
+
+}
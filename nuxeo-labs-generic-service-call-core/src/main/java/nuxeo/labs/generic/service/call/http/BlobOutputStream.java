@@ -0,0 +1,197 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.http;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.json.JSONObject;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+/**
+ * An <code>OutputStream</code> building a <code>Blob</code>: the bytes are kept in memory up to a threshold, then
+ * written to a temporary file. The blob is the array itself when the content stayed in memory (no copy when its size
+ * was known), or the file.
+ * <br>
+ * Used to write the JSON result of the operations directly in their blob, instead of building the JSON String, then
+ * copying it to the blob (see <code>ServiceCallResult#toJsonBlob</code>).
+ *
+ * @since 2025.4
+ */
+public class BlobOutputStream extends OutputStream {
+
+    protected static final int DEFAULT_INITIAL_SIZE = 8 * 1024;
+
+    protected final long threshold;
+
+    protected final String extension;
+
+    protected byte[] buffer;
+
+    protected int count = 0;
+
+    // Set once written to a file
+    protected Blob fileBlob;
+
+    protected OutputStream fileOut;
+
+    protected boolean closed = false;
+
+    /**
+     * @param threshold, in bytes. Above it, the content is written to a temporary file.
+     * @param sizeHint, the expected size of the content (0 if unknown), to size the buffer
+     * @param extension, of the temporary file (".json" for example)
+     */
+    public BlobOutputStream(long threshold, long sizeHint, String extension) {
+
+        this.threshold = threshold;
+        this.extension = extension;
+        int initialSize = sizeHint > 0 ? (int) Math.min(sizeHint, threshold) : DEFAULT_INITIAL_SIZE;
+        buffer = new byte[(int) Math.min(Math.max(initialSize, 1), Integer.MAX_VALUE - 8)];
+    }
+
+    /**
+     * @param obj
+     * @return a JSON blob (UTF-8) with obj, written to a temporary file if it is larger than the spill threshold (see
+     *         <code>HttpEngineConfig#getSpillThreshold</code>)
+     * @since 2025.4
+     */
+    public static Blob toJsonBlob(JSONObject obj) {
+
+        try (BlobOutputStream out = new BlobOutputStream(HttpEngine.getInstance().getConfig().getSpillThreshold(), 0,
+                ".json")) {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            obj.write(writer);
+            writer.flush();
+            out.close();
+            return out.getBlob("application/json", "UTF-8");
+        } catch (IOException e) {
+            throw new NuxeoException("Failed to write the JSON blob", e);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+
+        if (fileOut == null && count == buffer.length) {
+            ensureCapacity(1);
+        }
+        if (fileOut != null) {
+            fileOut.write(b);
+        } else {
+            buffer[count++] = (byte) b;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+
+        if (fileOut == null) {
+            ensureCapacity(len);
+        }
+        if (fileOut != null) {
+            fileOut.write(b, off, len);
+        } else {
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+
+        if (fileOut != null) {
+            fileOut.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (fileOut != null) {
+            fileOut.close();
+        }
+    }
+
+    /**
+     * @return true if the content was written to a temporary file
+     * @since 2025.4
+     */
+    public boolean isInFile() {
+        return fileBlob != null;
+    }
+
+    /**
+     * To be called once the stream is closed.
+     *
+     * @param mimeType
+     * @param encoding
+     * @return the blob
+     * @since 2025.4
+     */
+    public Blob getBlob(String mimeType, String encoding) {
+
+        if (!closed) {
+            throw new IllegalStateException("The stream is not closed");
+        }
+        Blob blob;
+        if (fileBlob != null) {
+            blob = fileBlob;
+        } else {
+            blob = Blobs.createBlob(count == buffer.length ? buffer : Arrays.copyOf(buffer, count));
+        }
+        blob.setMimeType(mimeType);
+        blob.setEncoding(encoding);
+        return blob;
+    }
+
+    /*
+     * Grows the buffer, or switches to a temporary file if the threshold is reached
+     */
+    protected void ensureCapacity(int length) throws IOException {
+
+        long needed = (long) count + length;
+        if (needed <= buffer.length) {
+            return;
+        }
+        if (needed > threshold || needed > Integer.MAX_VALUE - 8) {
+            fileBlob = Blobs.createBlobWithExtension(extension);
+            fileOut = new BufferedOutputStream(Files.newOutputStream(fileBlob.getFile().toPath()), 64 * 1024);
+            fileOut.write(buffer, 0, count);
+            buffer = null;
+            return;
+        }
+        long newSize = Math.min(Math.max(needed, 2L * buffer.length), Math.min(threshold, Integer.MAX_VALUE - 8));
+        buffer = Arrays.copyOf(buffer, (int) newSize);
+    }
+
+}
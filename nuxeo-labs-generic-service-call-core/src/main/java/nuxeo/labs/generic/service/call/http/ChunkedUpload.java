@@ -0,0 +1,617 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.http;
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.kv.KeyValueService;
+import org.nuxeo.runtime.kv.KeyValueStore;
+
+import io.dropwizard.metrics5.Counter;
+
+/**
+ * Uploads a large blob in parts, with a <code>ChunkedUploadProtocol</code> (S3 multipart, tus, Content-Range PUT):
+ * <ul>
+ * <li>The blob is split in parts of <code>partSize</code> bytes. A local file is read at the offset of each part,
+ * else the stream of the blob is read only once, each part being copied to a temporary file while it is sent (see
+ * <code>BlobBodyPublishers.BlobParts</code>). The parts are read on the IO executor of the <code>HttpEngine</code>,
+ * not on the threads sending the calls.</li>
+ * <li>When the protocol allows it, up to <code>parallelism</code> parts are sent concurrently (over the connections of
+ * the <code>HttpEngine</code>), else they are sent one after the other.</li>
+ * <li>A part failing with a transient error is retried on its own (see <code>RetryPolicy</code>, parts are always
+ * retried, whatever their method).</li>
+ * <li>The progress is saved in a KeyValueStore after each part: when the same blob is uploaded again to the same URL
+ * after a failure (or a restart of the server), the upload resumes where it stopped. The progress is removed once
+ * the upload is completed.</li>
+ * </ul>
+ * Can be configured in nuxeo.conf:
+ * <ul>
+ * <li><code>nuxeo.labs.servicecall.upload.partSizeMB</code>: Size of the parts (default 8. S3 requires at least 5,
+ * except for the last part)</li>
+ * <li><code>nuxeo.labs.servicecall.upload.parallelism</code>: Max. number of parts sent at the same time (default
+ * 4)</li>
+ * <li><code>nuxeo.labs.servicecall.upload.progressStore</code>: Name of the KeyValueStore (default
+ * <code>servicecall</code>)</li>
+ * <li><code>nuxeo.labs.servicecall.upload.progressTtlHours</code>: How long the progress of an interrupted upload is
+ * kept (default 24)</li>
+ * </ul>
+ * The <code>nuxeo.servicecall.upload.parts</code> and <code>nuxeo.servicecall.upload.resumed</code> metrics count the
+ * parts sent and the uploads resumed.
+ *
+ * @since 2025.4
+ */
+public class ChunkedUpload {
+
+    private static final Logger log = LogManager.getLogger(ChunkedUpload.class);
+
+    public static final String PROPERTY_PREFIX = "nuxeo.labs.servicecall.upload.";
+
+    public static final String PART_SIZE_PROP = PROPERTY_PREFIX + "partSizeMB";
+
+    public static final String PARALLELISM_PROP = PROPERTY_PREFIX + "parallelism";
+
+    public static final String PROGRESS_STORE_PROP = PROPERTY_PREFIX + "progressStore";
+
+    public static final String PROGRESS_TTL_PROP = PROPERTY_PREFIX + "progressTtlHours";
+
+    public static final String DEFAULT_STORE_NAME = "servicecall";
+
+    protected static final String PROGRESS_KEY_PREFIX = "upload:";
+
+    /**
+     * A part of the blob
+     *
+     * @since 2025.4
+     */
+    public static class Part {
+
+        protected final int number;
+
+        protected final long offset;
+
+        protected final long length;
+
+        public Part(int number, long offset, long length) {
+            this.number = number;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @return the number of the part, from 1
+         */
+        public int getNumber() {
+            return number;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+
+    protected final ServiceCall serviceCall;
+
+    protected final ChunkedUploadProtocol protocol;
+
+    protected final Blob blob;
+
+    protected final long length;
+
+    protected final String url;
+
+    // Without Content-Type, set by the protocol
+    protected final Map<String, String> headers = new HashMap<>();
+
+    protected long partSize;
+
+    protected int parallelism;
+
+    protected boolean persistProgress = true;
+
+    // Set by the protocol
+    protected volatile String uploadId;
+
+    protected volatile long offset = 0;
+
+    // Part number => what the protocol keeps about it (only when the parts are sent concurrently)
+    protected final SortedMap<Integer, String> partValues = new ConcurrentSkipListMap<>();
+
+    protected volatile ServiceCallResult lastPartResult;
+
+    protected final CompletableFuture<ServiceCallResult> result = new CompletableFuture<>();
+
+    protected final Set<CompletableFuture<ServiceCallResult>> inFlight = ConcurrentHashMap.newKeySet();
+
+    protected final Queue<Part> pending = new ConcurrentLinkedQueue<>();
+
+    protected final AtomicInteger remaining = new AtomicInteger();
+
+    protected final BlobBodyPublishers.BlobParts blobParts;
+
+    // The part being read from the blob (guarded by pending)
+    protected CompletableFuture<Void> reading = CompletableFuture.completedFuture(null);
+
+    // Parts are retried whatever their method
+    protected RetryPolicy partRetryPolicy;
+
+    protected final Counter partsSent = ServiceCallMetrics.counter("upload.parts");
+
+    protected final Counter resumed = ServiceCallMetrics.counter("upload.resumed");
+
+    /**
+     * @param serviceCall, sends the calls (engine, retry policy, rate limits). Set to not follow the redirects if the
+     *            protocol requires it.
+     * @param protocol
+     * @param blob, its length must be known
+     * @param url
+     * @param headers, sent with every call (authentication, ...). Can be null.
+     */
+    public ChunkedUpload(ServiceCall serviceCall, ChunkedUploadProtocol protocol, Blob blob, String url,
+            Map<String, String> headers) {
+
+        this.serviceCall = serviceCall;
+        this.protocol = protocol;
+        this.blob = blob;
+        this.url = url;
+        length = blob.getLength();
+        if (length < 0) {
+            throw new NuxeoException("The length of the blob must be known for a chunked upload");
+        }
+        blobParts = new BlobBodyPublishers.BlobParts(blob);
+        if (!protocol.isFollowRedirects()) {
+            serviceCall.setFollowRedirects(false);
+        }
+        if (headers != null) {
+            headers.forEach((name, value) -> {
+                if (!name.equalsIgnoreCase("Content-Type")) {
+                    this.headers.put(name, value);
+                }
+            });
+        }
+        partSize = Math.max(1, HttpEngineConfig.getLongProperty(PART_SIZE_PROP, 8)) * 1024 * 1024;
+        parallelism = (int) Math.max(1, HttpEngineConfig.getLongProperty(PARALLELISM_PROP, 4));
+    }
+
+    public ChunkedUpload setPartSize(long partSize) {
+        this.partSize = Math.max(1, partSize);
+        return this;
+    }
+
+    public ChunkedUpload setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    /**
+     * @param persistProgress, false to not save the progress (the upload then always starts from the beginning)
+     * @return this
+     * @since 2025.4
+     */
+    public ChunkedUpload setPersistProgress(boolean persistProgress) {
+        this.persistProgress = persistProgress;
+        return this;
+    }
+
+    /**
+     * @return the result of the upload (see <code>uploadAsync</code>)
+     * @since 2025.4
+     */
+    public ServiceCallResult upload() {
+        return serviceCall.await(uploadAsync());
+    }
+
+    /**
+     * Cancelling the future cancels the parts in flight. The progress is kept, the upload can be resumed.
+     *
+     * @return the future result of the upload: the result of the completion call, or of the call that failed
+     * @since 2025.4
+     */
+    public CompletableFuture<ServiceCallResult> uploadAsync() {
+
+        result.whenComplete((value, error) -> {
+            if (error != null) {
+                inFlight.forEach(call -> call.cancel(true));
+            }
+            blobParts.close();
+        });
+
+        CompletableFuture<ServiceCallResult> prepared;
+        if (loadProgress()) {
+            log.debug("Resuming the upload " + uploadId + " to " + url);
+            prepared = track(protocol.resume(this)).thenCompose(resume -> {
+                if (isSuccess(resume)) {
+                    resumed.inc();
+                    return CompletableFuture.completedFuture(resume);
+                }
+                log.debug("Cannot resume the upload " + uploadId + " (" + resume.getResponseCode()
+                        + "), starting a new one");
+                return startNew();
+            });
+        } else {
+            prepared = startNew();
+        }
+
+        prepared.whenComplete((value, error) -> {
+            if (error != null) {
+                fail(error);
+            } else if (!isSuccess(value)) {
+                result.complete(value);
+            } else {
+                sendParts();
+            }
+        });
+
+        return result;
+    }
+
+    protected CompletableFuture<ServiceCallResult> startNew() {
+
+        uploadId = null;
+        offset = 0;
+        partValues.clear();
+        return track(protocol.start(this)).thenApply(started -> {
+            if (isSuccess(started)) {
+                saveProgress();
+            }
+            return started;
+        });
+    }
+
+    protected void sendParts() {
+
+        int number = 1;
+        for (long start = offset; start < length; start += partSize, number++) {
+            if (!partValues.containsKey(number)) {
+                pending.add(new Part(number, start, Math.min(partSize, length - start)));
+            }
+        }
+        if (number == 1 && length == 0) {
+            pending.add(new Part(1, 0, 0));
+        }
+        remaining.set(pending.size());
+        partRetryPolicy = serviceCall.getRetryPolicy().with(null, true);
+        if (pending.isEmpty()) {
+            finish();
+            return;
+        }
+        int workers = protocol.isParallel() ? parallelism : 1;
+        for (int i = 0; i < workers; i++) {
+            next();
+        }
+    }
+
+    /*
+     * Sends the next pending part, if any. Called again when it is uploaded.
+     */
+    protected void next() {
+
+        if (result.isDone()) {
+            return;
+        }
+        Part part;
+        CompletableFuture<BodyPublisher> body;
+        // The parts are read from the blob in order, off the threads of the engine: copying a part from a stream
+        // blocks
+        synchronized (pending) {
+            part = pending.poll();
+            if (part == null) {
+                return;
+            }
+            body = reading.thenApplyAsync(previous -> readPart(part), serviceCall.getEngine().getIoExecutor());
+            reading = body.handle((value, error) -> null);
+        }
+        CompletableFuture<ServiceCallResult> sent = body.thenCompose(publisher -> {
+            HttpRequest request = protocol.partRequest(this, part, publisher);
+            return track(partRetryPolicy.execute(request, () -> serviceCall.sendAsync(request)));
+        });
+        track(sent).whenComplete((value, error) -> {
+            blobParts.release(part.offset);
+            if (error != null) {
+                fail(error);
+                return;
+            }
+            if (!protocol.isPartUploaded(value)) {
+                log.debug("Part " + part.number + " of the upload " + uploadId + " failed: " + value.getResponseCode());
+                result.complete(value);
+                return;
+            }
+            long end = part.offset + part.length;
+            try {
+                if (!protocol.isParallel()) {
+                    // Can be set back by the protocol
+                    offset = end;
+                }
+                String partValue = protocol.partUploaded(this, part, value);
+                if (protocol.isParallel()) {
+                    partValues.put(part.number, StringUtils.defaultString(partValue));
+                }
+            } catch (RuntimeException e) {
+                fail(e);
+                return;
+            }
+            lastPartResult = value;
+            partsSent.inc();
+            saveProgress();
+            if (!protocol.isParallel() && offset < end) {
+                log.debug("Part " + part.number + " of the upload " + uploadId + " partly received, sending again from "
+                        + offset);
+                resend(new Part(part.number, offset, end - offset));
+                next();
+            } else if (remaining.decrementAndGet() == 0) {
+                finish();
+            } else {
+                next();
+            }
+        });
+    }
+
+    /*
+     * The part is sent before the pending ones
+     */
+    protected void resend(Part part) {
+
+        synchronized (pending) {
+            List<Part> others = new ArrayList<>(pending);
+            pending.clear();
+            pending.add(part);
+            pending.addAll(others);
+        }
+    }
+
+    protected BodyPublisher readPart(Part part) {
+
+        try {
+            return blobParts.part(part.offset, part.length);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    protected void finish() {
+
+        if (result.isDone()) {
+            return;
+        }
+        track(protocol.complete(this)).whenComplete((value, error) -> {
+            if (error != null) {
+                fail(error);
+                return;
+            }
+            if (isSuccess(value)) {
+                deleteProgress();
+            }
+            result.complete(value);
+        });
+    }
+
+    protected void fail(Throwable error) {
+        result.complete(ServiceCall.errorResult("Error uploading " + url + ": ", error));
+    }
+
+    protected CompletableFuture<ServiceCallResult> track(CompletableFuture<ServiceCallResult> call) {
+
+        inFlight.add(call);
+        call.whenComplete((value, error) -> inFlight.remove(call));
+        return call;
+    }
+
+    protected static boolean isSuccess(ServiceCallResult result) {
+        return ServiceCallResult.isHttpSuccess(result.getResponseCode());
+    }
+
+    /**
+     * For protocols: a request with the headers of the upload
+     *
+     * @param requestUrl
+     * @return the builder
+     * @since 2025.4
+     */
+    public HttpRequest.Builder newRequest(String requestUrl) {
+        return serviceCall.getEngine().newRequestBuilder(requestUrl, headers);
+    }
+
+    /**
+     * For protocols: sends a call (start, complete, ...), with the retry policy of the <code>ServiceCall</code>
+     *
+     * @param request
+     * @return the future result
+     * @since 2025.4
+     */
+    public CompletableFuture<ServiceCallResult> send(HttpRequest request) {
+        return serviceCall.getRetryPolicy().execute(request, () -> serviceCall.sendAsync(request));
+    }
+
+    protected KeyValueStore getStore() {
+
+        String name = StringUtils.defaultIfBlank(Framework.getProperty(PROGRESS_STORE_PROP), DEFAULT_STORE_NAME);
+        return Framework.getService(KeyValueService.class).getKeyValueStore(name);
+    }
+
+    /*
+     * Same protocol, same URL, same blob => same upload
+     */
+    protected String progressKey() {
+
+        String id = protocol.getName() + "\n" + url + "\n" + length + "\n"
+                + StringUtils.defaultIfBlank(blob.getDigest(), blob.getFilename());
+        return PROGRESS_KEY_PREFIX + ServiceCall.sha256Hex(id);
+    }
+
+    /*
+     * true if an interrupted upload of the blob was found
+     */
+    protected boolean loadProgress() {
+
+        if (!persistProgress) {
+            return false;
+        }
+        try {
+            String saved = getStore().getString(progressKey());
+            if (saved == null) {
+                return false;
+            }
+            JSONObject progress = new JSONObject(saved);
+            if (progress.getLong("partSize") != partSize) {
+                // The parts would not match
+                return false;
+            }
+            uploadId = progress.getString("uploadId");
+            JSONObject parts = progress.optJSONObject("parts");
+            if (parts != null) {
+                for (String number : parts.keySet()) {
+                    partValues.put(Integer.valueOf(number), parts.getString(number));
+                }
+            }
+            return true;
+        } catch (RuntimeException e) {
+            log.warn("Cannot read the progress of the upload to " + url + ", starting a new upload", e);
+            return false;
+        }
+    }
+
+    protected synchronized void saveProgress() {
+
+        if (!persistProgress || uploadId == null) {
+            return;
+        }
+        JSONObject progress = new JSONObject();
+        progress.put("uploadId", uploadId);
+        progress.put("partSize", partSize);
+        JSONObject parts = new JSONObject();
+        partValues.forEach((number, value) -> parts.put(String.valueOf(number), value));
+        progress.put("parts", parts);
+        try {
+            long ttl = Math.max(1, HttpEngineConfig.getLongProperty(PROGRESS_TTL_PROP, 24)) * 3600;
+            getStore().put(progressKey(), progress.toString(), ttl);
+        } catch (RuntimeException e) {
+            log.warn("Cannot save the progress of the upload to " + url, e);
+        }
+    }
+
+    protected void deleteProgress() {
+
+        if (!persistProgress) {
+            return;
+        }
+        try {
+            getStore().put(progressKey(), (String) null);
+        } catch (RuntimeException e) {
+            log.warn("Cannot delete the progress of the upload to " + url, e);
+        }
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public Blob getBlob() {
+        return blob;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the mime type of the blob, application/octet-stream if unknown
+     * @since 2025.4
+     */
+    public String getMimeType() {
+        return StringUtils.defaultIfBlank(ServiceCall.getMimeType(blob), "application/octet-stream");
+    }
+
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    /**
+     * @param uploadId, what identifies the upload for the protocol (upload id, URL of the upload, ...)
+     * @since 2025.4
+     */
+    public void setUploadId(String uploadId) {
+        this.uploadId = uploadId;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @param offset, the bytes already received, for protocols sending the parts one after the other
+     * @since 2025.4
+     */
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    /**
+     * @return part number => what the protocol kept about it (see <code>ChunkedUploadProtocol#partUploaded</code>),
+     *         sorted by part number
+     * @since 2025.4
+     */
+    public SortedMap<Integer, String> getPartValues() {
+        return partValues;
+    }
+
+    /**
+     * @return the result of the last part uploaded
+     * @since 2025.4
+     */
+    public ServiceCallResult getLastPartResult() {
+        return lastPartResult;
+    }
+
+    /**
+     * For protocols: when a resume finds the upload already completed, the response of the service is kept as the
+     * result of the upload
+     *
+     * @param lastPartResult
+     * @since 2025.4
+     */
+    public void setLastPartResult(ServiceCallResult lastPartResult) {
+        this.lastPartResult = lastPartResult;
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.http;
+
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+/**
+ * The calls of a chunked upload protocol, used by <code>ChunkedUpload</code>: how an upload is started, how a part is
+ * sent, how the upload is completed, and how an interrupted upload is resumed.
+ * <br>
+ * Available protocols (see <code>forName</code>): <code>S3MultipartProtocol</code>, <code>TusProtocol</code> and
+ * <code>ContentRangeProtocol</code>.
+ *
+ * @since 2025.4
+ */
+public interface ChunkedUploadProtocol {
+
+    /**
+     * @param name, "s3", "tus" or "content-range" (case insensitive)
+     * @return the protocol
+     * @since 2025.4
+     */
+    static ChunkedUploadProtocol forName(String name) {
+
+        switch (StringUtils.defaultString(name).trim().toLowerCase()) {
+        case S3MultipartProtocol.NAME:
+            return new S3MultipartProtocol();
+        case TusProtocol.NAME:
+            return new TusProtocol();
+        case ContentRangeProtocol.NAME:
+            return new ContentRangeProtocol();
+        default:
+            throw new NuxeoException("Unknown chunked upload protocol <" + name + ">. Use s3, tus or content-range.");
+        }
+    }
+
+    /**
+     * @return the name of the protocol
+     * @since 2025.4
+     */
+    String getName();
+
+    /**
+     * @return true if the parts can be sent concurrently, in any order. Else, they are sent one after the other.
+     * @since 2025.4
+     */
+    boolean isParallel();
+
+    /**
+     * @return false if the protocol uses 3xx responses for something else than redirects (see
+     *         <code>ServiceCall#setFollowRedirects</code>)
+     * @since 2025.4
+     */
+    default boolean isFollowRedirects() {
+        return true;
+    }
+
+    /**
+     * Starts a new upload, and sets its id (see <code>ChunkedUpload#setUploadId</code>)
+     *
+     * @param upload
+     * @return the result of the call, the upload stops if it failed
+     * @since 2025.4
+     */
+    CompletableFuture<ServiceCallResult> start(ChunkedUpload upload);
+
+    /**
+     * Checks an interrupted upload can be resumed. Protocols sending the parts one after the other set the offset to
+     * resume from (see <code>ChunkedUpload#setOffset</code>).
+     *
+     * @param upload, with the id and the parts saved when it was interrupted
+     * @return the result of the call, a new upload is started if it failed
+     * @since 2025.4
+     */
+    CompletableFuture<ServiceCallResult> resume(ChunkedUpload upload);
+
+    /**
+     * @param upload
+     * @param part
+     * @param body, the content of the part
+     * @return the request sending the part
+     * @since 2025.4
+     */
+    HttpRequest partRequest(ChunkedUpload upload, ChunkedUpload.Part part, BodyPublisher body);
+
+    /**
+     * @param result, of the request sending the part
+     * @return true if the part was received
+     * @since 2025.4
+     */
+    default boolean isPartUploaded(ServiceCallResult result) {
+        return ServiceCallResult.isHttpSuccess(result.getResponseCode());
+    }
+
+    /**
+     * Protocols sending the parts one after the other can set a lower offset (see <code>ChunkedUpload#setOffset</code>)
+     * when the service received only the beginning of the part: the rest of the part is sent again.
+     *
+     * @param upload
+     * @param part
+     * @param result, of the request sending the part
+     * @return what must be kept about the part to complete the upload (its ETag for example), null if nothing
+     * @since 2025.4
+     */
+    default String partUploaded(ChunkedUpload upload, ChunkedUpload.Part part, ServiceCallResult result) {
+        return null;
+    }
+
+    /**
+     * Called once all the parts were received
+     *
+     * @param upload
+     * @return the result of the upload
+     * @since 2025.4
+     */
+    CompletableFuture<ServiceCallResult> complete(ChunkedUpload upload);
+
+}
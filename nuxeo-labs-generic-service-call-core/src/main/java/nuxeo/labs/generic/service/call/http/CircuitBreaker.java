@@ -0,0 +1,203 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.http;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Circuit breaker of a host, so calls to a host known to be down fail immediately instead of waiting for a timeout.
+ * <ul>
+ * <li><code>CLOSED</code>: Calls go through. The outcome of the last calls is kept (see
+ * <code>CircuitBreakerConfig</code>): if too many of them failed (IO error, 502, 503, 504 by default) or were slow, the
+ * circuit opens.</li>
+ * <li><code>OPEN</code>: Calls are rejected without being sent, until <code>openDuration</code> is elapsed.</li>
+ * <li><code>HALF_OPEN</code>: A few probe calls go through, the others are rejected. The circuit closes when all the
+ * probes succeeded, and opens again as soon as one of them fails.</li>
+ * </ul>
+ * The transitions are counted by the <code>nuxeo.servicecall.circuit.transitions</code> metric (tagged with the host
+ * and the new state), the rejected calls by <code>nuxeo.servicecall.circuit.rejected</code>.
+ * <br>
+ * Calls are counted from the time they are sent, so the wait for a connection (see
+ * <code>HttpEngineConfig#getMaxConnectionsPerHost</code>) is not a slow call.
+ *
+ * @since 2025.4
+ */
+public class CircuitBreaker {
+
+    private static final Logger log = LogManager.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    protected static final byte FAILED = 1;
+
+    protected static final byte SLOW = 2;
+
+    protected final String host;
+
+    protected final CircuitBreakerConfig config;
+
+    protected State state = State.CLOSED;
+
+    // Changes at each transition, so outcomes of calls started before are ignored
+    protected long generation = 0;
+
+    // Ring buffer of the outcomes of the last calls (FAILED | SLOW flags)
+    protected final byte[] outcomes;
+
+    protected int size = 0;
+
+    protected int next = 0;
+
+    protected int failures = 0;
+
+    protected int slowCalls = 0;
+
+    protected long openUntilNanos = 0;
+
+    protected int probesInFlight = 0;
+
+    protected int probeSuccesses = 0;
+
+    public CircuitBreaker(String host, CircuitBreakerConfig config) {
+        this.host = host;
+        this.config = config;
+        outcomes = new byte[Math.max(1, config.getWindowSize())];
+    }
+
+    /**
+     * @return the permission to send a call (to pass to <code>onComplete</code> or <code>onIgnored</code>), or -1 if
+     *         the call must be rejected
+     * @since 2025.4
+     */
+    public synchronized long tryAcquire() {
+
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openUntilNanos < 0) {
+                ServiceCallMetrics.counter("circuit.rejected", "host", host).inc();
+                return -1;
+            }
+            transition(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesInFlight + probeSuccesses >= Math.max(1, config.getHalfOpenProbes())) {
+                ServiceCallMetrics.counter("circuit.rejected", "host", host).inc();
+                return -1;
+            }
+            probesInFlight++;
+        }
+        return generation;
+    }
+
+    /**
+     * Records the outcome of a call
+     *
+     * @param permission, returned by <code>tryAcquire</code>
+     * @param failed, IO error or failure status code
+     * @param durationNanos
+     * @since 2025.4
+     */
+    public synchronized void onComplete(long permission, boolean failed, long durationNanos) {
+
+        if (permission != generation) {
+            return;
+        }
+        boolean slow = durationNanos > config.getSlowCallDuration().toNanos();
+
+        switch (state) {
+        case CLOSED -> {
+            record((byte) ((failed ? FAILED : 0) | (slow ? SLOW : 0)));
+            if (size >= Math.max(1, config.getMinimumCalls()) && (failures >= config.getFailureRateThreshold() * size
+                    || slowCalls >= config.getSlowCallRateThreshold() * size)) {
+                log.warn("Opening the circuit of " + host + ": " + failures + " failed and " + slowCalls
+                        + " slow call(s) out of the last " + size);
+                transition(State.OPEN);
+            }
+        }
+        case HALF_OPEN -> {
+            probesInFlight--;
+            if (failed || slow) {
+                transition(State.OPEN);
+            } else if (++probeSuccesses >= Math.max(1, config.getHalfOpenProbes())) {
+                log.info("Closing the circuit of " + host);
+                transition(State.CLOSED);
+            }
+        }
+        case OPEN -> {
+            // Can't happen, the generation changed
+        }
+        }
+    }
+
+    /**
+     * The call was not sent, or was cancelled by the caller: its outcome says nothing about the host
+     *
+     * @param permission, returned by <code>tryAcquire</code>
+     * @since 2025.4
+     */
+    public synchronized void onIgnored(long permission) {
+
+        if (permission == generation && state == State.HALF_OPEN) {
+            probesInFlight--;
+        }
+    }
+
+    protected void record(byte outcome) {
+
+        if (size == outcomes.length) {
+            byte oldest = outcomes[next];
+            failures -= oldest & FAILED;
+            slowCalls -= (oldest & SLOW) >> 1;
+        } else {
+            size++;
+        }
+        outcomes[next] = outcome;
+        next = (next + 1) % outcomes.length;
+        failures += outcome & FAILED;
+        slowCalls += (outcome & SLOW) >> 1;
+    }
+
+    protected void transition(State newState) {
+
+        state = newState;
+        generation++;
+        probesInFlight = 0;
+        probeSuccesses = 0;
+        if (newState == State.OPEN) {
+            openUntilNanos = System.nanoTime() + config.getOpenDuration().toNanos();
+        } else if (newState == State.CLOSED) {
+            size = 0;
+            next = 0;
+            failures = 0;
+            slowCalls = 0;
+        }
+        ServiceCallMetrics.counter("circuit.transitions", "host", host, "state", newState.name().toLowerCase()).inc();
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.http;
+
+import java.time.Duration;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Settings of the circuit breakers of an <code>HttpEngine</code> (one per host). Default values can be overridden in
+ * nuxeo.conf:
+ * <ul>
+ * <li><code>nuxeo.labs.servicecall.circuitBreaker.enabled</code>: <code>true</code> to enable the circuit breakers
+ * (default false)</li>
+ * <li><code>nuxeo.labs.servicecall.circuitBreaker.windowSize</code>: Number of the last calls used to compute the
+ * rates (default 20)</li>
+ * <li><code>nuxeo.labs.servicecall.circuitBreaker.minimumCalls</code>: Min. number of calls before the circuit can
+ * open (default 10)</li>
+ * <li><code>nuxeo.labs.servicecall.circuitBreaker.failureRateThreshold</code>: The circuit opens when this rate of
+ * calls failed (default 0.5)</li>
+ * <li><code>nuxeo.labs.servicecall.circuitBreaker.failureStatusCodes</code>: Comma separated list of the status codes
+ * counted as failures of the host, with the IO errors (default 502,503,504. A 500 is often the error of one call, not
+ * of the host)</li>
+ * <li><code>nuxeo.labs.servicecall.circuitBreaker.slowCallDurationMs</code>: A call taking longer is slow (default
+ * 10000)</li>
+ * <li><code>nuxeo.labs.servicecall.circuitBreaker.slowCallRateThreshold</code>: The circuit opens when this rate of
+ * calls were slow (default 0.8)</li>
+ * <li><code>nuxeo.labs.servicecall.circuitBreaker.openDurationMs</code>: How long the circuit stays open before
+ * letting probe calls through (default 30000)</li>
+ * <li><code>nuxeo.labs.servicecall.circuitBreaker.halfOpenProbes</code>: Number of probe calls that must succeed to
+ * close the circuit (default 3)</li>
+ * </ul>
+ *
+ * @since 2025.4
+ */
+public class CircuitBreakerConfig {
+
+    public static final String PROPERTY_PREFIX = "nuxeo.labs.servicecall.circuitBreaker.";
+
+    public static final String ENABLED_PROP = PROPERTY_PREFIX + "enabled";
+
+    public static final String WINDOW_SIZE_PROP = PROPERTY_PREFIX + "windowSize";
+
+    public static final String MINIMUM_CALLS_PROP = PROPERTY_PREFIX + "minimumCalls";
+
+    public static final String FAILURE_RATE_PROP = PROPERTY_PREFIX + "failureRateThreshold";
+
+    public static final String FAILURE_STATUS_CODES_PROP = PROPERTY_PREFIX + "failureStatusCodes";
+
+    public static final String SLOW_CALL_DURATION_PROP = PROPERTY_PREFIX + "slowCallDurationMs";
+
+    public static final String SLOW_CALL_RATE_PROP = PROPERTY_PREFIX + "slowCallRateThreshold";
+
+    public static final String OPEN_DURATION_PROP = PROPERTY_PREFIX + "openDurationMs";
+
+    public static final String HALF_OPEN_PROBES_PROP = PROPERTY_PREFIX + "halfOpenProbes";
+
+    protected boolean enabled = false;
+
+    protected int windowSize = 20;
+
+    protected int minimumCalls = 10;
+
+    protected double failureRateThreshold = 0.5;
+
+    protected Set<Integer> failureStatusCodes = Set.of(502, 503, 504);
+
+    protected Duration slowCallDuration = Duration.ofSeconds(10);
+
+    protected double slowCallRateThreshold = 0.8;
+
+    protected Duration openDuration = Duration.ofSeconds(30);
+
+    protected int halfOpenProbes = 3;
+
+    /**
+     * @return a configuration with the values set in nuxeo.conf (or the default values)
+     * @since 2025.4
+     */
+    public static CircuitBreakerConfig fromProperties() {
+
+        CircuitBreakerConfig config = new CircuitBreakerConfig();
+
+        String enabledStr = Framework.getProperty(ENABLED_PROP);
+        if (StringUtils.isNotBlank(enabledStr)) {
+            config.enabled = Boolean.parseBoolean(enabledStr.trim());
+        }
+        config.windowSize = (int) HttpEngineConfig.getLongProperty(WINDOW_SIZE_PROP, config.windowSize);
+        config.minimumCalls = (int) HttpEngineConfig.getLongProperty(MINIMUM_CALLS_PROP, config.minimumCalls);
+        config.failureRateThreshold = HttpEngineConfig.getDoubleProperty(FAILURE_RATE_PROP,
+                config.failureRateThreshold);
+        String codes = Framework.getProperty(FAILURE_STATUS_CODES_PROP);
+        if (StringUtils.isNotBlank(codes)) {
+            config.failureStatusCodes = RetryPolicy.toStatusCodes(FAILURE_STATUS_CODES_PROP, codes,
+                    config.failureStatusCodes);
+        }
+        config.slowCallDuration = Duration.ofMillis(
+                HttpEngineConfig.getLongProperty(SLOW_CALL_DURATION_PROP, config.slowCallDuration.toMillis()));
+        config.slowCallRateThreshold = HttpEngineConfig.getDoubleProperty(SLOW_CALL_RATE_PROP,
+                config.slowCallRateThreshold);
+        config.openDuration = Duration.ofMillis(
+                HttpEngineConfig.getLongProperty(OPEN_DURATION_PROP, config.openDuration.toMillis()));
+        config.halfOpenProbes = (int) HttpEngineConfig.getLongProperty(HALF_OPEN_PROBES_PROP, config.halfOpenProbes);
+
+        return config;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    public int getMinimumCalls() {
+        return minimumCalls;
+    }
+
+    public void setMinimumCalls(int minimumCalls) {
+        this.minimumCalls = minimumCalls;
+    }
+
+    public double getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    public void setFailureRateThreshold(double failureRateThreshold) {
+        this.failureRateThreshold = failureRateThreshold;
+    }
+
+    /**
+     * @param statusCode
+     * @return true if a response with this status is a failure of the host
+     * @since 2025.4
+     */
+    public boolean isFailure(int statusCode) {
+        return failureStatusCodes.contains(statusCode);
+    }
+
+    public Set<Integer> getFailureStatusCodes() {
+        return failureStatusCodes;
+    }
+
+    public void setFailureStatusCodes(Set<Integer> failureStatusCodes) {
+        this.failureStatusCodes = failureStatusCodes;
+    }
+
+    public Duration getSlowCallDuration() {
+        return slowCallDuration;
+    }
+
+    public void setSlowCallDuration(Duration slowCallDuration) {
+        this.slowCallDuration = slowCallDuration;
+    }
+
+    public double getSlowCallRateThreshold() {
+        return slowCallRateThreshold;
+    }
+
+    public void setSlowCallRateThreshold(double slowCallRateThreshold) {
+        this.slowCallRateThreshold = slowCallRateThreshold;
+    }
+
+    public Duration getOpenDuration() {
+        return openDuration;
+    }
+
+    public void setOpenDuration(Duration openDuration) {
+        this.openDuration = openDuration;
+    }
+
+    public int getHalfOpenProbes() {
+        return halfOpenProbes;
+    }
+
+    public void setHalfOpenProbes(int halfOpenProbes) {
+        this.halfOpenProbes = halfOpenProbes;
+    }
+
+}
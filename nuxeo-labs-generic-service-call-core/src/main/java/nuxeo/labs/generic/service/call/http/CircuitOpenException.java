@@ -0,0 +1,44 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.http;
+
+import java.io.IOException;
+
+/**
+ * Thrown (or returned as a failed future) when a call is rejected because the circuit of its host is open: the call was
+ * not sent.
+ *
+ * @since 2025.4
+ */
+public class CircuitOpenException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    protected final String host;
+
+    public CircuitOpenException(String host) {
+        super("Circuit open for " + host + ": the service is failing, the call was not sent");
+        this.host = host;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.http;
+
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+/**
+ * Resumable upload with <code>PUT</code> and <code>Content-Range</code> (Google Cloud Storage, Google Drive,
+ * OneDrive/SharePoint upload sessions, ...): the url is the upload session, created beforehand with the API of the
+ * service. Each part is sent with <code>Content-Range: bytes first-last/length</code>, one after the other. The
+ * service answers <code>308 Resume Incomplete</code> (or a 202) until the last part, whose response is the result of
+ * the upload. The <code>Range</code> of a 308 tells what the service stored: if it received only the beginning of a
+ * part, the rest is sent again.
+ * <br>
+ * An interrupted upload is resumed by asking the session what it received (with
+ * <code>Content-Range: bytes *&#47;length</code>, the <code>Range</code> of the response gives the offset).
+ * <br>
+ * The redirects are not followed (see <code>ServiceCall#setFollowRedirects</code>): a 308 is not a redirect here.
+ *
+ * @since 2025.4
+ */
+public class ContentRangeProtocol implements ChunkedUploadProtocol {
+
+    public static final String NAME = "content-range";
+
+    protected static final int RESUME_INCOMPLETE = 308;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean isParallel() {
+        return false;
+    }
+
+    @Override
+    public boolean isFollowRedirects() {
+        return false;
+    }
+
+    /*
+     * The session already exists, nothing to call
+     */
+    @Override
+    public CompletableFuture<ServiceCallResult> start(ChunkedUpload upload) {
+
+        upload.setUploadId(upload.getUrl());
+        return CompletableFuture.completedFuture(new ServiceCallResult("{}", 200, ServiceCall.getReasonPhrase(200)));
+    }
+
+    @Override
+    public CompletableFuture<ServiceCallResult> resume(ChunkedUpload upload) {
+
+        HttpRequest request = upload.newRequest(upload.getUrl())
+                                    .header("Content-Range", "bytes */" + upload.getLength())
+                                    .PUT(BodyPublishers.noBody())
+                                    .build();
+        return upload.send(request).thenApply(result -> {
+            int responseCode = result.getResponseCode();
+            if (responseCode == RESUME_INCOMPLETE) {
+                upload.setOffset(received(result));
+                return new ServiceCallResult("{}", 200, ServiceCall.getReasonPhrase(200));
+            }
+            if (ServiceCallResult.isHttpSuccess(responseCode)) {
+                // Already completed: the response of the service is the result of the upload
+                upload.setOffset(upload.getLength());
+                upload.setLastPartResult(result);
+            }
+            return result;
+        });
+    }
+
+    @Override
+    public HttpRequest partRequest(ChunkedUpload upload, ChunkedUpload.Part part, BodyPublisher body) {
+
+        long last = part.getOffset() + part.getLength() - 1;
+        String range = part.getLength() == 0 ? "bytes */" + upload.getLength()
+                : "bytes " + part.getOffset() + "-" + last + "/" + upload.getLength();
+        return upload.newRequest(upload.getUrl()).header("Content-Range", range).PUT(body).build();
+    }
+
+    @Override
+    public boolean isPartUploaded(ServiceCallResult result) {
+        return result.getResponseCode() == RESUME_INCOMPLETE
+                || ServiceCallResult.isHttpSuccess(result.getResponseCode());
+    }
+
+    /*
+     * A 308 may acknowledge only the beginning of the part: the offset goes back to what was received
+     */
+    @Override
+    public String partUploaded(ChunkedUpload upload, ChunkedUpload.Part part, ServiceCallResult result) {
+
+        if (result.getResponseCode() != RESUME_INCOMPLETE) {
+            // The last part, the upload is complete
+            return null;
+        }
+        long received = received(result);
+        long expected = part.getOffset() + part.getLength();
+        if (received < expected) {
+            if (received <= part.getOffset()) {
+                throw new NuxeoException("Part " + part.getNumber() + " not received, Range is <"
+                        + header(result, "Range") + "> instead of bytes=0-" + (expected - 1));
+            }
+            upload.setOffset(received);
+        }
+        return null;
+    }
+
+    /*
+     * From "Range: bytes=0-K" (no Range if nothing was received), the number of bytes received
+     */
+    protected static long received(ServiceCallResult result) {
+
+        String last = StringUtils.substringAfterLast(header(result, "Range"), "-");
+        return StringUtils.isNumeric(last) ? Long.parseLong(last) + 1 : 0;
+    }
+
+    protected static String header(ServiceCallResult result, String name) {
+        return result.getResponseHeaders() == null ? null : result.getResponseHeaders().firstValue(name).orElse(null);
+    }
+
+    /*
+     * The response to the last part (or to the resume, if the upload was already completed) is the result of the
+     * upload
+     */
+    @Override
+    public CompletableFuture<ServiceCallResult> complete(ChunkedUpload upload) {
+
+        ServiceCallResult last = upload.getLastPartResult();
+        return CompletableFuture.completedFuture(
+                last != null ? last : new ServiceCallResult("{}", 200, ServiceCall.getReasonPhrase(200)));
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.http;
+
+import java.time.Duration;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.kv.KeyValueService;
+import org.nuxeo.runtime.kv.KeyValueStore;
+
+/**
+ * Rate limit shared by all the nodes of a cluster, using counters in a Nuxeo KeyValueStore.
+ * <ul>
+ * <li>Time is split in fixed windows (1s by default). The permits of a window (<code>permitsPerSecond</code> x the
+ * duration of the window) are shared by all the nodes: each window has a counter in the store.</li>
+ * <li>A node does not increment the counter at each call, it leases a batch of permits (<code>leaseSize</code>) and
+ * uses them locally. So most calls never touch the store. Permits leased and not used in the window are lost.</li>
+ * <li>When the permits of the current window are all leased, the caller waits for the next window (permits of the next
+ * window are leased in advance).</li>
+ * <li>If the store fails, the node falls back to a local limit (the limit of the cluster, for this node only).</li>
+ * </ul>
+ *
+ * @since 2025.4
+ */
+public class DistributedRateLimiter extends RateLimiter {
+
+    private static final Logger log = LogManager.getLogger(DistributedRateLimiter.class);
+
+    protected static final String KEY_PREFIX = "ratelimit:";
+
+    protected final String storeName;
+
+    protected final String key;
+
+    protected final long windowMs;
+
+    protected final long permitsPerWindow;
+
+    protected final long leaseSize;
+
+    // Window of the leased permits
+    protected long leasedWindow = -1;
+
+    protected long leased = 0;
+
+    protected long leases = 0;
+
+    // Window with no permit left in the store, no need to ask again
+    protected long exhaustedWindow = -1;
+
+    /**
+     * @param storeName, name of the KeyValueStore
+     * @param key, shared by the nodes
+     * @param permitsPerSecond, for the whole cluster
+     * @param window
+     * @param leaseSize, number of permits leased at once, 0 for the default (a tenth of the permits of a window)
+     */
+    public DistributedRateLimiter(String storeName, String key, double permitsPerSecond, Duration window,
+            long leaseSize) {
+        super(permitsPerSecond, permitsPerSecond);
+        this.storeName = storeName;
+        this.key = key;
+        windowMs = Math.max(1, window.toMillis());
+        permitsPerWindow = Math.max(1, Math.round(permitsPerSecond * windowMs / 1000));
+        this.leaseSize = leaseSize > 0 ? Math.min(leaseSize, permitsPerWindow) : Math.max(1, permitsPerWindow / 10);
+    }
+
+    protected KeyValueStore getStore() {
+        return Framework.getService(KeyValueService.class).getKeyValueStore(storeName);
+    }
+
+    @Override
+    public long reserve(long maxWaitNanos) {
+
+        // The store is called outside the monitor, so the other callers are not blocked by it: they use the permits
+        // already leased, or lease their own
+        while (true) {
+            long now = System.currentTimeMillis();
+            long window = now / windowMs;
+            long waitNanos = ((window + 1) * windowMs - now) * 1_000_000L;
+            long leaseWindow;
+            synchronized (this) {
+                // Permits of a past window are lost
+                if (leasedWindow < window) {
+                    leasedWindow = window;
+                    leased = 0;
+                }
+                if (leased > 0) {
+                    if (leasedWindow == window) {
+                        leased--;
+                        return 0;
+                    }
+                    // Permits of the next window
+                    if (waitNanos > maxWaitNanos) {
+                        return -1;
+                    }
+                    leased--;
+                    return waitNanos;
+                }
+                // The current window is full: wait for the next one
+                if (window > exhaustedWindow) {
+                    leaseWindow = window;
+                } else if (window + 1 > exhaustedWindow && waitNanos <= maxWaitNanos) {
+                    leaseWindow = window + 1;
+                } else {
+                    return -1;
+                }
+                leases++;
+            }
+
+            long permits;
+            try {
+                permits = lease(leaseWindow);
+            } catch (RuntimeException e) {
+                log.warn("Cannot use the rate limit counters of the KeyValueStore, using a local rate limit for " + key,
+                        e);
+                return super.reserve(maxWaitNanos);
+            }
+
+            synchronized (this) {
+                if (permits < leaseSize) {
+                    // The next window is leased only once the current one is exhausted
+                    exhaustedWindow = Math.max(exhaustedWindow, leaseWindow);
+                }
+                if (leaseWindow == leasedWindow) {
+                    leased += permits;
+                } else if (leaseWindow > leasedWindow && leased == 0) {
+                    leasedWindow = leaseWindow;
+                    leased = permits;
+                }
+                // Else, permits of a past window, or of the next one while others leased the current one: lost
+            }
+        }
+    }
+
+    /*
+     * Takes up to leaseSize permits of the window, fewer when the window is (almost) exhausted
+     */
+    protected long lease(long window) {
+
+        String counterKey = KEY_PREFIX + key + ":" + window;
+        KeyValueStore store = getStore();
+        ServiceCallMetrics.counter("ratelimit.leases").inc();
+        long total = store.addAndGet(counterKey, leaseSize);
+        if (total == leaseSize) {
+            // First lease of the window
+            store.setTTL(counterKey, Math.max(1, 2 * windowMs / 1000) + 60);
+        }
+        long available = permitsPerWindow - (total - leaseSize);
+        return Math.max(0, Math.min(leaseSize, available));
+    }
+
+    @Override
+    public synchronized void cancel() {
+
+        if (leasedWindow >= System.currentTimeMillis() / windowMs) {
+            leased++;
+        }
+    }
+
+    @Override
+    public synchronized boolean isIdle() {
+        return leasedWindow < System.currentTimeMillis() / windowMs;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getPermitsPerWindow() {
+        return permitsPerWindow;
+    }
+
+    public long getLeaseSize() {
+        return leaseSize;
+    }
+
+    /**
+     * @return the number of calls to the KeyValueStore
+     * @since 2025.4
+     */
+    public synchronized long getLeases() {
+        return leases;
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.http;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Limits the number of requests in flight per host. When the limit is reached, callers wait (in FIFO order) for a
+ * permit to be released.
+ * <br>
+ * Waiting is done on a <code>CompletableFuture</code>, so the same permits can be used by blocking and non-blocking
+ * callers.
+ *
+ * @since 2025.4
+ */
+public class HostPermits {
+
+    protected final int maxPerHost;
+
+    protected final Map<String, Slot> slots = new ConcurrentHashMap<>();
+
+    protected static class Slot {
+
+        protected int inUse = 0;
+
+        protected final Deque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+    }
+
+    public HostPermits(int maxPerHost) {
+        this.maxPerHost = maxPerHost > 0 ? maxPerHost : Integer.MAX_VALUE;
+    }
+
+    /**
+     * @param host
+     * @return a future completed when the caller holds a permit for the host. Cancelling the future before it
+     *         completes gives up the wait.
+     * @since 2025.4
+     */
+    public CompletableFuture<Void> acquireAsync(String host) {
+
+        Slot slot = slots.computeIfAbsent(host, k -> new Slot());
+        synchronized (slot) {
+            if (slot.inUse < maxPerHost) {
+                slot.inUse++;
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> waiter = new CompletableFuture<>();
+            slot.waiters.add(waiter);
+            return waiter;
+        }
+    }
+
+    /**
+     * Blocks until a permit is available for the host.
+     *
+     * @param host
+     * @param timeout, null means wait forever
+     * @throws IOException if no permit could be acquired before the timeout
+     * @throws InterruptedException
+     * @since 2025.4
+     */
+    public void acquire(String host, Duration timeout) throws IOException, InterruptedException {
+
+        CompletableFuture<Void> permit = acquireAsync(host);
+        try {
+            if (timeout == null) {
+                permit.get();
+            } else {
+                permit.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+            }
+        } catch (TimeoutException e) {
+            // If cancel() fails, the permit was granted in the meantime: we can go on
+            if (permit.cancel(false)) {
+                throw new IOException("Timeout waiting for a connection to " + host + " (max. " + maxPerHost
+                        + " in flight)");
+            }
+        } catch (InterruptedException e) {
+            if (!permit.cancel(false)) {
+                release(host);
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            // Waiters are only completed or cancelled
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Gives the permit to the next waiter, if any.
+     *
+     * @param host
+     * @since 2025.4
+     */
+    public void release(String host) {
+
+        Slot slot = slots.get(host);
+        if (slot == null) {
+            return;
+        }
+        while (true) {
+            CompletableFuture<Void> next;
+            synchronized (slot) {
+                next = slot.waiters.poll();
+                if (next == null) {
+                    slot.inUse--;
+                    return;
+                }
+            }
+            // Complete outside the lock (dependent actions run in this thread). A cancelled waiter gave up, try the
+            // next one
+            if (next.complete(null)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param host
+     * @return the number of permits currently in use for the host
+     * @since 2025.4
+     */
+    public int inUse(String host) {
+
+        Slot slot = slots.get(host);
+        if (slot == null) {
+            return 0;
+        }
+        synchronized (slot) {
+            return slot.inUse;
+        }
+    }
+
+}
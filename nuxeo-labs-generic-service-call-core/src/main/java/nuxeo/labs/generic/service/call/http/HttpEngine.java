@@ -0,0 +1,613 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.http;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Long-lived HTTP client shared by all the <code>ServiceCall</code> methods. It wraps a single
+ * <code>java.net.http.HttpClient</code>, so connections are kept alive and reused per host instead of being opened
+ * (TCP + TLS handshakes) for every call.
+ * <br>
+ * The number of requests in flight per host is limited (see <code>HttpEngineConfig</code>). A permit is held until the
+ * response body has been fully read (or the body stream is closed), which is when the connection goes back to the
+ * pool. In HTTP/2 mode, the requests in flight to a host are streams multiplexed on the same connection.
+ * <br>
+ * Requests are sent asynchronously (<code>sendAsync</code>), <code>send</code> just waits for the result. So the
+ * number of threads does not grow with the number of requests in flight: the executor is bounded.
+ * <br>
+ * Each host has a <code>CircuitBreaker</code>: when a host keeps failing, calls to it fail immediately with a
+ * <code>CircuitOpenException</code> instead of waiting for a timeout.
+ * <br>
+ * The shared instance is created at startup by <code>ServiceCallComponent</code> and closed when the component stops.
+ *
+ * @since 2025.4
+ */
+public class HttpEngine implements AutoCloseable {
+
+    private static final Logger log = LogManager.getLogger(HttpEngine.class);
+
+    // Read by the JDK (see checkKeepAliveTimeout)
+    public static final String KEEP_ALIVE_JVM_PROP = "jdk.httpclient.keepalive.timeout";
+
+    // Used by the JDK when KEEP_ALIVE_JVM_PROP is not set
+    public static final long JDK_KEEP_ALIVE_TIMEOUT_SEC = 30;
+
+    // Headers the JDK client refuses to set (it handles them itself)
+    protected static final Set<String> RESTRICTED_HEADERS = Set.of("connection", "content-length", "expect", "host",
+            "upgrade");
+
+    protected static volatile HttpEngine instance = null;
+
+    protected final HttpEngineConfig config;
+
+    protected final ExecutorService executor;
+
+    // Blocking work that must not hold the threads of the client (reading a blob, ...). Created at first use.
+    protected volatile ExecutorService ioExecutor;
+
+    protected final HttpClient client;
+
+    // Same as client, but returning the 3xx responses as is. Created at first use.
+    protected volatile HttpClient noRedirectClient;
+
+    protected final HostPermits permits;
+
+    // Per host, empty if disabled
+    protected final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    public HttpEngine(HttpEngineConfig config) {
+
+        this.config = config;
+
+        checkKeepAliveTimeout(config.getKeepAliveTimeoutSec());
+
+        executor = Executors.newFixedThreadPool(Math.max(1, config.getThreads()),
+                new EngineThreadFactory("servicecall-http-"));
+
+        client = buildClient(HttpClient.Redirect.NORMAL);
+
+        permits = new HostPermits(config.getMaxConnectionsPerHost());
+    }
+
+    /*
+     * The JDK reads the keep-alive timeout of its connection pool from a JVM system property, for all the clients of
+     * the JVM. It is not set from here (it would change the other clients, and be ignored if the pool was already
+     * used): it must be set in JAVA_OPTS. We only warn when the configured value does not apply.
+     */
+    protected static void checkKeepAliveTimeout(int keepAliveTimeoutSec) {
+
+        String jvmValue = System.getProperty(KEEP_ALIVE_JVM_PROP);
+        long effective;
+        try {
+            effective = jvmValue == null ? JDK_KEEP_ALIVE_TIMEOUT_SEC : Long.parseLong(jvmValue.trim());
+        } catch (NumberFormatException e) {
+            effective = -1;
+        }
+        if (effective != keepAliveTimeoutSec) {
+            log.warn(HttpEngineConfig.KEEP_ALIVE_TIMEOUT_PROP + " is " + keepAliveTimeoutSec + " but the JVM uses "
+                    + (jvmValue == null ? JDK_KEEP_ALIVE_TIMEOUT_SEC + " (default)" : jvmValue) + ". Add -D"
+                    + KEEP_ALIVE_JVM_PROP + "=" + keepAliveTimeoutSec + " to JAVA_OPTS in nuxeo.conf.");
+        }
+    }
+
+    protected HttpClient buildClient(HttpClient.Redirect redirect) {
+
+        // With HTTP_2, the JDK negotiates the protocol (ALPN, or h2c upgrade in clear text) and falls back to
+        // HTTP/1.1 when the server does not support it
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                                               .version(config.getVersion())
+                                               .followRedirects(redirect)
+                                               .executor(executor);
+        if (config.getConnectTimeout() != null) {
+            builder.connectTimeout(config.getConnectTimeout());
+        }
+        if (config.getSslContext() != null) {
+            builder.sslContext(config.getSslContext());
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the shared engine. Created with the nuxeo.conf configuration if needed.
+     * @since 2025.4
+     */
+    public static HttpEngine getInstance() {
+
+        HttpEngine engine = instance;
+        if (engine == null) {
+            synchronized (HttpEngine.class) {
+                engine = instance;
+                if (engine == null) {
+                    engine = new HttpEngine(HttpEngineConfig.fromProperties());
+                    instance = engine;
+                }
+            }
+        }
+        return engine;
+    }
+
+    /**
+     * Closes the shared engine, if any. A new one will be created at next call to <code>getInstance()</code>
+     *
+     * @since 2025.4
+     */
+    public static void shutdownInstance() {
+
+        HttpEngine engine;
+        synchronized (HttpEngine.class) {
+            engine = instance;
+            instance = null;
+        }
+        if (engine != null) {
+            engine.close();
+        }
+    }
+
+    public HttpEngineConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * The threads of the engine run the callbacks of the calls, and there are few of them: blocking work (reading the
+     * stream of a blob, ...) must run on this executor instead, so it does not stall the other calls.
+     *
+     * @return the executor for blocking work (its threads are created as needed)
+     * @since 2025.4
+     */
+    public ExecutorService getIoExecutor() {
+
+        ExecutorService io = ioExecutor;
+        if (io == null) {
+            synchronized (this) {
+                io = ioExecutor;
+                if (io == null) {
+                    io = Executors.newCachedThreadPool(new EngineThreadFactory("servicecall-io-"));
+                    ioExecutor = io;
+                }
+            }
+        }
+        return io;
+    }
+
+    public HttpClient getClient() {
+        return client;
+    }
+
+    /**
+     * @param followRedirects
+     * @return the client following the redirects, or the one returning the 3xx responses as is (created if needed)
+     * @since 2025.4
+     */
+    public HttpClient getClient(boolean followRedirects) {
+
+        if (followRedirects) {
+            return client;
+        }
+        HttpClient noRedirect = noRedirectClient;
+        if (noRedirect == null) {
+            synchronized (this) {
+                noRedirect = noRedirectClient;
+                if (noRedirect == null) {
+                    noRedirect = buildClient(HttpClient.Redirect.NEVER);
+                    noRedirectClient = noRedirect;
+                }
+            }
+        }
+        return noRedirect;
+    }
+
+    /**
+     * Creates a request builder for the url, with the headers and the configured timeout. Headers handled by the
+     * client itself (Content-Length, Host, ...) are ignored.
+     *
+     * @param url
+     * @param headers, can be null
+     * @return the builder, the caller sets the method and body
+     * @throws IllegalArgumentException if url is not a valid URI
+     * @since 2025.4
+     */
+    public HttpRequest.Builder newRequestBuilder(String url, Map<String, String> headers) {
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder().uri(URI.create(url));
+        if (config.getRequestTimeout() != null) {
+            builder.timeout(config.getRequestTimeout());
+        }
+        if (headers != null) {
+            headers.forEach((name, value) -> {
+                if (RESTRICTED_HEADERS.contains(name.toLowerCase())) {
+                    log.debug("Ignoring header " + name + ", it is set by the HTTP client.");
+                } else {
+                    builder.header(name, value);
+                }
+            });
+        }
+
+        return builder;
+    }
+
+    /**
+     * Sends the request, waiting for a permit if the host already has the max. number of requests in flight.
+     *
+     * @param <T>
+     * @param request
+     * @param handler
+     * @return the response. If its body is an <code>InputStream</code>, the caller must read it fully or close it.
+     * @throws IOException
+     * @throws InterruptedException
+     * @since 2025.4
+     */
+    public <T> HttpResponse<T> send(HttpRequest request, BodyHandler<T> handler)
+            throws IOException, InterruptedException {
+
+        CompletableFuture<HttpResponse<T>> future = sendAsync(request, handler);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioe) {
+                throw ioe;
+            }
+            if (cause instanceof TimeoutException) {
+                throw new HttpTimeoutException("No response after " + config.getTotalTimeout().toMillis() + " ms");
+            }
+            if (cause instanceof RuntimeException re) {
+                throw re;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Non-blocking version of <code>send</code>: No thread is held while waiting for a permit or for the response.
+     * <br>
+     * Cancelling the returned future (or completing it exceptionally, with <code>orTimeout</code> for example) gives
+     * up the wait for a permit or aborts the exchange. If a total timeout is configured, the future fails with a
+     * <code>TimeoutException</code> when it is reached.
+     *
+     * @param <T>
+     * @param request
+     * @param handler
+     * @return the future response
+     * @since 2025.4
+     */
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, BodyHandler<T> handler) {
+        return sendAsync(request, handler, true);
+    }
+
+    /**
+     * Same as <code>sendAsync(request, handler)</code>. With <code>followRedirects</code> false, the 3xx responses
+     * are returned as is: some protocols use them for something else than a redirect (like the
+     * <code>308 Resume Incomplete</code> of resumable uploads, which has no <code>Location</code>).
+     *
+     * @param <T>
+     * @param request
+     * @param handler
+     * @param followRedirects
+     * @return the future response
+     * @since 2025.4
+     */
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, BodyHandler<T> handler,
+            boolean followRedirects) {
+
+        HttpClient httpClient = getClient(followRedirects);
+        String host = hostKey(request.uri());
+        CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+
+        CircuitBreaker breaker = getCircuitBreaker(host);
+        long permission = breaker == null ? 0 : breaker.tryAcquire();
+        if (permission < 0) {
+            result.completeExceptionally(new CircuitOpenException(host));
+            return result;
+        }
+
+        CompletableFuture<Void> permit = permits.acquireAsync(host);
+        if (config.getAcquireTimeout() != null) {
+            // If the permit is granted in the meantime, this is a no-op
+            permit.orTimeout(config.getAcquireTimeout().toMillis(), TimeUnit.MILLISECONDS);
+        }
+        // 0 => not sent, -1 => outcome already recorded
+        AtomicLong sentAt = new AtomicLong();
+        result.whenComplete((response, error) -> {
+            if (error != null) {
+                permit.cancel(false);
+            }
+            // Timed out, cancelled or not sent
+            recordOutcome(breaker, permission, sentAt, response, error);
+        });
+
+        permit.whenComplete((ignore, permitError) -> {
+            if (permitError != null) {
+                result.completeExceptionally(new IOException(
+                        "Timeout waiting for a connection to " + host + " (max. " + config.getMaxConnectionsPerHost()
+                                + " in flight)"));
+                return;
+            }
+            if (result.isDone()) {
+                // Cancelled while waiting
+                permits.release(host);
+                return;
+            }
+
+            if (!sentAt.compareAndSet(0, System.nanoTime())) {
+                // Cancelled in the meantime
+                permits.release(host);
+                return;
+            }
+            Runnable release = releaseOnce(host);
+            CompletableFuture<HttpResponse<T>> exchange;
+            try {
+                exchange = httpClient.sendAsync(request, releasing(handler, release));
+            } catch (RuntimeException e) {
+                // Not sent
+                sentAt.set(0);
+                release.run();
+                result.completeExceptionally(e);
+                return;
+            }
+            exchange.whenComplete((response, error) -> {
+                // Before completing the result, so the next call sees the new state of the circuit
+                recordOutcome(breaker, permission, sentAt, response, error);
+                if (error != null) {
+                    release.run();
+                    result.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+                } else {
+                    result.complete(response);
+                }
+            });
+            // Aborts the exchange if the caller cancelled or timed out
+            result.whenComplete((response, error) -> {
+                if (error != null) {
+                    exchange.cancel(true);
+                }
+            });
+        });
+
+        if (config.getTotalTimeout() != null) {
+            result.orTimeout(config.getTotalTimeout().toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        return result;
+    }
+
+    /*
+     * Calls not sent, or cancelled by the caller before being slow, say nothing about the host
+     */
+    protected void recordOutcome(CircuitBreaker breaker, long permission, AtomicLong sentAtRef,
+            HttpResponse<?> response, Throwable error) {
+
+        if (breaker == null) {
+            return;
+        }
+        long sentAt = sentAtRef.getAndSet(-1);
+        if (sentAt == -1) {
+            return;
+        }
+        if (sentAt == 0) {
+            breaker.onIgnored(permission);
+            return;
+        }
+        long duration = System.nanoTime() - sentAt;
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        if (error instanceof CancellationException) {
+            if (duration > config.getCircuitBreaker().getSlowCallDuration().toNanos()) {
+                breaker.onComplete(permission, false, duration);
+            } else {
+                breaker.onIgnored(permission);
+            }
+            return;
+        }
+        boolean failed = error != null || config.getCircuitBreaker().isFailure(response.statusCode());
+        breaker.onComplete(permission, failed, duration);
+    }
+
+    /**
+     * @param host, see <code>hostKey</code>
+     * @return the circuit breaker of the host, null if circuit breakers are disabled
+     * @since 2025.4
+     */
+    public CircuitBreaker getCircuitBreaker(String host) {
+
+        CircuitBreakerConfig breakerConfig = config.getCircuitBreaker();
+        if (breakerConfig == null || !breakerConfig.isEnabled()) {
+            return null;
+        }
+        return breakers.computeIfAbsent(host, h -> new CircuitBreaker(h, breakerConfig));
+    }
+
+    public static String hostKey(URI uri) {
+
+        int port = uri.getPort();
+        if (port == -1) {
+            port = "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+        }
+        return uri.getScheme() + "://" + uri.getHost() + ":" + port;
+    }
+
+    public int inFlight(String url) {
+        return permits.inUse(hostKey(URI.create(url)));
+    }
+
+    protected Runnable releaseOnce(String host) {
+
+        AtomicBoolean released = new AtomicBoolean(false);
+        return () -> {
+            if (released.compareAndSet(false, true)) {
+                permits.release(host);
+            }
+        };
+    }
+
+    protected static <T> BodyHandler<T> releasing(BodyHandler<T> handler, Runnable release) {
+        return responseInfo -> new ReleasingSubscriber<>(handler.apply(responseInfo), release);
+    }
+
+    /**
+     * Calls <code>release</code> once the body is fully received, failed or cancelled (for example, when an
+     * <code>InputStream</code> body is closed before the end)
+     */
+    protected static class ReleasingSubscriber<T> implements BodySubscriber<T> {
+
+        protected final BodySubscriber<T> delegate;
+
+        protected final Runnable release;
+
+        protected ReleasingSubscriber(BodySubscriber<T> delegate, Runnable release) {
+            this.delegate = delegate;
+            this.release = release;
+        }
+
+        @Override
+        public CompletionStage<T> getBody() {
+            return delegate.getBody();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            delegate.onSubscribe(new Flow.Subscription() {
+
+                @Override
+                public void request(long n) {
+                    subscription.request(n);
+                }
+
+                @Override
+                public void cancel() {
+                    release.run();
+                    subscription.cancel();
+                }
+            });
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> item) {
+            delegate.onNext(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            release.run();
+            delegate.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            release.run();
+            delegate.onComplete();
+        }
+    }
+
+    /**
+     * Waits (a bit) for requests in flight, then closes connections and threads.
+     */
+    @Override
+    public void close() {
+
+        closeClient(client);
+        if (noRedirectClient != null) {
+            closeClient(noRedirectClient);
+        }
+
+        shutdown(executor);
+        if (ioExecutor != null) {
+            shutdown(ioExecutor);
+        }
+    }
+
+    protected static void shutdown(ExecutorService executorService) {
+
+        executorService.shutdown();
+        try {
+            if (!executorService.awaitTermination(5, TimeUnit.SECONDS)) {
+                executorService.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executorService.shutdownNow();
+        }
+    }
+
+    protected static void closeClient(HttpClient httpClient) {
+
+        httpClient.shutdown();
+        try {
+            if (!httpClient.awaitTermination(Duration.ofSeconds(5))) {
+                log.warn("HTTP requests still in flight after 5s, closing them.");
+                httpClient.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            httpClient.shutdownNow();
+        }
+    }
+
+    protected static class EngineThreadFactory implements ThreadFactory {
+
+        protected static final AtomicInteger count = new AtomicInteger(0);
+
+        protected final String prefix;
+
+        protected EngineThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+}
@@ -0,0 +1,293 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.http;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Settings of an <code>HttpEngine</code>. Default values can be overridden in nuxeo.conf:
+ * <ul>
+ * <li><code>nuxeo.labs.servicecall.http.connectTimeoutMs</code>: Max. time to establish a connection (default
+ * 30000)</li>
+ * <li><code>nuxeo.labs.servicecall.http.requestTimeoutMs</code>: Max. time to wait for the response headers, 0 means
+ * no timeout (default 0)</li>
+ * <li><code>nuxeo.labs.servicecall.http.totalTimeoutMs</code>: Max. time for the whole call, 0 means no timeout
+ * (default 0). When the response is streamed, this is the time to get the response headers.</li>
+ * <li><code>nuxeo.labs.servicecall.http.maxConnectionsPerHost</code>: Max. number of requests in flight to the same
+ * host (default 20). Other callers wait for a connection to be released.</li>
+ * <li><code>nuxeo.labs.servicecall.http.acquireTimeoutMs</code>: Max. time to wait for a connection when the host
+ * limit is reached (default 30000)</li>
+ * <li><code>nuxeo.labs.servicecall.http.keepAliveTimeoutSec</code>: How long an idle connection is kept in the pool
+ * (default 30). The JDK only reads it from the <code>jdk.httpclient.keepalive.timeout</code> JVM property, which must
+ * be set in <code>JAVA_OPTS</code> (<code>JAVA_OPTS=$JAVA_OPTS -Djdk.httpclient.keepalive.timeout=60</code> in
+ * nuxeo.conf). A warning is logged when both values differ.</li>
+ * <li><code>nuxeo.labs.servicecall.http.threads</code>: Size of the thread pool used by the client (default 16)</li>
+ * <li><code>nuxeo.labs.servicecall.http.version</code>: <code>HTTP_1_1</code> (default) or <code>HTTP_2</code>. With
+ * HTTP/2, concurrent requests to the same host are multiplexed on a single connection (negotiated with ALPN over TLS,
+ * or with an h2c upgrade in clear text). If the server does not support it, the client falls back to HTTP/1.1.</li>
+ * <li><code>nuxeo.labs.servicecall.http.spillThresholdKB</code>: When a call writes large responses to disk (see
+ * <code>ServiceCall#setSpillToDisk</code>), responses above this size are written to a temporary file instead of being
+ * read in memory (default 10240, 10MB)</li>
+ * </ul>
+ * See <code>CircuitBreakerConfig</code> for the settings of the circuit breakers.
+ *
+ * @since 2025.4
+ */
+public class HttpEngineConfig {
+
+    private static final Logger log = LogManager.getLogger(HttpEngineConfig.class);
+
+    public static final String PROPERTY_PREFIX = "nuxeo.labs.servicecall.http.";
+
+    public static final String CONNECT_TIMEOUT_PROP = PROPERTY_PREFIX + "connectTimeoutMs";
+
+    public static final String REQUEST_TIMEOUT_PROP = PROPERTY_PREFIX + "requestTimeoutMs";
+
+    public static final String TOTAL_TIMEOUT_PROP = PROPERTY_PREFIX + "totalTimeoutMs";
+
+    public static final String MAX_CONNECTIONS_PER_HOST_PROP = PROPERTY_PREFIX + "maxConnectionsPerHost";
+
+    public static final String ACQUIRE_TIMEOUT_PROP = PROPERTY_PREFIX + "acquireTimeoutMs";
+
+    public static final String KEEP_ALIVE_TIMEOUT_PROP = PROPERTY_PREFIX + "keepAliveTimeoutSec";
+
+    public static final String THREADS_PROP = PROPERTY_PREFIX + "threads";
+
+    public static final String VERSION_PROP = PROPERTY_PREFIX + "version";
+
+    public static final String SPILL_THRESHOLD_PROP = PROPERTY_PREFIX + "spillThresholdKB";
+
+    protected Duration connectTimeout = Duration.ofSeconds(30);
+
+    protected Duration requestTimeout = null;
+
+    protected Duration totalTimeout = null;
+
+    protected int maxConnectionsPerHost = 20;
+
+    protected Duration acquireTimeout = Duration.ofSeconds(30);
+
+    protected int keepAliveTimeoutSec = 30;
+
+    protected int threads = 16;
+
+    protected HttpClient.Version version = HttpClient.Version.HTTP_1_1;
+
+    // In bytes
+    protected long spillThreshold = 10 * 1024 * 1024;
+
+    // null => default JVM context
+    protected SSLContext sslContext = null;
+
+    protected CircuitBreakerConfig circuitBreaker = new CircuitBreakerConfig();
+
+    /**
+     * @return a configuration with the values set in nuxeo.conf (or the default values)
+     * @since 2025.4
+     */
+    public static HttpEngineConfig fromProperties() {
+
+        HttpEngineConfig config = new HttpEngineConfig();
+
+        config.connectTimeout = toDuration(getLongProperty(CONNECT_TIMEOUT_PROP, config.connectTimeout.toMillis()));
+        config.requestTimeout = toDuration(getLongProperty(REQUEST_TIMEOUT_PROP, 0));
+        config.totalTimeout = toDuration(getLongProperty(TOTAL_TIMEOUT_PROP, 0));
+        config.maxConnectionsPerHost = (int) getLongProperty(MAX_CONNECTIONS_PER_HOST_PROP,
+                config.maxConnectionsPerHost);
+        config.acquireTimeout = toDuration(getLongProperty(ACQUIRE_TIMEOUT_PROP, config.acquireTimeout.toMillis()));
+        config.keepAliveTimeoutSec = (int) getLongProperty(KEEP_ALIVE_TIMEOUT_PROP, config.keepAliveTimeoutSec);
+        config.threads = (int) getLongProperty(THREADS_PROP, config.threads);
+        config.version = toVersion(Framework.getProperty(VERSION_PROP), config.version);
+        config.spillThreshold = getLongProperty(SPILL_THRESHOLD_PROP, config.spillThreshold / 1024) * 1024;
+        config.circuitBreaker = CircuitBreakerConfig.fromProperties();
+
+        return config;
+    }
+
+    protected static long getLongProperty(String key, long defaultValue) {
+
+        String value = Framework.getProperty(key);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value <" + value + "> for " + key + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    protected static double getDoubleProperty(String key, double defaultValue) {
+
+        String value = Framework.getProperty(key);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value <" + value + "> for " + key + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @param value, "HTTP_2" or "HTTP_1_1" (case insensitive, "2" and "1.1" are also accepted)
+     * @param defaultValue
+     * @return the version
+     * @since 2025.4
+     */
+    public static HttpClient.Version toVersion(String value, HttpClient.Version defaultValue) {
+
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        switch (value.trim().toUpperCase()) {
+        case "HTTP_2":
+        case "HTTP/2":
+        case "2":
+            return HttpClient.Version.HTTP_2;
+
+        case "HTTP_1_1":
+        case "HTTP/1.1":
+        case "1.1":
+            return HttpClient.Version.HTTP_1_1;
+
+        default:
+            log.warn("Invalid HTTP version <" + value + ">, using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /*
+     * 0 or less means "no value"
+     */
+    protected static Duration toDuration(long millis) {
+        return millis > 0 ? Duration.ofMillis(millis) : null;
+    }
+
+    public Duration getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(Duration connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public Duration getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    public void setRequestTimeout(Duration requestTimeout) {
+        this.requestTimeout = requestTimeout;
+    }
+
+    public Duration getTotalTimeout() {
+        return totalTimeout;
+    }
+
+    public void setTotalTimeout(Duration totalTimeout) {
+        this.totalTimeout = totalTimeout;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public Duration getAcquireTimeout() {
+        return acquireTimeout;
+    }
+
+    public void setAcquireTimeout(Duration acquireTimeout) {
+        this.acquireTimeout = acquireTimeout;
+    }
+
+    public int getKeepAliveTimeoutSec() {
+        return keepAliveTimeoutSec;
+    }
+
+    public void setKeepAliveTimeoutSec(int keepAliveTimeoutSec) {
+        this.keepAliveTimeoutSec = keepAliveTimeoutSec;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public HttpClient.Version getVersion() {
+        return version;
+    }
+
+    public void setVersion(HttpClient.Version version) {
+        this.version = version;
+    }
+
+    /**
+     * @return the size (in bytes) above which a response is written to a temporary file, when the call asks for it
+     * @since 2025.4
+     */
+    public long getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    public void setSpillThreshold(long spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    /**
+     * Mainly for tests and local stand-ins with self-signed certificates. When not set, the default JVM context
+     * (and trust store) is used.
+     *
+     * @param sslContext
+     * @since 2025.4
+     */
+    public void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    public CircuitBreakerConfig getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public void setCircuitBreaker(CircuitBreakerConfig circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+}
@@ -0,0 +1,508 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.http;
+
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.runtime.api.Framework;
+
+import io.dropwizard.metrics5.Counter;
+
+/**
+ * In-memory cache of the responses to GET calls, for data that changes rarely (taxonomies, configuration, ...). It is
+ * bounded by a number of entries and by size, the least recently used entries are evicted first.
+ * <br>
+ * The HTTP caching headers sent by the service are respected:
+ * <ul>
+ * <li>A response is fresh for the <code>max-age</code> of its <code>Cache-Control</code> header (minus its
+ * <code>Age</code>), or until its <code>Expires</code> date. A fresh response is returned without calling the
+ * service.</li>
+ * <li>When it is not fresh anymore (or with <code>Cache-Control: no-cache</code>), the call is sent with
+ * <code>If-None-Match</code> (its <code>ETag</code>) and/or <code>If-Modified-Since</code> (its
+ * <code>Last-Modified</code>). If the service answers <code>304 Not Modified</code>, the cached body is returned.</li>
+ * <li>Responses with <code>Cache-Control: no-store</code> or <code>Vary: *</code>, and responses that are neither fresh
+ * nor have a validator, are not cached. The headers listed in <code>Vary</code> must have the same values for a cached
+ * response to be used.</li>
+ * </ul>
+ * Only successful responses (200) read in memory are cached. The key of a response includes the URL and a hash of the
+ * <code>Authorization</code> and <code>Cookie</code> headers of the call, so a response is never returned to another
+ * user or with other credentials.
+ * <br>
+ * Disabled by default. Can be configured in nuxeo.conf:
+ * <ul>
+ * <li><code>nuxeo.labs.servicecall.cache.enabled</code>: <code>true</code> to cache the GET calls of
+ * <code>ServiceCall</code> (and of the operations) in the shared cache (default false)</li>
+ * <li><code>nuxeo.labs.servicecall.cache.maxEntries</code>: Max. number of responses (default 1000)</li>
+ * <li><code>nuxeo.labs.servicecall.cache.maxSizeKB</code>: Max. total size of the responses (default 51200, 50MB)</li>
+ * <li><code>nuxeo.labs.servicecall.cache.maxEntrySizeKB</code>: Larger responses are not cached (default 1024)</li>
+ * </ul>
+ * The <code>nuxeo.servicecall.cache.hits</code> (returned without calling the service),
+ * <code>nuxeo.servicecall.cache.revalidations</code> (returned after a 304),
+ * <code>nuxeo.servicecall.cache.misses</code> (downloaded) and <code>nuxeo.servicecall.cache.evictions</code> metrics
+ * count the lookups and the evictions, see <code>getHitRatio()</code>.
+ *
+ * @since 2025.4
+ */
+public class HttpResponseCache {
+
+    private static final Logger log = LogManager.getLogger(HttpResponseCache.class);
+
+    public static final String PROPERTY_PREFIX = "nuxeo.labs.servicecall.cache.";
+
+    public static final String ENABLED_PROP = PROPERTY_PREFIX + "enabled";
+
+    public static final String MAX_ENTRIES_PROP = PROPERTY_PREFIX + "maxEntries";
+
+    public static final String MAX_SIZE_PROP = PROPERTY_PREFIX + "maxSizeKB";
+
+    public static final String MAX_ENTRY_SIZE_PROP = PROPERTY_PREFIX + "maxEntrySizeKB";
+
+    // The headers identifying the caller
+    protected static final List<String> IDENTITY_HEADERS = List.of("Authorization", "Cookie");
+
+    // Estimated size of an entry, without its body
+    protected static final int ENTRY_OVERHEAD = 256;
+
+    protected static volatile HttpResponseCache instance = null;
+
+    // nuxeo.conf was read (instance is null if the cache is disabled)
+    protected static volatile boolean resolved = false;
+
+    /**
+     * A cached response
+     *
+     * @since 2025.4
+     */
+    public static class Entry {
+
+        protected final String body;
+
+        protected final String contentType;
+
+        protected final String etag;
+
+        protected final String lastModified;
+
+        // Lower case name => value of the request, null if the response has no Vary header
+        protected final Map<String, String> vary;
+
+        protected final long size;
+
+        protected volatile long freshUntil;
+
+        protected Entry(String body, String contentType, String etag, String lastModified, Map<String, String> vary,
+                long freshUntil) {
+            this.body = body;
+            this.contentType = contentType;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.vary = vary;
+            this.freshUntil = freshUntil;
+            size = 2L * body.length() + ENTRY_OVERHEAD;
+        }
+
+        public boolean isFresh() {
+            return System.currentTimeMillis() < freshUntil;
+        }
+
+        public boolean hasValidator() {
+            return etag != null || lastModified != null;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return a new result with the cached body
+         */
+        public ServiceCallResult toResult() {
+            return new ServiceCallResult(body, 200, ServiceCall.getReasonPhrase(200)).setContentType(contentType);
+        }
+    }
+
+    protected final int maxEntries;
+
+    protected final long maxSize;
+
+    protected final long maxEntrySize;
+
+    // Access order => least recently used first
+    protected final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    protected long size = 0;
+
+    protected final Counter hits = ServiceCallMetrics.counter("cache.hits");
+
+    protected final Counter revalidations = ServiceCallMetrics.counter("cache.revalidations");
+
+    protected final Counter misses = ServiceCallMetrics.counter("cache.misses");
+
+    protected final Counter evictions = ServiceCallMetrics.counter("cache.evictions");
+
+    /**
+     * @param maxEntries
+     * @param maxSize, in bytes
+     * @param maxEntrySize, in bytes
+     */
+    public HttpResponseCache(int maxEntries, long maxSize, long maxEntrySize) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.maxSize = maxSize;
+        this.maxEntrySize = Math.min(maxEntrySize, maxSize);
+    }
+
+    /**
+     * @return the shared cache, null if it is not enabled in nuxeo.conf
+     * @since 2025.4
+     */
+    public static HttpResponseCache getInstance() {
+
+        if (!resolved) {
+            synchronized (HttpResponseCache.class) {
+                if (!resolved) {
+                    String enabled = Framework.getProperty(ENABLED_PROP);
+                    if (StringUtils.isNotBlank(enabled) && Boolean.parseBoolean(enabled.trim())) {
+                        instance = new HttpResponseCache((int) HttpEngineConfig.getLongProperty(MAX_ENTRIES_PROP, 1000),
+                                HttpEngineConfig.getLongProperty(MAX_SIZE_PROP, 50 * 1024) * 1024,
+                                HttpEngineConfig.getLongProperty(MAX_ENTRY_SIZE_PROP, 1024) * 1024);
+                    }
+                    resolved = true;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Forgets the shared cache, it is created again (if enabled) at next call to <code>getInstance()</code>
+     *
+     * @since 2025.4
+     */
+    public static synchronized void resetInstance() {
+        instance = null;
+        resolved = false;
+    }
+
+    /**
+     * @param request
+     * @return the key of the response to the request: its URL and the identity of the caller
+     * @since 2025.4
+     */
+    public static String key(HttpRequest request) {
+
+        StringBuilder identity = new StringBuilder();
+        for (String name : IDENTITY_HEADERS) {
+            for (String value : request.headers().allValues(name)) {
+                identity.append(name).append(':').append(value).append('\n');
+            }
+        }
+        if (identity.length() == 0) {
+            return request.uri().toString();
+        }
+        // Credentials are not kept in memory
+        return request.uri() + " " + ServiceCall.sha256Hex(identity.toString());
+    }
+
+    /**
+     * @param request
+     * @return true if the request allows using a cached response (no <code>Cache-Control: no-store</code>)
+     * @since 2025.4
+     */
+    public static boolean isCacheable(HttpRequest request) {
+        return !cacheControl(request.headers()).containsKey("no-store");
+    }
+
+    /**
+     * Does not count a hit or a miss, see <code>hit</code> and <code>miss</code>.
+     *
+     * @param key, see <code>key</code>
+     * @param request
+     * @return the cached response for the request (fresh or not), null if none
+     * @since 2025.4
+     */
+    public synchronized Entry get(String key, HttpRequest request) {
+
+        Entry entry = entries.get(key);
+        if (entry == null || entry.vary == null) {
+            return entry;
+        }
+        for (Map.Entry<String, String> header : entry.vary.entrySet()) {
+            if (!header.getValue().equals(headerValue(request.headers(), header.getKey()))) {
+                return null;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * @param entry
+     * @param request
+     * @return true if the response can be used without revalidation
+     * @since 2025.4
+     */
+    public static boolean canUseWithoutRevalidation(Entry entry, HttpRequest request) {
+        return entry.isFresh() && !cacheControl(request.headers()).containsKey("no-cache");
+    }
+
+    /**
+     * Caches the response, if it can be cached (see the class documentation)
+     *
+     * @param key, see <code>key</code>
+     * @param request
+     * @param responseHeaders
+     * @param result
+     * @since 2025.4
+     */
+    public void put(String key, HttpRequest request, HttpHeaders responseHeaders, ServiceCallResult result) {
+
+        if (result.getResponseCode() != 200 || result.isResponseInFile() || result.getRawResponse() == null) {
+            return;
+        }
+        long freshUntil = freshUntil(responseHeaders);
+        String etag = responseHeaders.firstValue("ETag").orElse(null);
+        String lastModified = responseHeaders.firstValue("Last-Modified").orElse(null);
+        if (freshUntil < 0 || (freshUntil <= System.currentTimeMillis() && etag == null && lastModified == null)) {
+            return;
+        }
+        Map<String, String> vary = null;
+        String varyHeader = responseHeaders.firstValue("Vary").orElse(null);
+        if (StringUtils.isNotBlank(varyHeader)) {
+            vary = new HashMap<>();
+            for (String name : varyHeader.split(",")) {
+                name = name.trim().toLowerCase();
+                if (name.equals("*")) {
+                    return;
+                }
+                if (!name.isEmpty()) {
+                    vary.put(name, headerValue(request.headers(), name));
+                }
+            }
+        }
+
+        Entry entry = new Entry(result.getRawResponse(), result.getContentType(), etag, lastModified, vary,
+                freshUntil);
+        if (entry.size > maxEntrySize) {
+            return;
+        }
+        synchronized (this) {
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                size -= previous.size;
+            }
+            size += entry.size;
+            evict();
+        }
+    }
+
+    /**
+     * The service answered 304: the cached response is fresh again, with the caching headers of the 304
+     *
+     * @param entry
+     * @param responseHeaders
+     * @return a new result with the cached body
+     * @since 2025.4
+     */
+    public ServiceCallResult revalidated(Entry entry, HttpHeaders responseHeaders) {
+
+        long freshUntil = freshUntil(responseHeaders);
+        entry.freshUntil = Math.max(freshUntil, 0);
+        revalidations.inc();
+        return entry.toResult();
+    }
+
+    public void hit() {
+        hits.inc();
+    }
+
+    public void miss() {
+        misses.inc();
+    }
+
+    public synchronized void remove(String key) {
+
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            size -= entry.size;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /*
+     * Removes the least recently used entries, until the cache is within its limits
+     */
+    protected void evict() {
+
+        Iterator<Entry> it = entries.values().iterator();
+        while ((entries.size() > maxEntries || size > maxSize) && it.hasNext()) {
+            Entry entry = it.next();
+            it.remove();
+            size -= entry.size;
+            evictions.inc();
+        }
+    }
+
+    /*
+     * Epoch millis until which the response is fresh, -1 if it must not be stored
+     */
+    protected static long freshUntil(HttpHeaders headers) {
+
+        long now = System.currentTimeMillis();
+        Map<String, String> cacheControl = cacheControl(headers);
+        if (cacheControl.containsKey("no-store")) {
+            return -1;
+        }
+        if (cacheControl.containsKey("no-cache")) {
+            return now;
+        }
+        long age = headers.firstValueAsLong("Age").orElse(0);
+        String maxAge = cacheControl.get("max-age");
+        if (maxAge != null) {
+            try {
+                return now + (Long.parseLong(maxAge) - age) * 1000;
+            } catch (NumberFormatException e) {
+                return now;
+            }
+        }
+        String expires = headers.firstValue("Expires").orElse(null);
+        if (expires != null) {
+            long expiresAt = parseDate(expires);
+            if (expiresAt < 0) {
+                // Invalid dates, like "0", mean "already expired"
+                return now;
+            }
+            long date = parseDate(headers.firstValue("Date").orElse(null));
+            // Relative to the clock of the service
+            return now + expiresAt - (date < 0 ? now : date) - age * 1000;
+        }
+        return now;
+    }
+
+    /*
+     * Lower case directives => value ("" if none)
+     */
+    protected static Map<String, String> cacheControl(HttpHeaders headers) {
+
+        Map<String, String> directives = new HashMap<>();
+        for (String value : headers.allValues("Cache-Control")) {
+            for (String directive : value.split(",")) {
+                int idx = directive.indexOf('=');
+                if (idx < 0) {
+                    directives.put(directive.trim().toLowerCase(), "");
+                } else {
+                    directives.put(directive.substring(0, idx).trim().toLowerCase(),
+                            directive.substring(idx + 1).trim().replace("\"", ""));
+                }
+            }
+        }
+        return directives;
+    }
+
+    /*
+     * -1 if null or invalid
+     */
+    protected static long parseDate(String value) {
+
+        if (StringUtils.isBlank(value)) {
+            return -1;
+        }
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            log.debug("Invalid date <" + value + ">");
+            return -1;
+        }
+    }
+
+    protected static String headerValue(HttpHeaders headers, String name) {
+        return String.join(",", headers.allValues(name));
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the estimated size of the cached responses, in bytes
+     * @since 2025.4
+     */
+    public synchronized long getSizeInBytes() {
+        return size;
+    }
+
+    /**
+     * @return the number of responses returned without calling the service, since the server started
+     * @since 2025.4
+     */
+    public long getHits() {
+        return hits.getCount();
+    }
+
+    /**
+     * @return the number of responses returned after the service answered 304, since the server started
+     * @since 2025.4
+     */
+    public long getRevalidations() {
+        return revalidations.getCount();
+    }
+
+    /**
+     * @return the number of responses downloaded (200) because there was no usable cached response, since the server
+     *         started
+     * @since 2025.4
+     */
+    public long getMisses() {
+        return misses.getCount();
+    }
+
+    public long getEvictions() {
+        return evictions.getCount();
+    }
+
+    /**
+     * @return the ratio of GET calls using a cached response (with or without revalidation), 0 if there was no call
+     * @since 2025.4
+     */
+    public double getHitRatio() {
+
+        long served = getHits() + getRevalidations();
+        long total = served + getMisses();
+        return total == 0 ? 0 : served / (double) total;
+    }
+
+}
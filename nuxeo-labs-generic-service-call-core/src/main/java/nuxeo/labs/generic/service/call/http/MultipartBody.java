@@ -0,0 +1,174 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.http;
+
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * A <code>multipart/form-data</code> body (RFC 7578), with text fields and files. The files are streamed from their
+ * blob when the request is sent (see <code>BlobBodyPublishers</code>): they are never fully read in memory, nor
+ * encoded.
+ * <br>
+ * The <code>Content-Length</code> is computed up front when the length of every blob is known, else the body is sent
+ * chunked.
+ *
+ * <pre>
+ * MultipartBody body = new MultipartBody().addField("description", "The contract")
+ *                                         .addFile("file", blob);
+ * serviceCall.uploadMultipart("POST", body, url, headers);
+ * </pre>
+ *
+ * @since 2025.4
+ */
+public class MultipartBody {
+
+    protected static final SecureRandom RANDOM = new SecureRandom();
+
+    protected final String boundary;
+
+    // The headers of each part (byte[]), followed by its content (byte[] or Blob)
+    protected final List<Object> parts = new ArrayList<>();
+
+    public MultipartBody() {
+
+        byte[] random = new byte[16];
+        RANDOM.nextBytes(random);
+        boundary = "----NuxeoServiceCall" + HexFormat.of().formatHex(random);
+    }
+
+    /**
+     * @param name
+     * @param value, sent as UTF-8
+     * @return this
+     * @since 2025.4
+     */
+    public MultipartBody addField(String name, String value) {
+
+        parts.add(partHeaders(name, null, null));
+        parts.add(StringUtils.defaultString(value).getBytes(StandardCharsets.UTF_8));
+        return this;
+    }
+
+    /**
+     * @param name
+     * @param blob, its filename and mime type are used for the part (the mime type is guessed if not set)
+     * @return this
+     * @since 2025.4
+     */
+    public MultipartBody addFile(String name, Blob blob) {
+
+        String filename = StringUtils.defaultIfBlank(blob.getFilename(), name);
+        String mimeType = StringUtils.defaultIfBlank(ServiceCall.getMimeType(blob), "application/octet-stream");
+        parts.add(partHeaders(name, filename, mimeType));
+        parts.add(blob);
+        return this;
+    }
+
+    public String getBoundary() {
+        return boundary;
+    }
+
+    /**
+     * @return the Content-Type header of the request, with the boundary
+     * @since 2025.4
+     */
+    public String getContentType() {
+        return "multipart/form-data; boundary=" + boundary;
+    }
+
+    /**
+     * @return the size of the body, -1 if the length of a blob is not known
+     * @since 2025.4
+     */
+    public long getContentLength() {
+
+        long length = closing().length;
+        for (Object part : parts) {
+            long partLength = part instanceof Blob blob ? blob.getLength() : ((byte[]) part).length;
+            if (partLength < 0) {
+                return -1;
+            }
+            length += partLength;
+        }
+        return length;
+    }
+
+    /**
+     * The blobs are read again if the request is sent again (retry, ...).
+     *
+     * @return a publisher streaming the body
+     * @since 2025.4
+     */
+    public BodyPublisher toBodyPublisher() {
+
+        List<BodyPublisher> publishers = new ArrayList<>(parts.size() + 1);
+        for (Object part : parts) {
+            publishers.add(part instanceof Blob blob ? BlobBodyPublishers.ofBlob(blob)
+                    : BodyPublishers.ofByteArray((byte[]) part));
+        }
+        publishers.add(BodyPublishers.ofByteArray(closing()));
+        // The length is the sum of the lengths, -1 if one is unknown
+        return BodyPublishers.concat(publishers.toArray(BodyPublisher[]::new));
+    }
+
+    /*
+     * The delimiter and the headers of a part. Each part but the first starts with the CRLF ending the previous one.
+     */
+    protected byte[] partHeaders(String name, String filename, String mimeType) {
+
+        StringBuilder headers = new StringBuilder();
+        if (!parts.isEmpty()) {
+            headers.append("\r\n");
+        }
+        headers.append("--").append(boundary).append("\r\n");
+        headers.append("Content-Disposition: form-data; name=\"").append(escape(name)).append('"');
+        if (filename != null) {
+            headers.append("; filename=\"").append(escape(filename)).append('"');
+        }
+        headers.append("\r\n");
+        if (mimeType != null) {
+            headers.append("Content-Type: ").append(mimeType).append("\r\n");
+        }
+        headers.append("\r\n");
+        return headers.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    protected byte[] closing() {
+
+        String closing = "--" + boundary + "--\r\n";
+        return ((parts.isEmpty() ? "" : "\r\n") + closing).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /*
+     * Quotes and line breaks are percent-encoded, as browsers do (see the HTML specification of form-data)
+     */
+    protected static String escape(String value) {
+        return value.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+    }
+
+}
@@ -0,0 +1,567 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.http;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+
+import io.dropwizard.metrics5.Counter;
+
+/**
+ * Downloads a large file with several HTTP Range requests sent concurrently, to use more of the bandwidth of
+ * high-latency links than a single stream does:
+ * <ul>
+ * <li>A <code>GET</code> with <code>Range: bytes=0-0</code> checks the service supports ranges, and returns the length
+ * and the ETag (or Last-Modified) of the file. A probe is used rather than a <code>HEAD</code>, which presigned URLs
+ * often reject.</li>
+ * <li>The file is preallocated, then split in parts of <code>partSize</code> bytes. Up to <code>parallelism</code>
+ * parts are downloaded at the same time, each one written at its position in the file.</li>
+ * <li>A part failing with a transient error is retried on its own (see <code>RetryPolicy</code>).</li>
+ * <li>Each part is requested with <code>If-Range</code>, and its <code>Content-Range</code> and ETag must match the
+ * probe: if the file changed during the download, the download starts again with a single stream.</li>
+ * </ul>
+ * When the service does not support ranges, the response to the probe is the whole file: it is the result, there is
+ * no other call.
+ * <br>
+ * Can be configured in nuxeo.conf:
+ * <ul>
+ * <li><code>nuxeo.labs.servicecall.download.partSizeMB</code>: Size of the parts (default 8)</li>
+ * <li><code>nuxeo.labs.servicecall.download.parallelism</code>: Max. number of parts downloaded at the same time
+ * (default 4)</li>
+ * </ul>
+ * The <code>nuxeo.servicecall.download.ranges</code> and <code>nuxeo.servicecall.download.fallbacks</code> metrics
+ * count the parts downloaded and the downloads done with a single stream instead.
+ *
+ * @since 2025.4
+ */
+public class RangeDownload {
+
+    private static final Logger log = LogManager.getLogger(RangeDownload.class);
+
+    public static final String PROPERTY_PREFIX = "nuxeo.labs.servicecall.download.";
+
+    public static final String PART_SIZE_PROP = PROPERTY_PREFIX + "partSizeMB";
+
+    public static final String PARALLELISM_PROP = PROPERTY_PREFIX + "parallelism";
+
+    protected static final int PARTIAL_CONTENT = 206;
+
+    protected static final int RANGE_NOT_SATISFIABLE = 416;
+
+    protected final ServiceCall serviceCall;
+
+    protected final String url;
+
+    protected final Map<String, String> headers;
+
+    protected long partSize;
+
+    protected int parallelism;
+
+    // From the probe
+    protected long length;
+
+    protected String etag;
+
+    protected HttpHeaders probeHeaders;
+
+    protected Blob blob;
+
+    protected FileChannel channel;
+
+    protected final CompletableFuture<ServiceCallResult> result = new CompletableFuture<>();
+
+    protected final Set<CompletableFuture<ServiceCallResult>> inFlight = ConcurrentHashMap.newKeySet();
+
+    // Offsets of the parts to download
+    protected final Queue<Long> pending = new ConcurrentLinkedQueue<>();
+
+    protected final AtomicInteger remaining = new AtomicInteger();
+
+    // Bytes of the parts fully written (the file is preallocated, its size does not tell)
+    protected final AtomicLong received = new AtomicLong();
+
+    // Set when a part does not match the probe
+    protected final AtomicBoolean changed = new AtomicBoolean();
+
+    protected final AtomicBoolean fellBack = new AtomicBoolean();
+
+    protected final Counter ranges = ServiceCallMetrics.counter("download.ranges");
+
+    protected final Counter fallbacks = ServiceCallMetrics.counter("download.fallbacks");
+
+    /**
+     * @param serviceCall, sends the calls (engine, retry policy, rate limits)
+     * @param url
+     * @param headers, sent with every call (authentication, ...). Can be null.
+     */
+    public RangeDownload(ServiceCall serviceCall, String url, Map<String, String> headers) {
+
+        this.serviceCall = serviceCall;
+        this.url = url;
+        this.headers = headers;
+        partSize = Math.max(1, HttpEngineConfig.getLongProperty(PART_SIZE_PROP, 8)) * 1024 * 1024;
+        parallelism = (int) Math.max(1, HttpEngineConfig.getLongProperty(PARALLELISM_PROP, 4));
+    }
+
+    public RangeDownload setPartSize(long partSize) {
+        this.partSize = Math.max(1, partSize);
+        return this;
+    }
+
+    public RangeDownload setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    /**
+     * @return the result of the download (see <code>downloadAsync</code>). IO errors are thrown as a
+     *         <code>NuxeoException</code>.
+     * @since 2025.4
+     */
+    public ServiceCallResult download() {
+        return serviceCall.awaitDownload(downloadAsync());
+    }
+
+    /**
+     * Same as <code>ServiceCall#downloadFileAsync</code>: IO errors complete the future exceptionally. Cancelling the
+     * future cancels the parts in flight.
+     *
+     * @return the future result, holding the blob if the call was successful
+     * @since 2025.4
+     */
+    public CompletableFuture<ServiceCallResult> downloadAsync() {
+
+        result.whenComplete((value, error) -> {
+            if (error != null) {
+                inFlight.forEach(call -> call.cancel(true));
+                discardFile();
+            }
+        });
+
+        HttpRequest probe;
+        try {
+            probe = serviceCall.getEngine().newRequestBuilder(url, headers).header("Range", "bytes=0-0").GET().build();
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        BodyHandler<ServiceCallResult> handler = probeHandler(probe.uri());
+        RetryPolicy retryPolicy = serviceCall.getRetryPolicy();
+        track(retryPolicy.execute(probe, () -> serviceCall.sendAsync(probe, handler))).whenComplete((value, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else if (value.getResponseCode() == PARTIAL_CONTENT) {
+                start(value.getResponseHeaders());
+            } else if (value.getResponseCode() == RANGE_NOT_SATISFIABLE) {
+                // Empty file
+                fallback("the range of the probe is not satisfiable");
+            } else {
+                // The whole file (ranges not supported), or an error
+                complete(value);
+            }
+        });
+
+        return result;
+    }
+
+    /*
+     * A 206 is not read, anything else is handled as a download with a single stream
+     */
+    protected BodyHandler<ServiceCallResult> probeHandler(URI uri) {
+
+        BodyHandler<ServiceCallResult> download = serviceCall.downloadHandler(uri);
+        return responseInfo -> {
+            int status = responseInfo.statusCode();
+            if (status == PARTIAL_CONTENT || status == RANGE_NOT_SATISFIABLE) {
+                return BodySubscribers.replacing(new ServiceCallResult("{}", status,
+                        ServiceCall.getReasonPhrase(status)).setResponseHeaders(responseInfo.headers()));
+            }
+            return download.apply(responseInfo);
+        };
+    }
+
+    protected void start(HttpHeaders headers) {
+
+        long total = totalLength(headers);
+        if (total < 0) {
+            fallback("the length of the file is unknown");
+            return;
+        }
+        length = total;
+        etag = headers.firstValue("ETag").orElse(null);
+        probeHeaders = headers;
+
+        try {
+            blob = Blobs.createBlobWithExtension(".tmp");
+            try (RandomAccessFile file = new RandomAccessFile(blob.getFile(), "rw")) {
+                file.setLength(length);
+            }
+            channel = FileChannel.open(blob.getFile().toPath(), StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+            return;
+        }
+
+        for (long offset = 0; offset < length; offset += partSize) {
+            pending.add(offset);
+        }
+        remaining.set(pending.size());
+        log.debug("Downloading " + length + " bytes from " + url + " in " + pending.size() + " parts");
+        for (int i = 0; i < parallelism; i++) {
+            next();
+        }
+    }
+
+    /*
+     * Downloads the next pending part, if any. Called again when it is written.
+     */
+    protected void next() {
+
+        if (result.isDone()) {
+            return;
+        }
+        Long offset = pending.poll();
+        if (offset == null) {
+            return;
+        }
+        long last = Math.min(offset + partSize, length) - 1;
+        HttpRequest.Builder builder = serviceCall.getEngine()
+                                                 .newRequestBuilder(url, headers)
+                                                 .header("Range", "bytes=" + offset + "-" + last)
+                                                 .GET();
+        String validator = ifRangeValidator();
+        if (validator != null) {
+            builder.header("If-Range", validator);
+        }
+        HttpRequest request = builder.build();
+
+        BodyHandler<ServiceCallResult> handler = partHandler(request.uri(), offset, last);
+        RetryPolicy retryPolicy = serviceCall.getRetryPolicy();
+        CompletableFuture<ServiceCallResult> part = retryPolicy.execute(request,
+                () -> serviceCall.sendAsync(request, handler));
+        track(part).whenComplete((value, error) -> {
+            // Before the error: the other parts are cancelled by the fallback
+            if (changed.get()) {
+                fallback("the file changed during the download");
+                return;
+            }
+            if (error != null) {
+                result.completeExceptionally(error);
+                return;
+            }
+            if (value.getResponseCode() != PARTIAL_CONTENT) {
+                complete(value);
+                return;
+            }
+            ranges.inc();
+            if (remaining.decrementAndGet() == 0) {
+                finish();
+            } else {
+                next();
+            }
+        });
+    }
+
+    /*
+     * Writes a 206 matching the probe at its position. Anything else is not written.
+     */
+    protected BodyHandler<ServiceCallResult> partHandler(URI uri, long first, long last) {
+
+        BodyHandler<ServiceCallResult> download = serviceCall.downloadHandler(uri);
+        return responseInfo -> {
+            int status = responseInfo.statusCode();
+            if (status < 200 || status >= 300) {
+                return download.apply(responseInfo);
+            }
+            String reason = ServiceCall.getReasonPhrase(status);
+            HttpHeaders responseHeaders = responseInfo.headers();
+            String contentRange = responseHeaders.firstValue("Content-Range").orElse(null);
+            String responseEtag = responseHeaders.firstValue("ETag").orElse(null);
+            if (status != PARTIAL_CONTENT
+                    || !Objects.equals("bytes " + first + "-" + last + "/" + length, contentRange)
+                    || (etag != null && responseEtag != null && !etag.equals(responseEtag))) {
+                // If-Range failed (200, the whole new file), or not the expected part: not read, the file is
+                // downloaded again with a single stream
+                log.debug("Unexpected response to the range " + first + "-" + last + " of " + url + ": " + status
+                        + ", " + contentRange + ", " + responseEtag);
+                changed.set(true);
+                return new CancellingSubscriber(new ServiceCallResult("{}", status, reason));
+            }
+            long expected = last - first + 1;
+            return BodySubscribers.mapping(new PositionalWriter(channel, first), written -> {
+                if (written != expected) {
+                    return new ServiceCallResult("{}", -1,
+                            "Incomplete range " + first + "-" + last + ": " + written + " bytes received");
+                }
+                received.addAndGet(written);
+                return new ServiceCallResult("{}", status, reason);
+            });
+        };
+    }
+
+    protected void finish() {
+
+        if (result.isDone()) {
+            return;
+        }
+        try {
+            channel.close();
+            if (received.get() != length) {
+                throw new IOException("Downloaded " + received.get() + " bytes instead of " + length);
+            }
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+            return;
+        }
+        blob.setFilename(ServiceCall.extractFileName(probeHeaders, URI.create(url)));
+        blob.setMimeType(probeHeaders.firstValue("Content-Type").orElse(null));
+        result.complete(new ServiceCallResult(blob, 200, ServiceCall.getReasonPhrase(200)));
+    }
+
+    /*
+     * Downloads the file with a single stream
+     */
+    protected void fallback(String reason) {
+
+        if (result.isDone() || !fellBack.compareAndSet(false, true)) {
+            return;
+        }
+        log.debug("Downloading " + url + " with a single stream: " + reason);
+        fallbacks.inc();
+        inFlight.forEach(call -> call.cancel(true));
+        discardFile();
+        serviceCall.downloadFileAsync(url, headers).whenComplete((value, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(value);
+            }
+        });
+    }
+
+    /*
+     * IO errors (still failing after the retries) complete the future exceptionally, as downloadFileAsync does
+     */
+    protected void complete(ServiceCallResult value) {
+
+        if (value.getResponseCode() == -1) {
+            result.completeExceptionally(new IOException(value.getResponseMessage()));
+            return;
+        }
+        if (value.getResponseBlob() == null) {
+            discardFile();
+        }
+        result.complete(value);
+    }
+
+    protected void discardFile() {
+
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+        if (blob != null) {
+            try {
+                Files.deleteIfExists(blob.getFile().toPath());
+            } catch (IOException e) {
+                log.warn("Cannot delete the temporary file of a download: " + e.getMessage());
+            }
+            blob = null;
+        }
+    }
+
+    protected String ifRangeValidator() {
+        return ifRangeValidator(probeHeaders);
+    }
+
+    /*
+     * The strong ETag, else the Last-Modified of a response. A weak ETag cannot be used with If-Range. null if none.
+     */
+    protected static String ifRangeValidator(HttpHeaders headers) {
+
+        String etag = headers.firstValue("ETag").orElse(null);
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return headers.firstValue("Last-Modified").orElse(null);
+    }
+
+    protected CompletableFuture<ServiceCallResult> track(CompletableFuture<ServiceCallResult> call) {
+
+        inFlight.add(call);
+        call.whenComplete((value, error) -> inFlight.remove(call));
+        return call;
+    }
+
+    /*
+     * From "Content-Range: bytes 0-0/1234", -1 if unknown
+     */
+    protected static long totalLength(HttpHeaders headers) {
+
+        String total = StringUtils.substringAfterLast(headers.firstValue("Content-Range").orElse(null), "/");
+        return StringUtils.isNumeric(total) ? Long.parseLong(total) : -1;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    /*
+     * Cancels the body as soon as it starts, so it is not read (the connection is closed)
+     */
+    protected static class CancellingSubscriber implements BodySubscriber<ServiceCallResult> {
+
+        protected final CompletableFuture<ServiceCallResult> body = new CompletableFuture<>();
+
+        protected final ServiceCallResult value;
+
+        protected CancellingSubscriber(ServiceCallResult value) {
+            this.value = value;
+        }
+
+        @Override
+        public CompletionStage<ServiceCallResult> getBody() {
+            return body;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.cancel();
+            body.complete(value);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            // Cancelled
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            body.complete(value);
+        }
+
+        @Override
+        public void onComplete() {
+            body.complete(value);
+        }
+    }
+
+    /**
+     * Writes the body of a response in a file, from a position. Several writers can share the channel.
+     *
+     * @since 2025.4
+     */
+    protected static class PositionalWriter implements BodySubscriber<Long> {
+
+        protected final FileChannel channel;
+
+        // Written by the thread of the client, read by others (see ResumableDownload#received)
+        protected volatile long position;
+
+        protected long written = 0;
+
+        protected final CompletableFuture<Long> body = new CompletableFuture<>();
+
+        protected Flow.Subscription subscription;
+
+        public PositionalWriter(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public CompletionStage<Long> getBody() {
+            return body;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+
+            this.subscription = subscription;
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+
+            if (body.isDone()) {
+                return;
+            }
+            try {
+                for (ByteBuffer item : items) {
+                    while (item.hasRemaining()) {
+                        int count = channel.write(item, position);
+                        position += count;
+                        written += count;
+                    }
+                }
+            } catch (IOException e) {
+                subscription.cancel();
+                onError(e);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            body.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            body.complete(written);
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.http;
+
+/**
+ * Token bucket: <code>permitsPerSecond</code> permits are added every second, up to <code>capacity</code> (the max.
+ * burst).
+ * <br>
+ * A caller reserves a permit and is told how long to wait for it. Reservations are served in order: when the bucket is
+ * empty, the next reservation waits for the permits already reserved.
+ *
+ * @since 2025.4
+ */
+public class RateLimiter {
+
+    protected final double permitsPerSecond;
+
+    protected final double capacity;
+
+    // Can be negative: permits reserved by callers waiting for them
+    protected double permits;
+
+    protected long lastRefillNanos;
+
+    /**
+     * @param permitsPerSecond
+     * @param capacity, max. number of permits available at once (at least 1)
+     */
+    public RateLimiter(double permitsPerSecond, double capacity) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.capacity = Math.max(1, capacity);
+        permits = this.capacity;
+        lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * @param maxWaitNanos, max. time the caller accepts to wait for its permit
+     * @return the time to wait for the permit (0 if available now), or -1 if it would be longer than
+     *         <code>maxWaitNanos</code> (no permit is reserved then)
+     * @since 2025.4
+     */
+    public synchronized long reserve(long maxWaitNanos) {
+
+        refill();
+        if (permits >= 1) {
+            permits -= 1;
+            return 0;
+        }
+        long waitNanos = (long) Math.ceil((1 - permits) / permitsPerSecond * 1_000_000_000L);
+        if (waitNanos > maxWaitNanos) {
+            return -1;
+        }
+        permits -= 1;
+        return waitNanos;
+    }
+
+    /**
+     * Gives back a permit reserved with <code>reserve</code> and not used
+     *
+     * @since 2025.4
+     */
+    public synchronized void cancel() {
+
+        refill();
+        permits = Math.min(capacity, permits + 1);
+    }
+
+    /**
+     * @return true if the bucket is full (it was not used recently)
+     * @since 2025.4
+     */
+    public synchronized boolean isIdle() {
+
+        refill();
+        return permits >= capacity;
+    }
+
+    protected void refill() {
+
+        long now = System.nanoTime();
+        permits = Math.min(capacity, permits + (now - lastRefillNanos) * permitsPerSecond / 1_000_000_000L);
+        lastRefillNanos = now;
+    }
+
+    public double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    public double getCapacity() {
+        return capacity;
+    }
+
+}
@@ -0,0 +1,381 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.http;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Client-side rate limits, so we do not send more calls than a service accepts (and get 429s, or temporary bans).
+ * <br>
+ * Each host, and each key (the descriptor key of an <code>AuthenticationToken</code> for example, see
+ * <code>AuthenticationToken#getDescriptorKey</code> and <code>ServiceCall#setRateLimitKey</code>), can have its own
+ * token bucket. A call takes a permit from the limiter of its host and from the limiter of its key. If no permit is
+ * available, it waits (without holding a thread) up to <code>maxWait</code>. If it would wait longer, it is not sent
+ * and fails with a <code>RateLimitedException</code>.
+ * <br>
+ * No limit by default. Can be configured in nuxeo.conf:
+ * <ul>
+ * <li><code>nuxeo.labs.servicecall.rateLimit.perHost</code>: Max. calls per second to a host, 0 means no limit (default
+ * 0)</li>
+ * <li><code>nuxeo.labs.servicecall.rateLimit.hosts</code>: Limits of specific hosts, overriding <code>perHost</code>.
+ * Comma separated list of <code>host=callsPerSecond</code>, where host is the host name (<code>api.example.com</code>)
+ * or the scheme, host and port (<code>https://api.example.com:443</code>)</li>
+ * <li><code>nuxeo.labs.servicecall.rateLimit.perKey</code>: Max. calls per second with the same key (with tokens
+ * fetched from the same service with the same credentials, when called from the operations), 0 means no limit
+ * (default 0)</li>
+ * <li><code>nuxeo.labs.servicecall.rateLimit.burstSeconds</code>: Size of the buckets, in seconds of calls: calls not
+ * made during this time can be made at once later (default 1)</li>
+ * <li><code>nuxeo.labs.servicecall.rateLimit.maxWaitMs</code>: Max. time a call waits for a permit, 0 means fail fast
+ * (default 5000)</li>
+ * <li><code>nuxeo.labs.servicecall.rateLimit.distributed</code>: <code>true</code> to share the limits between the
+ * nodes of a cluster, see <code>DistributedRateLimiter</code> (default false). The limits are then the limits of the
+ * cluster, and <code>burstSeconds</code> is not used.</li>
+ * <li><code>nuxeo.labs.servicecall.rateLimit.distributedStore</code>: Name of the KeyValueStore holding the counters
+ * (default "servicecall")</li>
+ * <li><code>nuxeo.labs.servicecall.rateLimit.windowMs</code>: Duration of the windows of the distributed limits (default
+ * 1000)</li>
+ * <li><code>nuxeo.labs.servicecall.rateLimit.leaseSize</code>: Number of permits a node takes from the store at once, 0
+ * means a tenth of the permits of a window (default 0)</li>
+ * </ul>
+ * The <code>nuxeo.servicecall.ratelimit.permits</code>, <code>nuxeo.servicecall.ratelimit.waits</code> and
+ * <code>nuxeo.servicecall.ratelimit.rejected</code> metrics (tagged with the host) count the permits given, the calls
+ * that had to wait for their permit, and the calls rejected. <code>nuxeo.servicecall.ratelimit.leases</code> counts the
+ * calls to the KeyValueStore of the distributed limits.
+ *
+ * @since 2025.4
+ */
+public class RateLimiters {
+
+    private static final Logger log = LogManager.getLogger(RateLimiters.class);
+
+    public static final String PROPERTY_PREFIX = "nuxeo.labs.servicecall.rateLimit.";
+
+    public static final String PER_HOST_PROP = PROPERTY_PREFIX + "perHost";
+
+    public static final String HOSTS_PROP = PROPERTY_PREFIX + "hosts";
+
+    public static final String PER_KEY_PROP = PROPERTY_PREFIX + "perKey";
+
+    public static final String BURST_SECONDS_PROP = PROPERTY_PREFIX + "burstSeconds";
+
+    public static final String MAX_WAIT_PROP = PROPERTY_PREFIX + "maxWaitMs";
+
+    public static final String DISTRIBUTED_PROP = PROPERTY_PREFIX + "distributed";
+
+    public static final String DISTRIBUTED_STORE_PROP = PROPERTY_PREFIX + "distributedStore";
+
+    public static final String WINDOW_PROP = PROPERTY_PREFIX + "windowMs";
+
+    public static final String LEASE_SIZE_PROP = PROPERTY_PREFIX + "leaseSize";
+
+    public static final String DEFAULT_DISTRIBUTED_STORE = "servicecall";
+
+    // Above this number of limiters, the idle ones are removed (a full bucket is the same as a new one)
+    protected static final int MAX_IDLE_LIMITERS = 1000;
+
+    protected static final CompletableFuture<Void> NO_WAIT = CompletableFuture.completedFuture(null);
+
+    protected static volatile RateLimiters instance = null;
+
+    protected double perHost = 0;
+
+    // By host name or host key (see HttpEngine#hostKey)
+    protected Map<String, Double> hosts = Map.of();
+
+    protected double perKey = 0;
+
+    protected double burstSeconds = 1;
+
+    protected Duration maxWait = Duration.ofSeconds(5);
+
+    protected boolean distributed = false;
+
+    protected String distributedStore = DEFAULT_DISTRIBUTED_STORE;
+
+    protected Duration window = Duration.ofSeconds(1);
+
+    protected long leaseSize = 0;
+
+    protected final Map<String, RateLimiter> hostLimiters = new ConcurrentHashMap<>();
+
+    protected final Map<String, RateLimiter> keyLimiters = new ConcurrentHashMap<>();
+
+    /**
+     * @return limits with the values set in nuxeo.conf (or the default values)
+     * @since 2025.4
+     */
+    public static RateLimiters fromProperties() {
+
+        RateLimiters limiters = new RateLimiters();
+
+        limiters.perHost = HttpEngineConfig.getDoubleProperty(PER_HOST_PROP, limiters.perHost);
+        limiters.hosts = toHostLimits(Framework.getProperty(HOSTS_PROP));
+        limiters.perKey = HttpEngineConfig.getDoubleProperty(PER_KEY_PROP, limiters.perKey);
+        limiters.burstSeconds = HttpEngineConfig.getDoubleProperty(BURST_SECONDS_PROP, limiters.burstSeconds);
+        limiters.maxWait = Duration.ofMillis(
+                HttpEngineConfig.getLongProperty(MAX_WAIT_PROP, limiters.maxWait.toMillis()));
+        String distributedStr = Framework.getProperty(DISTRIBUTED_PROP);
+        if (StringUtils.isNotBlank(distributedStr)) {
+            limiters.distributed = Boolean.parseBoolean(distributedStr.trim());
+        }
+        String storeName = Framework.getProperty(DISTRIBUTED_STORE_PROP);
+        if (StringUtils.isNotBlank(storeName)) {
+            limiters.distributedStore = storeName.trim();
+        }
+        limiters.window = Duration.ofMillis(HttpEngineConfig.getLongProperty(WINDOW_PROP, limiters.window.toMillis()));
+        limiters.leaseSize = HttpEngineConfig.getLongProperty(LEASE_SIZE_PROP, limiters.leaseSize);
+
+        return limiters;
+    }
+
+    /*
+     * "api.example.com=10, https://other.com:8443=2.5"
+     */
+    protected static Map<String, Double> toHostLimits(String value) {
+
+        Map<String, Double> limits = new HashMap<>();
+        if (StringUtils.isBlank(value)) {
+            return limits;
+        }
+        for (String item : value.split(",")) {
+            int idx = item.lastIndexOf('=');
+            if (idx <= 0) {
+                if (StringUtils.isNotBlank(item)) {
+                    log.warn("Invalid rate limit <" + item + "> in " + HOSTS_PROP + ", ignored");
+                }
+                continue;
+            }
+            try {
+                limits.put(item.substring(0, idx).trim().toLowerCase(),
+                        Double.parseDouble(item.substring(idx + 1).trim()));
+            } catch (NumberFormatException e) {
+                log.warn("Invalid rate limit <" + item + "> in " + HOSTS_PROP + ", ignored");
+            }
+        }
+        return limits;
+    }
+
+    /**
+     * @return the shared limits. Created with the nuxeo.conf configuration if needed.
+     * @since 2025.4
+     */
+    public static RateLimiters getInstance() {
+
+        RateLimiters limiters = instance;
+        if (limiters == null) {
+            synchronized (RateLimiters.class) {
+                limiters = instance;
+                if (limiters == null) {
+                    limiters = fromProperties();
+                    instance = limiters;
+                }
+            }
+        }
+        return limiters;
+    }
+
+    /**
+     * Forgets the shared limits, they are read again from nuxeo.conf at next call to <code>getInstance()</code>
+     *
+     * @since 2025.4
+     */
+    public static void resetInstance() {
+        instance = null;
+    }
+
+    /**
+     * @param uri, of the call
+     * @param key, can be null
+     * @return a future completed when the call can be sent, failed with a <code>RateLimitedException</code> if it
+     *         would wait longer than <code>maxWait</code>. Cancelling it does not give back the permit.
+     * @since 2025.4
+     */
+    public CompletableFuture<Void> acquireAsync(URI uri, String key) {
+
+        String host = HttpEngine.hostKey(uri);
+        RateLimiter hostLimiter = getHostLimiter(host, uri.getHost());
+        RateLimiter keyLimiter = key == null ? null : getKeyLimiter(key);
+        if (hostLimiter == null && keyLimiter == null) {
+            return NO_WAIT;
+        }
+
+        long maxWaitNanos = maxWait.toNanos();
+        long waitNanos = 0;
+        if (hostLimiter != null) {
+            waitNanos = hostLimiter.reserve(maxWaitNanos);
+            if (waitNanos < 0) {
+                return rejected(host, "Rate limit of " + host + " reached");
+            }
+        }
+        if (keyLimiter != null) {
+            long keyWaitNanos = keyLimiter.reserve(maxWaitNanos);
+            if (keyWaitNanos < 0) {
+                if (hostLimiter != null) {
+                    hostLimiter.cancel();
+                }
+                return rejected(host, "Rate limit of key " + key + " reached");
+            }
+            waitNanos = Math.max(waitNanos, keyWaitNanos);
+        }
+
+        ServiceCallMetrics.counter("ratelimit.permits", "host", host).inc();
+        if (waitNanos == 0) {
+            return NO_WAIT;
+        }
+        ServiceCallMetrics.counter("ratelimit.waits", "host", host).inc();
+        return CompletableFuture.runAsync(() -> {
+        }, CompletableFuture.delayedExecutor(waitNanos, TimeUnit.NANOSECONDS));
+    }
+
+    protected CompletableFuture<Void> rejected(String host, String message) {
+
+        ServiceCallMetrics.counter("ratelimit.rejected", "host", host).inc();
+        return CompletableFuture.failedFuture(new RateLimitedException(message));
+    }
+
+    /**
+     * @param host, see <code>HttpEngine#hostKey</code>
+     * @param hostName
+     * @return the limiter of the host, null if not limited
+     * @since 2025.4
+     */
+    public RateLimiter getHostLimiter(String host, String hostName) {
+
+        Double rate = hosts.get(host);
+        if (rate == null && hostName != null) {
+            rate = hosts.get(hostName.toLowerCase());
+        }
+        double permitsPerSecond = rate != null ? rate : perHost;
+        if (permitsPerSecond <= 0) {
+            return null;
+        }
+        return getLimiter(hostLimiters, "host:" + host, permitsPerSecond);
+    }
+
+    /**
+     * @param key
+     * @return the limiter of the key, null if not limited
+     * @since 2025.4
+     */
+    public RateLimiter getKeyLimiter(String key) {
+
+        if (perKey <= 0) {
+            return null;
+        }
+        return getLimiter(keyLimiters, "key:" + key, perKey);
+    }
+
+    protected RateLimiter getLimiter(Map<String, RateLimiter> limiters, String key, double permitsPerSecond) {
+
+        RateLimiter limiter = limiters.get(key);
+        if (limiter == null) {
+            if (limiters.size() >= MAX_IDLE_LIMITERS) {
+                limiters.values().removeIf(RateLimiter::isIdle);
+            }
+            limiter = limiters.computeIfAbsent(key, k -> distributed
+                    ? new DistributedRateLimiter(distributedStore, k, permitsPerSecond, window, leaseSize)
+                    : new RateLimiter(permitsPerSecond, permitsPerSecond * burstSeconds));
+        }
+        return limiter;
+    }
+
+    public double getPerHost() {
+        return perHost;
+    }
+
+    public void setPerHost(double perHost) {
+        this.perHost = perHost;
+    }
+
+    public Map<String, Double> getHosts() {
+        return hosts;
+    }
+
+    public void setHosts(Map<String, Double> hosts) {
+        this.hosts = hosts;
+    }
+
+    public double getPerKey() {
+        return perKey;
+    }
+
+    public void setPerKey(double perKey) {
+        this.perKey = perKey;
+    }
+
+    public double getBurstSeconds() {
+        return burstSeconds;
+    }
+
+    public void setBurstSeconds(double burstSeconds) {
+        this.burstSeconds = burstSeconds;
+    }
+
+    public Duration getMaxWait() {
+        return maxWait;
+    }
+
+    public void setMaxWait(Duration maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    public boolean isDistributed() {
+        return distributed;
+    }
+
+    public void setDistributed(boolean distributed) {
+        this.distributed = distributed;
+    }
+
+    public String getDistributedStore() {
+        return distributedStore;
+    }
+
+    public void setDistributedStore(String distributedStore) {
+        this.distributedStore = distributedStore;
+    }
+
+    public Duration getWindow() {
+        return window;
+    }
+
+    public void setWindow(Duration window) {
+        this.window = window;
+    }
+
+    public long getLeaseSize() {
+        return leaseSize;
+    }
+
+    public void setLeaseSize(long leaseSize) {
+        this.leaseSize = leaseSize;
+    }
+
+}
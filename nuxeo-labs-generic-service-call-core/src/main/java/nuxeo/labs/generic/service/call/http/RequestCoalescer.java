@@ -0,0 +1,254 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.http;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.runtime.api.Framework;
+
+import io.dropwizard.metrics5.Counter;
+
+/**
+ * Single-flight for GET calls: when the same GET (same URL and same headers) is already in flight, a new call does not
+ * send another request, it waits for the result of the one in flight. Every caller gets its own copy of the result
+ * (see <code>ServiceCallResult#copy</code>), marked as shared when the call had several callers
+ * (<code>ServiceCallResult#isShared</code>): they then share the file of a response written to disk too.
+ * <br>
+ * Cancelling the future of a caller does not abort the shared call, unless all its callers cancelled theirs.
+ * <br>
+ * Disabled by default. Can be enabled in nuxeo.conf with <code>nuxeo.labs.servicecall.coalesce.enabled=true</code>,
+ * or for a <code>ServiceCall</code> with <code>setRequestCoalescer</code>.
+ * <br>
+ * The <code>nuxeo.servicecall.coalesce.sent</code> and <code>nuxeo.servicecall.coalesce.collapsed</code> metrics count
+ * the calls actually sent, and the calls that waited for a call in flight instead.
+ *
+ * @since 2025.4
+ */
+public class RequestCoalescer {
+
+    public static final String ENABLED_PROP = "nuxeo.labs.servicecall.coalesce.enabled";
+
+    protected static volatile RequestCoalescer instance = null;
+
+    // nuxeo.conf was read (instance is null if disabled)
+    protected static volatile boolean resolved = false;
+
+    protected static class InFlight {
+
+        protected final CompletableFuture<ServiceCallResult> shared = new CompletableFuture<>();
+
+        protected volatile CompletableFuture<ServiceCallResult> source;
+
+        // -1 once all the callers cancelled (guarded by this)
+        protected int callers = 0;
+
+        // No new caller can join once the result is received (guarded by this)
+        protected boolean completed = false;
+    }
+
+    protected final Map<String, InFlight> inFlight = new ConcurrentHashMap<>();
+
+    protected final Counter sent = ServiceCallMetrics.counter("coalesce.sent");
+
+    protected final Counter collapsed = ServiceCallMetrics.counter("coalesce.collapsed");
+
+    /**
+     * @return the shared coalescer, null if it is not enabled in nuxeo.conf
+     * @since 2025.4
+     */
+    public static RequestCoalescer getInstance() {
+
+        if (!resolved) {
+            synchronized (RequestCoalescer.class) {
+                if (!resolved) {
+                    String enabled = Framework.getProperty(ENABLED_PROP);
+                    if (StringUtils.isNotBlank(enabled) && Boolean.parseBoolean(enabled.trim())) {
+                        instance = new RequestCoalescer();
+                    }
+                    resolved = true;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Forgets the shared coalescer, it is created again (if enabled) at next call to <code>getInstance()</code>
+     *
+     * @since 2025.4
+     */
+    public static synchronized void resetInstance() {
+        instance = null;
+        resolved = false;
+    }
+
+    /**
+     * @param url
+     * @param headers, can be null
+     * @param variant, anything else making the result different (null if none)
+     * @return the key of the call: a hash of the URL and of the headers (names are case insensitive)
+     * @since 2025.4
+     */
+    public static String key(String url, Map<String, String> headers, String variant) {
+
+        StringBuilder key = new StringBuilder(url).append('\n');
+        if (headers != null) {
+            Map<String, String> sorted = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            sorted.putAll(headers);
+            sorted.forEach((name, value) -> key.append(name.toLowerCase()).append(':').append(value).append('\n'));
+        }
+        if (variant != null) {
+            key.append(variant);
+        }
+        // Credentials are not kept in memory
+        return ServiceCall.sha256Hex(key.toString());
+    }
+
+    /**
+     * @param key, see <code>key</code>
+     * @param call, sends the call if there is none in flight for the key
+     * @return a future with a copy of the result
+     * @since 2025.4
+     */
+    public CompletableFuture<ServiceCallResult> execute(String key,
+            Supplier<CompletableFuture<ServiceCallResult>> call) {
+
+        while (true) {
+            InFlight created = new InFlight();
+            InFlight current = inFlight.putIfAbsent(key, created);
+            if (current == null) {
+                sent.inc();
+                CompletableFuture<ServiceCallResult> result = join(key, created);
+                start(key, created, call);
+                return result;
+            }
+            CompletableFuture<ServiceCallResult> result = join(key, current);
+            if (result != null) {
+                collapsed.inc();
+                return result;
+            }
+            // All its callers cancelled it, or it is completed: it is being removed
+            inFlight.remove(key, current);
+        }
+    }
+
+    protected void start(String key, InFlight flight, Supplier<CompletableFuture<ServiceCallResult>> call) {
+
+        CompletableFuture<ServiceCallResult> source;
+        try {
+            source = call.get();
+        } catch (RuntimeException e) {
+            inFlight.remove(key, flight);
+            flight.shared.completeExceptionally(e);
+            return;
+        }
+        flight.source = source;
+        source.whenComplete((result, error) -> {
+            // Calls made from now on send a new request
+            inFlight.remove(key, flight);
+            synchronized (flight) {
+                flight.completed = true;
+            }
+            if (error != null) {
+                flight.shared.completeExceptionally(error);
+            } else {
+                flight.shared.complete(result);
+            }
+        });
+        synchronized (flight) {
+            if (flight.callers < 0) {
+                // Cancelled by its only caller before it was sent
+                source.cancel(true);
+            }
+        }
+    }
+
+    /*
+     * null if all the callers of the call in flight cancelled it, or if its result was received
+     */
+    protected CompletableFuture<ServiceCallResult> join(String key, InFlight flight) {
+
+        synchronized (flight) {
+            if (flight.callers < 0 || flight.completed) {
+                return null;
+            }
+            flight.callers++;
+        }
+        CompletableFuture<ServiceCallResult> result = flight.shared.thenApply(value -> {
+            synchronized (flight) {
+                // The callers that cancelled do not get it
+                return value.copy().setShared(flight.callers > 1);
+            }
+        });
+        result.whenComplete((value, error) -> {
+            if (result.isCancelled()) {
+                leave(key, flight);
+            }
+        });
+        return result;
+    }
+
+    protected void leave(String key, InFlight flight) {
+
+        CompletableFuture<ServiceCallResult> source;
+        synchronized (flight) {
+            flight.callers--;
+            if (flight.callers > 0 || flight.shared.isDone()) {
+                return;
+            }
+            flight.callers = -1;
+            source = flight.source;
+        }
+        inFlight.remove(key, flight);
+        if (source != null) {
+            source.cancel(true);
+        }
+    }
+
+    /**
+     * @return the number of GET calls in flight
+     * @since 2025.4
+     */
+    public int size() {
+        return inFlight.size();
+    }
+
+    /**
+     * @return the number of calls actually sent, since the server started
+     * @since 2025.4
+     */
+    public long getSent() {
+        return sent.getCount();
+    }
+
+    /**
+     * @return the number of calls that waited for the same call in flight instead of sending a request, since the
+     *         server started
+     * @since 2025.4
+     */
+    public long getCollapsed() {
+        return collapsed.getCount();
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.http;
+
+import java.net.http.HttpHeaders;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * Reads a response body as a String, exactly as sent (no trimming, line breaks are kept).
+ * <br>
+ * The bytes are copied once, into a buffer sized from the <code>Content-Length</code> header when present (else, it
+ * grows as needed), then decoded once, with the charset of the <code>Content-Type</code> header (UTF-8 by default).
+ * Buffers up to <code>MAX_POOLED_SIZE</code> are pooled and reused by the next responses, so reading a response
+ * allocates little more than the resulting String.
+ *
+ * @since 2025.4
+ */
+public class ResponseBodyReader implements BodySubscriber<String> {
+
+    protected static final int MIN_BUFFER_SIZE = 8 * 1024;
+
+    public static final int MAX_POOLED_SIZE = 1024 * 1024;
+
+    // Buffers kept per size class
+    protected static final int POOL_SIZE = 8;
+
+    // Size classes: 8KB, 16KB, ... 1MB
+    @SuppressWarnings("unchecked")
+    protected static final ArrayBlockingQueue<byte[]>[] POOLS = new ArrayBlockingQueue[Integer.numberOfTrailingZeros(
+            MAX_POOLED_SIZE / MIN_BUFFER_SIZE) + 1];
+
+    static {
+        for (int i = 0; i < POOLS.length; i++) {
+            POOLS[i] = new ArrayBlockingQueue<>(POOL_SIZE);
+        }
+    }
+
+    protected final Charset charset;
+
+    protected final CompletableFuture<String> result = new CompletableFuture<>();
+
+    protected byte[] buffer;
+
+    protected int count = 0;
+
+    /**
+     * @param headers, of the response
+     */
+    public ResponseBodyReader(HttpHeaders headers) {
+        this(headers.firstValueAsLong("Content-Length").orElse(-1), charsetOf(headers));
+    }
+
+    /**
+     * @param contentLength, -1 if unknown
+     * @param charset
+     */
+    public ResponseBodyReader(long contentLength, Charset charset) {
+        this.charset = charset;
+        buffer = acquire(contentLength > 0 && contentLength <= Integer.MAX_VALUE ? (int) contentLength : 0);
+    }
+
+    /**
+     * @param headers
+     * @return the charset of the Content-Type header, UTF-8 if not set (or not supported)
+     * @since 2025.4
+     */
+    public static Charset charsetOf(HttpHeaders headers) {
+        return charsetOf(headers.firstValue("Content-Type").orElse(null));
+    }
+
+    /**
+     * @param contentType, can be null
+     * @return the charset parameter of contentType, UTF-8 if not set (or not supported)
+     * @since 2025.4
+     */
+    public static Charset charsetOf(String contentType) {
+
+        if (contentType != null) {
+            for (String param : contentType.split(";")) {
+                param = param.trim();
+                if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+                    try {
+                        return Charset.forName(param.substring(8).replace("\"", "").trim());
+                    } catch (IllegalArgumentException e) {
+                        // Unknown or invalid, use the default
+                    }
+                }
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    @Override
+    public CompletionStage<String> getBody() {
+        return result;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> items) {
+
+        for (ByteBuffer item : items) {
+            int length = item.remaining();
+            ensureCapacity(length);
+            item.get(buffer, count, length);
+            count += length;
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+
+        release(buffer);
+        buffer = null;
+        result.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+
+        String body;
+        try {
+            body = new String(buffer, 0, count, charset);
+        } finally {
+            release(buffer);
+            buffer = null;
+        }
+        result.complete(body);
+    }
+
+    protected void ensureCapacity(int length) {
+
+        long needed = (long) count + length;
+        if (needed <= buffer.length) {
+            return;
+        }
+        if (needed > Integer.MAX_VALUE - 8) {
+            throw new OutOfMemoryError("Response too large to be read in memory");
+        }
+        byte[] larger = acquire((int) Math.min(Integer.MAX_VALUE - 8, Math.max(needed, 2L * buffer.length)));
+        System.arraycopy(buffer, 0, larger, 0, count);
+        release(buffer);
+        buffer = larger;
+    }
+
+    /*
+     * A pooled buffer of at least size bytes, or a new one of exactly size bytes if it is too large to be pooled
+     */
+    protected static byte[] acquire(int size) {
+
+        int index = sizeClass(size);
+        if (index < 0) {
+            return new byte[size];
+        }
+        byte[] pooled = POOLS[index].poll();
+        return pooled != null ? pooled : new byte[MIN_BUFFER_SIZE << index];
+    }
+
+    protected static void release(byte[] buffer) {
+
+        if (buffer == null || buffer.length > MAX_POOLED_SIZE || Integer.bitCount(buffer.length) != 1) {
+            return;
+        }
+        int index = sizeClass(buffer.length);
+        if (index >= 0 && (MIN_BUFFER_SIZE << index) == buffer.length) {
+            // Dropped if the pool is full
+            POOLS[index].offer(buffer);
+        }
+    }
+
+    /*
+     * -1 if not pooled
+     */
+    protected static int sizeClass(int size) {
+
+        if (size > MAX_POOLED_SIZE) {
+            return -1;
+        }
+        int rounded = Math.max(MIN_BUFFER_SIZE, Integer.highestOneBit(Math.max(1, size - 1)) << 1);
+        return Integer.numberOfTrailingZeros(rounded / MIN_BUFFER_SIZE);
+    }
+
+}
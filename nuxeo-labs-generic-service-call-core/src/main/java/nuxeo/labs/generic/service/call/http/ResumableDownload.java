@@ -0,0 +1,346 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.http;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+
+import io.dropwizard.metrics5.Counter;
+
+/**
+ * Downloads a file with a single stream (see <code>ServiceCall#downloadFileAsync</code>), continuing from the bytes
+ * already received when the connection drops:
+ * <ul>
+ * <li>The partial file is kept, the next attempt sends <code>Range: bytes=N-</code> with <code>If-Range</code> on the
+ * ETag (if strong) or the Last-Modified of the first response, and its response is appended to the file. If the file
+ * changed in the meantime, the service sends the whole new file (<code>200</code>), which replaces the partial
+ * one.</li>
+ * <li>Every attempt continues the download: the retries of the <code>RetryPolicy</code>, then, once they are
+ * exhausted, up to <code>maxResumes</code> more attempts.</li>
+ * <li>The size of the file is checked against the <code>Content-Length</code> (or the <code>Content-Range</code>) of
+ * the service. A shorter file is resumed as well.</li>
+ * </ul>
+ * Without ETag nor Last-Modified, a download cannot be resumed safely: the next attempt starts again from the first
+ * byte.
+ * <br>
+ * Can be configured in nuxeo.conf:
+ * <ul>
+ * <li><code>nuxeo.labs.servicecall.download.maxResumes</code>: Max. number of resumes once the retries are exhausted
+ * (default 3, 0 to only resume in the retries)</li>
+ * </ul>
+ * The <code>nuxeo.servicecall.download.resumes</code> metric counts the attempts continuing a partial download.
+ *
+ * @since 2025.4
+ */
+public class ResumableDownload {
+
+    private static final Logger log = LogManager.getLogger(ResumableDownload.class);
+
+    public static final String MAX_RESUMES_PROP = RangeDownload.PROPERTY_PREFIX + "maxResumes";
+
+    protected final ServiceCall serviceCall;
+
+    protected final String url;
+
+    protected final Map<String, String> headers;
+
+    protected int maxResumes;
+
+    protected int resumes = 0;
+
+    protected Blob blob;
+
+    protected FileChannel channel;
+
+    // Writes the body of the current response, its position is the number of bytes received
+    protected volatile RangeDownload.PositionalWriter writer;
+
+    // ETag or Last-Modified of the first response, null if the download cannot be resumed
+    protected volatile String validator;
+
+    // -1 if unknown
+    protected volatile long total = -1;
+
+    protected final CompletableFuture<ServiceCallResult> result = new CompletableFuture<>();
+
+    protected volatile CompletableFuture<ServiceCallResult> current;
+
+    protected final Counter resumed = ServiceCallMetrics.counter("download.resumes");
+
+    /**
+     * @param serviceCall, sends the calls (engine, retry policy, rate limits)
+     * @param url
+     * @param headers, sent with every call (authentication, ...). Can be null.
+     */
+    public ResumableDownload(ServiceCall serviceCall, String url, Map<String, String> headers) {
+
+        this.serviceCall = serviceCall;
+        this.url = url;
+        this.headers = headers;
+        maxResumes = (int) Math.max(0, HttpEngineConfig.getLongProperty(MAX_RESUMES_PROP, 3));
+    }
+
+    /**
+     * @param maxResumes, max. number of resumes once the retries are exhausted
+     * @return this
+     * @since 2025.4
+     */
+    public ResumableDownload setMaxResumes(int maxResumes) {
+        this.maxResumes = Math.max(0, maxResumes);
+        return this;
+    }
+
+    /**
+     * @return the result, holding the blob if the call was successful
+     * @since 2025.4
+     */
+    public ServiceCallResult download() {
+        return serviceCall.awaitDownload(downloadAsync());
+    }
+
+    /**
+     * Same as <code>ServiceCall#downloadFileAsync</code>: IO errors complete the future exceptionally, once the
+     * download cannot be resumed anymore. The partial file is then deleted.
+     *
+     * @return the future result, holding the blob if the call was successful
+     * @since 2025.4
+     */
+    public CompletableFuture<ServiceCallResult> downloadAsync() {
+
+        HttpRequest first;
+        try {
+            first = newRequest();
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        result.whenComplete((value, error) -> {
+            if (error != null) {
+                CompletableFuture<ServiceCallResult> attempt = current;
+                if (attempt != null) {
+                    attempt.cancel(true);
+                }
+                discardFile();
+            }
+        });
+
+        attempt(first);
+
+        return result;
+    }
+
+    /*
+     * Sends the request with the retry policy. Each retry continues from the bytes received.
+     */
+    protected void attempt(HttpRequest request) {
+
+        if (result.isDone()) {
+            return;
+        }
+        CompletableFuture<ServiceCallResult> attempt = serviceCall.getRetryPolicy().execute(request, () -> {
+            HttpRequest next = received() > 0 ? newRequest() : request;
+            CompletableFuture<HttpResponse<ServiceCallResult>> exchange = serviceCall.exchangeAsync(next,
+                    handler(next.uri()));
+            CompletableFuture<ServiceCallResult> response = exchange.handle((value, error) -> {
+                if (error == null) {
+                    return value.body();
+                }
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause()
+                        : error;
+                ServiceCallResult rejected = ServiceCall.rejectedResult(cause);
+                if (rejected != null) {
+                    return rejected;
+                }
+                throw error instanceof CompletionException ce ? ce : new CompletionException(error);
+            });
+            return ServiceCall.propagateCancel(response, exchange);
+        });
+        current = attempt;
+
+        attempt.whenComplete((value, error) -> {
+            if (error == null && value.getResponseBlob() == null) {
+                // Not a file: error of the service, circuit open, ...
+                discardFile();
+                result.complete(value);
+                return;
+            }
+            Throwable failure = error != null ? error : checkSize();
+            if (failure == null) {
+                complete(value);
+                return;
+            }
+            long received = received();
+            if (received > 0 && validator != null && resumes < maxResumes && !result.isDone()) {
+                resumes++;
+                log.debug("Download of " + url + " interrupted after " + received + " bytes ("
+                        + failure.getMessage() + "), resuming (" + resumes + "/" + maxResumes + ")");
+                attempt(newRequest());
+                return;
+            }
+            result.completeExceptionally(failure);
+        });
+    }
+
+    /*
+     * Starts from the first byte, or continues from the bytes received if possible
+     */
+    protected HttpRequest newRequest() {
+
+        HttpRequest.Builder builder = serviceCall.getEngine().newRequestBuilder(url, headers).GET();
+        long received = received();
+        if (received > 0 && validator != null) {
+            resumed.inc();
+            builder.header("Range", "bytes=" + received + "-").header("If-Range", validator);
+        }
+        return builder.build();
+    }
+
+    /*
+     * Writes the response where it starts in the file: at the offset of a 206, at the beginning else
+     */
+    protected BodyHandler<ServiceCallResult> handler(URI uri) {
+
+        BodyHandler<ServiceCallResult> download = serviceCall.downloadHandler(uri);
+        return responseInfo -> {
+            int status = responseInfo.statusCode();
+            if (status < 200 || status >= 300) {
+                return download.apply(responseInfo);
+            }
+            HttpHeaders responseHeaders = responseInfo.headers();
+            long start = 0;
+            try {
+                if (status == RangeDownload.PARTIAL_CONTENT) {
+                    start = rangeStart(responseHeaders);
+                    if (channel == null || start < 0 || start > received()) {
+                        throw new IOException("Unexpected Content-Range <"
+                                + responseHeaders.firstValue("Content-Range").orElse(null) + "> resuming at "
+                                + received());
+                    }
+                    total = RangeDownload.totalLength(responseHeaders);
+                } else {
+                    // The whole file, first call or changed since
+                    openFile(responseHeaders, uri);
+                    channel.truncate(0);
+                    validator = RangeDownload.ifRangeValidator(responseHeaders);
+                    total = responseHeaders.firstValueAsLong("Content-Length").orElse(-1);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            RangeDownload.PositionalWriter bodyWriter = new RangeDownload.PositionalWriter(channel, start);
+            writer = bodyWriter;
+            return BodySubscribers.mapping(bodyWriter, written -> new ServiceCallResult(blob, status,
+                    ServiceCall.getReasonPhrase(status)));
+        };
+    }
+
+    protected void openFile(HttpHeaders responseHeaders, URI uri) throws IOException {
+
+        if (blob == null) {
+            blob = Blobs.createBlobWithExtension(".tmp");
+            channel = FileChannel.open(blob.getFile().toPath(), StandardOpenOption.WRITE);
+        }
+        blob.setFilename(ServiceCall.extractFileName(responseHeaders, uri));
+        blob.setMimeType(responseHeaders.firstValue("Content-Type").orElse(null));
+    }
+
+    /*
+     * null if the file has the expected size
+     */
+    protected IOException checkSize() {
+
+        long received = received();
+        if (total >= 0 && received != total) {
+            return new IOException("Incomplete download: " + received + " bytes received, " + total + " expected");
+        }
+        return null;
+    }
+
+    protected void complete(ServiceCallResult value) {
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            discardFile();
+            result.completeExceptionally(e);
+            return;
+        }
+        if (resumes > 0 || value.getResponseCode() == RangeDownload.PARTIAL_CONTENT) {
+            log.debug("Download of " + url + " completed after " + resumes + " resume(s), " + received() + " bytes");
+        }
+        int status = value.getResponseCode() == RangeDownload.PARTIAL_CONTENT ? 200 : value.getResponseCode();
+        result.complete(new ServiceCallResult(blob, status, ServiceCall.getReasonPhrase(status)));
+    }
+
+    protected void discardFile() {
+
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+        if (blob != null) {
+            try {
+                Files.deleteIfExists(blob.getFile().toPath());
+            } catch (IOException e) {
+                log.warn("Cannot delete the temporary file of a download: " + e.getMessage());
+            }
+        }
+    }
+
+    /*
+     * Bytes written so far (the current response writes after the previous ones)
+     */
+    protected long received() {
+
+        RangeDownload.PositionalWriter current = writer;
+        return current == null ? 0 : current.position;
+    }
+
+    /*
+     * From "Content-Range: bytes 100-999/1000", -1 if invalid
+     */
+    protected static long rangeStart(HttpHeaders responseHeaders) {
+
+        String contentRange = responseHeaders.firstValue("Content-Range").orElse("");
+        String start = StringUtils.substringBefore(StringUtils.substringAfter(contentRange, "bytes "), "-").trim();
+        return StringUtils.isNumeric(start) ? Long.parseLong(start) : -1;
+    }
+
+}
@@ -0,0 +1,459 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.http;
+
+import java.net.http.HttpRequest;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Retries the calls failing with a transient error: an IO error (<code>responseCode</code> -1, connection reset for
+ * example) or one of the configured status codes (429, 502, 503, 504 by default). Calls rejected by the circuit breaker
+ * of the host (<code>responseCode</code> -2) or by a rate limiter (-3) are not retried.
+ * <ul>
+ * <li>Only idempotent methods (GET, HEAD, ...) are retried, unless <code>retryNonIdempotent</code> is set (then POST and
+ * PUT are also retried).</li>
+ * <li>The delay before a retry is random, between 0 and an exponential backoff ("full jitter"), so callers failing at
+ * the same time do not retry at the same time. If the service returns a <code>Retry-After</code> header, it is used
+ * instead.</li>
+ * <li>No retry is made if it would end after <code>maxElapsed</code> (counted from the first attempt). The last result
+ * is then returned.</li>
+ * </ul>
+ * Default values can be overridden in nuxeo.conf:
+ * <ul>
+ * <li><code>nuxeo.labs.servicecall.retry.maxRetries</code>: Max. number of retries after the first attempt, 0 disables
+ * the retries (default 2)</li>
+ * <li><code>nuxeo.labs.servicecall.retry.initialDelayMs</code>: Max. delay before the first retry (default 200), doubled
+ * at each retry</li>
+ * <li><code>nuxeo.labs.servicecall.retry.maxDelayMs</code>: Max. delay between two attempts (default 10000)</li>
+ * <li><code>nuxeo.labs.servicecall.retry.maxElapsedMs</code>: Max. total time of the call, retries included (default
+ * 30000)</li>
+ * <li><code>nuxeo.labs.servicecall.retry.statusCodes</code>: Comma separated list of status codes to retry (default
+ * 429,502,503,504)</li>
+ * <li><code>nuxeo.labs.servicecall.retry.retryNonIdempotent</code>: <code>true</code> to also retry POST and PUT
+ * (default false)</li>
+ * </ul>
+ * The <code>nuxeo.servicecall.retry.attempts</code> and <code>nuxeo.servicecall.retry.giveups</code> metrics (tagged
+ * with the host) count the retries and the calls still failing after their last attempt.
+ *
+ * @since 2025.4
+ */
+public class RetryPolicy {
+
+    private static final Logger log = LogManager.getLogger(RetryPolicy.class);
+
+    public static final String PROPERTY_PREFIX = "nuxeo.labs.servicecall.retry.";
+
+    public static final String MAX_RETRIES_PROP = PROPERTY_PREFIX + "maxRetries";
+
+    public static final String INITIAL_DELAY_PROP = PROPERTY_PREFIX + "initialDelayMs";
+
+    public static final String MAX_DELAY_PROP = PROPERTY_PREFIX + "maxDelayMs";
+
+    public static final String MAX_ELAPSED_PROP = PROPERTY_PREFIX + "maxElapsedMs";
+
+    public static final String STATUS_CODES_PROP = PROPERTY_PREFIX + "statusCodes";
+
+    public static final String RETRY_NON_IDEMPOTENT_PROP = PROPERTY_PREFIX + "retryNonIdempotent";
+
+    public static final Set<String> IDEMPOTENT_METHODS = Set.of("GET", "HEAD", "OPTIONS", "DELETE", "TRACE");
+
+    public static final Set<Integer> DEFAULT_STATUS_CODES = Set.of(429, 502, 503, 504);
+
+    /**
+     * Never retries. Cannot be modified (the setters throw an <code>UnsupportedOperationException</code>), use
+     * <code>with</code> to get a modifiable copy.
+     */
+    public static final RetryPolicy NONE = new Unmodifiable(new RetryPolicy().with(0, false));
+
+    protected static volatile RetryPolicy defaultPolicy = null;
+
+    protected int maxRetries = 2;
+
+    protected Duration initialDelay = Duration.ofMillis(200);
+
+    protected Duration maxDelay = Duration.ofSeconds(10);
+
+    protected Duration maxElapsed = Duration.ofSeconds(30);
+
+    protected Set<Integer> statusCodes = DEFAULT_STATUS_CODES;
+
+    protected boolean retryNonIdempotent = false;
+
+    public RetryPolicy() {
+    }
+
+    public RetryPolicy(RetryPolicy other) {
+        maxRetries = other.maxRetries;
+        initialDelay = other.initialDelay;
+        maxDelay = other.maxDelay;
+        maxElapsed = other.maxElapsed;
+        statusCodes = other.statusCodes;
+        retryNonIdempotent = other.retryNonIdempotent;
+    }
+
+    /**
+     * @return a policy with the values set in nuxeo.conf (or the default values)
+     * @since 2025.4
+     */
+    public static RetryPolicy fromProperties() {
+
+        RetryPolicy policy = new RetryPolicy();
+
+        policy.maxRetries = (int) HttpEngineConfig.getLongProperty(MAX_RETRIES_PROP, policy.maxRetries);
+        policy.initialDelay = Duration.ofMillis(
+                HttpEngineConfig.getLongProperty(INITIAL_DELAY_PROP, policy.initialDelay.toMillis()));
+        policy.maxDelay = Duration.ofMillis(
+                HttpEngineConfig.getLongProperty(MAX_DELAY_PROP, policy.maxDelay.toMillis()));
+        policy.maxElapsed = Duration.ofMillis(
+                HttpEngineConfig.getLongProperty(MAX_ELAPSED_PROP, policy.maxElapsed.toMillis()));
+        String codes = Framework.getProperty(STATUS_CODES_PROP);
+        if (StringUtils.isNotBlank(codes)) {
+            policy.statusCodes = toStatusCodes(STATUS_CODES_PROP, codes, policy.statusCodes);
+        }
+        String nonIdempotent = Framework.getProperty(RETRY_NON_IDEMPOTENT_PROP);
+        if (StringUtils.isNotBlank(nonIdempotent)) {
+            policy.retryNonIdempotent = Boolean.parseBoolean(nonIdempotent.trim());
+        }
+
+        return policy;
+    }
+
+    protected static Set<Integer> toStatusCodes(String key, String value, Set<Integer> defaultValue) {
+
+        try {
+            return Arrays.stream(value.split(","))
+                         .map(String::trim)
+                         .filter(StringUtils::isNotBlank)
+                         .map(Integer::valueOf)
+                         .collect(Collectors.toUnmodifiableSet());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid list of status codes <" + value + "> for " + key + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return the policy used by default, configured in nuxeo.conf
+     * @since 2025.4
+     */
+    public static RetryPolicy getDefault() {
+
+        RetryPolicy policy = defaultPolicy;
+        if (policy == null) {
+            synchronized (RetryPolicy.class) {
+                policy = defaultPolicy;
+                if (policy == null) {
+                    policy = fromProperties();
+                    defaultPolicy = policy;
+                }
+            }
+        }
+        return policy;
+    }
+
+    /**
+     * Forgets the default policy, it is read again from nuxeo.conf at next call to <code>getDefault()</code>
+     *
+     * @since 2025.4
+     */
+    public static void resetDefault() {
+        defaultPolicy = null;
+    }
+
+    /**
+     * Used by the operations, to override the global configuration for one call
+     *
+     * @param maxRetries, null to keep the value of this policy
+     * @param retryNonIdempotent, null to keep the value of this policy
+     * @return a copy of this policy, with the values
+     * @since 2025.4
+     */
+    public RetryPolicy with(Integer maxRetries, Boolean retryNonIdempotent) {
+
+        RetryPolicy policy = new RetryPolicy(this);
+        if (maxRetries != null) {
+            policy.maxRetries = Math.max(0, maxRetries);
+        }
+        if (retryNonIdempotent != null) {
+            policy.retryNonIdempotent = retryNonIdempotent;
+        }
+        return policy;
+    }
+
+    /**
+     * @param httpMethod
+     * @return true if calls with this method can be retried
+     * @since 2025.4
+     */
+    public boolean canRetry(String httpMethod) {
+        return maxRetries > 0 && (retryNonIdempotent || IDEMPOTENT_METHODS.contains(httpMethod.toUpperCase()));
+    }
+
+    /**
+     * @param result, null if the call failed with an error
+     * @param error, null if the call returned a result
+     * @return true if the call failed with a transient error
+     * @since 2025.4
+     */
+    public boolean isTransient(ServiceCallResult result, Throwable error) {
+
+        if (error != null) {
+            // Cancelled by the caller, or not sent because the service is failing or because of a rate limit
+            Throwable cause = unwrap(error);
+            return !(cause instanceof CancellationException || cause instanceof CircuitOpenException
+                    || cause instanceof RateLimitedException);
+        }
+        return result.getResponseCode() == -1 || statusCodes.contains(result.getResponseCode());
+    }
+
+    /**
+     * Makes the call, then calls it again while it fails with a transient error and the policy allows it.
+     * <br>
+     * Cancelling the returned future cancels the attempt in flight (or the wait before the next one).
+     *
+     * @param request, the request sent by <code>call</code>, to check its method and host
+     * @param call, starts a new attempt
+     * @return the future result of the last attempt
+     * @since 2025.4
+     */
+    public CompletableFuture<ServiceCallResult> execute(HttpRequest request,
+            Supplier<CompletableFuture<ServiceCallResult>> call) {
+
+        if (!canRetry(request.method())) {
+            return call.get();
+        }
+
+        String host = HttpEngine.hostKey(request.uri());
+        long deadline = System.nanoTime() + maxElapsed.toNanos();
+        CompletableFuture<ServiceCallResult> result = new CompletableFuture<>();
+        AtomicReference<CompletableFuture<ServiceCallResult>> current = new AtomicReference<>();
+        result.whenComplete((value, error) -> {
+            CompletableFuture<ServiceCallResult> attempt = current.get();
+            if (error != null && attempt != null) {
+                attempt.cancel(true);
+            }
+        });
+
+        attempt(call, host, 0, deadline, current, result);
+
+        return result;
+    }
+
+    protected void attempt(Supplier<CompletableFuture<ServiceCallResult>> call, String host, int retries,
+            long deadline, AtomicReference<CompletableFuture<ServiceCallResult>> current,
+            CompletableFuture<ServiceCallResult> result) {
+
+        if (result.isDone()) {
+            return;
+        }
+        CompletableFuture<ServiceCallResult> attempt = call.get();
+        current.set(attempt);
+        if (result.isDone()) {
+            // Cancelled while starting the attempt
+            attempt.cancel(true);
+            return;
+        }
+
+        attempt.whenComplete((value, error) -> {
+            if (result.isDone()) {
+                return;
+            }
+            if (!isTransient(value, error)) {
+                complete(result, value, error);
+                return;
+            }
+
+            Duration delay = value != null && value.getRetryAfter() != null ? value.getRetryAfter()
+                    : backoffDelay(retries + 1);
+            if (retries >= maxRetries || System.nanoTime() + delay.toNanos() > deadline) {
+                ServiceCallMetrics.counter("retry.giveups", "host", host).inc();
+                log.debug("Giving up calling " + host + " after " + (retries + 1) + " attempt(s)");
+                complete(result, value, error);
+                return;
+            }
+
+            ServiceCallMetrics.counter("retry.attempts", "host", host).inc();
+            log.debug("Transient error calling " + host + " ("
+                    + (value != null ? value.getResponseCode() : unwrap(error).getClass().getSimpleName())
+                    + "), retrying in " + delay.toMillis() + "ms");
+            CompletableFuture.delayedExecutor(delay.toMillis(), TimeUnit.MILLISECONDS)
+                             .execute(() -> attempt(call, host, retries + 1, deadline, current, result));
+        });
+    }
+
+    protected static void complete(CompletableFuture<ServiceCallResult> result, ServiceCallResult value,
+            Throwable error) {
+
+        if (error != null) {
+            result.completeExceptionally(unwrap(error));
+        } else {
+            result.complete(value);
+        }
+    }
+
+    protected static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    /*
+     * Full jitter: random between 0 and the exponential backoff
+     */
+    protected Duration backoffDelay(int retry) {
+
+        long maxMs = Math.max(maxDelay.toMillis(), 1);
+        long delayMs = initialDelay.toMillis() << Math.min(retry - 1, 20);
+        delayMs = Math.min(Math.max(delayMs, 1), maxMs);
+
+        return Duration.ofMillis(ThreadLocalRandom.current().nextLong(delayMs + 1));
+    }
+
+    /**
+     * @param value, the value of a <code>Retry-After</code> header: a number of seconds or an HTTP date
+     * @return the delay, or null if the value is null or invalid
+     * @since 2025.4
+     */
+    public static Duration parseRetryAfter(String value) {
+
+        if (StringUtils.isBlank(value)) {
+            return null;
+        }
+        value = value.trim();
+        try {
+            return Duration.ofSeconds(Math.max(0, Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            // Not a number of seconds
+        }
+        try {
+            Instant date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+            Duration delay = Duration.between(Instant.now(), date);
+            return delay.isNegative() ? Duration.ZERO : delay;
+        } catch (DateTimeParseException e) {
+            log.debug("Invalid Retry-After header <" + value + ">, ignored");
+            return null;
+        }
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public Duration getInitialDelay() {
+        return initialDelay;
+    }
+
+    public void setInitialDelay(Duration initialDelay) {
+        this.initialDelay = initialDelay;
+    }
+
+    public Duration getMaxDelay() {
+        return maxDelay;
+    }
+
+    public void setMaxDelay(Duration maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    public Duration getMaxElapsed() {
+        return maxElapsed;
+    }
+
+    public void setMaxElapsed(Duration maxElapsed) {
+        this.maxElapsed = maxElapsed;
+    }
+
+    public Set<Integer> getStatusCodes() {
+        return statusCodes;
+    }
+
+    public void setStatusCodes(Set<Integer> statusCodes) {
+        this.statusCodes = statusCodes;
+    }
+
+    public boolean isRetryNonIdempotent() {
+        return retryNonIdempotent;
+    }
+
+    public void setRetryNonIdempotent(boolean retryNonIdempotent) {
+        this.retryNonIdempotent = retryNonIdempotent;
+    }
+
+    /*
+     * A shared policy, such as NONE
+     */
+    protected static class Unmodifiable extends RetryPolicy {
+
+        protected Unmodifiable(RetryPolicy other) {
+            super(other);
+        }
+
+        @Override
+        public void setMaxRetries(int maxRetries) {
+            throw new UnsupportedOperationException("This retry policy cannot be modified");
+        }
+
+        @Override
+        public void setInitialDelay(Duration initialDelay) {
+            throw new UnsupportedOperationException("This retry policy cannot be modified");
+        }
+
+        @Override
+        public void setMaxDelay(Duration maxDelay) {
+            throw new UnsupportedOperationException("This retry policy cannot be modified");
+        }
+
+        @Override
+        public void setMaxElapsed(Duration maxElapsed) {
+            throw new UnsupportedOperationException("This retry policy cannot be modified");
+        }
+
+        @Override
+        public void setStatusCodes(Set<Integer> statusCodes) {
+            throw new UnsupportedOperationException("This retry policy cannot be modified");
+        }
+
+        @Override
+        public void setRetryNonIdempotent(boolean retryNonIdempotent) {
+            throw new UnsupportedOperationException("This retry policy cannot be modified");
+        }
+    }
+
+}
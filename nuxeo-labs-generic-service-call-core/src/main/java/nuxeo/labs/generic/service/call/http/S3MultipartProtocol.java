@@ -0,0 +1,159 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.http;
+
+import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONObject;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+/**
+ * The calls of the S3 multipart upload: <code>POST url?uploads</code> starts the upload, each part is sent with
+ * <code>PUT url?partNumber=N&amp;uploadId=ID</code> (in any order, concurrently), and
+ * <code>POST url?uploadId=ID</code> completes it with the ETags of the parts.
+ * <br>
+ * The requests are not signed: the same headers are sent with every call. So it cannot upload to AWS S3 directly,
+ * which requires each request (with its query string) to be signed with SigV4, and a presigned URL does not work
+ * either, as it is signed for one query only. Use it with a service authenticating by header (bearer token, API key,
+ * ...) and exposing this API: an S3 compatible storage or gateway, a proxy signing the requests, ...
+ * <br>
+ * The result of the upload is a JSON object with the <code>location</code>, <code>bucket</code>, <code>key</code>,
+ * <code>etag</code> and <code>uploadId</code> of the object. An error returned by S3 in a 200 response to the
+ * completion is returned as a 500.
+ *
+ * @since 2025.4
+ */
+public class S3MultipartProtocol implements ChunkedUploadProtocol {
+
+    public static final String NAME = "s3";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean isParallel() {
+        return true;
+    }
+
+    @Override
+    public CompletableFuture<ServiceCallResult> start(ChunkedUpload upload) {
+
+        HttpRequest request = upload.newRequest(withQuery(upload.getUrl(), "uploads"))
+                                    .header("Content-Type", upload.getMimeType())
+                                    .POST(BodyPublishers.noBody())
+                                    .build();
+        return upload.send(request).thenApply(result -> {
+            if (ServiceCallResult.isHttpSuccess(result.getResponseCode())) {
+                String uploadId = StringUtils.substringBetween(result.getRawResponse(), "<UploadId>", "</UploadId>");
+                if (StringUtils.isBlank(uploadId)) {
+                    throw new NuxeoException("No UploadId in the response: " + result.getRawResponse());
+                }
+                upload.setUploadId(uploadId);
+            }
+            return result;
+        });
+    }
+
+    /*
+     * Lists the parts of the upload: fails (404 NoSuchUpload) if it was aborted or completed
+     */
+    @Override
+    public CompletableFuture<ServiceCallResult> resume(ChunkedUpload upload) {
+
+        HttpRequest request = upload.newRequest(withQuery(upload.getUrl(), "uploadId=" + encode(upload.getUploadId())))
+                                    .GET()
+                                    .build();
+        return upload.send(request);
+    }
+
+    @Override
+    public HttpRequest partRequest(ChunkedUpload upload, ChunkedUpload.Part part, BodyPublisher body) {
+
+        String query = "partNumber=" + part.getNumber() + "&uploadId=" + encode(upload.getUploadId());
+        return upload.newRequest(withQuery(upload.getUrl(), query)).PUT(body).build();
+    }
+
+    @Override
+    public String partUploaded(ChunkedUpload upload, ChunkedUpload.Part part, ServiceCallResult result) {
+
+        String etag = result.getResponseHeaders() == null ? null
+                : result.getResponseHeaders().firstValue("ETag").orElse(null);
+        if (StringUtils.isBlank(etag)) {
+            throw new NuxeoException("No ETag in the response to part " + part.getNumber());
+        }
+        return etag;
+    }
+
+    @Override
+    public CompletableFuture<ServiceCallResult> complete(ChunkedUpload upload) {
+
+        StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+        upload.getPartValues()
+              .forEach((number, etag) -> xml.append("<Part><PartNumber>")
+                                            .append(number)
+                                            .append("</PartNumber><ETag>")
+                                            .append(escapeXml(etag))
+                                            .append("</ETag></Part>"));
+        xml.append("</CompleteMultipartUpload>");
+
+        HttpRequest request = upload.newRequest(withQuery(upload.getUrl(), "uploadId=" + encode(upload.getUploadId())))
+                                    .header("Content-Type", "application/xml")
+                                    .POST(BodyPublishers.ofString(xml.toString(), StandardCharsets.UTF_8))
+                                    .build();
+        return upload.send(request).thenApply(result -> {
+            if (!ServiceCallResult.isHttpSuccess(result.getResponseCode())) {
+                return result;
+            }
+            String response = result.getRawResponse();
+            if (StringUtils.contains(response, "<Error>")) {
+                return new ServiceCallResult("{}", 500, ServiceCall.getReasonPhrase(500)).setErrorBody(response);
+            }
+            JSONObject json = new JSONObject();
+            json.put("location", StringUtils.defaultString(StringUtils.substringBetween(response, "<Location>",
+                    "</Location>")));
+            json.put("bucket", StringUtils.defaultString(StringUtils.substringBetween(response, "<Bucket>",
+                    "</Bucket>")));
+            json.put("key", StringUtils.defaultString(StringUtils.substringBetween(response, "<Key>", "</Key>")));
+            json.put("etag", StringUtils.defaultString(StringUtils.substringBetween(response, "<ETag>", "</ETag>")));
+            json.put("uploadId", upload.getUploadId());
+            return new ServiceCallResult(json.toString(), result.getResponseCode(), result.getResponseMessage());
+        });
+    }
+
+    protected static String withQuery(String url, String query) {
+        return url + (url.contains("?") ? "&" : "?") + query;
+    }
+
+    protected static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    protected static String escapeXml(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+}
@@ -18,24 +18,33 @@
  */
 package nuxeo.labs.generic.service.call.http;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URL;
-import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodySubscribers;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
@@ -43,13 +52,22 @@ import org.apache.logging.log4j.Logger;
 import org.json.JSONObject;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.Blobs;
-import org.nuxeo.ecm.core.api.CloseableFile;
 import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.ecm.platform.mimetype.interfaces.MimetypeRegistry;
 import org.nuxeo.runtime.api.Framework;
 
 /**
  * Utility class, centralizing the HTTP calls and returning a <code>ServiceCallResult</code>
+ * <br>
+ * All the calls go through an <code>HttpEngine</code>, the shared one by default, so connections are reused.
+ * <br>
+ * Each method has a non-blocking variant (<code>getAsync</code>, <code>postAsync</code>, ...) returning a
+ * <code>CompletableFuture</code>. The blocking methods just wait for it.
+ * <br>
+ * Calls failing with a transient error (503, connection reset, ...) are retried according to the
+ * <code>RetryPolicy</code>, the default one (configured in nuxeo.conf) unless another one is set.
+ * <br>
+ * Each attempt waits for the <code>RateLimiters</code> of its host (and key, see <code>setRateLimitKey</code>).
  * 
  * @since 2023
  */
@@ -57,6 +75,184 @@ public class ServiceCall {
 
     private static final Logger log = LogManager.getLogger(ServiceCall.class);
 
+    protected static final Map<Integer, String> REASON_PHRASES = Map.ofEntries(Map.entry(200, "OK"),
+            Map.entry(201, "Created"), Map.entry(202, "Accepted"), Map.entry(203, "Non-Authoritative Information"),
+            Map.entry(204, "No Content"), Map.entry(206, "Partial Content"), Map.entry(301, "Moved Permanently"),
+            Map.entry(302, "Found"), Map.entry(303, "See Other"), Map.entry(304, "Not Modified"),
+            Map.entry(307, "Temporary Redirect"), Map.entry(308, "Permanent Redirect"),
+            Map.entry(400, "Bad Request"), Map.entry(401, "Unauthorized"), Map.entry(403, "Forbidden"),
+            Map.entry(404, "Not Found"), Map.entry(405, "Method Not Allowed"), Map.entry(406, "Not Acceptable"),
+            Map.entry(408, "Request Timeout"), Map.entry(409, "Conflict"), Map.entry(410, "Gone"),
+            Map.entry(412, "Precondition Failed"), Map.entry(413, "Payload Too Large"),
+            Map.entry(415, "Unsupported Media Type"), Map.entry(416, "Range Not Satisfiable"),
+            Map.entry(422, "Unprocessable Entity"), Map.entry(429, "Too Many Requests"),
+            Map.entry(500, "Internal Server Error"), Map.entry(501, "Not Implemented"),
+            Map.entry(502, "Bad Gateway"), Map.entry(503, "Service Unavailable"),
+            Map.entry(504, "Gateway Timeout"));
+
+    protected HttpEngine engine = null;
+
+    // null => default policy
+    protected RetryPolicy retryPolicy = null;
+
+    // null => shared ones
+    protected RateLimiters rateLimiters = null;
+
+    // null => only the rate limit of the host
+    protected String rateLimitKey = null;
+
+    protected boolean spillToDisk = false;
+
+    // null => shared one, if enabled
+    protected HttpResponseCache responseCache = null;
+
+    protected boolean useResponseCache = true;
+
+    // null => shared one, if enabled
+    protected RequestCoalescer requestCoalescer = null;
+
+    protected boolean useRequestCoalescer = true;
+
+    protected boolean followRedirects = true;
+
+    /**
+     * Calls will use the shared <code>HttpEngine</code>
+     */
+    public ServiceCall() {
+        this(null);
+    }
+
+    /**
+     * @param engine, the engine to use. If null, the shared one is used.
+     */
+    public ServiceCall(HttpEngine engine) {
+        this.engine = engine;
+    }
+
+    /*
+     * Resolved at each call, so we never keep a reference to a shared engine that was closed
+     */
+    protected HttpEngine getEngine() {
+        return engine != null ? engine : HttpEngine.getInstance();
+    }
+
+    /*
+     * Resolved at each call, so changes in the configuration are used
+     */
+    protected RetryPolicy getRetryPolicy() {
+        return retryPolicy != null ? retryPolicy : RetryPolicy.getDefault();
+    }
+
+    /**
+     * @param retryPolicy, the policy for the calls made with this object. If null, the default one is used.
+     * @since 2025.4
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * @param rateLimitKey, the calls made with this object also take a permit from the rate limiter of this key (see
+     *            <code>RateLimiters</code>). Typically, the descriptor key of the <code>AuthenticationToken</code> used,
+     *            which is the same on all the nodes.
+     * @since 2025.4
+     */
+    public void setRateLimitKey(String rateLimitKey) {
+        this.rateLimitKey = rateLimitKey;
+    }
+
+    /**
+     * @param rateLimiters, the limits for the calls made with this object. If null, the shared ones are used.
+     * @since 2025.4
+     */
+    public void setRateLimiters(RateLimiters rateLimiters) {
+        this.rateLimiters = rateLimiters;
+    }
+
+    /**
+     * @param spillToDisk, if true, successful responses larger than the spill threshold of the engine (see
+     *            <code>HttpEngineConfig#getSpillThreshold</code>) are written to a temporary file instead of being read
+     *            in memory. The result then has no response String, see
+     *            <code>ServiceCallResult#isResponseInFile</code>.
+     * @since 2025.4
+     */
+    public void setSpillToDisk(boolean spillToDisk) {
+        this.spillToDisk = spillToDisk;
+    }
+
+    public boolean isSpillToDisk() {
+        return spillToDisk;
+    }
+
+    /**
+     * @param followRedirects, false to get the 3xx responses as is (default true). For example, the
+     *            <code>308 Resume Incomplete</code> of a resumable upload, which is not a redirect.
+     * @since 2025.4
+     */
+    public void setFollowRedirects(boolean followRedirects) {
+        this.followRedirects = followRedirects;
+    }
+
+    public boolean isFollowRedirects() {
+        return followRedirects;
+    }
+
+    /**
+     * @param responseCache, the cache of the GET calls made with this object (see <code>HttpResponseCache</code>). If
+     *            null, the shared one is used, if it is enabled in nuxeo.conf.
+     * @since 2025.4
+     */
+    public void setResponseCache(HttpResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    /**
+     * @param useResponseCache, false to never use a cache for the calls made with this object (default true)
+     * @since 2025.4
+     */
+    public void setUseResponseCache(boolean useResponseCache) {
+        this.useResponseCache = useResponseCache;
+    }
+
+    /*
+     * null if no cache is used
+     */
+    protected HttpResponseCache getResponseCache() {
+
+        if (!useResponseCache) {
+            return null;
+        }
+        return responseCache != null ? responseCache : HttpResponseCache.getInstance();
+    }
+
+    /**
+     * @param requestCoalescer, to share the identical GET calls in flight made with this object (see
+     *            <code>RequestCoalescer</code>). If null, the shared one is used, if it is enabled in nuxeo.conf.
+     * @since 2025.4
+     */
+    public void setRequestCoalescer(RequestCoalescer requestCoalescer) {
+        this.requestCoalescer = requestCoalescer;
+    }
+
+    /**
+     * @param useRequestCoalescer, false to always send the GET calls made with this object (default true)
+     * @since 2025.4
+     */
+    public void setUseRequestCoalescer(boolean useRequestCoalescer) {
+        this.useRequestCoalescer = useRequestCoalescer;
+    }
+
+    /*
+     * null if the calls are not coalesced
+     */
+    protected RequestCoalescer getRequestCoalescer() {
+
+        if (!useRequestCoalescer) {
+            return null;
+        }
+        return requestCoalescer != null ? requestCoalescer : RequestCoalescer.getInstance();
+    }
+
     public static Map<String, String> toHeadersMap(String headersJsonStr) {
 
         Map<String, String> headers = new HashMap<>();
@@ -72,6 +268,35 @@ public class ServiceCall {
         return headers;
     }
 
+    /**
+     * The JDK HTTP client does not expose the reason phrase sent by the server, we use the standard ones.
+     * 
+     * @param statusCode
+     * @return the standard reason phrase for the status, or "" if unknown
+     * @since 2025.4
+     */
+    public static String getReasonPhrase(int statusCode) {
+        return REASON_PHRASES.getOrDefault(statusCode, "");
+    }
+
+    /**
+     * Used for the keys of the calls, so credentials in URLs, headers or bodies are not kept in memory
+     *
+     * @param value
+     * @return the SHA-256 of the UTF-8 bytes of the value, in hexadecimal
+     * @since 2025.4
+     */
+    public static String sha256Hex(String value) {
+
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash);
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has it
+            throw new IllegalStateException(e);
+        }
+    }
+
     /**
      * Query params, if any, must be handled but the caller (and appended to the url, with the correct encoding)
      * 
@@ -82,103 +307,391 @@ public class ServiceCall {
      */
     public ServiceCallResult get(String url, Map<String, String> headers) {
 
-        ServiceCallResult result = null;
+        return await(getAsync(url, headers));
+    }
 
-        HttpURLConnection connection = null;
-        try {
-            // Create the URL object
-            URL theUrl = new URL(url);
-            connection = (HttpURLConnection) theUrl.openConnection();
-            connection.setRequestMethod("GET");
+    /**
+     * Non-blocking version of <code>get</code>. IO errors are returned as a ServiceCallResult with a -1
+     * responseCode, the future completes exceptionally only if it was cancelled (or timed out, see
+     * <code>HttpEngineConfig</code>).
+     * <br>
+     * Cancelling the future aborts the HTTP exchange (when the same GET is shared by several callers, see
+     * <code>RequestCoalescer</code>, only once all of them cancelled theirs).
+     * 
+     * @param url
+     * @param headers. Can be null.
+     * @return the future ServiceCallResult
+     * @since 2025.4
+     */
+    public CompletableFuture<ServiceCallResult> getAsync(String url, Map<String, String> headers) {
 
-            if (headers != null) {
-                headers.forEach(connection::setRequestProperty);
-            }
+        RequestCoalescer coalescer = getRequestCoalescer();
+        if (coalescer == null) {
+            return sendGetAsync(url, headers);
+        }
+        // A private engine or spilling to disk give a different result for the same request
+        String variant = (spillToDisk ? "spill:" : "") + (engine == null ? "" : System.identityHashCode(engine));
+        return coalescer.execute(RequestCoalescer.key(url, headers, variant), () -> sendGetAsync(url, headers));
+    }
 
-            result = readResponse(connection);
+    protected CompletableFuture<ServiceCallResult> sendGetAsync(String url, Map<String, String> headers) {
 
-        } catch (IOException e) {
-            log.error("Error: " + e.getMessage());
-            result = new ServiceCallResult("{}", -1, "IOException: " + e.getMessage());
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
-                connection = null;
+        HttpResponseCache cache = getResponseCache();
+        if (cache == null) {
+            return callAsync(url, headers, builder -> builder.GET());
+        }
+        return cachedGetAsync(cache, url, headers);
+    }
+
+    /*
+     * GET using the cache: a fresh response is returned without calling the service, a stale one is revalidated
+     */
+    protected CompletableFuture<ServiceCallResult> cachedGetAsync(HttpResponseCache cache, String url,
+            Map<String, String> headers) {
+
+        HttpRequest request;
+        try {
+            request = getEngine().newRequestBuilder(url, headers).GET().build();
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(errorResult("IOException: ", e));
+        }
+        if (!HttpResponseCache.isCacheable(request)) {
+            return getRetryPolicy().execute(request, () -> sendAsync(request));
+        }
+
+        String key = HttpResponseCache.key(request);
+        HttpResponseCache.Entry entry = cache.get(key, request);
+        if (entry != null && HttpResponseCache.canUseWithoutRevalidation(entry, request)) {
+            cache.hit();
+            return CompletableFuture.completedFuture(entry.toResult());
+        }
+
+        HttpRequest actualRequest = request;
+        if (entry != null && entry.hasValidator()) {
+            HttpRequest.Builder builder = HttpRequest.newBuilder(request, (name, value) -> true);
+            if (entry.getEtag() != null && request.headers().firstValue("If-None-Match").isEmpty()) {
+                builder.header("If-None-Match", entry.getEtag());
+            }
+            if (entry.getLastModified() != null && request.headers().firstValue("If-Modified-Since").isEmpty()) {
+                builder.header("If-Modified-Since", entry.getLastModified());
             }
+            actualRequest = builder.build();
+        } else {
+            entry = null;
         }
+        HttpRequest sent = actualRequest;
+        HttpResponseCache.Entry cached = entry;
+        return getRetryPolicy().execute(sent, () -> sendAsync(sent, cachingResultHandler(cache, key, sent, cached)));
+    }
 
-        return result;
+    /*
+     * A 304 returns the cached response, a 200 is cached (if it can be)
+     */
+    protected BodyHandler<ServiceCallResult> cachingResultHandler(HttpResponseCache cache, String key,
+            HttpRequest request, HttpResponseCache.Entry entry) {
+
+        BodyHandler<ServiceCallResult> handler = resultHandler();
+        return responseInfo -> {
+            if (responseInfo.statusCode() == 304 && entry != null) {
+                return BodySubscribers.replacing(cache.revalidated(entry, responseInfo.headers()));
+            }
+            if (responseInfo.statusCode() != 200) {
+                return handler.apply(responseInfo);
+            }
+            cache.miss();
+            return BodySubscribers.mapping(handler.apply(responseInfo), result -> {
+                cache.put(key, request, responseInfo.headers(), result);
+                return result;
+            });
+        };
     }
 
     /*
      * Just to centralize the calls. For now, they are the same
      * (may change in the future, depending on the change sin the service API)
      */
-    protected ServiceCallResult postOrPut(String httpMethod, String url, Map<String, String> headers, String body) {
+    protected CompletableFuture<ServiceCallResult> postOrPutAsync(String httpMethod, String url,
+            Map<String, String> headers, String body) {
 
-        ServiceCallResult result = null;
+        HttpRequest.BodyPublisher publisher = body == null ? HttpRequest.BodyPublishers.noBody()
+                : HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8);
+
+        return callAsync(url, headers, builder -> builder.method(httpMethod, publisher));
+    }
+
+    /*
+     * Builds the request, sends it and reads the response. IO errors are returned as a ServiceCallResult with a -1
+     * responseCode.
+     */
+    protected CompletableFuture<ServiceCallResult> callAsync(String url, Map<String, String> headers,
+            Consumer<HttpRequest.Builder> method) {
 
-        HttpURLConnection connection = null;
+        HttpRequest request;
         try {
-            // Create the URL object
-            URL theUrl = new URL(url);
-            connection = (HttpURLConnection) theUrl.openConnection();
-            // POST or PUT
-            connection.setRequestMethod(httpMethod);
-
-            if (headers != null) {
-                headers.forEach(connection::setRequestProperty);
-            }
+            HttpRequest.Builder builder = getEngine().newRequestBuilder(url, headers);
+            method.accept(builder);
+            request = builder.build();
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(errorResult("IOException: ", e));
+        }
 
-            connection.setDoOutput(true);
-            if (body != null) {
-                try (OutputStream os = connection.getOutputStream()) {
-                    byte[] input = body.getBytes(StandardCharsets.UTF_8);
-                    os.write(input, 0, input.length);
-                }
+        return getRetryPolicy().execute(request, () -> sendAsync(request));
+    }
+
+    /*
+     * One attempt of callAsync
+     */
+    protected CompletableFuture<ServiceCallResult> sendAsync(HttpRequest request) {
+
+        return sendAsync(request, resultHandler());
+    }
+
+    protected CompletableFuture<ServiceCallResult> sendAsync(HttpRequest request,
+            BodyHandler<ServiceCallResult> handler) {
+
+        CompletableFuture<HttpResponse<ServiceCallResult>> exchange = exchangeAsync(request, handler);
+        CompletableFuture<ServiceCallResult> result = exchange.handle(
+                (response, error) -> error == null ? response.body() : errorResult("IOException: ", error));
+
+        return propagateCancel(result, exchange);
+    }
+
+    /*
+     * Waits for the rate limiters, then sends the request
+     */
+    protected <T> CompletableFuture<HttpResponse<T>> exchangeAsync(HttpRequest request, BodyHandler<T> handler) {
+
+        RateLimiters limiters = rateLimiters != null ? rateLimiters : RateLimiters.getInstance();
+        CompletableFuture<Void> permit = limiters.acquireAsync(request.uri(), rateLimitKey);
+        if (permit.isDone() && !permit.isCompletedExceptionally()) {
+            return getEngine().sendAsync(request, handler, followRedirects);
+        }
+
+        CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        result.whenComplete((response, error) -> {
+            if (error != null) {
+                permit.cancel(false);
+            }
+        });
+        permit.whenComplete((ignore, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+                return;
+            }
+            if (result.isDone()) {
+                // Cancelled while waiting
+                return;
             }
+            CompletableFuture<HttpResponse<T>> exchange = getEngine().sendAsync(request, handler, followRedirects);
+            exchange.whenComplete((response, exchangeError) -> {
+                if (exchangeError != null) {
+                    result.completeExceptionally(exchangeError);
+                } else {
+                    result.complete(response);
+                }
+            });
+            result.whenComplete((response, resultError) -> {
+                if (resultError != null) {
+                    exchange.cancel(true);
+                }
+            });
+        });
 
-            result = readResponse(connection);
+        return result;
+    }
 
-        } catch (IOException e) {
-            log.error("Error: " + e.getMessage());
-            result = new ServiceCallResult("{}", -1, "IOException: " + e.getMessage());
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
-                connection = null;
+    /*
+     * Calls not sent because of the circuit breaker or the rate limiters. null if the error is another one.
+     */
+    protected static ServiceCallResult rejectedResult(Throwable error) {
+
+        Blob nullBlob = null;
+        if (error instanceof CircuitOpenException) {
+            log.debug(error.getMessage());
+            return new ServiceCallResult(nullBlob, ServiceCallResult.CIRCUIT_OPEN, error.getMessage());
+        }
+        if (error instanceof RateLimitedException) {
+            log.debug(error.getMessage());
+            return new ServiceCallResult(nullBlob, ServiceCallResult.RATE_LIMITED, error.getMessage());
+        }
+        return null;
+    }
+
+    /*
+     * The dependent future does not cancel its source by default
+     */
+    protected static <T> CompletableFuture<T> propagateCancel(CompletableFuture<T> dependent,
+            CompletableFuture<?> source) {
+
+        dependent.whenComplete((value, error) -> {
+            if (error != null) {
+                source.cancel(true);
             }
+        });
+        return dependent;
+    }
+
+    protected static ServiceCallResult errorResult(String prefix, Throwable error) {
+
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        ServiceCallResult rejected = rejectedResult(error);
+        if (rejected != null) {
+            return rejected;
         }
+        // Some exceptions of the async. client have no message (ConnectException for example)
+        String message = error.getMessage() != null ? error.getMessage() : error.getClass().getSimpleName();
+        log.error("Error: " + message);
+        return new ServiceCallResult("{}", -1, prefix + message);
+    }
 
-        return result;
+    /*
+     * Waits for the result of a non-blocking call
+     */
+    protected ServiceCallResult await(CompletableFuture<ServiceCallResult> future) {
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            return new ServiceCallResult("{}", -1, "Interrupted while calling the service");
+        } catch (ExecutionException | CancellationException e) {
+            return errorResult("IOException: ", e instanceof ExecutionException ? e.getCause() : e);
+        }
     }
 
     public ServiceCallResult post(String url, Map<String, String> headers, String body) {
 
-        ServiceCallResult result = postOrPut("POST", url, headers, body);
+        ServiceCallResult result = await(postAsync(url, headers, body));
 
         return result;
     }
 
     public ServiceCallResult put(String url, Map<String, String> headers, String body) {
 
-        ServiceCallResult result = postOrPut("PUT", url, headers, body);
+        ServiceCallResult result = await(putAsync(url, headers, body));
 
         return result;
     }
 
+    /**
+     * Non-blocking version of <code>post</code> (see <code>getAsync</code>)
+     * 
+     * @since 2025.4
+     */
+    public CompletableFuture<ServiceCallResult> postAsync(String url, Map<String, String> headers, String body) {
+
+        return postOrPutAsync("POST", url, headers, body);
+    }
+
+    /**
+     * Non-blocking version of <code>put</code> (see <code>getAsync</code>)
+     * 
+     * @since 2025.4
+     */
+    public CompletableFuture<ServiceCallResult> putAsync(String url, Map<String, String> headers, String body) {
+
+        return postOrPutAsync("PUT", url, headers, body);
+    }
+
     public ServiceCallResult uploadBlob(String putOrPost, Blob blob, String targetUrl, Map<String, String> headers) {
 
-        try (CloseableFile f = blob.getCloseableFile()) {
-            String mimeType = blob.getMimeType();
-            if (StringUtils.isBlank(mimeType)) {
-                MimetypeRegistry registry = Framework.getService(MimetypeRegistry.class);
-                mimeType = registry.getMimetypeFromBlob(blob);
-            }
-            return uploadFile(putOrPost, f.getFile(), targetUrl, mimeType, headers);
-        } catch (IOException e) {
-            throw new NuxeoException("IOException while uploading the blob.", e);
+        return await(uploadBlobAsync(putOrPost, blob, targetUrl, headers));
+    }
+
+    /**
+     * Non-blocking version of <code>uploadBlob</code>. The blob is streamed as it is read (see
+     * <code>BlobBodyPublishers</code>), there is no local copy of it.
+     * 
+     * @since 2025.4
+     */
+    public CompletableFuture<ServiceCallResult> uploadBlobAsync(String putOrPost, Blob blob, String targetUrl,
+            Map<String, String> headers) {
+
+        String mimeType = StringUtils.defaultIfBlank(getMimeType(blob), "application/octet-stream");
+        return uploadAsync(putOrPost, BlobBodyPublishers.ofBlob(blob), targetUrl, mimeType, headers);
+    }
+
+    /**
+     * Sends a <code>multipart/form-data</code> body. Its Content-Type (with the boundary) replaces the one of the
+     * headers, if any.
+     *
+     * @param putOrPost
+     * @param body
+     * @param targetUrl
+     * @param headers
+     * @return a ServiceCallResult
+     * @since 2025.4
+     */
+    public ServiceCallResult uploadMultipart(String putOrPost, MultipartBody body, String targetUrl,
+            Map<String, String> headers) {
+
+        return await(uploadMultipartAsync(putOrPost, body, targetUrl, headers));
+    }
+
+    /**
+     * Non-blocking version of <code>uploadMultipart</code> (see <code>getAsync</code>)
+     * 
+     * @since 2025.4
+     */
+    public CompletableFuture<ServiceCallResult> uploadMultipartAsync(String putOrPost, MultipartBody body,
+            String targetUrl, Map<String, String> headers) {
+
+        Map<String, String> otherHeaders = new HashMap<>();
+        if (headers != null) {
+            headers.forEach((name, value) -> {
+                if (!name.equalsIgnoreCase("Content-Type")) {
+                    otherHeaders.put(name, value);
+                }
+            });
+        }
+        return uploadAsync(putOrPost, body.toBodyPublisher(), targetUrl, body.getContentType(), otherHeaders);
+    }
+
+    /**
+     * Uploads the blob in parts, sent concurrently when the protocol allows it, and resumes an interrupted upload of
+     * the same blob (see <code>ChunkedUpload</code>). The size of the parts and the parallelism are the ones of the
+     * configuration, use <code>ChunkedUpload</code> to change them.
+     *
+     * @param protocol, see <code>ChunkedUploadProtocol#forName</code>
+     * @param blob
+     * @param targetUrl
+     * @param headers
+     * @return a ServiceCallResult
+     * @since 2025.4
+     */
+    public ServiceCallResult uploadChunked(ChunkedUploadProtocol protocol, Blob blob, String targetUrl,
+            Map<String, String> headers) {
+
+        return await(uploadChunkedAsync(protocol, blob, targetUrl, headers));
+    }
+
+    /**
+     * Non-blocking version of <code>uploadChunked</code> (see <code>getAsync</code>)
+     *
+     * @since 2025.4
+     */
+    public CompletableFuture<ServiceCallResult> uploadChunkedAsync(ChunkedUploadProtocol protocol, Blob blob,
+            String targetUrl, Map<String, String> headers) {
+
+        return new ChunkedUpload(this, protocol, blob, targetUrl, headers).uploadAsync();
+    }
+
+    /**
+     * @param blob
+     * @return the mime type of the blob, or the one guessed from its content if not set
+     * @since 2025.4
+     */
+    public static String getMimeType(Blob blob) {
+
+        String mimeType = blob.getMimeType();
+        if (StringUtils.isBlank(mimeType)) {
+            MimetypeRegistry registry = Framework.getService(MimetypeRegistry.class);
+            mimeType = registry.getMimetypeFromBlob(blob);
         }
+        return mimeType;
     }
 
     /**
@@ -197,6 +710,54 @@ public class ServiceCall {
     public ServiceCallResult uploadFile(String putOrPost, File file, String targetUrl, String contentType,
             Map<String, String> headers) {
 
+        return await(uploadFileAsync(putOrPost, file, targetUrl, contentType, headers));
+    }
+
+    /**
+     * Non-blocking version of <code>uploadFile</code> (see <code>getAsync</code>)
+     * 
+     * @since 2025.4
+     */
+    public CompletableFuture<ServiceCallResult> uploadFileAsync(String putOrPost, File file, String targetUrl,
+            String contentType, Map<String, String> headers) {
+
+        if (StringUtils.isBlank(contentType) && !hasContentType(headers)) {
+            try {
+                contentType = Files.probeContentType(file.toPath());
+            } catch (IOException e) {
+                contentType = null;
+            }
+        }
+        HttpRequest.BodyPublisher body;
+        try {
+            body = HttpRequest.BodyPublishers.ofFile(file.toPath());
+        } catch (IOException e) {
+            throw new NuxeoException("Exception while uploading the file.", e);
+        }
+        return uploadAsync(putOrPost, body, targetUrl,
+                StringUtils.defaultIfBlank(contentType, "application/octet-stream"), headers);
+    }
+
+    protected static boolean hasContentType(Map<String, String> headers) {
+        return headers != null && headers.keySet().stream().anyMatch("Content-Type"::equalsIgnoreCase);
+    }
+
+    /**
+     * Sends the body with PUT or POST. The Content-Type header, if any, takes precedence over contentType.
+     * <br>
+     * The body is published again if the upload is retried.
+     *
+     * @param putOrPost
+     * @param body
+     * @param targetUrl
+     * @param contentType
+     * @param headers
+     * @return the future ServiceCallResult
+     * @since 2025.4
+     */
+    public CompletableFuture<ServiceCallResult> uploadAsync(String putOrPost, HttpRequest.BodyPublisher body,
+            String targetUrl, String contentType, Map<String, String> headers) {
+
         putOrPost = putOrPost.toUpperCase();
         switch (putOrPost) {
         case "POST":
@@ -207,8 +768,6 @@ public class ServiceCall {
             throw new NuxeoException("Only PUT or POST handled.");
         }
 
-        ServiceCallResult result = null;
-
         if (headers != null) {
             String contentTypeHeader = headers.entrySet()
                                               .stream()
@@ -221,55 +780,50 @@ public class ServiceCall {
                 contentType = contentTypeHeader;
             }
         }
-        
-        if (StringUtils.isBlank(contentType)) {
-            try {
-                contentType = Files.probeContentType(file.toPath());
-            } catch (IOException e) {
-                contentType = "application/octet-stream";
-            }
-        }
 
+        HttpRequest request;
         try {
-            HttpClient client = HttpClient.newHttpClient();
-
-            HttpRequest.Builder builder = HttpRequest.newBuilder()
-                                                     .uri(URI.create(targetUrl));
             // Add custom headers first (they take precedence)
+            Map<String, String> otherHeaders = new HashMap<>();
             if (headers != null && !headers.isEmpty()) {
                 headers.entrySet()
                        .stream()
                        .filter(e -> !e.getKey().equalsIgnoreCase("Content-Type"))
-                       .forEach(e -> builder.header(e.getKey(), e.getValue()));
+                       .forEach(e -> otherHeaders.put(e.getKey(), e.getValue()));
             }
+            HttpRequest.Builder builder = getEngine().newRequestBuilder(targetUrl, otherHeaders);
             // Set Content-Type once (resolved above from headers or blob mime type)
             builder.header("Content-Type", contentType);
 
             // Choose method
-            HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.ofFile(file.toPath());
             switch (putOrPost) {
             case "POST" -> builder.POST(body);
             case "PUT" -> builder.PUT(body);
             }
 
             // Build
-            HttpRequest request = builder.build();
-
-            // Call
-            HttpResponse<String> response;
-            try {
-                response = client.send(request, HttpResponse.BodyHandlers.ofString());
-                // Remember nothing to close, this is handled by BodyHandlers.ofString()
-                result = new ServiceCallResult("{}", response.statusCode(), response.body());
-            } catch (IOException | InterruptedException e) {
-                result = new ServiceCallResult("{}", -1, "Error uploading the file: " + e.getMessage());
-            }
+            request = builder.build();
         } catch (Exception e) {
             throw new NuxeoException("Exception while uploading the blob.", e);
         }
 
-        return result;
-
+        // Call (the body is read again if the upload is retried)
+        return getRetryPolicy().execute(request, () -> {
+            CompletableFuture<HttpResponse<String>> exchange = exchangeAsync(request,
+                    HttpResponse.BodyHandlers.ofString());
+            CompletableFuture<ServiceCallResult> result = exchange.handle((response, error) -> {
+                if (error != null) {
+                    return errorResult("Error uploading the file: ", error);
+                }
+                // Remember nothing to close, this is handled by BodyHandlers.ofString()
+                ServiceCallResult uploadResult = new ServiceCallResult("{}", response.statusCode(), response.body());
+                if (uploadResult.callFailed()) {
+                    uploadResult.setErrorBody(response.body()).setRetryAfter(retryAfter(response.headers()));
+                }
+                return uploadResult;
+            });
+            return propagateCancel(result, exchange);
+        });
     }
 
     /**
@@ -280,71 +834,117 @@ public class ServiceCall {
      */
     public ServiceCallResult downloadFile(String targetUrl, Map<String, String> headers) {
 
-        ServiceCallResult result = null;
-        Blob blob = null;
-        HttpURLConnection connection = null;
+        return awaitDownload(downloadFileAsync(targetUrl, headers));
+    }
 
-        try {
-            URL url = new URL(targetUrl);
-            connection = (HttpURLConnection) url.openConnection();
+    /**
+     * Non-blocking version of <code>downloadFile</code>. The body is streamed to the file of the blob as it is
+     * received.
+     * <br>
+     * Unlike the other async. methods, IO errors complete the future exceptionally (as <code>downloadFile</code>
+     * throws an exception). A call rejected by the circuit breaker or the rate limiters returns a
+     * <code>CIRCUIT_OPEN</code> or <code>RATE_LIMITED</code> result.
+     * <br>
+     * An interrupted download is resumed from the bytes already received (see <code>ResumableDownload</code>).
+     * 
+     * @param targetUrl
+     * @param headers
+     * @return the future result, holding the blob if the call was successful
+     * @since 2025.4
+     */
+    public CompletableFuture<ServiceCallResult> downloadFileAsync(String targetUrl, Map<String, String> headers) {
 
-            connection.setRequestMethod("GET");
-            connection.setDoInput(true);
+        return new ResumableDownload(this, targetUrl, headers).downloadAsync();
+    }
 
-            // Add custom headers
-            if (headers != null) {
-                headers.forEach(connection::setRequestProperty);
-            }
+    /**
+     * Same as <code>downloadFile</code>, with several Range requests sent concurrently when the service supports them
+     * (see <code>RangeDownload</code>). The size of the parts and the parallelism are the ones of the configuration,
+     * use <code>RangeDownload</code> to change them.
+     *
+     * @param targetUrl
+     * @param headers
+     * @return the result, holding the blob if the call was successful
+     * @since 2025.4
+     */
+    public ServiceCallResult downloadFileInRanges(String targetUrl, Map<String, String> headers) {
 
-            int status = connection.getResponseCode();
+        return awaitDownload(downloadFileInRangesAsync(targetUrl, headers));
+    }
 
-            if (status < 200 || status >= 300) {
-                String error = "";
-                try (InputStream errorStream = connection.getErrorStream()) {
-                    if (errorStream != null) {
-                        error = new String(errorStream.readAllBytes());
-                    }
-                } catch (IOException e) {
-                    // Ignore
-                }
-                Blob nullBlob = null;
-                result = new ServiceCallResult(nullBlob, status, error);
+    /**
+     * Non-blocking version of <code>downloadFileInRanges</code> (see <code>downloadFileAsync</code>)
+     *
+     * @since 2025.4
+     */
+    public CompletableFuture<ServiceCallResult> downloadFileInRangesAsync(String targetUrl,
+            Map<String, String> headers) {
 
-            } else {
+        return new RangeDownload(this, targetUrl, headers).downloadAsync();
+    }
 
-                String filename = extractFileName(connection, url);
-                String mimeType = connection.getContentType();
-                blob = Blobs.createBlobWithExtension(".tmp");
-                blob.setFilename(filename);
-                blob.setMimeType(mimeType);
-                File destinationFile = blob.getFile();
-
-                // Stream content to file
-                try (InputStream in = connection.getInputStream();
-                        OutputStream out = new FileOutputStream(destinationFile)) {
-                    in.transferTo(out);
-                }
+    /*
+     * Waits for a download: IO errors are thrown
+     */
+    protected ServiceCallResult awaitDownload(CompletableFuture<ServiceCallResult> future) {
 
-                result = new ServiceCallResult(blob, status, connection.getResponseMessage());
-            }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new NuxeoException("Interrupted while downloading a file", e);
+        } catch (ExecutionException e) {
+            throw new NuxeoException("Error downloading a file", e.getCause());
+        }
+    }
 
-        } catch (IOException e) {
+    /*
+     * Successful responses are written to the file of a new blob, errors are read as a String
+     */
+    protected BodyHandler<ServiceCallResult> downloadHandler(URI uri) {
 
-            throw new NuxeoException("Error downloading a file", e);
+        return responseInfo -> {
+            int status = responseInfo.statusCode();
 
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
-                connection = null;
+            if (status < 200 || status >= 300) {
+                return BodySubscribers.mapping(BodySubscribers.ofString(StandardCharsets.UTF_8), error -> {
+                    Blob nullBlob = null;
+                    ServiceCallResult result = new ServiceCallResult(nullBlob, status, error);
+                    return result.setErrorBody(error).setRetryAfter(retryAfter(responseInfo.headers()));
+                });
             }
-        }
 
-        return result;
+            Blob blob;
+            try {
+                blob = Blobs.createBlobWithExtension(".tmp");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            blob.setFilename(extractFileName(responseInfo.headers(), uri));
+            blob.setMimeType(responseInfo.headers().firstValue("Content-Type").orElse(null));
+
+            // Stream content to file
+            return BodySubscribers.mapping(BodySubscribers.ofFile(blob.getFile().toPath()),
+                    path -> new ServiceCallResult(blob, status, getReasonPhrase(status)));
+        };
     }
 
     // Extract filename from Content-Disposition header or URL
+    public static String extractFileName(HttpHeaders headers, URI uri) {
+        return extractFileName(headers.firstValue("Content-Disposition").orElse(null), uri.getPath());
+    }
+
+    /**
+     * @deprecated since 2025.4, the calls do not use <code>HttpURLConnection</code> anymore. Use
+     *             <code>extractFileName(HttpHeaders, URI)</code>
+     */
+    @Deprecated(since = "2025.4")
     public static String extractFileName(HttpURLConnection connection, URL url) {
-        String contentDisposition = connection.getHeaderField("Content-Disposition");
+        return extractFileName(connection.getHeaderField("Content-Disposition"), url.getPath());
+    }
+
+    protected static String extractFileName(String contentDisposition, String path) {
 
         if (contentDisposition != null && contentDisposition.contains("filename=")) {
             String[] parts = contentDisposition.split("filename=");
@@ -354,39 +954,86 @@ public class ServiceCall {
         }
 
         // fallback: get filename from URL
-        String path = url.getPath();
         return path.substring(path.lastIndexOf('/') + 1);
     }
 
     /**
-     * Utility, used by other methods (get, post, put), cone the call returns a status >= 200 < 300.
-     * The "response" field of <code>Response</code> is always an empty JSON object, "{}".
-     * 
+     * Reads the response of a connection opened by the caller, the same way the calls of this class read theirs (see
+     * <code>resultHandler</code>): the body as sent if the call is successful, else "{}" with the error body.
+     *
      * @param connection
-     * @return
+     * @return the result
      * @throws IOException
      * @since 2023
+     * @deprecated since 2025.4, the calls do not use <code>HttpURLConnection</code> anymore, they go through the
+     *             shared <code>HttpEngine</code>
      */
+    @Deprecated(since = "2025.4")
     public ServiceCallResult readResponse(HttpURLConnection connection) throws IOException {
 
-        ServiceCallResult result = null;
-
         int responseCode = connection.getResponseCode();
+        HttpHeaders headers = headersOf(connection);
+        String message = StringUtils.defaultIfBlank(connection.getResponseMessage(), getReasonPhrase(responseCode));
         if (ServiceCallResult.isHttpSuccess(responseCode)) {
-            try (BufferedReader br = new BufferedReader(
-                    new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
-                StringBuilder responseStr = new StringBuilder();
-                String line;
-                while ((line = br.readLine()) != null) {
-                    responseStr.append(line.trim());
-                }
-                result = new ServiceCallResult(responseStr.toString(), responseCode, connection.getResponseMessage());
+            try (InputStream in = connection.getInputStream()) {
+                String body = new String(in.readAllBytes(), ResponseBodyReader.charsetOf(headers));
+                return new ServiceCallResult(body, responseCode, message).setContentType(
+                        headers.firstValue("Content-Type").orElse(null)).setResponseHeaders(headers);
             }
-        } else {
-            result = new ServiceCallResult("{}", responseCode, connection.getResponseMessage());
         }
+        String error = null;
+        try (InputStream in = connection.getErrorStream()) {
+            if (in != null) {
+                error = new String(in.readAllBytes(), ResponseBodyReader.charsetOf(headers));
+            }
+        }
+        return new ServiceCallResult("{}", responseCode, message).setErrorBody(error)
+                                                                 .setRetryAfter(retryAfter(headers))
+                                                                 .setResponseHeaders(headers);
+    }
 
-        return result;
+    protected static HttpHeaders headersOf(HttpURLConnection connection) {
+
+        Map<String, List<String>> fields = new HashMap<>(connection.getHeaderFields());
+        // The status line
+        fields.remove(null);
+        return HttpHeaders.of(fields, (name, value) -> true);
+    }
+
+    /**
+     * Utility, used by other methods (get, post, put): reads the response once the call returns a status >= 200 <
+     * 300. Else, the "response" field of <code>Response</code> is always an empty JSON object, "{}".
+     * <br>
+     * The body is always consumed, so the connection can be reused. It is read as sent, see
+     * <code>ResponseBodyReader</code>, or written to a temporary file when it is large and <code>spillToDisk</code> is
+     * set (see <code>SpillingBodyReader</code>).
+     * 
+     * @return the handler building the ServiceCallResult
+     * @since 2023
+     */
+    protected BodyHandler<ServiceCallResult> resultHandler() {
+
+        return responseInfo -> {
+            int responseCode = responseInfo.statusCode();
+            if (ServiceCallResult.isHttpSuccess(responseCode)) {
+                if (spillToDisk) {
+                    return new SpillingBodyReader(responseInfo.headers(), responseCode,
+                            getReasonPhrase(responseCode), getEngine().getConfig().getSpillThreshold());
+                }
+                String contentType = responseInfo.headers().firstValue("Content-Type").orElse(null);
+                return BodySubscribers.mapping(new ResponseBodyReader(responseInfo.headers()),
+                        body -> new ServiceCallResult(body, responseCode, getReasonPhrase(responseCode)).setContentType(
+                                contentType).setResponseHeaders(responseInfo.headers()));
+            }
+            return BodySubscribers.mapping(new ResponseBodyReader(responseInfo.headers()),
+                    error -> new ServiceCallResult("{}", responseCode, getReasonPhrase(responseCode)).setErrorBody(
+                            error).setRetryAfter(retryAfter(responseInfo.headers()))
+                                  .setResponseHeaders(responseInfo.headers()));
+        };
+    }
+
+    protected static Duration retryAfter(HttpHeaders headers) {
+        return RetryPolicy.parseRetryAfter(headers.firstValue("Retry-After").orElse(null));
     }
 
 }
@@ -0,0 +1,71 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.http;
+
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import io.dropwizard.metrics5.Counter;
+import io.dropwizard.metrics5.MetricName;
+import io.dropwizard.metrics5.MetricRegistry;
+import io.dropwizard.metrics5.SharedMetricRegistries;
+
+/**
+ * Metrics of the plugin, registered in the Nuxeo metrics registry (so they are reported with the other Nuxeo metrics,
+ * when a reporter is configured). All the names start with <code>nuxeo.servicecall</code>.
+ *
+ * @since 2025.4
+ */
+public class ServiceCallMetrics {
+
+    public static final String PREFIX = "nuxeo.servicecall";
+
+    private ServiceCallMetrics() {
+        // Static methods only
+    }
+
+    public static MetricRegistry registry() {
+        return SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+    }
+
+    /**
+     * @param name, like "tokens.hits"
+     * @param tags, optional, as name/value pairs
+     * @return the metric name, prefixed with <code>nuxeo.servicecall</code>
+     * @since 2025.4
+     */
+    public static MetricName name(String name, String... tags) {
+
+        MetricName metricName = MetricName.build(PREFIX, name);
+        if (tags.length > 0) {
+            metricName = metricName.tagged(tags);
+        }
+        return metricName;
+    }
+
+    /**
+     * @param name, like "tokens.hits"
+     * @param tags, optional, as name/value pairs
+     * @return the counter, created if needed
+     * @since 2025.4
+     */
+    public static Counter counter(String name, String... tags) {
+        return registry().counter(name(name, tags));
+    }
+
+}
@@ -18,8 +18,23 @@
  */
 package nuxeo.labs.generic.service.call.http;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.http.HttpHeaders;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
 import org.apache.commons.lang3.StringUtils;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.NuxeoException;
@@ -38,6 +53,24 @@ import org.nuxeo.ecm.core.api.NuxeoException;
  */
 public class ServiceCallResult {
 
+    /**
+     * responseCode of a call rejected without being sent, because the service is failing (see
+     * <code>CircuitBreaker</code>)
+     *
+     * @since 2025.4
+     */
+    public static final int CIRCUIT_OPEN = -2;
+
+    /**
+     * responseCode of a call rejected without being sent, because it would wait too long for a rate limit (see
+     * <code>RateLimiters</code>)
+     *
+     * @since 2025.4
+     */
+    public static final int RATE_LIMITED = -3;
+
+    protected static final String RESPONSE_PREFIX = "{\"response\":";
+
     protected String response = null;
 
     protected int responseCode;
@@ -46,6 +79,27 @@ public class ServiceCallResult {
     
     protected Blob responseBlob = null;
 
+    // Not part of the JSON of the result
+    protected String errorBody = null;
+
+    // Not part of the JSON of the result
+    protected Duration retryAfter = null;
+
+    // Not part of the JSON of the result
+    protected String contentType = null;
+
+    // JSONObject or JSONArray, see parsedResponse()
+    protected Object parsedResponse = null;
+
+    // The response was written to responseBlob instead of being read as a String (see SpillingBodyReader)
+    protected boolean responseInFile = false;
+
+    // Not part of the JSON of the result
+    protected HttpHeaders responseHeaders = null;
+
+    // Given to several callers, see RequestCoalescer
+    protected boolean shared = false;
+
     public ServiceCallResult(String response, int responseCode, String responseMessage) {
         super();
         
@@ -72,6 +126,31 @@ public class ServiceCallResult {
     }
 
     /**
+     * The response String and the response blob are shared (they are not modified), the parsed response is not: each
+     * copy parses the response when first needed.
+     *
+     * @return a copy of this result, used when the same result is given to several callers (see
+     *         <code>RequestCoalescer</code>)
+     * @since 2025.4
+     */
+    public ServiceCallResult copy() {
+
+        ServiceCallResult copy = responseBlob == null ? new ServiceCallResult(response, responseCode, responseMessage)
+                : new ServiceCallResult(responseBlob, responseCode, responseMessage);
+        copy.response = response;
+        copy.errorBody = errorBody;
+        copy.retryAfter = retryAfter;
+        copy.contentType = contentType;
+        copy.responseInFile = responseInFile;
+        copy.responseHeaders = responseHeaders;
+        copy.shared = shared;
+        return copy;
+    }
+
+    /**
+     * The response is parsed once, when first needed, and the parsed object is reused by the next calls: it must not
+     * be modified.
+     *
      * @return the JSON object of this object
      * @since 2023
      */
@@ -80,11 +159,7 @@ public class ServiceCallResult {
         JSONObject obj = new JSONObject();
 
         if(StringUtils.isNotBlank(response)) {
-            if(response.startsWith("[")) {
-                obj.put("response", new JSONArray(response));
-            } else {
-                obj.put("response", new JSONObject(response));
-            }
+            obj.put("response", responseValue());
         } else if (responseBlob == null){
             if(isHttpSuccess(responseCode)) {
                 obj.put("response", new JSONObject("{\"errorMessage\": \"Empty string as response\"}"));
@@ -101,6 +176,9 @@ public class ServiceCallResult {
     }
 
     /**
+     * When the response is a JSON object or array with a JSON Content-Type, it is not parsed: it is copied as is in the
+     * result. A response that is not valid JSON is a JSON string in the result.
+     *
      * @return the JSON String of this object
      * @since 2023
      */
@@ -111,11 +189,228 @@ public class ServiceCallResult {
 
     public String toJsonString(int indentFactor) {
 
-        
+        if (indentFactor <= 0 && isJsonResponse()) {
+            String tail = envelopeTail();
+            return new StringBuilder(RESPONSE_PREFIX.length() + response.length() + tail.length()).append(
+                    RESPONSE_PREFIX).append(response).append(tail).toString();
+        }
         JSONObject obj = toJsonObject();
         return obj.toString(indentFactor);
     }
 
+    /**
+     * Writes the JSON of this object to out (UTF-8), without building it in memory: the response is copied as is when
+     * it is a JSON object or array with a JSON Content-Type. When the response was written to a file (see
+     * <code>isResponseInFile</code>), it is streamed from the file, as is when it is JSON, else as a JSON string.
+     *
+     * @param out, not closed
+     * @throws IOException
+     * @since 2025.4
+     */
+    public void writeJson(OutputStream out) throws IOException {
+
+        if (!responseInFile) {
+            if (!isJsonResponse()) {
+                out.write(toJsonString().getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            writer.write(RESPONSE_PREFIX);
+            writer.write(response);
+            writer.write(envelopeTail());
+            // Flushed, not closed: out is still used by the caller
+            writer.flush();
+            return;
+        }
+
+        out.write(RESPONSE_PREFIX.getBytes(StandardCharsets.UTF_8));
+        Charset charset = responseBlob.getEncoding() == null ? StandardCharsets.UTF_8
+                : Charset.forName(responseBlob.getEncoding());
+        int first = firstByte(responseBlob);
+        boolean json = (first == '{' || first == '[') && isJsonContentType(responseBlob.getMimeType());
+        if (json && StandardCharsets.UTF_8.equals(charset)) {
+            try (InputStream in = responseBlob.getStream()) {
+                in.transferTo(out);
+            }
+        } else {
+            writeChars(responseBlob, charset, !json, out);
+        }
+        out.write(envelopeTail().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes the JSON of this object directly in a blob (see <code>writeJson</code>): in memory, or in a temporary file
+     * when it is larger than the spill threshold (see <code>HttpEngineConfig#getSpillThreshold</code>).
+     *
+     * @return a JSON blob (UTF-8)
+     * @since 2025.4
+     */
+    public Blob toJsonBlob() {
+
+        // Exact size when the response is spliced, so the buffer is the content of the blob
+        long sizeHint = 0;
+        if (!responseInFile && isJsonResponse()) {
+            sizeHint = RESPONSE_PREFIX.length() + utf8Length(response) + utf8Length(envelopeTail());
+        }
+        try (BlobOutputStream out = new BlobOutputStream(HttpEngine.getInstance().getConfig().getSpillThreshold(),
+                sizeHint, ".json")) {
+            writeJson(out);
+            out.close();
+            return out.getBlob("application/json", "UTF-8");
+        } catch (IOException e) {
+            throw new NuxeoException("Failed to write the JSON result", e);
+        }
+    }
+
+    /*
+     * Size of str in UTF-8, without encoding it
+     */
+    protected static long utf8Length(String str) {
+
+        long length = 0;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < str.length()
+                    && Character.isLowSurrogate(str.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /*
+     * The response is a JSON object or array, and the service said so: it can be copied as is (it is not validated,
+     * the service is trusted)
+     */
+    protected boolean isJsonResponse() {
+
+        char first = firstChar();
+        return (first == '{' || first == '[') && isJsonContentType(contentType);
+    }
+
+    /*
+     * application/json, text/json, application/problem+json, ...
+     */
+    protected static boolean isJsonContentType(String contentType) {
+
+        if (StringUtils.isBlank(contentType)) {
+            return false;
+        }
+        String mimeType = StringUtils.substringBefore(contentType, ";").trim().toLowerCase();
+        return mimeType.endsWith("/json") || mimeType.endsWith("+json");
+    }
+
+    /*
+     * The parsed response, or the response as is (a JSON string in the result) when it is not a JSON object or array
+     */
+    protected Object responseValue() {
+
+        char first = firstChar();
+        if (first == '{' || first == '[') {
+            try {
+                return parsedResponse();
+            } catch (JSONException e) {
+                // Text starting like JSON ("[WARN] ...", truncated, ...)
+            }
+        }
+        return response;
+    }
+
+    /*
+     * The end of the JSON of this object, after the response
+     */
+    protected String envelopeTail() {
+        return ",\"responseCode\":" + responseCode + ",\"responseMessage\":"
+                + JSONObject.quote(responseMessage == null ? "" : responseMessage) + "}";
+    }
+
+    /*
+     * The response as JSONObject or JSONArray, parsed once
+     */
+    protected Object parsedResponse() {
+
+        if (parsedResponse == null) {
+            parsedResponse = firstChar() == '[' ? new JSONArray(response) : new JSONObject(response);
+        }
+        return parsedResponse;
+    }
+
+    /*
+     * The first non-whitespace byte of the blob, -1 if none
+     */
+    protected static int firstByte(Blob blob) throws IOException {
+
+        try (InputStream in = new BufferedInputStream(blob.getStream())) {
+            int b;
+            while ((b = in.read()) != -1) {
+                if (!Character.isWhitespace(b)) {
+                    return b;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Streams the content of the blob in UTF-8, as a quoted and escaped JSON string if asString is true
+     */
+    protected static void writeChars(Blob blob, Charset charset, boolean asString, OutputStream out)
+            throws IOException {
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        if (asString) {
+            writer.write('"');
+        }
+        try (Reader reader = new InputStreamReader(blob.getStream(), charset)) {
+            char[] chars = new char[8192];
+            int n;
+            while ((n = reader.read(chars)) != -1) {
+                if (!asString) {
+                    writer.write(chars, 0, n);
+                    continue;
+                }
+                for (int i = 0; i < n; i++) {
+                    char c = chars[i];
+                    switch (c) {
+                    case '"':
+                        writer.write("\\\"");
+                        break;
+                    case '\\':
+                        writer.write("\\\\");
+                        break;
+                    case '\n':
+                        writer.write("\\n");
+                        break;
+                    case '\r':
+                        writer.write("\\r");
+                        break;
+                    case '\t':
+                        writer.write("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            writer.write(String.format("\\u%04x", (int) c));
+                        } else {
+                            writer.write(c);
+                        }
+                    }
+                }
+            }
+        }
+        if (asString) {
+            writer.write('"');
+        }
+        // Flushed, not closed: out is still used by the caller
+        writer.flush();
+    }
+
     /**
      * Some APIs don't return a JSON object (nor array).
      * And it even may be quoted/double quoted in the response.
@@ -129,21 +424,51 @@ public class ServiceCallResult {
         return result;
     }
     
+    /**
+     * @return the response, as sent by the service (see <code>getResponse()</code>)
+     * @since 2025.4
+     */
+    public String getRawResponse() {
+        return response;
+    }
+
+    /*
+     * The response is kept as sent (see ResponseBodyReader), it can start with whitespace. 0 if there is no response,
+     * or only whitespace.
+     */
+    protected char firstChar() {
+
+        if (response != null) {
+            for (int i = 0; i < response.length(); i++) {
+                char c = response.charAt(i);
+                if (!Character.isWhitespace(c)) {
+                    return c;
+                }
+            }
+        }
+        return 0;
+    }
+
     public Blob getResponseBlob() {
         return responseBlob;
     }
 
     /**
      * Return the response from the service as JSONObject. Throws an exception if the response cannot be parsed as JSON
+     * <br>
+     * The response is parsed once, the same object is returned at each call.
      * 
      * @return the response from the service as JSONObject
      * @since 2023
      */
     public JSONObject getResponseAsJSONObject() {
-        if (response != null && !response.startsWith("{") && !response.startsWith("[")) {
+        if (response != null && firstChar() != '{' && firstChar() != '[') {
             throw new NuxeoException(
                     "response is a simple string, cannot be converted to JSON Object. Call getResponse() instead.");
         }
+        if (firstChar() == '{') {
+            return (JSONObject) parsedResponse();
+        }
         return new JSONObject(response);
     }
 
@@ -164,10 +489,9 @@ public class ServiceCallResult {
             return new JSONObject(resultStr);
         }
 
-        if (response.startsWith("{") || response.startsWith("[")) {
-            JSONObject responseJson = new JSONObject(response);
+        if (firstChar() == '{' || firstChar() == '[') {
             JSONObject result = new JSONObject();
-            result.put("result", responseJson);
+            result.put("result", parsedResponse());
 
             return result;
         }
@@ -189,16 +513,100 @@ public class ServiceCallResult {
 
     /**
      * Return the response from the service as JSONArray. Throws an exception if the response cannot be parsed as JSON
+     * <br>
+     * The response is parsed once, the same object is returned at each call.
      * 
      * @return the response from the service as JSONArray
      * @since 2023
      */
     public JSONArray getResponseAsJSONArray() {
-        if (response != null && !response.startsWith("[")) {
+        if (response != null && firstChar() != '[') {
             throw new NuxeoException(
                     "response is a simple string, cannot be converted to JSON Array. Call getResponse() instead.");
         }
-        return new JSONArray(response);
+        return (JSONArray) parsedResponse();
+    }
+
+    /**
+     * @return the body returned by the service when the call failed (for example, to check why a token was
+     *         rejected), null if the call was successful. Not part of the JSON of the result.
+     * @since 2025.4
+     */
+    public String getErrorBody() {
+        return errorBody;
+    }
+
+    public ServiceCallResult setErrorBody(String errorBody) {
+        this.errorBody = errorBody;
+        return this;
+    }
+
+    /**
+     * @return the delay sent by the service in a <code>Retry-After</code> header (with a 429 or a 503 for example),
+     *         null if none. Not part of the JSON of the result.
+     * @since 2025.4
+     */
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+
+    public ServiceCallResult setRetryAfter(Duration retryAfter) {
+        this.retryAfter = retryAfter;
+        return this;
+    }
+
+    /**
+     * @return the Content-Type header of the response, null if none. Not part of the JSON of the result.
+     * @since 2025.4
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    public ServiceCallResult setContentType(String contentType) {
+        this.contentType = contentType;
+        return this;
+    }
+
+    /**
+     * @return true if the response was too large to be read in memory, and was written to a temporary file: there is
+     *         no response String, the body is <code>getResponseBlob()</code> (see <code>SpillingBodyReader</code>)
+     * @since 2025.4
+     */
+    public boolean isResponseInFile() {
+        return responseInFile;
+    }
+
+    public ServiceCallResult setResponseInFile(boolean responseInFile) {
+        this.responseInFile = responseInFile;
+        return this;
+    }
+
+    /**
+     * @return the headers of the response, null if the call was not sent or failed. Not part of the JSON of the result.
+     * @since 2025.4
+     */
+    public HttpHeaders getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    public ServiceCallResult setResponseHeaders(HttpHeaders responseHeaders) {
+        this.responseHeaders = responseHeaders;
+        return this;
+    }
+
+    /**
+     * @return true if the same response was given to other callers (see <code>RequestCoalescer</code>): its response
+     *         blob, if any, is theirs too and must not be deleted
+     * @since 2025.4
+     */
+    public boolean isShared() {
+        return shared;
+    }
+
+    public ServiceCallResult setShared(boolean shared) {
+        this.shared = shared;
+        return this;
     }
 
     public int getResponseCode() {
@@ -217,6 +625,22 @@ public class ServiceCallResult {
         return isHttpSuccess(responseCode);
     }
 
+    /**
+     * @return true if the call was not sent because the circuit of the host is open
+     * @since 2025.4
+     */
+    public boolean isCircuitOpen() {
+        return responseCode == CIRCUIT_OPEN;
+    }
+
+    /**
+     * @return true if the call was not sent because of a rate limit
+     * @since 2025.4
+     */
+    public boolean isRateLimited() {
+        return responseCode == RATE_LIMITED;
+    }
+
     /**
      * @return true if responseCode is 200
      * @since 2023
@@ -0,0 +1,229 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.http;
+
+import java.io.IOException;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+
+/**
+ * Reads a successful response body in memory (as <code>ResponseBodyReader</code>) up to a threshold, and in a
+ * temporary file above it, so large responses are never fully held in the heap.
+ * <br>
+ * The result holds either the response as a String, or a file-backed <code>Blob</code> (see
+ * <code>ServiceCallResult#isResponseInFile</code>) with the mime type and encoding of the response.
+ * <br>
+ * When the <code>Content-Length</code> is above the threshold, the body is written to the file from the start.
+ *
+ * @since 2025.4
+ */
+public class SpillingBodyReader implements BodySubscriber<ServiceCallResult> {
+
+    private static final Logger log = LogManager.getLogger(SpillingBodyReader.class);
+
+    protected final long threshold;
+
+    protected final int responseCode;
+
+    protected final String responseMessage;
+
+    protected final String contentType;
+
+    protected final Charset charset;
+
+    protected final CompletableFuture<ServiceCallResult> result = new CompletableFuture<>();
+
+    protected Flow.Subscription subscription;
+
+    // In memory, until the threshold is reached
+    protected byte[] buffer;
+
+    protected int count = 0;
+
+    // Set once spilled
+    protected Blob blob;
+
+    protected FileChannel channel;
+
+    /**
+     * @param headers, of the response
+     * @param responseCode
+     * @param responseMessage
+     * @param threshold, in bytes
+     */
+    public SpillingBodyReader(HttpHeaders headers, int responseCode, String responseMessage, long threshold) {
+
+        this.threshold = threshold;
+        this.responseCode = responseCode;
+        this.responseMessage = responseMessage;
+        contentType = headers.firstValue("Content-Type").orElse(null);
+        charset = ResponseBodyReader.charsetOf(headers);
+
+        long contentLength = headers.firstValueAsLong("Content-Length").orElse(-1);
+        if (contentLength > threshold) {
+            buffer = null;
+        } else {
+            buffer = ResponseBodyReader.acquire(contentLength > 0 ? (int) contentLength : 0);
+        }
+    }
+
+    @Override
+    public CompletionStage<ServiceCallResult> getBody() {
+        return result;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+
+        this.subscription = subscription;
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> items) {
+
+        if (result.isDone()) {
+            return;
+        }
+        try {
+            for (ByteBuffer item : items) {
+                int length = item.remaining();
+                if (channel == null && (buffer == null || (long) count + length > threshold)) {
+                    spill();
+                }
+                if (channel != null) {
+                    while (item.hasRemaining()) {
+                        channel.write(item);
+                    }
+                } else {
+                    ensureCapacity(length);
+                    item.get(buffer, count, length);
+                    count += length;
+                }
+            }
+        } catch (IOException e) {
+            subscription.cancel();
+            onError(e);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+
+        ResponseBodyReader.release(buffer);
+        buffer = null;
+        closeChannel();
+        if (blob != null) {
+            try {
+                Files.deleteIfExists(blob.getFile().toPath());
+            } catch (IOException e) {
+                log.warn("Cannot delete the temporary file of a response: " + e.getMessage());
+            }
+        }
+        result.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+
+        if (result.isDone()) {
+            return;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                onError(e);
+                return;
+            }
+            log.debug("Response of " + blob.getLength() + " bytes written to " + blob.getFile());
+            result.complete(new ServiceCallResult(blob, responseCode, responseMessage).setContentType(contentType)
+                                                                                      .setResponseInFile(true));
+            return;
+        }
+
+        String body;
+        try {
+            body = new String(buffer, 0, count, charset);
+        } finally {
+            ResponseBodyReader.release(buffer);
+            buffer = null;
+        }
+        result.complete(new ServiceCallResult(body, responseCode, responseMessage).setContentType(contentType));
+    }
+
+    /*
+     * Moves what was read to a temporary file, the next bytes are written to the file
+     */
+    protected void spill() throws IOException {
+
+        blob = Blobs.createBlobWithExtension(".tmp");
+        blob.setMimeType(contentType == null ? null : contentType.split(";")[0].trim());
+        blob.setEncoding(charset.name());
+        channel = FileChannel.open(blob.getFile().toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        if (buffer != null) {
+            ByteBuffer read = ByteBuffer.wrap(buffer, 0, count);
+            while (read.hasRemaining()) {
+                channel.write(read);
+            }
+            ResponseBodyReader.release(buffer);
+            buffer = null;
+        }
+    }
+
+    protected void ensureCapacity(int length) {
+
+        int needed = count + length;
+        if (needed <= buffer.length) {
+            return;
+        }
+        byte[] larger = ResponseBodyReader.acquire((int) Math.min(threshold, Math.max(needed, 2L * buffer.length)));
+        System.arraycopy(buffer, 0, larger, 0, count);
+        ResponseBodyReader.release(buffer);
+        buffer = larger;
+    }
+
+    protected void closeChannel() {
+
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore, the file is deleted
+            }
+            channel = null;
+        }
+    }
+
+}
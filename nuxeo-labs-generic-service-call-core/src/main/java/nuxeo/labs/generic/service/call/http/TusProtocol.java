@@ -0,0 +1,155 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.http;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONObject;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+/**
+ * tus resumable upload, core protocol 1.0.0 (https://tus.io/protocols/resumable-upload): <code>POST url</code>
+ * (creation extension) creates the upload and returns its URL in <code>Location</code>, then the parts are sent one
+ * after the other with <code>PATCH</code> at their <code>Upload-Offset</code>. An interrupted upload is resumed at the
+ * offset returned by <code>HEAD</code> on its URL.
+ * <br>
+ * The filename and the mime type of the blob are sent in <code>Upload-Metadata</code> (<code>filename</code> and
+ * <code>filetype</code>). The result of the upload is a JSON object with the <code>location</code> of the upload.
+ * <br>
+ * The core protocol requires the parts to be sent in order, so they are never sent concurrently. A part retried after
+ * an error may be rejected (409, the server received some of its bytes): the upload then fails and resumes at the
+ * right offset the next time.
+ *
+ * @since 2025.4
+ */
+public class TusProtocol implements ChunkedUploadProtocol {
+
+    public static final String NAME = "tus";
+
+    public static final String TUS_VERSION = "1.0.0";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean isParallel() {
+        return false;
+    }
+
+    @Override
+    public CompletableFuture<ServiceCallResult> start(ChunkedUpload upload) {
+
+        String metadata = "filetype " + base64(upload.getMimeType());
+        if (StringUtils.isNotBlank(upload.getBlob().getFilename())) {
+            metadata = "filename " + base64(upload.getBlob().getFilename()) + "," + metadata;
+        }
+        HttpRequest request = upload.newRequest(upload.getUrl())
+                                    .header("Tus-Resumable", TUS_VERSION)
+                                    .header("Upload-Length", String.valueOf(upload.getLength()))
+                                    .header("Upload-Metadata", metadata)
+                                    .POST(BodyPublishers.noBody())
+                                    .build();
+        return upload.send(request).thenApply(result -> {
+            if (ServiceCallResult.isHttpSuccess(result.getResponseCode())) {
+                String location = header(result, "Location");
+                if (StringUtils.isBlank(location)) {
+                    throw new NuxeoException("No Location in the response creating the upload");
+                }
+                // Can be relative
+                upload.setUploadId(URI.create(upload.getUrl()).resolve(location).toString());
+            }
+            return result;
+        });
+    }
+
+    @Override
+    public CompletableFuture<ServiceCallResult> resume(ChunkedUpload upload) {
+
+        HttpRequest request = upload.newRequest(upload.getUploadId())
+                                    .header("Tus-Resumable", TUS_VERSION)
+                                    .method("HEAD", BodyPublishers.noBody())
+                                    .build();
+        return upload.send(request).thenApply(result -> {
+            if (ServiceCallResult.isHttpSuccess(result.getResponseCode())) {
+                upload.setOffset(offset(result));
+            }
+            return result;
+        });
+    }
+
+    @Override
+    public HttpRequest partRequest(ChunkedUpload upload, ChunkedUpload.Part part, BodyPublisher body) {
+
+        return upload.newRequest(upload.getUploadId())
+                     .header("Tus-Resumable", TUS_VERSION)
+                     .header("Upload-Offset", String.valueOf(part.getOffset()))
+                     .header("Content-Type", "application/offset+octet-stream")
+                     .method("PATCH", body)
+                     .build();
+    }
+
+    @Override
+    public String partUploaded(ChunkedUpload upload, ChunkedUpload.Part part, ServiceCallResult result) {
+
+        long expected = part.getOffset() + part.getLength();
+        if (offset(result) != expected) {
+            throw new NuxeoException("Part " + part.getNumber() + " not fully received, Upload-Offset is "
+                    + header(result, "Upload-Offset") + " instead of " + expected);
+        }
+        return null;
+    }
+
+    @Override
+    public CompletableFuture<ServiceCallResult> complete(ChunkedUpload upload) {
+
+        ServiceCallResult last = upload.getLastPartResult();
+        int responseCode = last == null ? 200 : last.getResponseCode();
+        JSONObject json = new JSONObject().put("location", upload.getUploadId());
+        return CompletableFuture.completedFuture(
+                new ServiceCallResult(json.toString(), responseCode, ServiceCall.getReasonPhrase(responseCode)));
+    }
+
+    protected static String header(ServiceCallResult result, String name) {
+        return result.getResponseHeaders() == null ? null : result.getResponseHeaders().firstValue(name).orElse(null);
+    }
+
+    protected static long offset(ServiceCallResult result) {
+
+        String offset = header(result, "Upload-Offset");
+        try {
+            return Long.parseLong(StringUtils.trim(offset));
+        } catch (NumberFormatException e) {
+            throw new NuxeoException("Invalid Upload-Offset: " + offset);
+        }
+    }
+
+    protected static String base64(String value) {
+        return Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,248 @@
+package nuxeo.labs.generic.service.call.operations;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+import nuxeo.labs.generic.service.call.AuthenticationToken;
+import nuxeo.labs.generic.service.call.http.BlobOutputStream;
+import nuxeo.labs.generic.service.call.http.HttpEngine;
+import nuxeo.labs.generic.service.call.http.ServiceCall;
+import nuxeo.labs.generic.service.call.http.ServiceCallResult;
+
+/**
+ * Runs several calls concurrently (using the non-blocking ServiceCall methods), instead of calling
+ * Services.CallRESTService in a loop.
+ */
+@Operation(id = CallServiceBatchOp.ID, category = Constants.CAT_SERVICES, label = "Call a REST Service (batch)", description = "Run several calls concurrently."
+        + " requestsJsonStr is a JSON array of requests, each one with method (GET, POST or PUT), url, and optionally headers (JSON object),"
+        + " body (string), tokenUuid and endpoint (see Services.CallRESTService)."
+        + " At most maxConcurrency calls (default 10) are in flight at the same time."
+        + " Returns a JSON blob (call its getString() method) holding an array of results, in the same order as the requests,"
+        + " each with the usual response, responseCode and responseMessage properties."
+        + " If failFast is true, the first failed call (responseCode not 2xx) cancels the others, and the requests not run"
+        + " get a -1 responseCode. Else (default), all the calls are run."
+        + " maxRetries and retryNonIdempotent apply to each call (see Services.CallRESTService)."
+        + " An invalid request (not a JSON object, no url, invalid headers) or a request whose token cannot be fetched"
+        + " is not sent, its result has a -1 responseCode.")
+public class CallServiceBatchOp {
+
+    public static final String ID = "Services.CallRESTServiceBatch";
+
+    public static final String NOT_RUN_MESSAGE = "Not run: a previous call failed (failFast)";
+
+    public static final String CANCELLED_MESSAGE = "Cancelled: a previous call failed (failFast)";
+
+    public static final String INVALID_REQUEST_MESSAGE = "Invalid request descriptor: not a JSON object";
+
+    public static final String NO_TOKEN_MESSAGE = "Could not get a token";
+
+    @Context
+    protected CoreSession session;
+
+    @Param(name = "requestsJsonStr", required = true)
+    protected String requestsJsonStr;
+
+    @Param(name = "maxConcurrency", required = false)
+    protected int maxConcurrency = 10;
+
+    @Param(name = "failFast", required = false)
+    protected boolean failFast = false;
+
+    // If not passed, the global configuration is used (see RetryPolicy)
+    @Param(name = "maxRetries", required = false)
+    protected Integer maxRetries;
+
+    // POST and PUT are retried only if true (or set globally)
+    @Param(name = "retryNonIdempotent", required = false)
+    protected boolean retryNonIdempotent = false;
+
+    @OperationMethod
+    public Blob run() {
+
+        JSONArray requests = new JSONArray(requestsJsonStr);
+        int count = requests.length();
+
+        ServiceCallResult[] results = new ServiceCallResult[count];
+        // Also read by the callbacks, to cancel the calls in flight
+        List<CompletableFuture<ServiceCallResult>> futures = new CopyOnWriteArrayList<>();
+
+        int concurrency = Math.max(1, maxConcurrency);
+        Semaphore slots = new Semaphore(concurrency);
+        AtomicBoolean failed = new AtomicBoolean(false);
+
+        try {
+            for (int i = 0; i < count && !(failFast && failed.get()); i++) {
+                slots.acquire();
+                if (failFast && failed.get()) {
+                    slots.release();
+                    break;
+                }
+
+                int index = i;
+                CompletableFuture<ServiceCallResult> future = start(requests.optJSONObject(i));
+                futures.add(future);
+                future.whenComplete((result, error) -> {
+                    if (error != null) {
+                        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                        String message = cause instanceof CancellationException ? CANCELLED_MESSAGE
+                                : cause.getMessage();
+                        result = new ServiceCallResult("{}", -1, message);
+                    }
+                    results[index] = result;
+                    if (failFast && result.callFailed() && failed.compareAndSet(false, true)) {
+                        futures.forEach(f -> f.cancel(true));
+                    }
+                    slots.release();
+                });
+                // Could have failed before the future was added to the list
+                if (failFast && failed.get()) {
+                    future.cancel(true);
+                }
+            }
+
+            // Each callback releases its slot once its result is set => we have all the results when we get all
+            // the slots back
+            slots.acquire(concurrency);
+
+        } catch (InterruptedException e) {
+            futures.forEach(f -> f.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new NuxeoException("Interrupted while running the batch", e);
+        }
+
+        // Each response is spliced as is (see ServiceCallResult#writeJson), the results are not built in memory
+        try (BlobOutputStream out = new BlobOutputStream(HttpEngine.getInstance().getConfig().getSpillThreshold(), 0,
+                ".json")) {
+            out.write('[');
+            for (int i = 0; i < count; i++) {
+                ServiceCallResult result = results[i];
+                if (result == null) {
+                    result = new ServiceCallResult("{}", -1, NOT_RUN_MESSAGE);
+                }
+                if (i > 0) {
+                    out.write(',');
+                }
+                result.writeJson(out);
+            }
+            out.write(']');
+            out.close();
+            return out.getBlob("application/json", "UTF-8");
+        } catch (IOException e) {
+            throw new NuxeoException("Failed to write the results of the batch", e);
+        }
+    }
+
+    /*
+     * Invalid requests are not sent, they get a -1 responseCode
+     */
+    protected CompletableFuture<ServiceCallResult> start(JSONObject request) {
+
+        if (request == null) {
+            return CompletableFuture.completedFuture(new ServiceCallResult("{}", -1, INVALID_REQUEST_MESSAGE));
+        }
+        String method = request.optString("method", request.optString("httpMethod", "")).toUpperCase();
+        String url = request.optString("url", null);
+        String body = request.has("body") ? request.optString("body", null) : request.optString("bodyStr", null);
+        String tokenUuid = request.optString("tokenUuid", null);
+        Object headersValue = request.opt("headers");
+        if (headersValue == null) {
+            headersValue = request.opt("headersJsonStr");
+        }
+
+        CallTarget target;
+        try {
+            target = CallTarget.resolve(request.optString("endpoint", null), url,
+                    headersValue == null ? null : headersValue.toString(), maxRetries,
+                    retryNonIdempotent ? Boolean.TRUE : null, tokenUuid);
+        } catch (NuxeoException e) {
+            return CompletableFuture.completedFuture(new ServiceCallResult("{}", -1, e.getMessage()));
+        } catch (JSONException e) {
+            return CompletableFuture.completedFuture(
+                    new ServiceCallResult("{}", -1, "Invalid headers: " + e.getMessage()));
+        }
+        if (target.getError() != null) {
+            return CompletableFuture.completedFuture(target.getError());
+        }
+        ServiceCall serviceCall = target.getServiceCall();
+        Map<String, String> headers = target.getHeaders();
+        AuthenticationToken token = target.getToken();
+        if (token == null) {
+            return send(serviceCall, method, target.getUrl(), headers, body);
+        }
+
+        // Fetching the token does not block the other requests of the batch
+        String requestUrl = target.getUrl();
+        CompletableFuture<ServiceCallResult> result = new CompletableFuture<>();
+        token.getTokenAsync().whenComplete((value, error) -> {
+            if (result.isDone()) {
+                // Cancelled (failFast)
+                return;
+            }
+            if (error != null || StringUtils.isBlank(value)) {
+                String message = NO_TOKEN_MESSAGE;
+                if (error != null) {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null
+                            ? error.getCause()
+                            : error;
+                    message += ": " + cause.getMessage();
+                }
+                result.complete(new ServiceCallResult("{}", -1, message));
+                return;
+            }
+            headers.put("Authorization", "Bearer " + value);
+            CompletableFuture<ServiceCallResult> call = send(serviceCall, method, requestUrl, headers, body);
+            result.whenComplete((r, e) -> {
+                if (result.isCancelled()) {
+                    call.cancel(true);
+                }
+            });
+            call.whenComplete((r, e) -> {
+                if (e != null) {
+                    result.completeExceptionally(e);
+                } else {
+                    result.complete(r);
+                }
+            });
+        });
+        return result;
+    }
+
+    protected CompletableFuture<ServiceCallResult> send(ServiceCall serviceCall, String method, String url,
+            Map<String, String> headers, String body) {
+
+        switch (method) {
+        case "GET":
+            return serviceCall.getAsync(url, headers);
+
+        case "POST":
+            return serviceCall.postAsync(url, headers, body);
+
+        case "PUT":
+            return serviceCall.putAsync(url, headers, body);
+
+        default:
+            return CompletableFuture.completedFuture(new ServiceCallResult("{}", -1,
+                    "Operation supports only GET/PUT or POST. Received <" + method + ">"));
+        }
+    }
+}
@@ -9,11 +9,11 @@ import org.nuxeo.ecm.automation.core.annotations.Operation;
 import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
 import org.nuxeo.ecm.automation.core.annotations.Param;
 import org.nuxeo.ecm.core.api.Blob;
-import org.nuxeo.ecm.core.api.Blobs;
 import org.nuxeo.ecm.core.api.CoreSession;
 
 import nuxeo.labs.generic.service.call.AuthenticationToken;
 import nuxeo.labs.generic.service.call.AuthenticationTokens;
+import nuxeo.labs.generic.service.call.http.BlobOutputStream;
 import nuxeo.labs.generic.service.call.http.ServiceCall;
 
 /**
@@ -52,15 +52,15 @@ public class CallServiceForTokenOp {
         
         AuthenticationToken token = AuthenticationTokens.getInstance().newToken(httpMethod, url, headers, bodyStr);
         // Call the service so we see if things work
-        @SuppressWarnings("unused")
         String tokenValue = token.getToken();
         
-        // If the call failed, no need to store it in memory
+        // If the call failed, no need to store it in memory. Unless it is shared with other callers and worked
+        // before: it is kept for them, and refreshed again in the background.
         if(StringUtils.isBlank(tokenValue)) {
-            AuthenticationTokens.getInstance().removeToken(token.getId());
+            AuthenticationTokens.getInstance().removeTokenIfNeverFetched(token.getId());
         }
         
-        return Blobs.createJSONBlob(token.tokenToJSONObject().toString());
+        return BlobOutputStream.toJsonBlob(token.tokenToJSONObject());
 
     }
 }
@@ -1,6 +1,9 @@
 package nuxeo.labs.generic.service.call.operations;
 
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.Map;
+import java.util.function.Function;
 
 import org.apache.commons.lang3.StringUtils;
 import org.nuxeo.ecm.automation.core.Constants;
@@ -13,8 +16,7 @@ import org.nuxeo.ecm.core.api.Blobs;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.NuxeoException;
 
-import nuxeo.labs.generic.service.call.AuthenticationToken;
-import nuxeo.labs.generic.service.call.AuthenticationTokens;
+import nuxeo.labs.generic.service.call.http.ResponseBodyReader;
 import nuxeo.labs.generic.service.call.http.ServiceCall;
 import nuxeo.labs.generic.service.call.http.ServiceCallResult;
 
@@ -24,7 +26,14 @@ import nuxeo.labs.generic.service.call.http.ServiceCallResult;
 @Operation(id = CallServiceOp.ID, category = Constants.CAT_SERVICES, label = "Call a REST Service", description = "Call a service, returns the raw result."
         + " If tokenUuid is passed, it corresponds to a token fetched in a previous call (to Service.CallRESTServiceForToken) and it will be reused. If"
         + " expired, a new token will be automatically fetched. The 'Authentication: Bearer <the token>' header will then be added to the headers."
-        + " If tokenUuid is not passed, then either the call is unauthenticated or you passed all the necessary info in the headers.")
+        + " If the service rejects the token (401), a new token is fetched and the call is replayed once."
+        + " If tokenUuid is not passed, then either the call is unauthenticated or you passed all the necessary info in the headers."
+        + " Transient errors (429, 502, 503, 504, IO errors) are retried for GET, up to maxRetries times (default in nuxeo.conf),"
+        + " and for POST/PUT only if retryNonIdempotent is true."
+        + " If endpoint is passed, it is the name of an endpoint declared in the configuration: url is then relative to its base URL,"
+        + " its headers are added to headersJsonStr, and its token (if any) is used when tokenUuid is not passed."
+        + " Large responses are written to a temporary file instead of being read in memory. responseMode is 'json' (default,"
+        + " the usual JSON result, with the response streamed from the file) or 'blob' (the body as sent, with its mime type).")
 public class CallServiceOp {
 
     public static final String ID = "Services.CallRESTService";
@@ -39,53 +48,114 @@ public class CallServiceOp {
     @Param(name = "httpMethod", required = true)
     protected String httpMethod;
 
-    @Param(name = "url", required = true)
+    // Relative to the base URL of the endpoint, if any
+    @Param(name = "url", required = false)
     protected String url;
 
+    // Name of an endpoint (see EndpointRegistry)
+    @Param(name = "endpoint", required = false)
+    protected String endpoint;
+
     @Param(name = "headersJsonStr", required = false)
     protected String headersJsonStr;
 
     @Param(name = "bodyStr", required = false)
     protected String bodyStr;
 
+    // If not passed, the global configuration is used (see RetryPolicy)
+    @Param(name = "maxRetries", required = false)
+    protected Integer maxRetries;
+
+    // POST and PUT are retried only if true (or set globally)
+    @Param(name = "retryNonIdempotent", required = false)
+    protected boolean retryNonIdempotent = false;
+
+    // "json" (default) or "blob"
+    @Param(name = "responseMode", required = false)
+    protected String responseMode = "json";
+
     @OperationMethod
     public Blob run() {
         
-        ServiceCallResult result = null;
-        
-        ServiceCall serviceCall = new ServiceCall();
-        Map<String, String> headers = ServiceCall.toHeadersMap(headersJsonStr);
-        
-        if(StringUtils.isNotBlank(tokenUuid)) {
-            AuthenticationToken token = AuthenticationTokens.getInstance().getToken(tokenUuid);
-            if(token == null) {
-                // Token was not stored, most likely because it failed
-                result = new ServiceCallResult("Invalid token. tokenUuid is valid, but the previous call failed.", -1, "Wring token");
-                return Blobs.createJSONBlob(result.toJsonString());
-            }
-            String tokenStr = token.getToken();
-            headers.put("Authorization", "Bearer " + tokenStr);
-        }
+        CallTarget target = CallTarget.resolve(endpoint, url, headersJsonStr, maxRetries,
+                retryNonIdempotent ? Boolean.TRUE : null, tokenUuid);
+        ServiceCall serviceCall = target.getServiceCall();
+        String callUrl = target.getUrl();
+        // Large responses are never fully loaded in memory
+        serviceCall.setSpillToDisk(true);
+        boolean blobMode = "blob".equalsIgnoreCase(StringUtils.trimToEmpty(responseMode));
         
+        Function<Map<String, String>, ServiceCallResult> call;
         switch (httpMethod.toUpperCase()) {
         case "GET":
-            result = serviceCall.get(url, headers);
+            call = h -> serviceCall.get(callUrl, h);
             break;
             
         case "POST":
-            result = serviceCall.post(url, headers, bodyStr);
+            call = h -> serviceCall.post(callUrl, h, bodyStr);
             break;
             
         case "PUT":
-            result = serviceCall.put(url, headers, bodyStr);
+            call = h -> serviceCall.put(callUrl, h, bodyStr);
             break;
             
         default:
             throw new NuxeoException("Operation supports only GET/PUT or POST. Received <" + httpMethod + ">");
         }
         
+        // If the service rejects the token (revoked, ...), a new one is fetched and the call is replayed once
+        ServiceCallResult result = target.call(call);
         
-        return Blobs.createJSONBlob(result.toJsonString());
+        if (blobMode && result.callWasSuccesful()) {
+            return toBodyBlob(result);
+        }
+        if (result.isResponseInFile()) {
+            // A GET shared with other callers (see RequestCoalescer) shares their file too
+            return toJsonBlob(result, !result.isShared());
+        }
+        return result.toJsonBlob();
+
+    }
 
+    /*
+     * The body, as sent by the service
+     */
+    protected Blob toBodyBlob(ServiceCallResult result) {
+
+        if (result.isResponseInFile()) {
+            return result.getResponseBlob();
+        }
+        String mimeType = null;
+        String contentType = result.getContentType();
+        if (StringUtils.isNotBlank(contentType)) {
+            mimeType = contentType.split(";")[0].trim();
+        }
+        // Same charset as the one used to decode the response
+        String encoding = ResponseBodyReader.charsetOf(contentType).name();
+        return Blobs.createBlob(StringUtils.defaultString(result.getRawResponse()),
+                StringUtils.defaultIfBlank(mimeType, "text/plain"), encoding);
+    }
+
+    /*
+     * The JSON result, streamed from the file of the response to another blob
+     */
+    protected Blob toJsonBlob(ServiceCallResult result, boolean deleteResponseFile) {
+
+        try {
+            return result.toJsonBlob();
+        } finally {
+            if (deleteResponseFile) {
+                deleteResponseFile(result);
+            }
+        }
+    }
+
+    protected void deleteResponseFile(ServiceCallResult result) {
+
+        try {
+            Files.deleteIfExists(result.getResponseBlob().getFile().toPath());
+        } catch (IOException e) {
+            // Temporary file, deleted by the framework anyway
+        }
     }
 }
@@ -0,0 +1,152 @@
+package nuxeo.labs.generic.service.call.operations;
+
+import java.util.Map;
+import java.util.function.Function;
+
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONException;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+import nuxeo.labs.generic.service.call.AuthenticationToken;
+import nuxeo.labs.generic.service.call.AuthenticationTokens;
+import nuxeo.labs.generic.service.call.Endpoint;
+import nuxeo.labs.generic.service.call.TokenReplay;
+import nuxeo.labs.generic.service.call.http.RetryPolicy;
+import nuxeo.labs.generic.service.call.http.ServiceCall;
+import nuxeo.labs.generic.service.call.http.ServiceCallResult;
+
+/**
+ * What the operations resolve before a call, from their <code>endpoint</code>, <code>url</code>,
+ * <code>headersJsonStr</code>, retry and <code>tokenUuid</code> parameters: the full URL, the headers, a ServiceCall
+ * with its retry policy, and the token (if any).
+ * <br>
+ * When <code>tokenUuid</code> is unknown, the call is not sent: <code>getError()</code> is the result to return.
+ *
+ * @since 2025.4
+ */
+public class CallTarget {
+
+    public static final String UNKNOWN_TOKEN_MESSAGE = "Invalid token. tokenUuid is unknown: the previous call failed,"
+            + " or the token was not used for a long time.";
+
+    public static final String UNKNOWN_TOKEN_REASON = "Wrong token";
+
+    protected final String url;
+
+    protected final Map<String, String> headers;
+
+    protected final ServiceCall serviceCall;
+
+    protected final AuthenticationToken token;
+
+    protected final ServiceCallResult error;
+
+    protected CallTarget(String url, Map<String, String> headers, ServiceCall serviceCall, AuthenticationToken token,
+            ServiceCallResult error) {
+        this.url = url;
+        this.headers = headers;
+        this.serviceCall = serviceCall;
+        this.token = token;
+        this.error = error;
+    }
+
+    /**
+     * @param endpointName, can be null
+     * @param url, relative to the base URL of the endpoint, if any
+     * @param headersJsonStr, can be null
+     * @param maxRetries, null for the default value (of the endpoint, if any)
+     * @param retryNonIdempotent, null for the default value (of the endpoint, if any)
+     * @param tokenUuid, can be null (the token of the endpoint, if any, is then used)
+     * @return the target of the call
+     * @throws NuxeoException if the endpoint is unknown, or if there is no url and no endpoint
+     * @throws JSONException if headersJsonStr is not a valid JSON object
+     * @since 2025.4
+     */
+    public static CallTarget resolve(String endpointName, String url, String headersJsonStr, Integer maxRetries,
+            Boolean retryNonIdempotent, String tokenUuid) {
+
+        Endpoint ep = Endpoint.get(endpointName);
+        String callUrl;
+        ServiceCall serviceCall;
+        Map<String, String> headers;
+        if (ep != null) {
+            callUrl = ep.resolveUrl(url);
+            serviceCall = ep.newServiceCall(maxRetries, retryNonIdempotent);
+            headers = ep.headers(headersJsonStr);
+        } else {
+            if (StringUtils.isBlank(url)) {
+                throw new NuxeoException("url is required when endpoint is not passed");
+            }
+            callUrl = url;
+            serviceCall = new ServiceCall();
+            serviceCall.setRetryPolicy(RetryPolicy.getDefault().with(maxRetries, retryNonIdempotent));
+            headers = ServiceCall.toHeadersMap(headersJsonStr);
+        }
+
+        AuthenticationToken token = null;
+        if (StringUtils.isNotBlank(tokenUuid)) {
+            token = AuthenticationTokens.getInstance().getToken(tokenUuid);
+            if (token == null) {
+                // Token was not stored (the call failed) or was evicted (not used for a long time)
+                return new CallTarget(callUrl, headers, serviceCall, null,
+                        new ServiceCallResult(UNKNOWN_TOKEN_MESSAGE, -1, UNKNOWN_TOKEN_REASON));
+            }
+        } else if (ep != null) {
+            token = ep.getToken();
+        }
+        if (token != null) {
+            // The rate limit of the token (if any) applies, see RateLimiters
+            serviceCall.setRateLimitKey(token.getDescriptorKey());
+        }
+        return new CallTarget(callUrl, headers, serviceCall, token, null);
+    }
+
+    /**
+     * Calls <code>call</code> with the headers, and the token if any: if the service rejects the token (revoked, ...), a
+     * new one is fetched and the call is replayed once (see TokenReplay).
+     *
+     * @param call, receives the headers
+     * @return the result of the call, <code>getError()</code> if tokenUuid was unknown
+     * @since 2025.4
+     */
+    public ServiceCallResult call(Function<Map<String, String>, ServiceCallResult> call) {
+
+        if (error != null) {
+            return error;
+        }
+        if (token != null) {
+            return TokenReplay.getInstance().call(token, headers, call);
+        }
+        return call.apply(headers);
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the headers, modifiable
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public ServiceCall getServiceCall() {
+        return serviceCall;
+    }
+
+    /**
+     * @return the token, null if there is none
+     */
+    public AuthenticationToken getToken() {
+        return token;
+    }
+
+    /**
+     * @return the result to return instead of calling the service (unknown tokenUuid), null if the call can be sent
+     */
+    public ServiceCallResult getError() {
+        return error;
+    }
+
+}
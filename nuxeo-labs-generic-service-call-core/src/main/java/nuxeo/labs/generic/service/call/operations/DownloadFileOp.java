@@ -2,7 +2,6 @@ package nuxeo.labs.generic.service.call.operations;
 
 import java.util.Map;
 
-import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.nuxeo.ecm.automation.core.Constants;
@@ -13,8 +12,7 @@ import org.nuxeo.ecm.automation.core.annotations.Param;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.CoreSession;
 
-import nuxeo.labs.generic.service.call.AuthenticationToken;
-import nuxeo.labs.generic.service.call.AuthenticationTokens;
+import nuxeo.labs.generic.service.call.http.RangeDownload;
 import nuxeo.labs.generic.service.call.http.ServiceCall;
 import nuxeo.labs.generic.service.call.http.ServiceCallResult;
 
@@ -25,7 +23,12 @@ import nuxeo.labs.generic.service.call.http.ServiceCallResult;
         + " httpMethod must be either POST or PUT. If POST, multipart/chincks upload is handled."
         + " If tokenUuid is passed, it corresponds to a token fetched in a previous call (to Service.CallRESTServiceForToken) and it will be reused. If"
         + " expired, a new token will be automatically fetched. The 'Authentication: Bearer <the token>' header will then be added to the headers."
-        + " If tokenUuid is not passed, then either the call is unauthenticated or you passed all the necessary info in the headers.")
+        + " If the service rejects the token (401), a new token is fetched and the call is replayed once."
+        + " If tokenUuid is not passed, then either the call is unauthenticated or you passed all the necessary info in the headers."
+        + " Transient errors (429, 502, 503, 504, IO errors) are retried up to maxRetries times (default in nuxeo.conf)."
+        + " If parallel is true and the service supports Range requests, the file is downloaded in parts of partSizeMB, up to parallelism parts at the same time."
+        + " If endpoint is passed, it is the name of an endpoint declared in the configuration: url is then relative to its base URL,"
+        + " its headers are added to headersJsonStr, and its token (if any) is used when tokenUuid is not passed.")
 public class DownloadFileOp {
 
     public static final String ID = "Services.DownloadFile";
@@ -38,27 +41,42 @@ public class DownloadFileOp {
     @Param(name = "tokenUuid", required = false)
     protected String tokenUuid;
 
-    @Param(name = "url", required = true)
+    // Relative to the base URL of the endpoint, if any
+    @Param(name = "url", required = false)
     protected String url;
 
+    // Name of an endpoint (see EndpointRegistry)
+    @Param(name = "endpoint", required = false)
+    protected String endpoint;
+
     @Param(name = "headersJsonStr", required = false)
     protected String headersJsonStr;
+
+    // If not passed, the global configuration is used (see RetryPolicy)
+    @Param(name = "maxRetries", required = false)
+    protected Integer maxRetries;
+    
+    // Downloads the file with several Range requests (see RangeDownload)
+    @Param(name = "parallel", required = false)
+    protected boolean parallel = false;
+
+    // If not passed, the global configuration is used (see RangeDownload)
+    @Param(name = "partSizeMB", required = false)
+    protected Integer partSizeMB;
+
+    // If not passed, the global configuration is used (see RangeDownload)
+    @Param(name = "parallelism", required = false)
+    protected Integer parallelism;
     
     @OperationMethod
     public Blob run() {
         
-        ServiceCallResult result = null;
-        
-        ServiceCall serviceCall = new ServiceCall();
-        Map<String, String> headers = ServiceCall.toHeadersMap(headersJsonStr);
-        
-        if(StringUtils.isNotBlank(tokenUuid)) {
-            AuthenticationToken token = AuthenticationTokens.getInstance().getToken(tokenUuid);
-            String tokenStr = token.getToken();
-            headers.put("Authorization", "Bearer " + tokenStr);
-        }
+        CallTarget target = CallTarget.resolve(endpoint, url, headersJsonStr, maxRetries, null, tokenUuid);
+        ServiceCall serviceCall = target.getServiceCall();
+        String callUrl = target.getUrl();
+        // If the service rejects the token (revoked, ...), a new one is fetched and the call is replayed once
+        ServiceCallResult result = target.call(h -> download(serviceCall, callUrl, h));
         
-        result = serviceCall.downloadFile(url, headers);
         if(result.getResponseBlob() == null) {
             try {
                 log.error("Error downloading the file: " + result.toJsonString(0));
@@ -69,4 +87,19 @@ public class DownloadFileOp {
         
         return result.getResponseBlob();
     }
+
+    protected ServiceCallResult download(ServiceCall serviceCall, String callUrl, Map<String, String> headers) {
+
+        if (!parallel) {
+            return serviceCall.downloadFile(callUrl, headers);
+        }
+        RangeDownload download = new RangeDownload(serviceCall, callUrl, headers);
+        if (partSizeMB != null) {
+            download.setPartSize(partSizeMB * 1024L * 1024L);
+        }
+        if (parallelism != null) {
+            download.setParallelism(parallelism);
+        }
+        return download.download();
+    }
 }
@@ -3,18 +3,21 @@ package nuxeo.labs.generic.service.call.operations;
 import java.util.Map;
 
 import org.apache.commons.lang3.StringUtils;
+import org.json.JSONObject;
 import org.nuxeo.ecm.automation.core.Constants;
 import org.nuxeo.ecm.automation.core.annotations.Context;
 import org.nuxeo.ecm.automation.core.annotations.Operation;
 import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
 import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.automation.core.util.BlobList;
 import org.nuxeo.ecm.core.api.Blob;
-import org.nuxeo.ecm.core.api.Blobs;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoException;
 
-import nuxeo.labs.generic.service.call.AuthenticationToken;
-import nuxeo.labs.generic.service.call.AuthenticationTokens;
+import nuxeo.labs.generic.service.call.http.ChunkedUpload;
+import nuxeo.labs.generic.service.call.http.ChunkedUploadProtocol;
+import nuxeo.labs.generic.service.call.http.MultipartBody;
 import nuxeo.labs.generic.service.call.http.ServiceCall;
 import nuxeo.labs.generic.service.call.http.ServiceCallResult;
 
@@ -23,10 +26,19 @@ import nuxeo.labs.generic.service.call.http.ServiceCallResult;
  */
 @Operation(id = UploadFileOp.ID, category = Constants.CAT_SERVICES, label = "Upload a file to a REST service", description = "Upload a file to a REST service."
         + " If input is a document, xpath parameter is used to get the blob (default file:content). input can also be a Blob."
-        + " httpMethod must be either POST or PUT. If POST, multipart/chincks upload is handled."
+        + " httpMethod must be either POST or PUT. The blob is streamed as the raw body of the request, unless multipart is true."
+        + " If multipart is true, a multipart/form-data body is sent: the input blob (or each blob of a list) is a file part named fileFieldName,"
+        + " filePartsJsonStr maps other part names to xpaths of the input document, formFieldsJsonStr holds the text fields."
+        + " If chunkedProtocol is passed (s3, tus or content-range), the blob is uploaded in parts of partSizeMB, up to parallelism parts at the same time"
+        + " (s3 only, the other protocols send the parts in order), and an interrupted upload of the same blob to the same url is resumed. httpMethod is then ignored."
+        + " s3 sends the headers as is (the requests are not signed): it works with S3 compatible services authenticating by header, not with AWS S3 itself."
         + " If tokenUuid is passed, it corresponds to a token fetched in a previous call (to Service.CallRESTServiceForToken) and it will be reused. If"
         + " expired, a new token will be automatically fetched. The 'Authentication: Bearer <the token>' header will then be added to the headers."
-        + " If tokenUuid is not passed, then either the call is unauthenticated or you passed all the necessary info in the headers.")
+        + " If the service rejects the token (401), a new token is fetched and the upload is replayed once."
+        + " If tokenUuid is not passed, then either the call is unauthenticated or you passed all the necessary info in the headers."
+        + " Transient errors (429, 502, 503, 504, IO errors) are retried only if retryNonIdempotent is true, up to maxRetries times."
+        + " If endpoint is passed, it is the name of an endpoint declared in the configuration: url is then relative to its base URL,"
+        + " its headers are added to headersJsonStr, and its token (if any) is used when tokenUuid is not passed.")
 public class UploadFileOp {
 
     public static final String ID = "Services.UploadFile";
@@ -40,18 +52,73 @@ public class UploadFileOp {
     @Param(name = "httpMethod", required = true)
     protected String httpMethod;
 
-    @Param(name = "url", required = true)
+    // Relative to the base URL of the endpoint, if any
+    @Param(name = "url", required = false)
     protected String url;
 
+    // Name of an endpoint (see EndpointRegistry)
+    @Param(name = "endpoint", required = false)
+    protected String endpoint;
+
     @Param(name = "headersJsonStr", required = false)
     protected String headersJsonStr;
     
     @Param(name = "xpath", required = false)
     protected String xpath = "file:content";
 
+    // Sends a multipart/form-data body instead of the raw blob
+    @Param(name = "multipart", required = false)
+    protected boolean multipart = false;
+
+    // Name of the part of the input blob(s), when multipart
+    @Param(name = "fileFieldName", required = false)
+    protected String fileFieldName = "file";
+
+    // {"partName": "xpath", ...}, file parts from the input document, when multipart (xpath is then ignored)
+    @Param(name = "filePartsJsonStr", required = false)
+    protected String filePartsJsonStr;
+
+    // {"name": "value", ...}, text fields, when multipart
+    @Param(name = "formFieldsJsonStr", required = false)
+    protected String formFieldsJsonStr;
+
+    // s3, tus or content-range: uploads the blob in parts (see ChunkedUpload)
+    @Param(name = "chunkedProtocol", required = false)
+    protected String chunkedProtocol;
+
+    // If not passed, the global configuration is used (see ChunkedUpload)
+    @Param(name = "partSizeMB", required = false)
+    protected Integer partSizeMB;
+
+    // If not passed, the global configuration is used (see ChunkedUpload)
+    @Param(name = "parallelism", required = false)
+    protected Integer parallelism;
+
+    // If not passed, the global configuration is used (see RetryPolicy)
+    @Param(name = "maxRetries", required = false)
+    protected Integer maxRetries;
+
+    // POST and PUT are retried only if true (or set globally)
+    @Param(name = "retryNonIdempotent", required = false)
+    protected boolean retryNonIdempotent = false;
+
     @OperationMethod
     public Blob run(DocumentModel doc) {
         
+        if (multipart && StringUtils.isNotBlank(filePartsJsonStr)) {
+            MultipartBody body = newMultipartBody();
+            JSONObject fileParts = new JSONObject(filePartsJsonStr);
+            for (String name : fileParts.keySet()) {
+                String partXpath = fileParts.getString(name);
+                Blob blob = (Blob) doc.getPropertyValue(partXpath);
+                if (blob == null) {
+                    throw new NuxeoException("No blob at " + partXpath);
+                }
+                body.addFile(name, blob);
+            }
+            return upload(null, body);
+        }
+
         Blob blob = (Blob) doc.getPropertyValue(xpath);
         
         return run(blob);
@@ -60,20 +127,78 @@ public class UploadFileOp {
     
     @OperationMethod
     public Blob run(Blob blob) {
-        
-        ServiceCallResult result = null;
-        
-        ServiceCall serviceCall = new ServiceCall();
-        Map<String, String> headers = ServiceCall.toHeadersMap(headersJsonStr);
-        
-        if(StringUtils.isNotBlank(tokenUuid)) {
-            AuthenticationToken token = AuthenticationTokens.getInstance().getToken(tokenUuid);
-            String tokenStr = token.getToken();
-            headers.put("Authorization", "Bearer " + tokenStr);
+
+        if (multipart) {
+            return upload(null, newMultipartBody().addFile(fileFieldName, blob));
         }
-        
-        result = serviceCall.uploadBlob(httpMethod, blob, url, headers);
-        
-        return Blobs.createJSONBlob(result.toJsonString());
+        return upload(blob, null);
+    }
+
+    @OperationMethod
+    public Blob run(BlobList blobs) {
+
+        if (!multipart) {
+            throw new NuxeoException("Several blobs can only be uploaded with multipart=true");
+        }
+        MultipartBody body = newMultipartBody();
+        for (Blob blob : blobs) {
+            body.addFile(fileFieldName, blob);
+        }
+        return upload(null, body);
+    }
+
+    /*
+     * The text fields, the files are added by the caller
+     */
+    protected MultipartBody newMultipartBody() {
+
+        MultipartBody body = new MultipartBody();
+        if (StringUtils.isNotBlank(formFieldsJsonStr)) {
+            JSONObject fields = new JSONObject(formFieldsJsonStr);
+            for (String name : fields.keySet()) {
+                body.addField(name, fields.get(name).toString());
+            }
+        }
+        return body;
+    }
+
+    /*
+     * Uploads either the blob as the body, or the multipart body
+     */
+    protected Blob upload(Blob blob, MultipartBody multipartBody) {
+
+        if (multipartBody != null && StringUtils.isNotBlank(chunkedProtocol)) {
+            throw new NuxeoException("multipart and chunkedProtocol cannot be used together");
+        }
+        CallTarget target = CallTarget.resolve(endpoint, url, headersJsonStr, maxRetries,
+                retryNonIdempotent ? Boolean.TRUE : null, tokenUuid);
+        ServiceCall serviceCall = target.getServiceCall();
+        String callUrl = target.getUrl();
+        // If the service rejects the token (revoked, ...), a new one is fetched and the call is replayed once.
+        // The blobs are streamed, the replay reads them again.
+        ServiceCallResult result = target.call(h -> send(serviceCall, callUrl, h, blob, multipartBody));
+
+        return result.toJsonBlob();
+    }
+
+    protected ServiceCallResult send(ServiceCall serviceCall, String callUrl, Map<String, String> headers, Blob blob,
+            MultipartBody multipartBody) {
+
+        if (multipartBody != null) {
+            return serviceCall.uploadMultipart(httpMethod, multipartBody, callUrl, headers);
+        }
+        if (StringUtils.isNotBlank(chunkedProtocol)) {
+            // A replay resumes the upload where it stopped
+            ChunkedUpload upload = new ChunkedUpload(serviceCall, ChunkedUploadProtocol.forName(chunkedProtocol), blob,
+                    callUrl, headers);
+            if (partSizeMB != null) {
+                upload.setPartSize(partSizeMB * 1024L * 1024L);
+            }
+            if (parallelism != null) {
+                upload.setParallelism(parallelism);
+            }
+            return upload.upload();
+        }
+        return serviceCall.uploadBlob(httpMethod, blob, callUrl, headers);
     }
 }
@@ -0,0 +1,172 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import nuxeo.labs.generic.service.call.http.HttpEngine;
+import nuxeo.labs.generic.service.call.http.HttpEngineConfig;
+import nuxeo.labs.generic.service.call.http.ServiceCall;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * Compares the number of sockets and the latency of:
+ * <ul>
+ * <li>One HttpURLConnection per call, disconnected after the call (behavior before the shared engine)</li>
+ * <li>The shared engine, HTTP/1.1</li>
+ * <li>The shared engine, HTTP/2</li>
+ * </ul>
+ * against a local TLS stub answering after a small delay.
+ * <br>
+ * Not a unit test: it runs only if the SERVICECALL_BENCHMARK environment variable is set. Results are printed to the
+ * console.
+ *
+ * @since 2025.4
+ */
+public class BenchmarkHttp2 {
+
+    protected static final int NB_CALLS = 2000;
+
+    protected static final int CONCURRENCY = 32;
+
+    protected static final long SERVER_DELAY_MS = 5;
+
+    protected static class CountingDispatcher extends Dispatcher {
+
+        protected final AtomicInteger connections = new AtomicInteger();
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+            if (request.getSequenceNumber() == 0) {
+                connections.incrementAndGet();
+            }
+            Thread.sleep(SERVER_DELAY_MS);
+            return new MockResponse().setBody("{\"id\": \"0123456789\", \"title\": \"Some title\"}");
+        }
+    }
+
+    @Test
+    public void compareTransports() throws Exception {
+
+        Assume.assumeTrue("SERVICECALL_BENCHMARK not set => not running the benchmark.",
+                System.getenv("SERVICECALL_BENCHMARK") != null);
+
+        SSLContext sslContext = TlsMockServers.clientSslContext();
+
+        run("HttpURLConnection per call", false, url -> () -> callWithUrlConnection(url, sslContext));
+
+        HttpEngineConfig config = new HttpEngineConfig();
+        config.setSslContext(sslContext);
+        config.setMaxConnectionsPerHost(CONCURRENCY);
+        config.setVersion(HttpClient.Version.HTTP_1_1);
+        try (HttpEngine engine = new HttpEngine(config)) {
+            ServiceCall serviceCall = new ServiceCall(engine);
+            run("Shared engine, HTTP/1.1", false, url -> () -> serviceCall.get(url, null).getResponseCode());
+        }
+
+        config.setVersion(HttpClient.Version.HTTP_2);
+        try (HttpEngine engine = new HttpEngine(config)) {
+            ServiceCall serviceCall = new ServiceCall(engine);
+            run("Shared engine, HTTP/2", true, url -> () -> serviceCall.get(url, null).getResponseCode());
+        }
+    }
+
+    protected interface CallFactory {
+        Callable<Integer> newCall(String url);
+    }
+
+    protected void run(String label, boolean http2, CallFactory factory) throws Exception {
+
+        try (MockWebServer server = TlsMockServers.newServer(http2)) {
+            CountingDispatcher dispatcher = new CountingDispatcher();
+            server.setDispatcher(dispatcher);
+            server.start();
+            String url = TlsMockServers.url(server, "/bench");
+
+            long[] durations = new long[NB_CALLS];
+            ExecutorService pool = Executors.newFixedThreadPool(CONCURRENCY);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int i = 0; i < NB_CALLS; i++) {
+                    int index = i;
+                    Callable<Integer> call = factory.newCall(url);
+                    futures.add(pool.submit(() -> {
+                        long start = System.nanoTime();
+                        int status = call.call();
+                        durations[index] = System.nanoTime() - start;
+                        assertEquals(200, status);
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+
+            Arrays.sort(durations);
+            System.out.println(String.format("%-30s sockets: %5d   p50: %6.2f ms   p99: %6.2f ms", label,
+                    dispatcher.connections.get(), durations[NB_CALLS / 2] / 1e6,
+                    durations[(int) (NB_CALLS * 0.99)] / 1e6));
+        }
+    }
+
+    /*
+     * What ServiceCall did before the shared engine
+     */
+    protected int callWithUrlConnection(String url, SSLContext sslContext) throws Exception {
+
+        HttpsURLConnection connection = (HttpsURLConnection) new URL(url).openConnection();
+        try {
+            connection.setSSLSocketFactory(sslContext.getSocketFactory());
+            connection.setRequestMethod("GET");
+            int status = connection.getResponseCode();
+            try (InputStream in = connection.getInputStream()) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            return status;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.function.Function;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import nuxeo.labs.generic.service.call.http.ResponseBodyReader;
+
+/**
+ * Compares the bytes allocated and the time to read a large JSON response:
+ * <ul>
+ * <li>The line loop used before <code>ResponseBodyReader</code>: byte array, then a String per line, trimmed and
+ * appended to a StringBuilder</li>
+ * <li><code>ResponseBodyReader</code>, with and without a Content-Length</li>
+ * </ul>
+ * The body is fed in 16KB chunks, as the HTTP client does, in the benchmark thread, so the allocations can be measured
+ * with <code>ThreadMXBean#getThreadAllocatedBytes</code>.
+ * <br>
+ * Not a unit test: it runs only if the SERVICECALL_BENCHMARK environment variable is set. Results are printed to the
+ * console.
+ *
+ * @since 2025.4
+ */
+public class BenchmarkResponseReader {
+
+    protected static final int BODY_SIZE = 4 * 1024 * 1024;
+
+    protected static final int CHUNK_SIZE = 16 * 1024;
+
+    protected static final int WARMUP = 20;
+
+    protected static final int ITERATIONS = 50;
+
+    @Test
+    public void compareReaders() throws Exception {
+
+        Assume.assumeTrue("SERVICECALL_BENCHMARK not set => not running the benchmark.",
+                System.getenv("SERVICECALL_BENCHMARK") != null);
+
+        byte[] body = newJsonBody();
+        List<ByteBuffer> chunks = new ArrayList<>();
+        for (int i = 0; i < body.length; i += CHUNK_SIZE) {
+            chunks.add(ByteBuffer.wrap(body, i, Math.min(CHUNK_SIZE, body.length - i)).slice().asReadOnlyBuffer());
+        }
+
+        run("Line loop (before)", chunks, this::readWithLineLoop);
+        run("Reader, Content-Length", chunks, c -> read(new ResponseBodyReader(body.length, StandardCharsets.UTF_8), c));
+        run("Reader, no Content-Length", chunks, c -> read(new ResponseBodyReader(-1, StandardCharsets.UTF_8), c));
+
+        // The reader keeps the payload as sent, the line loop does not
+        assertEquals(new String(body, StandardCharsets.UTF_8),
+                read(new ResponseBodyReader(-1, StandardCharsets.UTF_8), chunks));
+    }
+
+    protected void run(String label, List<ByteBuffer> chunks, Function<List<ByteBuffer>, String> reader) {
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        for (int i = 0; i < WARMUP; i++) {
+            reader.apply(rewind(chunks));
+        }
+
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        int length = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            length += reader.apply(rewind(chunks)).length();
+        }
+        long duration = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        System.out.println(String.format("%-28s %8.2f MB allocated/call   %7.2f ms/call   (%d chars)", label,
+                allocated / (double) ITERATIONS / (1024 * 1024), duration / 1e6 / ITERATIONS, length / ITERATIONS));
+    }
+
+    protected static List<ByteBuffer> rewind(List<ByteBuffer> chunks) {
+        chunks.forEach(ByteBuffer::rewind);
+        return chunks;
+    }
+
+    protected static String read(ResponseBodyReader reader, List<ByteBuffer> chunks) {
+
+        reader.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+        reader.onNext(chunks);
+        reader.onComplete();
+        return reader.getBody().toCompletableFuture().join();
+    }
+
+    /*
+     * What ServiceCall did before ResponseBodyReader: BodySubscribers.ofByteArray(), then a line loop
+     */
+    protected String readWithLineLoop(List<ByteBuffer> chunks) {
+
+        int size = chunks.stream().mapToInt(ByteBuffer::remaining).sum();
+        byte[] bytes = new byte[size];
+        int offset = 0;
+        for (ByteBuffer chunk : chunks) {
+            int length = chunk.remaining();
+            chunk.get(bytes, offset, length);
+            offset += length;
+        }
+        try (BufferedReader br = new BufferedReader(
+                new InputStreamReader(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8))) {
+            StringBuilder responseStr = new StringBuilder();
+            String line;
+            while ((line = br.readLine()) != null) {
+                responseStr.append(line.trim());
+            }
+            return responseStr.toString();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+     * Pretty printed JSON, so there are many lines
+     */
+    protected static byte[] newJsonBody() {
+
+        StringBuilder json = new StringBuilder("{\n  \"entries\": [\n");
+        for (int i = 0; json.length() < BODY_SIZE; i++) {
+            json.append(i == 0 ? "" : ",\n")
+                .append("    {\n      \"id\": \"")
+                .append(i)
+                .append("\",\n      \"title\": \"Some title, with an accent: é\",\n      \"description\": \"Some description\"\n    }");
+        }
+        json.append("\n  ]\n}\n");
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.Function;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assume;
+import org.junit.Test;
+
+import nuxeo.labs.generic.service.call.http.ServiceCallResult;
+
+/**
+ * Compares the bytes allocated and the time to build the JSON result of a call (what the operations return), on a
+ * small and a large response:
+ * <ul>
+ * <li>Parse and serialize, as <code>ServiceCallResult#toJsonString</code> did before: the response is parsed to a
+ * JSONObject, put in the result JSONObject, and the whole tree is serialized</li>
+ * <li><code>ServiceCallResult#toJsonString</code>, copying the response as is</li>
+ * </ul>
+ * Not a unit test: it runs only if the SERVICECALL_BENCHMARK environment variable is set. Results are printed to the
+ * console.
+ *
+ * @since 2025.4
+ */
+public class BenchmarkResultJson {
+
+    protected static final int SMALL_SIZE = 1024;
+
+    protected static final int LARGE_SIZE = 4 * 1024 * 1024;
+
+    @Test
+    public void compareSerializations() throws Exception {
+
+        Assume.assumeTrue("SERVICECALL_BENCHMARK not set => not running the benchmark.",
+                System.getenv("SERVICECALL_BENCHMARK") != null);
+
+        for (int size : new int[] { SMALL_SIZE, LARGE_SIZE }) {
+            String response = newJsonResponse(size);
+            int iterations = size == SMALL_SIZE ? 20000 : 20;
+            System.out.println("Response of " + response.length() + " chars:");
+
+            run("  Parse and serialize (before)", iterations, response, BenchmarkResultJson::parseAndSerialize);
+            run("  Spliced", iterations, response, r -> new ServiceCallResult(r, 200, "OK").setContentType(
+                    "application/json").toJsonString());
+
+            // Same content
+            JSONObject spliced = new JSONObject(
+                    new ServiceCallResult(response, 200, "OK").setContentType("application/json").toJsonString());
+            JSONObject parsed = new JSONObject(parseAndSerialize(response));
+            assertEquals(parsed.getJSONObject("response").getJSONArray("entries").length(),
+                    spliced.getJSONObject("response").getJSONArray("entries").length());
+        }
+    }
+
+    protected void run(String label, int iterations, String response, Function<String, String> serializer) {
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        for (int i = 0; i < iterations; i++) {
+            serializer.apply(response);
+        }
+
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        int length = 0;
+        for (int i = 0; i < iterations; i++) {
+            length += serializer.apply(response).length();
+        }
+        long duration = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        System.out.println(String.format("%-32s %10.1f KB allocated/call   %9.3f ms/call   (%d chars)", label,
+                allocated / (double) iterations / 1024, duration / 1e6 / iterations, length / iterations));
+    }
+
+    /*
+     * What ServiceCallResult#toJsonString did before
+     */
+    protected static String parseAndSerialize(String response) {
+
+        JSONObject obj = new JSONObject();
+        obj.put("response", new JSONObject(response));
+        obj.put("responseCode", 200);
+        obj.put("responseMessage", "OK");
+        return obj.toString(0);
+    }
+
+    protected static String newJsonResponse(int size) {
+
+        JSONArray entries = new JSONArray();
+        int length = 0;
+        for (int i = 0; length < size; i++) {
+            JSONObject entry = new JSONObject();
+            entry.put("id", String.valueOf(i));
+            entry.put("title", "Some title, with an accent: é");
+            entry.put("value", i * 1.5);
+            entries.put(entry);
+            length += entry.toString().length() + 1;
+        }
+        return new JSONObject().put("entries", entries).toString();
+    }
+
+}
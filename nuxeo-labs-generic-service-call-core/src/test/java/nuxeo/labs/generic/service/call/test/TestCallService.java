@@ -21,10 +21,36 @@ package nuxeo.labs.generic.service.call.test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang3.StringUtils;
 import org.json.JSONObject;
@@ -32,19 +58,47 @@ import org.junit.Assume;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
 import org.nuxeo.ecm.core.test.DefaultRepositoryInit;
 import org.nuxeo.ecm.core.test.annotations.Granularity;
 import org.nuxeo.ecm.core.test.annotations.RepositoryConfig;
 import org.nuxeo.ecm.platform.test.PlatformFeature;
+import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.test.runner.Deploy;
 import org.nuxeo.runtime.test.runner.Features;
 import org.nuxeo.runtime.test.runner.FeaturesRunner;
 
 import nuxeo.labs.generic.service.call.AuthenticationToken;
 import nuxeo.labs.generic.service.call.AuthenticationTokens;
+import nuxeo.labs.generic.service.call.Endpoint;
+import nuxeo.labs.generic.service.call.EndpointDescriptor;
+import nuxeo.labs.generic.service.call.EndpointRegistry;
+import nuxeo.labs.generic.service.call.SharedTokenStore;
+import nuxeo.labs.generic.service.call.TokenRefresher;
+import nuxeo.labs.generic.service.call.http.BlobOutputStream;
+import nuxeo.labs.generic.service.call.http.ChunkedUpload;
+import nuxeo.labs.generic.service.call.http.CircuitBreaker;
+import nuxeo.labs.generic.service.call.http.ContentRangeProtocol;
+import nuxeo.labs.generic.service.call.http.DistributedRateLimiter;
+import nuxeo.labs.generic.service.call.http.HttpEngine;
+import nuxeo.labs.generic.service.call.http.HttpEngineConfig;
+import nuxeo.labs.generic.service.call.http.HttpResponseCache;
+import nuxeo.labs.generic.service.call.http.RangeDownload;
+import nuxeo.labs.generic.service.call.http.RateLimiter;
+import nuxeo.labs.generic.service.call.http.RateLimiters;
+import nuxeo.labs.generic.service.call.http.RequestCoalescer;
+import nuxeo.labs.generic.service.call.http.RetryPolicy;
+import nuxeo.labs.generic.service.call.http.S3MultipartProtocol;
 import nuxeo.labs.generic.service.call.http.ServiceCall;
+import nuxeo.labs.generic.service.call.http.ServiceCallResult;
+import nuxeo.labs.generic.service.call.http.TusProtocol;
+import okhttp3.mockwebserver.Dispatcher;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
 
 /**
  * The tests expect some environment variables to be set:
@@ -60,6 +114,7 @@ import okhttp3.mockwebserver.MockWebServer;
 @Features(PlatformFeature.class)
 @RepositoryConfig(init = DefaultRepositoryInit.class, cleanup = Granularity.METHOD)
 @Deploy("nuxeo.labs.generic.service.call.nuxeo-labs-generic-service-call-core")
+@Deploy("nuxeo.labs.generic.service.call.nuxeo-labs-generic-service-call-core:OSGI-INF/test-endpoints-contrib.xml")
 public class TestCallService {
 
     protected String authUrl;
@@ -108,6 +163,50 @@ public class TestCallService {
 
     }
 
+    @Test
+    public void shouldDeduplicateAndEvictTokens() throws Exception {
+
+        // Max. 2 tokens, evicted after 300ms without being used
+        AuthenticationTokens tokens = new AuthenticationTokens(2, Duration.ofMillis(300)) {
+        };
+        long hits = tokens.getHits();
+        long misses = tokens.getMisses();
+        long evictions = tokens.getEvictions();
+
+        Map<String, String> headers1 = new HashMap<>();
+        headers1.put("Content-Type", "application/json");
+        headers1.put("client_id", "123");
+        // Same headers, different order and case
+        Map<String, String> headers2 = new HashMap<>();
+        headers2.put("CLIENT_ID", "123");
+        headers2.put("content-type", "application/json");
+
+        AuthenticationToken token1 = tokens.newToken("POST", "http://auth.example/token", headers1, "body");
+        AuthenticationToken sameToken = tokens.newToken("post", "http://auth.example/token", headers2, "body");
+        assertSame(token1, sameToken);
+        assertEquals(1, tokens.size());
+        assertEquals(hits + 1, tokens.getHits());
+        assertEquals(misses + 1, tokens.getMisses());
+
+        AuthenticationToken token2 = tokens.newToken("POST", "http://auth.example/token", headers1, "other body");
+        assertNotSame(token1, token2);
+        assertEquals(2, tokens.size());
+
+        // token2 is the least recently used => evicted when token3 is created
+        assertSame(token1, tokens.getToken(token1.getId()));
+        AuthenticationToken token3 = tokens.newToken("GET", "http://auth.example/token", null, null);
+        assertEquals(2, tokens.size());
+        assertNull(tokens.getToken(token2.getId()));
+        assertSame(token3, tokens.getToken(token3.getId()));
+        assertEquals(evictions + 1, tokens.getEvictions());
+
+        // Idle => evicted
+        Thread.sleep(500);
+        assertNull(tokens.getToken(token1.getId()));
+        assertEquals(0, tokens.size());
+        assertEquals(evictions + 3, tokens.getEvictions());
+    }
+
     @Test
     public void shouldGetATokenWithMockServer() throws Exception {
 
@@ -177,6 +276,1418 @@ public class TestCallService {
         }
     }
 
+    @Test
+    public void shouldReuseConnectionWithMockServer() throws Exception {
+
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setBody("{\"value\": 1}"));
+            server.enqueue(new MockResponse().setBody("{\"value\": 2}"));
+            server.start();
+
+            String url = server.url("/data").toString();
+
+            ServiceCall serviceCall = new ServiceCall();
+            ServiceCallResult result = serviceCall.get(url, null);
+            assertEquals(200, result.getResponseCode());
+            assertEquals("OK", result.getResponseMessage());
+            result = serviceCall.get(url, null);
+            assertEquals(200, result.getResponseCode());
+            assertEquals(2, result.getResponseAsJSONObject().getInt("value"));
+
+            // Same socket => the second request is the second one on the connection
+            assertEquals(0, server.takeRequest().getSequenceNumber());
+            assertEquals(1, server.takeRequest().getSequenceNumber());
+        }
+    }
+
+    @Test
+    public void shouldMultiplexRequestsWithHttp2() throws Exception {
+
+        int nbCalls = 20;
+
+        try (MockWebServer server = TlsMockServers.newServer(true)) {
+            for (int i = 0; i <= nbCalls; i++) {
+                server.enqueue(new MockResponse().setBody("{\"value\": " + i + "}"));
+            }
+            server.start();
+            String url = TlsMockServers.url(server, "/data");
+
+            HttpEngineConfig config = new HttpEngineConfig();
+            config.setVersion(HttpClient.Version.HTTP_2);
+            config.setSslContext(TlsMockServers.clientSslContext());
+
+            ExecutorService pool = Executors.newFixedThreadPool(10);
+            try (HttpEngine engine = new HttpEngine(config)) {
+                ServiceCall serviceCall = new ServiceCall(engine);
+
+                // First call negotiates the protocol
+                assertEquals(200, serviceCall.get(url, null).getResponseCode());
+
+                List<Future<ServiceCallResult>> futures = new ArrayList<>();
+                for (int i = 0; i < nbCalls; i++) {
+                    futures.add(pool.submit(() -> serviceCall.get(url, null)));
+                }
+                for (Future<ServiceCallResult> future : futures) {
+                    assertEquals(200, future.get().getResponseCode());
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+
+            // All the requests were streams of the same connection
+            int connections = 0;
+            for (int i = 0; i <= nbCalls; i++) {
+                if (server.takeRequest().getSequenceNumber() == 0) {
+                    connections++;
+                }
+            }
+            assertEquals(1, connections);
+        }
+    }
+
+    @Test
+    public void shouldFallbackToHttp11() throws Exception {
+
+        try (MockWebServer server = TlsMockServers.newServer(false)) {
+            server.enqueue(new MockResponse().setBody("{\"value\": 1}"));
+            server.start();
+
+            HttpEngineConfig config = new HttpEngineConfig();
+            config.setVersion(HttpClient.Version.HTTP_2);
+            config.setSslContext(TlsMockServers.clientSslContext());
+
+            try (HttpEngine engine = new HttpEngine(config)) {
+                ServiceCallResult result = new ServiceCall(engine).get(TlsMockServers.url(server, "/data"), null);
+                assertEquals(200, result.getResponseCode());
+                assertEquals(1, result.getResponseAsJSONObject().getInt("value"));
+            }
+        }
+    }
+
+    @Test
+    public void shouldFetchTokenOncePerExpirationUnderLoad() throws Exception {
+
+        AtomicInteger authCalls = new AtomicInteger();
+        try (MockWebServer server = new MockWebServer()) {
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                    int count = authCalls.incrementAndGet();
+                    // Slow identity provider, so concurrent callers pile up
+                    Thread.sleep(200);
+                    return new MockResponse().setBody("{\"access_token\":\"t" + count + "\", \"expires_in\": 60}")
+                                             .addHeader("Content-Type", "application/json");
+                }
+            });
+            server.start();
+
+            AuthenticationToken token = AuthenticationTokens.getInstance()
+                                                            .newToken("GET", server.url("/auth").toString(),
+                                                                    new HashMap<>(), null);
+
+            // No token yet => all the callers wait for the same call
+            List<String> values = getTokenConcurrently(token, 50);
+            assertEquals(1, authCalls.get());
+            values.forEach(value -> assertEquals("t1", value));
+
+            // Actually expired => all the callers wait for the same call
+            token.setTokenExpiration(-(AuthenticationToken.EXPIRATION_MARGIN_SECONDS + 5));
+            values = getTokenConcurrently(token, 50);
+            assertEquals(2, authCalls.get());
+            values.forEach(value -> assertEquals("t2", value));
+
+            // In the safety margin => callers don't wait, they get the current token while it is refreshed
+            token.setTokenExpiration(-1);
+            values = getTokenConcurrently(token, 50);
+            values.forEach(value -> assertEquals("t2", value));
+            long timeout = System.currentTimeMillis() + 5000;
+            while (token.isExpired() && System.currentTimeMillis() < timeout) {
+                Thread.sleep(20);
+            }
+            assertFalse(token.isExpired());
+            assertEquals("t3", token.getToken());
+            assertEquals(3, authCalls.get());
+            assertEquals(3, server.getRequestCount());
+        }
+    }
+
+    protected List<String> getTokenConcurrently(AuthenticationToken token, int nbThreads) throws Exception {
+        return getTokenConcurrently(List.of(token), nbThreads);
+    }
+
+    /*
+     * Threads use the tokens in turn
+     */
+    protected List<String> getTokenConcurrently(List<AuthenticationToken> tokens, int nbThreads) throws Exception {
+
+        ExecutorService pool = Executors.newFixedThreadPool(nbThreads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < nbThreads; i++) {
+                AuthenticationToken token = tokens.get(i % tokens.size());
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    return token.getToken();
+                }));
+            }
+            start.countDown();
+            List<String> values = new ArrayList<>();
+            for (Future<String> future : futures) {
+                values.add(future.get(10, TimeUnit.SECONDS));
+            }
+            return values;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldShareTokenBetweenNodes() throws Exception {
+
+        AtomicInteger authCalls = new AtomicInteger();
+        try (MockWebServer server = new MockWebServer()) {
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                    int count = authCalls.incrementAndGet();
+                    Thread.sleep(200);
+                    return new MockResponse().setBody("{\"access_token\":\"t" + count + "\", \"expires_in\": 60}")
+                                             .addHeader("Content-Type", "application/json");
+                }
+            });
+            server.start();
+
+            // Two "nodes": same token descriptor, different instances, same KeyValueStore
+            SharedTokenStore store = new SharedTokenStore("servicecall-test", Duration.ofSeconds(10));
+            String url = server.url("/auth").toString();
+            AuthenticationToken node1 = new AuthenticationToken("GET", url, new HashMap<>(), null);
+            AuthenticationToken node2 = new AuthenticationToken("GET", url, new HashMap<>(), null);
+            node1.setSharedStore(store);
+            node2.setSharedStore(store);
+
+            List<String> values = getTokenConcurrently(List.of(node1, node2), 50);
+            assertEquals(1, authCalls.get());
+            values.forEach(value -> assertEquals("t1", value));
+
+            // Expired on node1 only: the stored token is still valid, it is reused
+            node1.setTokenExpiration(-(AuthenticationToken.EXPIRATION_MARGIN_SECONDS + 5));
+            assertEquals("t1", node1.getToken());
+            assertFalse(node1.isExpired());
+            assertEquals(1, authCalls.get());
+        }
+    }
+
+    @Test
+    public void shouldRefreshTokenInTheBackground() throws Exception {
+
+        AtomicInteger authCalls = new AtomicInteger();
+        try (MockWebServer server = new MockWebServer();
+                TokenRefresher refresher = new TokenRefresher()) {
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    int count = authCalls.incrementAndGet();
+                    // The first background refresh fails, the token must still be used
+                    if (count == 2) {
+                        return new MockResponse().setResponseCode(503);
+                    }
+                    return new MockResponse().setBody("{\"access_token\":\"t" + count + "\", \"expires_in\": 20}")
+                                             .addHeader("Content-Type", "application/json");
+                }
+            });
+            server.start();
+
+            // expires_in 20 => refresh after ~2s
+            refresher.setFraction(0.1);
+            refresher.setJitter(0.05);
+            refresher.setBackoffMin(Duration.ofMillis(200));
+
+            AuthenticationToken token = new AuthenticationToken("GET", server.url("/auth").toString(),
+                    new HashMap<>(), null);
+            refresher.register(token);
+            assertTrue(refresher.isRegistered(token));
+
+            assertEquals("t1", token.getToken());
+            assertEquals(1, authCalls.get());
+
+            long timeout = System.currentTimeMillis() + 10000;
+            while (authCalls.get() < 3 && System.currentTimeMillis() < timeout) {
+                // Never waits for the service
+                String value = token.getToken();
+                assertTrue("t1".equals(value) || "t3".equals(value));
+                Thread.sleep(50);
+            }
+            assertEquals(3, authCalls.get());
+            Thread.sleep(200);
+            assertEquals("t3", token.getToken());
+            assertFalse(token.isExpired());
+            assertEquals(3, authCalls.get());
+
+            refresher.unregister(token);
+            assertFalse(refresher.isRegistered(token));
+        }
+    }
+
+    @Test
+    public void shouldRefreshTokenAfterInvalidResponse() throws Exception {
+
+        AtomicInteger authCalls = new AtomicInteger();
+        try (MockWebServer server = new MockWebServer();
+                TokenRefresher refresher = new TokenRefresher()) {
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    int count = authCalls.incrementAndGet();
+                    // The first background refresh gets a 200 without a token
+                    if (count == 2) {
+                        return new MockResponse().setBody("{}").addHeader("Content-Type", "application/json");
+                    }
+                    return new MockResponse().setBody("{\"access_token\":\"t" + count + "\", \"expires_in\": 20}")
+                                             .addHeader("Content-Type", "application/json");
+                }
+            });
+            server.start();
+
+            refresher.setFraction(0.1);
+            refresher.setJitter(0.05);
+            refresher.setBackoffMin(Duration.ofMillis(200));
+
+            AuthenticationToken token = new AuthenticationToken("GET", server.url("/auth").toString(),
+                    new HashMap<>(), null);
+            refresher.register(token);
+            assertEquals("t1", token.getToken());
+
+            // The failed refresh is retried in the background
+            long timeout = System.currentTimeMillis() + 10000;
+            while (authCalls.get() < 3 && System.currentTimeMillis() < timeout) {
+                String value = token.getToken();
+                assertTrue("t1".equals(value) || "t3".equals(value));
+                Thread.sleep(50);
+            }
+            assertEquals(3, authCalls.get());
+            Thread.sleep(200);
+            assertEquals("t3", token.getToken());
+            assertFalse(token.isExpired());
+            assertTrue(refresher.isRegistered(token));
+        }
+    }
+
+    @Test
+    public void shouldNotCallTheServiceInALoopWhileRefreshFails() throws Exception {
+
+        AtomicInteger authCalls = new AtomicInteger();
+        try (MockWebServer server = new MockWebServer()) {
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    if (authCalls.incrementAndGet() == 1) {
+                        return new MockResponse().setBody("{\"access_token\":\"t1\", \"expires_in\": 3600}")
+                                                 .addHeader("Content-Type", "application/json");
+                    }
+                    return new MockResponse().setResponseCode(503);
+                }
+            });
+            server.start();
+
+            AuthenticationToken token = new AuthenticationToken("GET", server.url("/auth").toString(),
+                    new HashMap<>(), null);
+            assertEquals("t1", token.getToken());
+            // In the safety margin: refreshed by the next caller, which fails
+            token.setTokenExpiration(-1);
+            assertEquals("t1", token.getToken());
+            long timeout = System.currentTimeMillis() + 5000;
+            while (authCalls.get() < 2 && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, authCalls.get());
+
+            // The token is still used, and not refreshed again before the backoff delay
+            for (int i = 0; i < 20; i++) {
+                assertEquals("t1", token.getToken());
+                Thread.sleep(10);
+            }
+            assertEquals(2, authCalls.get());
+        }
+    }
+
+    @Test
+    public void shouldRetryTransientErrors() throws Exception {
+
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setResponseCode(503));
+            server.enqueue(new MockResponse().setResponseCode(502));
+            server.enqueue(new MockResponse().setBody("{\"value\": 1}"));
+            // Not retried: POST
+            server.enqueue(new MockResponse().setResponseCode(503));
+            // Retried after the delay set by the service
+            server.enqueue(new MockResponse().setResponseCode(429).addHeader("Retry-After", "1"));
+            server.enqueue(new MockResponse().setBody("{\"value\": 2}"));
+            server.start();
+
+            String url = server.url("/data").toString();
+            RetryPolicy policy = new RetryPolicy();
+            policy.setInitialDelay(Duration.ofMillis(10));
+            ServiceCall serviceCall = new ServiceCall();
+            serviceCall.setRetryPolicy(policy);
+
+            ServiceCallResult result = serviceCall.get(url, null);
+            assertEquals(200, result.getResponseCode());
+            assertEquals(1, result.getResponseAsJSONObject().getInt("value"));
+            assertEquals(3, server.getRequestCount());
+
+            result = serviceCall.post(url, null, "{}");
+            assertEquals(503, result.getResponseCode());
+            assertEquals(4, server.getRequestCount());
+
+            long start = System.currentTimeMillis();
+            result = serviceCall.get(url, null);
+            assertEquals(200, result.getResponseCode());
+            assertEquals(2, result.getResponseAsJSONObject().getInt("value"));
+            assertTrue(System.currentTimeMillis() - start >= 1000);
+            assertEquals(6, server.getRequestCount());
+
+            // Opt-in for POST, but the service keeps failing: gives up after maxRetries
+            server.enqueue(new MockResponse().setResponseCode(503));
+            server.enqueue(new MockResponse().setResponseCode(503));
+            server.enqueue(new MockResponse().setResponseCode(503));
+            serviceCall.setRetryPolicy(policy.with(2, true));
+            result = serviceCall.post(url, null, "{}");
+            assertEquals(503, result.getResponseCode());
+            assertEquals(9, server.getRequestCount());
+        }
+
+        // NONE is shared: it cannot be modified, its copies can
+        try {
+            RetryPolicy.NONE.setMaxRetries(3);
+            fail("RetryPolicy.NONE should not be modifiable");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+        assertEquals(0, RetryPolicy.NONE.getMaxRetries());
+        RetryPolicy copy = RetryPolicy.NONE.with(null, null);
+        copy.setMaxRetries(3);
+        assertEquals(3, copy.getMaxRetries());
+        assertEquals(0, RetryPolicy.NONE.getMaxRetries());
+    }
+
+    @Test
+    public void shouldOpenCircuitWhenHostFails() throws Exception {
+
+        AtomicBoolean down = new AtomicBoolean(true);
+        AtomicInteger errorCode = new AtomicInteger(500);
+        try (MockWebServer server = new MockWebServer()) {
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    return down.get() ? new MockResponse().setResponseCode(errorCode.get())
+                            : new MockResponse().setBody("{\"value\": 1}");
+                }
+            });
+            server.start();
+
+            String url = server.url("/data").toString();
+            String host = HttpEngine.hostKey(URI.create(url));
+            try (HttpEngine engine = new HttpEngine(new HttpEngineConfig())) {
+                // Opt-in
+                assertNull(engine.getCircuitBreaker(host));
+            }
+
+            HttpEngineConfig config = new HttpEngineConfig();
+            config.getCircuitBreaker().setEnabled(true);
+            config.getCircuitBreaker().setMinimumCalls(4);
+            config.getCircuitBreaker().setOpenDuration(Duration.ofMillis(500));
+            config.getCircuitBreaker().setHalfOpenProbes(2);
+            try (HttpEngine engine = new HttpEngine(config)) {
+                ServiceCall serviceCall = new ServiceCall(engine);
+                serviceCall.setRetryPolicy(RetryPolicy.NONE);
+                CircuitBreaker breaker = engine.getCircuitBreaker(host);
+
+                // A 500 is the error of the call, not of the host
+                for (int i = 0; i < 4; i++) {
+                    assertEquals(500, serviceCall.get(url, null).getResponseCode());
+                }
+                assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+                errorCode.set(503);
+                for (int i = 0; i < 4; i++) {
+                    assertEquals(503, serviceCall.get(url, null).getResponseCode());
+                }
+                assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+                // Fails fast, not sent
+                ServiceCallResult result = serviceCall.get(url, null);
+                assertEquals(ServiceCallResult.CIRCUIT_OPEN, result.getResponseCode());
+                assertTrue(result.isCircuitOpen());
+                assertEquals(8, server.getRequestCount());
+
+                // Half-open: the probe fails => open again
+                Thread.sleep(600);
+                assertEquals(503, serviceCall.get(url, null).getResponseCode());
+                assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+                assertTrue(serviceCall.get(url, null).isCircuitOpen());
+
+                // The probes succeed => closed
+                Thread.sleep(600);
+                down.set(false);
+                assertEquals(200, serviceCall.get(url, null).getResponseCode());
+                assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+                assertEquals(200, serviceCall.get(url, null).getResponseCode());
+                assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+                assertEquals(11, server.getRequestCount());
+            }
+        }
+    }
+
+    @Test
+    public void shouldLimitCallRate() throws Exception {
+
+        try (MockWebServer server = new MockWebServer()) {
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    return new MockResponse().setBody("{\"value\": 1}");
+                }
+            });
+            server.start();
+
+            String url = server.url("/data").toString();
+            RateLimiters limiters = new RateLimiters();
+            limiters.setPerHost(10);
+            ServiceCall serviceCall = new ServiceCall();
+            serviceCall.setRateLimiters(limiters);
+
+            // 10 at once (burst), then 1 every 100ms
+            long start = System.currentTimeMillis();
+            List<CompletableFuture<ServiceCallResult>> futures = new ArrayList<>();
+            for (int i = 0; i < 25; i++) {
+                futures.add(serviceCall.getAsync(url, null));
+            }
+            for (CompletableFuture<ServiceCallResult> future : futures) {
+                assertEquals(200, future.get(10, TimeUnit.SECONDS).getResponseCode());
+            }
+            assertTrue(System.currentTimeMillis() - start >= 1400);
+            assertEquals(25, server.getRequestCount());
+
+            // Fail fast, per key
+            limiters = new RateLimiters();
+            limiters.setPerKey(2);
+            limiters.setMaxWait(Duration.ZERO);
+            serviceCall.setRateLimiters(limiters);
+            serviceCall.setRateLimitKey("token-1");
+            int rejected = 0;
+            for (int i = 0; i < 5; i++) {
+                ServiceCallResult result = serviceCall.get(url, null);
+                if (result.isRateLimited()) {
+                    assertEquals(ServiceCallResult.RATE_LIMITED, result.getResponseCode());
+                    rejected++;
+                }
+            }
+            assertEquals(3, rejected);
+            assertEquals(27, server.getRequestCount());
+        }
+    }
+
+    @Test
+    public void shouldShareRateLimitBetweenNodes() throws Exception {
+
+        // Three "nodes": different instances, same KeyValueStore. 50 calls/s for the cluster, in windows of 500ms
+        List<RateLimiter> nodes = new ArrayList<>();
+        List<RateLimiter> tokenNodes = new ArrayList<>();
+        List<String> tokenIds = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            RateLimiters limiters = new RateLimiters();
+            limiters.setPerHost(50);
+            limiters.setPerKey(50);
+            limiters.setDistributed(true);
+            limiters.setDistributedStore("servicecall-test");
+            limiters.setWindow(Duration.ofMillis(500));
+            RateLimiter limiter = limiters.getHostLimiter("https://shared-limit.test:443", "shared-limit.test");
+            assertTrue(limiter instanceof DistributedRateLimiter);
+            nodes.add(limiter);
+
+            // Same credentials on each node: a different tokenUuid, the same limit
+            AuthenticationToken token = new AuthenticationToken("POST", "https://shared-limit.test/auth",
+                    Map.of("Authorization", "Basic abc"), "grant_type=client_credentials");
+            tokenIds.add(token.getId());
+            tokenNodes.add(limiters.getKeyLimiter(token.getDescriptorKey()));
+        }
+        assertEquals(3, tokenIds.stream().distinct().count());
+
+        assertSharedRateLimit(nodes);
+        assertSharedRateLimit(tokenNodes);
+    }
+
+    /*
+     * Each node calls as fast as it can for 2.5s: no more than 25 permits per window of 500ms for the cluster
+     */
+    protected void assertSharedRateLimit(List<RateLimiter> nodes) throws InterruptedException {
+
+        Map<Long, AtomicInteger> permitsByWindow = new ConcurrentHashMap<>();
+        AtomicInteger calls = new AtomicInteger();
+        long end = System.currentTimeMillis() + 2500;
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        for (int i = 0; i < 6; i++) {
+            RateLimiter limiter = nodes.get(i % 3);
+            executor.submit(() -> {
+                while (System.currentTimeMillis() < end) {
+                    calls.incrementAndGet();
+                    if (limiter.reserve(0) == 0) {
+                        permitsByWindow.computeIfAbsent(System.currentTimeMillis() / 500, k -> new AtomicInteger())
+                                       .incrementAndGet();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertTrue(permitsByWindow.size() >= 5);
+        for (AtomicInteger permits : permitsByWindow.values()) {
+            assertTrue(permits.get() <= 25);
+        }
+        // Most calls were decided locally
+        long leases = nodes.stream().mapToLong(limiter -> ((DistributedRateLimiter) limiter).getLeases()).sum();
+        assertTrue(leases * 100 < calls.get());
+    }
+
+    @Test
+    public void shouldResolveEndpointsAtStartup() throws Exception {
+
+        EndpointRegistry registry = Framework.getService(EndpointRegistry.class);
+        assertNotNull(registry);
+        assertNull(registry.getEndpoint("unknown"));
+
+        Endpoint endpoint = Endpoint.get("test-service");
+        assertEquals("https://api.example.com/v2", endpoint.getBaseUrl());
+        assertEquals("https://api.example.com/v2/items/1", endpoint.resolveUrl("items/1"));
+        assertEquals("https://api.example.com/v2/items?q=a", endpoint.resolveUrl("/items?q=a"));
+        assertEquals("https://api.example.com/v2", endpoint.resolveUrl(null));
+
+        // Default headers, the ones of the call win
+        Map<String, String> callHeaders = endpoint.headers("{\"X-Client\": \"test\", \"X-Other\": \"1\"}");
+        assertEquals("application/json", callHeaders.get("Accept"));
+        assertEquals("test", callHeaders.get("X-Client"));
+        assertEquals("1", callHeaders.get("X-Other"));
+        assertEquals("nuxeo", endpoint.getHeaders().get("X-Client"));
+
+        // Own engine, with its timeouts and pool size
+        HttpEngine engine = endpoint.getEngine();
+        assertNotNull(engine);
+        assertNotSame(HttpEngine.getInstance(), engine);
+        assertEquals(Duration.ofSeconds(2), engine.getConfig().getConnectTimeout());
+        assertEquals(Duration.ofSeconds(5), engine.getConfig().getRequestTimeout());
+        assertEquals(4, engine.getConfig().getMaxConnectionsPerHost());
+        assertEquals(5, endpoint.getRetryPolicy().getMaxRetries());
+        assertFalse(endpoint.hasToken());
+
+        // Nothing set => shared engine, default policy
+        Endpoint minimal = Endpoint.get("test-minimal");
+        assertNull(minimal.getEngine());
+        assertSame(RetryPolicy.getDefault(), minimal.getRetryPolicy());
+
+        try {
+            Endpoint.get("unknown");
+            fail("An unknown endpoint should throw an exception");
+        } catch (NuxeoException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void shouldCallEndpointWithRelativePath() throws Exception {
+
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setBody("{\"value\": 1}"));
+            server.start();
+
+            EndpointDescriptor descriptor = new EndpointDescriptor();
+            descriptor.setName("mock");
+            descriptor.setBaseUrl(server.url("/api/").toString());
+            descriptor.setHeaders(Map.of("X-Api-Key", "secret"));
+            descriptor.setTotalTimeoutMs(5000L);
+            try (Endpoint endpoint = new Endpoint(descriptor)) {
+                ServiceCall serviceCall = endpoint.newServiceCall(0, null);
+                ServiceCallResult result = serviceCall.get(endpoint.resolveUrl("items/1"),
+                        endpoint.headers(null));
+                assertEquals(200, result.getResponseCode());
+
+                RecordedRequest request = server.takeRequest(5, TimeUnit.SECONDS);
+                assertEquals("/api/items/1", request.getPath());
+                assertEquals("secret", request.getHeader("X-Api-Key"));
+            }
+        }
+    }
+
+    @Test
+    public void shouldKeepResponseAsSent() throws Exception {
+
+        String json = "{\n  \"text\": \"  two spaces,\\n a new line and an accent: \u00e9  \",\n  \"value\": 1\n}\n";
+        StringBuilder large = new StringBuilder("[\n");
+        for (int i = 0; i < 20000; i++) {
+            large.append(i == 0 ? "" : ",\n").append("  {\"id\": ").append(i).append("}");
+        }
+        large.append("\n]");
+
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setHeader("Content-Type", "application/json; charset=utf-8")
+                                             .setBody(json));
+            // No Content-Length: the buffer grows
+            server.enqueue(new MockResponse().setChunkedBody(large.toString(), 4096));
+            server.start();
+
+            ServiceCall serviceCall = new ServiceCall();
+            ServiceCallResult result = serviceCall.get(server.url("/json").toString(), null);
+            assertEquals(200, result.getResponseCode());
+            assertEquals(json, result.getResponse());
+            assertEquals(1, result.getResponseAsJSONObject().getInt("value"));
+
+            result = serviceCall.get(server.url("/large").toString(), null);
+            assertEquals(large.toString(), result.getResponse());
+            assertEquals(20000, result.getResponseAsJSONArray().length());
+            assertEquals(20000, result.toJsonObject().getJSONArray("response").length());
+        }
+    }
+
+    @Test
+    public void shouldCacheGetResponses() throws Exception {
+
+        AtomicInteger calls = new AtomicInteger();
+        AtomicInteger notModified = new AtomicInteger();
+        try (MockWebServer server = new MockWebServer()) {
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    calls.incrementAndGet();
+                    switch (request.getPath()) {
+                    case "/fresh":
+                        return new MockResponse().setHeader("Cache-Control", "max-age=60")
+                                                 .setBody("{\"auth\": \"" + request.getHeader("Authorization")
+                                                         + "\"}");
+                    case "/etag":
+                        if ("\"v1\"".equals(request.getHeader("If-None-Match"))) {
+                            notModified.incrementAndGet();
+                            return new MockResponse().setResponseCode(304).setHeader("Cache-Control", "no-cache");
+                        }
+                        return new MockResponse().setHeader("Cache-Control", "no-cache")
+                                                 .setHeader("ETag", "\"v1\"")
+                                                 .setBody("{\"value\": 1}");
+                    default:
+                        return new MockResponse().setHeader("Cache-Control", "no-store").setBody("{}");
+                    }
+                }
+            });
+            server.start();
+
+            HttpResponseCache cache = new HttpResponseCache(10, 1024 * 1024, 64 * 1024);
+            ServiceCall serviceCall = new ServiceCall();
+            serviceCall.setResponseCache(cache);
+            long hits = cache.getHits();
+
+            // Fresh => the service is called once per identity
+            String url = server.url("/fresh").toString();
+            for (int i = 0; i < 3; i++) {
+                ServiceCallResult result = serviceCall.get(url, Map.of("Authorization", "Bearer A"));
+                assertEquals("Bearer A", result.getResponseAsJSONObject().getString("auth"));
+            }
+            ServiceCallResult result = serviceCall.get(url, Map.of("Authorization", "Bearer B"));
+            assertEquals("Bearer B", result.getResponseAsJSONObject().getString("auth"));
+            assertEquals(2, calls.get());
+            assertEquals(hits + 2, cache.getHits());
+
+            // no-cache => revalidated at each call, 304 => cached body
+            calls.set(0);
+            url = server.url("/etag").toString();
+            for (int i = 0; i < 3; i++) {
+                result = serviceCall.get(url, null);
+                assertEquals(200, result.getResponseCode());
+                assertEquals(1, result.getResponseAsJSONObject().getInt("value"));
+            }
+            assertEquals(3, calls.get());
+            assertEquals(2, notModified.get());
+
+            // no-store => never cached
+            calls.set(0);
+            url = server.url("/nostore").toString();
+            serviceCall.get(url, null);
+            serviceCall.get(url, null);
+            assertEquals(2, calls.get());
+            assertEquals(3, cache.size());
+            assertTrue(cache.getHitRatio() > 0);
+        }
+    }
+
+    @Test
+    public void shouldParseResponseOnce() throws Exception {
+
+        String json = "{\n  \"value\": 1,\n  \"text\": \"\u00e9\"\n}\n";
+        ServiceCallResult result = new ServiceCallResult(json, 200, "OK").setContentType("application/json");
+
+        assertSame(result.getResponseAsJSONObject(), result.getResponseAsJSONObject());
+        assertSame(result.getResponseAsJSONObject(), result.forceResponseAsJSONObject().get("result"));
+        assertSame(result.getResponseAsJSONObject(), result.toJsonObject().get("response"));
+
+        // The response is copied as is
+        String jsonStr = result.toJsonString();
+        assertTrue(jsonStr.contains(json));
+        JSONObject obj = new JSONObject(jsonStr);
+        assertEquals(1, obj.getJSONObject("response").getInt("value"));
+        assertEquals(200, obj.getInt("responseCode"));
+        assertEquals("OK", obj.getString("responseMessage"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        result.writeJson(out);
+        assertEquals(jsonStr, out.toString(StandardCharsets.UTF_8));
+
+        result = new ServiceCallResult("[1, 2]", 200, "Message with \"quotes\"").setContentType(
+                "application/vnd.api+json; charset=UTF-8");
+        obj = new JSONObject(result.toJsonString());
+        assertEquals(2, obj.getJSONArray("response").length());
+        assertEquals("Message with \"quotes\"", obj.getString("responseMessage"));
+        assertSame(result.getResponseAsJSONArray(), result.getResponseAsJSONArray());
+
+        // Not JSON => written as a string
+        result = new ServiceCallResult("[WARN] quota exceeded", 200, "OK").setContentType("text/plain");
+        obj = new JSONObject(result.toJsonString());
+        assertEquals("[WARN] quota exceeded", obj.getString("response"));
+        assertEquals("[WARN] quota exceeded", result.toJsonObject().getString("response"));
+        out = new ByteArrayOutputStream();
+        result.writeJson(out);
+        obj = new JSONObject(out.toString(StandardCharsets.UTF_8));
+        assertEquals("[WARN] quota exceeded", obj.getString("response"));
+
+        // Without a JSON Content-Type, the response is not trusted
+        result = new ServiceCallResult("{\"a\":", 200, "OK");
+        assertEquals("{\"a\":", new JSONObject(result.toJsonString()).getString("response"));
+        assertEquals("{\"a\":", result.toJsonObject().getString("response"));
+    }
+
+    @Test
+    public void shouldWriteJsonResultToBlob() throws Exception {
+
+        ServiceCallResult result = new ServiceCallResult("{\"text\": \"\u00e9\u20ac\"}", 200, "OK").setContentType(
+                "application/json");
+        Blob blob = result.toJsonBlob();
+        assertEquals("application/json", blob.getMimeType());
+        assertEquals(result.toJsonString(), blob.getString());
+        assertEquals(result.toJsonString().getBytes(StandardCharsets.UTF_8).length, blob.getLength());
+
+        // Above the threshold => temporary file
+        StringBuilder large = new StringBuilder("[");
+        for (int i = 0; i < 10000; i++) {
+            large.append(i == 0 ? "" : ",").append(i);
+        }
+        large.append("]");
+        result = new ServiceCallResult(large.toString(), 200, "OK").setContentType("application/json");
+        try (BlobOutputStream out = new BlobOutputStream(1024, 0, ".json")) {
+            result.writeJson(out);
+            out.close();
+            assertTrue(out.isInFile());
+            blob = out.getBlob("application/json", "UTF-8");
+        }
+        assertNotNull(blob.getFile());
+        assertEquals(10000, new JSONObject(blob.getString()).getJSONArray("response").length());
+    }
+
+    @Test
+    public void shouldStreamBlobUpload() throws Exception {
+
+        List<RecordedRequest> requests = new CopyOnWriteArrayList<>();
+        List<String> bodies = new CopyOnWriteArrayList<>();
+        try (MockWebServer server = new MockWebServer()) {
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    requests.add(request);
+                    bodies.add(request.getBody().readUtf8());
+                    return new MockResponse().setResponseCode(201);
+                }
+            });
+            server.start();
+            String url = server.url("/upload").toString();
+            String content = "0123456789".repeat(100000);
+            ServiceCall serviceCall = new ServiceCall();
+
+            // No local file, known length => Content-Length
+            Blob blob = new StringBlob(content, "text/plain");
+            assertNull(blob.getFile());
+            ServiceCallResult result = serviceCall.uploadBlob("PUT", blob, url, null);
+            assertEquals(201, result.getResponseCode());
+            assertEquals(String.valueOf(content.length()), requests.get(0).getHeader("Content-Length"));
+            assertEquals("text/plain", requests.get(0).getHeader("Content-Type"));
+            assertEquals(content, bodies.get(0));
+
+            // Unknown length => chunked
+            Blob unknownLength = new StringBlob(content, "text/plain") {
+                @Override
+                public long getLength() {
+                    return -1;
+                }
+            };
+            result = serviceCall.uploadBlob("POST", unknownLength, url, null);
+            assertEquals(201, result.getResponseCode());
+            assertNull(requests.get(1).getHeader("Content-Length"));
+            assertEquals("chunked", requests.get(1).getHeader("Transfer-Encoding"));
+            assertEquals(content, bodies.get(1));
+        }
+    }
+
+    @Test
+    public void shouldUploadS3MultipartAndResume() throws Exception {
+
+        Map<Integer, String> parts = new ConcurrentHashMap<>();
+        Map<Integer, AtomicInteger> partCalls = new ConcurrentHashMap<>();
+        AtomicInteger initiated = new AtomicInteger();
+        AtomicBoolean failPart2 = new AtomicBoolean(true);
+        AtomicBoolean throttlePart3 = new AtomicBoolean(true);
+        List<String> completions = new CopyOnWriteArrayList<>();
+        try (MockWebServer server = new MockWebServer()) {
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    String query = StringUtils.defaultString(request.getRequestUrl().query());
+                    String body = request.getBody().readUtf8();
+                    if ("POST".equals(request.getMethod()) && query.equals("uploads")) {
+                        initiated.incrementAndGet();
+                        return new MockResponse().setBody("<InitiateMultipartUploadResult><UploadId>up-1</UploadId>"
+                                + "</InitiateMultipartUploadResult>");
+                    }
+                    if ("PUT".equals(request.getMethod())) {
+                        int number = Integer.parseInt(request.getRequestUrl().queryParameter("partNumber"));
+                        partCalls.computeIfAbsent(number, k -> new AtomicInteger()).incrementAndGet();
+                        if (number == 2 && failPart2.getAndSet(false)) {
+                            return new MockResponse().setResponseCode(400);
+                        }
+                        if (number == 3 && throttlePart3.getAndSet(false)) {
+                            return new MockResponse().setResponseCode(503);
+                        }
+                        parts.put(number, body);
+                        return new MockResponse().setHeader("ETag", "\"etag" + number + "\"");
+                    }
+                    if ("GET".equals(request.getMethod())) {
+                        return new MockResponse().setBody("<ListPartsResult/>");
+                    }
+                    completions.add(body);
+                    return new MockResponse().setBody("<CompleteMultipartUploadResult><Bucket>b</Bucket><Key>k</Key>"
+                            + "<ETag>\"e-6\"</ETag></CompleteMultipartUploadResult>");
+                }
+            });
+            server.start();
+            String url = server.url("/bucket/key").toString();
+            StringBuilder content = new StringBuilder();
+            for (int i = 0; i < 5500; i++) {
+                content.append((char) ('a' + i % 26));
+            }
+            Blob blob = new StringBlob(content.toString(), "text/plain");
+            blob.setFilename("shouldUploadS3MultipartAndResume.txt");
+            ServiceCall serviceCall = new ServiceCall();
+            serviceCall.setRetryPolicy(RetryPolicy.getDefault().with(2, false));
+
+            // Part 2 is rejected: the upload fails, the parts received are kept
+            ServiceCallResult result = new ChunkedUpload(serviceCall, new S3MultipartProtocol(), blob, url,
+                    null).setPartSize(1000).setParallelism(1).upload();
+            assertEquals(400, result.getResponseCode());
+            assertEquals(1, initiated.get());
+
+            // Resumed: part 1 is not sent again, part 3 is retried on its own (503)
+            result = new ChunkedUpload(serviceCall, new S3MultipartProtocol(), blob, url, null).setPartSize(1000)
+                                                                                                 .setParallelism(3)
+                                                                                                 .upload();
+            assertEquals(200, result.getResponseCode());
+            assertEquals(1, initiated.get());
+            assertEquals(1, partCalls.get(1).get());
+            assertEquals(2, partCalls.get(3).get());
+            assertEquals(6, parts.size());
+            StringBuilder received = new StringBuilder();
+            parts.keySet().stream().sorted().forEach(number -> received.append(parts.get(number)));
+            assertEquals(content.toString(), received.toString());
+            assertEquals(1, completions.size());
+            assertTrue(completions.get(0).startsWith(
+                    "<CompleteMultipartUpload><Part><PartNumber>1</PartNumber><ETag>\"etag1\"</ETag></Part>"));
+            assertTrue(completions.get(0).contains("<PartNumber>6</PartNumber><ETag>\"etag6\"</ETag>"));
+
+            JSONObject response = result.getResponseAsJSONObject();
+            assertEquals("k", response.getString("key"));
+            assertEquals("up-1", response.getString("uploadId"));
+        }
+    }
+
+    @Test
+    public void shouldReadStreamOnlyBlobOnceInChunkedUpload() throws Exception {
+
+        Map<Integer, String> parts = new ConcurrentHashMap<>();
+        AtomicBoolean throttled = new AtomicBoolean(false);
+        try (MockWebServer server = new MockWebServer()) {
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    String query = StringUtils.defaultString(request.getRequestUrl().query());
+                    String body = request.getBody().readUtf8();
+                    if ("POST".equals(request.getMethod()) && query.equals("uploads")) {
+                        return new MockResponse().setBody("<InitiateMultipartUploadResult><UploadId>up-2</UploadId>"
+                                + "</InitiateMultipartUploadResult>");
+                    }
+                    if ("PUT".equals(request.getMethod())) {
+                        int number = Integer.parseInt(request.getRequestUrl().queryParameter("partNumber"));
+                        if (number == 4 && throttled.compareAndSet(false, true)) {
+                            return new MockResponse().setResponseCode(503);
+                        }
+                        parts.put(number, body);
+                        return new MockResponse().setHeader("ETag", "\"etag" + number + "\"");
+                    }
+                    return new MockResponse().setBody("<CompleteMultipartUploadResult><Bucket>b</Bucket><Key>k</Key>"
+                            + "<ETag>\"e-8\"</ETag></CompleteMultipartUploadResult>");
+                }
+            });
+            server.start();
+            String content = "0123456789".repeat(750);
+            AtomicInteger streams = new AtomicInteger();
+            // No local file, as a blob stored in S3
+            Blob blob = new StringBlob(content, "text/plain") {
+                @Override
+                public InputStream getStream() throws IOException {
+                    streams.incrementAndGet();
+                    return super.getStream();
+                }
+            };
+            blob.setFilename("shouldReadStreamOnlyBlobOnceInChunkedUpload.txt");
+            assertNull(blob.getFile());
+
+            ChunkedUpload upload = new ChunkedUpload(new ServiceCall(), new S3MultipartProtocol(), blob,
+                    server.url("/bucket/key").toString(), null).setPartSize(1000)
+                                                                .setParallelism(3)
+                                                                .setPersistProgress(false);
+            ServiceCallResult result = upload.upload();
+            assertEquals(200, result.getResponseCode());
+            assertEquals(8, parts.size());
+            StringBuilder received = new StringBuilder();
+            parts.keySet().stream().sorted().forEach(number -> received.append(parts.get(number)));
+            assertEquals(content, received.toString());
+            // Read once, even with a part retried
+            assertTrue(throttled.get());
+            assertEquals(1, streams.get());
+        }
+    }
+
+    @Test
+    public void shouldUploadWithContentRange() throws Exception {
+
+        List<String> ranges = new CopyOnWriteArrayList<>();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        AtomicBoolean shortAck = new AtomicBoolean(true);
+        try (MockWebServer server = new MockWebServer()) {
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    ranges.add(request.getHeader("Content-Range"));
+                    byte[] body = request.getBody().readByteArray();
+                    if (received.size() == 1000 && shortAck.getAndSet(false)) {
+                        // Only the beginning of the part is stored
+                        received.write(body, 0, 400);
+                    } else {
+                        received.writeBytes(body);
+                    }
+                    if (received.size() < 2500) {
+                        // No Location: not a redirect
+                        return new MockResponse().setResponseCode(308)
+                                                 .setHeader("Range", "bytes=0-" + (received.size() - 1));
+                    }
+                    return new MockResponse().setResponseCode(201).setBody("{\"id\":\"file-1\"}");
+                }
+            });
+            server.start();
+            String content = "0123456789".repeat(250);
+            Blob blob = new StringBlob(content, "text/plain");
+            blob.setFilename("shouldUploadWithContentRange.txt");
+
+            ServiceCallResult result = new ChunkedUpload(new ServiceCall(), new ContentRangeProtocol(), blob,
+                    server.url("/session/1").toString(), null).setPartSize(1000).upload();
+            assertEquals(201, result.getResponseCode());
+            assertEquals("file-1", result.getResponseAsJSONObject().getString("id"));
+            // The rest of the part acknowledged partly is sent again
+            assertEquals(List.of("bytes 0-999/2500", "bytes 1000-1999/2500", "bytes 1400-1999/2500",
+                    "bytes 2000-2499/2500"), ranges);
+            assertEquals(content, received.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void shouldReturnResponseOfCompletedUploadOnResume() throws Exception {
+
+        List<String> ranges = new CopyOnWriteArrayList<>();
+        try (MockWebServer server = new MockWebServer()) {
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    String range = request.getHeader("Content-Range");
+                    ranges.add(range);
+                    if (range.startsWith("bytes */")) {
+                        return new MockResponse().setResponseCode(201).setBody("{\"id\":\"file-2\"}");
+                    }
+                    // Stored, but the response is lost
+                    return new MockResponse().setResponseCode(400);
+                }
+            });
+            server.start();
+            Blob blob = new StringBlob("0123456789".repeat(100), "text/plain");
+            blob.setFilename("shouldReturnResponseOfCompletedUploadOnResume.txt");
+            String url = server.url("/session/2").toString();
+
+            ServiceCallResult result = new ChunkedUpload(new ServiceCall(), new ContentRangeProtocol(), blob, url,
+                    null).setPartSize(1000).upload();
+            assertEquals(400, result.getResponseCode());
+
+            // The resume finds the upload completed: its response is the result
+            result = new ChunkedUpload(new ServiceCall(), new ContentRangeProtocol(), blob, url, null).setPartSize(
+                    1000).upload();
+            assertEquals(201, result.getResponseCode());
+            assertEquals("file-2", result.getResponseAsJSONObject().getString("id"));
+            assertEquals(List.of("bytes 0-999/1000", "bytes */1000"), ranges);
+        }
+    }
+
+    @Test
+    public void shouldUploadWithTusAndResume() throws Exception {
+
+        List<RecordedRequest> creations = new CopyOnWriteArrayList<>();
+        List<String> offsets = new CopyOnWriteArrayList<>();
+        List<String> heads = new CopyOnWriteArrayList<>();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        AtomicBoolean interrupt = new AtomicBoolean(true);
+        try (MockWebServer server = new MockWebServer()) {
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    byte[] body = request.getBody().readByteArray();
+                    if ("POST".equals(request.getMethod())) {
+                        creations.add(request);
+                        // Relative, resolved against the URL of the upload
+                        return new MockResponse().setResponseCode(201).setHeader("Location", "/files/upload-1");
+                    }
+                    if ("HEAD".equals(request.getMethod())) {
+                        heads.add(request.getPath());
+                        return new MockResponse().setHeader("Tus-Resumable", "1.0.0")
+                                                 .setHeader("Upload-Offset", received.size());
+                    }
+                    offsets.add(request.getHeader("Upload-Offset"));
+                    if (Long.parseLong(request.getHeader("Upload-Offset")) != received.size()) {
+                        return new MockResponse().setResponseCode(409);
+                    }
+                    if (received.size() == 1000 && interrupt.getAndSet(false)) {
+                        // Only the first bytes of the part were received
+                        received.write(body, 0, 300);
+                        return new MockResponse().setResponseCode(400);
+                    }
+                    received.writeBytes(body);
+                    return new MockResponse().setResponseCode(204).setHeader("Upload-Offset", received.size());
+                }
+            });
+            server.start();
+            String url = server.url("/files").toString();
+            String content = "0123456789".repeat(250);
+            Blob blob = new StringBlob(content, "text/plain");
+            blob.setFilename("shouldUploadWithTusAndResume.txt");
+
+            // Part 2 fails: the upload stops, its URL is kept
+            ServiceCallResult result = new ChunkedUpload(new ServiceCall(), new TusProtocol(), blob, url,
+                    null).setPartSize(1000).upload();
+            assertEquals(400, result.getResponseCode());
+            assertEquals(1, creations.size());
+            RecordedRequest creation = creations.get(0);
+            assertEquals("1.0.0", creation.getHeader("Tus-Resumable"));
+            assertEquals("2500", creation.getHeader("Upload-Length"));
+            Base64.Encoder base64 = Base64.getEncoder();
+            assertEquals("filename " + base64.encodeToString(blob.getFilename().getBytes(StandardCharsets.UTF_8))
+                    + ",filetype " + base64.encodeToString("text/plain".getBytes(StandardCharsets.UTF_8)),
+                    creation.getHeader("Upload-Metadata"));
+
+            // Resumed at the offset returned by HEAD, not created again
+            result = new ChunkedUpload(new ServiceCall(), new TusProtocol(), blob, url, null).setPartSize(1000)
+                                                                                             .upload();
+            assertEquals(204, result.getResponseCode());
+            assertEquals(1, creations.size());
+            assertEquals(List.of("/files/upload-1"), heads);
+            assertEquals(List.of("0", "1000", "1300", "2300"), offsets);
+            assertEquals(content, received.toString(StandardCharsets.UTF_8));
+            assertEquals(server.url("/files/upload-1").toString(),
+                    result.getResponseAsJSONObject().getString("location"));
+        }
+    }
+
+    @Test
+    public void shouldDownloadInRanges() throws Exception {
+
+        String content = "0123456789".repeat(250);
+        List<String> ranges = new CopyOnWriteArrayList<>();
+        List<String> ifRanges = new CopyOnWriteArrayList<>();
+        AtomicBoolean throttled = new AtomicBoolean(false);
+        try (MockWebServer server = new MockWebServer()) {
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    String range = request.getHeader("Range");
+                    if (request.getPath().startsWith("/norange") || range == null) {
+                        return new MockResponse().setHeader("Content-Type", "text/plain").setBody(content);
+                    }
+                    ranges.add(range);
+                    if (range.equals("bytes=1000-1999") && throttled.compareAndSet(false, true)) {
+                        return new MockResponse().setResponseCode(503);
+                    }
+                    if (!range.equals("bytes=0-0")) {
+                        ifRanges.add(StringUtils.defaultString(request.getHeader("If-Range")));
+                    }
+                    int first = Integer.parseInt(StringUtils.substringBetween(range, "=", "-"));
+                    int last = Integer.parseInt(StringUtils.substringAfter(range, "-"));
+                    return new MockResponse().setResponseCode(206)
+                                             .setHeader("ETag", "\"v1\"")
+                                             .setHeader("Content-Type", "text/plain")
+                                             .setHeader("Content-Range",
+                                                     "bytes " + first + "-" + last + "/" + content.length())
+                                             .setBody(content.substring(first, last + 1));
+                }
+            });
+            server.start();
+
+            ServiceCallResult result = new RangeDownload(new ServiceCall(), server.url("/file.txt").toString(),
+                    null).setPartSize(1000).setParallelism(3).download();
+            assertEquals(200, result.getResponseCode());
+            assertEquals("file.txt", result.getResponseBlob().getFilename());
+            assertEquals(content, result.getResponseBlob().getString());
+            // The probe, the 3 parts, and the part retried after the 503
+            assertEquals(5, ranges.size());
+            assertEquals("bytes=0-0", ranges.get(0));
+            assertTrue(ranges.containsAll(List.of("bytes=0-999", "bytes=1000-1999", "bytes=2000-2499")));
+            // The parts are only accepted if the file did not change
+            assertEquals(List.of("\"v1\""), ifRanges.stream().distinct().toList());
+
+            // No range support: the response to the probe is the file
+            int requestCount = server.getRequestCount();
+            result = new ServiceCall().downloadFileInRanges(server.url("/norange/file.txt").toString(), null);
+            assertEquals(200, result.getResponseCode());
+            assertEquals(content, result.getResponseBlob().getString());
+            assertEquals(requestCount + 1, server.getRequestCount());
+        }
+    }
+
+    @Test
+    public void shouldResumeDownload() throws Exception {
+
+        String content = "0123456789".repeat(10000);
+        List<String> ranges = new CopyOnWriteArrayList<>();
+        List<String> ifRanges = new CopyOnWriteArrayList<>();
+        AtomicInteger disconnects = new AtomicInteger(0);
+        try (MockWebServer server = new MockWebServer()) {
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    boolean noValidator = request.getPath().startsWith("/noetag");
+                    String range = request.getHeader("Range");
+                    MockResponse response = new MockResponse().setHeader("Content-Type", "text/plain");
+                    if (!noValidator) {
+                        response.setHeader("ETag", "\"v1\"");
+                    }
+                    if (range == null) {
+                        // The connection drops in the middle of the body, once per file
+                        if (disconnects.incrementAndGet() % 2 == 1) {
+                            response.setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+                        }
+                        return response.setBody(content);
+                    }
+                    ranges.add(range);
+                    ifRanges.add(StringUtils.defaultString(request.getHeader("If-Range")));
+                    int first = Integer.parseInt(StringUtils.substringBetween(range, "=", "-"));
+                    return response.setResponseCode(206)
+                                   .setHeader("Content-Range",
+                                           "bytes " + first + "-" + (content.length() - 1) + "/" + content.length())
+                                   .setBody(content.substring(first));
+                }
+            });
+            server.start();
+
+            ServiceCallResult result = new ServiceCall().downloadFile(server.url("/file.txt").toString(), null);
+            assertEquals(200, result.getResponseCode());
+            assertEquals("file.txt", result.getResponseBlob().getFilename());
+            assertEquals(content, result.getResponseBlob().getString());
+            // The rest of the file was asked, only if it did not change
+            assertEquals(1, ranges.size());
+            assertTrue(ranges.get(0).matches("bytes=[1-9][0-9]*-"));
+            assertEquals(List.of("\"v1\""), ifRanges);
+
+            // No ETag nor Last-Modified: downloaded again from the start
+            ranges.clear();
+            int requestCount = server.getRequestCount();
+            result = new ServiceCall().downloadFile(server.url("/noetag/file.txt").toString(), null);
+            assertEquals(200, result.getResponseCode());
+            assertEquals(content, result.getResponseBlob().getString());
+            assertEquals(0, ranges.size());
+            assertEquals(requestCount + 2, server.getRequestCount());
+        }
+    }
+
+    @Test
+    public void shouldWriteLargeResponseToFile() throws Exception {
+
+        StringBuilder large = new StringBuilder("[");
+        for (int i = 0; i < 20000; i++) {
+            large.append(i == 0 ? "" : ",").append("{\"id\": ").append(i).append("}");
+        }
+        large.append("]");
+
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setHeader("Content-Type", "application/json").setBody("{\"value\": 1}"));
+            server.enqueue(new MockResponse().setHeader("Content-Type", "application/json").setBody(large.toString()));
+            // No Content-Length: spilled once the threshold is reached
+            server.enqueue(new MockResponse().setHeader("Content-Type", "text/plain")
+                                             .setChunkedBody("A \"text\"\n" + "x".repeat(100000), 4096));
+            server.start();
+
+            HttpEngineConfig config = HttpEngineConfig.fromProperties();
+            config.setSpillThreshold(64 * 1024);
+            try (HttpEngine engine = new HttpEngine(config)) {
+                ServiceCall serviceCall = new ServiceCall(engine);
+                serviceCall.setSpillToDisk(true);
+
+                ServiceCallResult result = serviceCall.get(server.url("/small").toString(), null);
+                assertFalse(result.isResponseInFile());
+                assertEquals(1, result.getResponseAsJSONObject().getInt("value"));
+
+                result = serviceCall.get(server.url("/large").toString(), null);
+                assertTrue(result.isResponseInFile());
+                assertNull(result.getResponse());
+                assertEquals("application/json", result.getResponseBlob().getMimeType());
+                assertEquals(large.toString(), result.getResponseBlob().getString());
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                result.writeJson(out);
+                JSONObject json = new JSONObject(out.toString(StandardCharsets.UTF_8));
+                assertEquals(20000, json.getJSONArray("response").length());
+                assertEquals(200, json.getInt("responseCode"));
+
+                result = serviceCall.get(server.url("/text").toString(), null);
+                assertTrue(result.isResponseInFile());
+                out = new ByteArrayOutputStream();
+                result.writeJson(out);
+                json = new JSONObject(out.toString(StandardCharsets.UTF_8));
+                assertTrue(json.getString("response").startsWith("A \"text\"\nxxx"));
+            }
+        }
+    }
+
+    @Test
+    public void shouldCallAsyncWithMockServer() throws Exception {
+
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setBody("{\"value\": 1}"));
+            server.enqueue(new MockResponse().setBody("{\"value\": 2}").setHeadersDelay(10, TimeUnit.SECONDS));
+            server.start();
+
+            String url = server.url("/data").toString();
+            ServiceCall serviceCall = new ServiceCall();
+
+            CompletableFuture<ServiceCallResult> future = serviceCall.getAsync(url, null);
+            assertEquals(1, future.get(5, TimeUnit.SECONDS).getResponseAsJSONObject().getInt("value"));
+
+            // Too slow => timeout, and the exchange is aborted
+            CompletableFuture<ServiceCallResult> slow = serviceCall.getAsync(url, null)
+                                                                   .orTimeout(200, TimeUnit.MILLISECONDS);
+            try {
+                slow.join();
+                fail("The call should have timed out");
+            } catch (CompletionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+        }
+    }
+
+    @Test
+    public void shouldReleaseConnectionWhenAsyncCallIsCancelled() throws Exception {
+
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setBody("{\"value\": 1}").setHeadersDelay(10, TimeUnit.SECONDS));
+            server.enqueue(new MockResponse().setBody("{\"value\": 2}"));
+            server.start();
+
+            String url = server.url("/data").toString();
+
+            HttpEngineConfig config = new HttpEngineConfig();
+            config.setMaxConnectionsPerHost(1);
+            try (HttpEngine engine = new HttpEngine(config)) {
+                ServiceCall serviceCall = new ServiceCall(engine);
+
+                CompletableFuture<ServiceCallResult> slow = serviceCall.getAsync(url, null);
+                // Waits for the only connection to be released
+                CompletableFuture<ServiceCallResult> waiting = serviceCall.getAsync(url, null);
+                Thread.sleep(500);
+                assertFalse(waiting.isDone());
+
+                slow.cancel(true);
+                ServiceCallResult result = waiting.get(5, TimeUnit.SECONDS);
+                assertEquals(200, result.getResponseCode());
+                assertEquals(2, result.getResponseAsJSONObject().getInt("value"));
+            }
+        }
+    }
+
+    @Test
+    public void shouldCoalesceIdenticalGets() throws Exception {
+
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        try (MockWebServer server = new MockWebServer()) {
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                    calls.incrementAndGet();
+                    release.await(10, TimeUnit.SECONDS);
+                    return new MockResponse().setBody("{\"value\": " + calls.get() + "}");
+                }
+            });
+            server.start();
+
+            RequestCoalescer coalescer = new RequestCoalescer();
+            ServiceCall serviceCall = new ServiceCall();
+            serviceCall.setRequestCoalescer(coalescer);
+            String url = server.url("/slow").toString();
+            long collapsed = coalescer.getCollapsed();
+
+            List<CompletableFuture<ServiceCallResult>> futures = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                futures.add(serviceCall.getAsync(url, Map.of("Accept", "application/json")));
+            }
+            // Other headers => another call
+            CompletableFuture<ServiceCallResult> other = serviceCall.getAsync(url, null);
+            assertEquals(2, coalescer.size());
+
+            // A caller cancelling does not abort the call of the others
+            futures.remove(0).cancel(true);
+            release.countDown();
+
+            ServiceCallResult first = null;
+            for (CompletableFuture<ServiceCallResult> future : futures) {
+                ServiceCallResult result = future.get(5, TimeUnit.SECONDS);
+                assertEquals(200, result.getResponseCode());
+                assertTrue(result.isShared());
+                if (first == null) {
+                    first = result;
+                } else {
+                    // Each caller has its own copy
+                    assertNotSame(first, result);
+                    assertEquals(first.getResponse(), result.getResponse());
+                }
+            }
+            // Its only caller => not shared, the file of its response (if any) can be deleted
+            ServiceCallResult alone = other.get(5, TimeUnit.SECONDS);
+            assertEquals(200, alone.getResponseCode());
+            assertFalse(alone.isShared());
+            assertEquals(2, calls.get());
+            assertEquals(collapsed + 4, coalescer.getCollapsed());
+            assertEquals(0, coalescer.size());
+
+            // Not in flight anymore => sent again
+            serviceCall.get(url, null);
+            assertEquals(3, calls.get());
+        }
+    }
+
     @Ignore
     @Test
     public void shouldGetAToken() throws Exception {
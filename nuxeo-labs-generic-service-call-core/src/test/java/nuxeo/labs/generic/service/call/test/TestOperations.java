@@ -22,27 +22,36 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.nio.file.Files;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import jakarta.inject.Inject;
 
 import org.apache.commons.lang3.StringUtils;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.Assume;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.nuxeo.ecm.automation.AutomationService;
 import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.core.util.BlobList;
 import org.nuxeo.ecm.automation.test.AutomationFeature;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
 import org.nuxeo.ecm.core.test.DefaultRepositoryInit;
 import org.nuxeo.ecm.core.test.annotations.Granularity;
 import org.nuxeo.ecm.core.test.annotations.RepositoryConfig;
@@ -50,10 +59,16 @@ import org.nuxeo.runtime.test.runner.Deploy;
 import org.nuxeo.runtime.test.runner.Features;
 import org.nuxeo.runtime.test.runner.FeaturesRunner;
 
+import nuxeo.labs.generic.service.call.AuthenticationToken;
+import nuxeo.labs.generic.service.call.AuthenticationTokens;
 import nuxeo.labs.generic.service.call.http.ServiceCallResult;
+import nuxeo.labs.generic.service.call.operations.CallServiceBatchOp;
 import nuxeo.labs.generic.service.call.operations.CallServiceForTokenOp;
+import nuxeo.labs.generic.service.call.operations.CallServiceOp;
+import nuxeo.labs.generic.service.call.operations.CallTarget;
 import nuxeo.labs.generic.service.call.operations.DownloadFileOp;
 import nuxeo.labs.generic.service.call.operations.UploadFileOp;
+import okhttp3.mockwebserver.Dispatcher;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
@@ -126,6 +141,359 @@ public class TestOperations {
         }
     }
     
+    /*
+     * /item/N returns {"item": N}, /fail returns a 500
+     */
+    protected static class ItemsDispatcher extends Dispatcher {
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+            String path = request.getPath();
+            if (path.startsWith("/fail")) {
+                return new MockResponse().setResponseCode(500);
+            }
+            String item = path.substring(path.lastIndexOf('/') + 1);
+            // Make the first ones the slowest, so they complete in a different order
+            Thread.sleep(Math.max(0, 100 - Integer.parseInt(item) * 10));
+            return new MockResponse().setBody("{\"item\": " + item + "}");
+        }
+    }
+
+    @Test
+    public void shouldReturnLargeResponseAsJsonOrBlob() throws Exception {
+
+        // Above the default spill threshold (10MB)
+        StringBuilder large = new StringBuilder("[");
+        for (int i = 0; i < 800000; i++) {
+            large.append(i == 0 ? "" : ",").append("{\"id\": ").append(i).append("}");
+        }
+        large.append("]");
+
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setHeader("Content-Type", "application/json").setBody(large.toString()));
+            server.enqueue(new MockResponse().setHeader("Content-Type", "application/json").setBody(large.toString()));
+            server.enqueue(new MockResponse().setHeader("Content-Type", "text/csv").setBody("a,b\n1,2\n"));
+            server.enqueue(new MockResponse().setHeader("Content-Type", "text/csv; charset=ISO-8859-1; header=present")
+                                             .setBody("c;d\n3;4\n"));
+            server.start();
+
+            OperationContext ctx = new OperationContext(session);
+            Map<String, Object> params = new HashMap<>();
+            params.put("httpMethod", "GET");
+            params.put("url", server.url("/large").toString());
+
+            Blob resultBlob = (Blob) automationService.run(ctx, CallServiceOp.ID, params);
+            assertEquals("application/json", resultBlob.getMimeType());
+            JSONObject result = new JSONObject(resultBlob.getString());
+            assertEquals(200, result.getInt("responseCode"));
+            assertEquals(800000, result.getJSONArray("response").length());
+
+            params.put("responseMode", "blob");
+            resultBlob = (Blob) automationService.run(ctx, CallServiceOp.ID, params);
+            assertEquals("application/json", resultBlob.getMimeType());
+            assertEquals(large.length(), resultBlob.getLength());
+
+            // Small => in memory, returned as sent
+            params.put("url", server.url("/csv").toString());
+            resultBlob = (Blob) automationService.run(ctx, CallServiceOp.ID, params);
+            assertEquals("text/csv", resultBlob.getMimeType());
+            assertEquals("a,b\n1,2\n", resultBlob.getString());
+
+            // Parameters after the charset are not part of it
+            resultBlob = (Blob) automationService.run(ctx, CallServiceOp.ID, params);
+            assertEquals("ISO-8859-1", resultBlob.getEncoding());
+            assertEquals("c;d\n3;4\n", resultBlob.getString());
+        }
+    }
+
+    @Test
+    public void shouldRunBatchInOrderWithMockServer() throws Exception {
+
+        try (MockWebServer server = new MockWebServer()) {
+            server.setDispatcher(new ItemsDispatcher());
+            server.start();
+
+            JSONArray requests = new JSONArray();
+            for (int i = 0; i < 10; i++) {
+                JSONObject request = new JSONObject();
+                request.put("method", i % 2 == 0 ? "GET" : "POST");
+                request.put("url", server.url("/item/" + i).toString());
+                request.put("headers", new JSONObject(Map.of("Content-Type", "application/json")));
+                request.put("body", "{}");
+                requests.put(request);
+            }
+            JSONObject failing = new JSONObject();
+            failing.put("method", "GET");
+            failing.put("url", server.url("/fail").toString());
+            requests.put(3, failing);
+
+            OperationContext ctx = new OperationContext(session);
+            Map<String, Object> params = new HashMap<>();
+            params.put("requestsJsonStr", requests.toString());
+            params.put("maxConcurrency", 4);
+
+            Blob resultBlob = (Blob) automationService.run(ctx, CallServiceBatchOp.ID, params);
+            JSONArray results = new JSONArray(resultBlob.getString());
+            assertEquals(10, results.length());
+            for (int i = 0; i < 10; i++) {
+                JSONObject result = results.getJSONObject(i);
+                if (i == 3) {
+                    assertEquals(500, result.getInt("responseCode"));
+                } else {
+                    assertEquals(200, result.getInt("responseCode"));
+                    assertEquals(i, result.getJSONObject("response").getInt("item"));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shouldReturnItemErrorsInBatch() throws Exception {
+
+        try (MockWebServer server = new MockWebServer()) {
+            server.setDispatcher(new ItemsDispatcher());
+            server.start();
+
+            // The authentication service fails
+            AuthenticationToken token = AuthenticationTokens.getInstance()
+                                                            .newToken("POST", server.url("/fail/auth").toString(),
+                                                                    null, null);
+            JSONArray requests = new JSONArray();
+            requests.put(new JSONObject().put("method", "GET").put("url", server.url("/item/1").toString()));
+            requests.put("not a request");
+            requests.put(new JSONObject().put("method", "GET")
+                                         .put("url", server.url("/item/2").toString())
+                                         .put("tokenUuid", token.getId()));
+            requests.put(new JSONObject().put("method", "GET").put("url", server.url("/item/3").toString()));
+
+            OperationContext ctx = new OperationContext(session);
+            Map<String, Object> params = new HashMap<>();
+            params.put("requestsJsonStr", requests.toString());
+
+            Blob resultBlob = (Blob) automationService.run(ctx, CallServiceBatchOp.ID, params);
+            JSONArray results = new JSONArray(resultBlob.getString());
+            assertEquals(4, results.length());
+            assertEquals(200, results.getJSONObject(0).getInt("responseCode"));
+            assertEquals(-1, results.getJSONObject(1).getInt("responseCode"));
+            assertEquals(CallServiceBatchOp.INVALID_REQUEST_MESSAGE,
+                    results.getJSONObject(1).getString("responseMessage"));
+            assertEquals(-1, results.getJSONObject(2).getInt("responseCode"));
+            assertTrue(results.getJSONObject(2)
+                              .getString("responseMessage")
+                              .startsWith(CallServiceBatchOp.NO_TOKEN_MESSAGE));
+            assertEquals(200, results.getJSONObject(3).getInt("responseCode"));
+            // /item/2 was not called without a token
+            assertEquals(3, server.getRequestCount());
+        }
+    }
+
+    @Test
+    public void shouldStopBatchOnFirstFailure() throws Exception {
+
+        try (MockWebServer server = new MockWebServer()) {
+            server.setDispatcher(new ItemsDispatcher());
+            server.start();
+
+            JSONArray requests = new JSONArray();
+            for (String path : new String[] { "/item/1", "/fail", "/item/2", "/item/3" }) {
+                JSONObject request = new JSONObject();
+                request.put("method", "GET");
+                request.put("url", server.url(path).toString());
+                requests.put(request);
+            }
+
+            OperationContext ctx = new OperationContext(session);
+            Map<String, Object> params = new HashMap<>();
+            params.put("requestsJsonStr", requests.toString());
+            params.put("maxConcurrency", 1);
+            params.put("failFast", true);
+
+            Blob resultBlob = (Blob) automationService.run(ctx, CallServiceBatchOp.ID, params);
+            JSONArray results = new JSONArray(resultBlob.getString());
+            assertEquals(4, results.length());
+            assertEquals(200, results.getJSONObject(0).getInt("responseCode"));
+            assertEquals(500, results.getJSONObject(1).getInt("responseCode"));
+            assertEquals(-1, results.getJSONObject(2).getInt("responseCode"));
+            assertEquals(CallServiceBatchOp.NOT_RUN_MESSAGE, results.getJSONObject(2).getString("responseMessage"));
+            assertEquals(-1, results.getJSONObject(3).getInt("responseCode"));
+            assertEquals(2, server.getRequestCount());
+        }
+    }
+
+    @Test
+    public void shouldNotCallWithUnknownToken() throws Exception {
+
+        try (MockWebServer server = new MockWebServer()) {
+            server.setDispatcher(new ItemsDispatcher());
+            server.start();
+            String url = server.url("/item/1").toString();
+
+            OperationContext ctx = new OperationContext(session);
+            Map<String, Object> params = new HashMap<>();
+            params.put("httpMethod", "GET");
+            params.put("url", url);
+            params.put("tokenUuid", "unknown");
+            Blob resultBlob = (Blob) automationService.run(ctx, CallServiceOp.ID, params);
+            JSONObject result = new JSONObject(resultBlob.getString());
+            assertEquals(-1, result.getInt("responseCode"));
+            assertEquals(CallTarget.UNKNOWN_TOKEN_REASON, result.getString("responseMessage"));
+            assertEquals(CallTarget.UNKNOWN_TOKEN_MESSAGE, result.getString("response"));
+
+            JSONObject request = new JSONObject();
+            request.put("method", "GET");
+            request.put("url", url);
+            request.put("tokenUuid", "unknown");
+            params = new HashMap<>();
+            params.put("requestsJsonStr", new JSONArray().put(request).toString());
+            resultBlob = (Blob) automationService.run(ctx, CallServiceBatchOp.ID, params);
+            result = new JSONArray(resultBlob.getString()).getJSONObject(0);
+            assertEquals(-1, result.getInt("responseCode"));
+            assertEquals(CallTarget.UNKNOWN_TOKEN_REASON, result.getString("responseMessage"));
+
+            assertEquals(0, server.getRequestCount());
+        }
+    }
+
+    @Test
+    public void shouldKeepSharedTokenWhenFetchFails() throws Exception {
+
+        AtomicInteger authCalls = new AtomicInteger();
+        try (MockWebServer server = new MockWebServer()) {
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    // Only the first call to /auth works, /down never works
+                    if (request.getPath().startsWith("/auth") && authCalls.incrementAndGet() == 1) {
+                        return new MockResponse().setBody("{\"access_token\":\"t1\", \"expires_in\": 3600}");
+                    }
+                    return new MockResponse().setResponseCode(503);
+                }
+            });
+            server.start();
+
+            OperationContext ctx = new OperationContext(session);
+            Map<String, Object> params = new HashMap<>();
+            params.put("httpMethod", "POST");
+            params.put("url", server.url("/auth").toString());
+            Blob resultBlob = (Blob) automationService.run(ctx, CallServiceForTokenOp.ID, params);
+            String tokenUuid = new JSONObject(resultBlob.getString()).getString("tokenUuid");
+            AuthenticationToken token = AuthenticationTokens.getInstance().getToken(tokenUuid);
+            assertNotNull(token);
+
+            // Revoked, and the service fails: the token is still shared with the other callers
+            token.invalidate("t1");
+            resultBlob = (Blob) automationService.run(ctx, CallServiceForTokenOp.ID, params);
+            assertEquals(tokenUuid, new JSONObject(resultBlob.getString()).getString("tokenUuid"));
+            assertEquals(2, authCalls.get());
+            assertSame(token, AuthenticationTokens.getInstance().getToken(tokenUuid));
+
+            // Never worked: removed
+            params.put("url", server.url("/down").toString());
+            resultBlob = (Blob) automationService.run(ctx, CallServiceForTokenOp.ID, params);
+            String failedUuid = new JSONObject(resultBlob.getString()).getString("tokenUuid");
+            assertNull(AuthenticationTokens.getInstance().getToken(failedUuid));
+        }
+    }
+
+    /*
+     * /auth returns t1, t2, ... /api and /upload reject t1 (revoked), accept the others
+     */
+    protected static class RevokedTokenDispatcher extends Dispatcher {
+
+        protected final AtomicInteger authCalls = new AtomicInteger();
+
+        protected final List<byte[]> uploads = new CopyOnWriteArrayList<>();
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            if (request.getPath().startsWith("/auth")) {
+                int count = authCalls.incrementAndGet();
+                return new MockResponse().setBody("{\"access_token\":\"t" + count + "\", \"expires_in\": 3600}");
+            }
+            if (request.getPath().startsWith("/upload")) {
+                uploads.add(request.getBody().readByteArray());
+            }
+            if ("Bearer t1".equals(request.getHeader("Authorization"))) {
+                return new MockResponse().setResponseCode(401).setBody("{\"error\":\"invalid_token\"}");
+            }
+            return new MockResponse().setBody("{\"ok\": true}");
+        }
+    }
+
+    @Test
+    public void shouldReplayCallsWhenTokenIsRejected() throws Exception {
+
+        try (MockWebServer server = new MockWebServer()) {
+            RevokedTokenDispatcher dispatcher = new RevokedTokenDispatcher();
+            server.setDispatcher(dispatcher);
+            server.start();
+
+            OperationContext ctx = new OperationContext(session);
+            Map<String, Object> params = new HashMap<>();
+            params.put("httpMethod", "POST");
+            params.put("url", server.url("/auth").toString());
+            Blob resultBlob = (Blob) automationService.run(ctx, CallServiceForTokenOp.ID, params);
+            String tokenUuid = new JSONObject(resultBlob.getString()).getString("tokenUuid");
+
+            // t1 is rejected => t2 is fetched, the call is replayed
+            params = new HashMap<>();
+            params.put("tokenUuid", tokenUuid);
+            params.put("httpMethod", "GET");
+            params.put("url", server.url("/api").toString());
+            resultBlob = (Blob) automationService.run(ctx, CallServiceOp.ID, params);
+            JSONObject resultJson = new JSONObject(resultBlob.getString());
+            assertEquals(200, resultJson.getInt("responseCode"));
+            assertEquals(2, dispatcher.authCalls.get());
+            assertEquals(3, server.getRequestCount());
+
+            // t2 is used as is
+            resultBlob = (Blob) automationService.run(ctx, CallServiceOp.ID, params);
+            assertEquals(200, new JSONObject(resultBlob.getString()).getInt("responseCode"));
+            assertEquals(2, dispatcher.authCalls.get());
+            assertEquals(4, server.getRequestCount());
+        }
+    }
+
+    @Test
+    public void shouldReplayUploadWhenTokenIsRejected() throws Exception {
+
+        try (MockWebServer server = new MockWebServer()) {
+            RevokedTokenDispatcher dispatcher = new RevokedTokenDispatcher();
+            server.setDispatcher(dispatcher);
+            server.start();
+
+            OperationContext ctx = new OperationContext(session);
+            Map<String, Object> params = new HashMap<>();
+            params.put("httpMethod", "POST");
+            params.put("url", server.url("/auth").toString());
+            Blob resultBlob = (Blob) automationService.run(ctx, CallServiceForTokenOp.ID, params);
+            String tokenUuid = new JSONObject(resultBlob.getString()).getString("tokenUuid");
+
+            File testFile = File.createTempFile("my-file", ".pdf");
+            try (FileOutputStream fos = new FileOutputStream(testFile)) {
+                fos.write("This is a PDF content".getBytes());
+            }
+            Blob blob = new FileBlob(testFile);
+            blob.setMimeType("application/pdf");
+
+            ctx.setInput(blob);
+            params = new HashMap<>();
+            params.put("tokenUuid", tokenUuid);
+            params.put("httpMethod", "PUT");
+            params.put("url", server.url("/upload").toString());
+            resultBlob = (Blob) automationService.run(ctx, UploadFileOp.ID, params);
+            assertEquals(200, new JSONObject(resultBlob.getString()).getInt("responseCode"));
+
+            // Both attempts sent the whole file
+            byte[] expected = Files.readAllBytes(testFile.toPath());
+            assertEquals(2, dispatcher.uploads.size());
+            assertArrayEquals(expected, dispatcher.uploads.get(0));
+            assertArrayEquals(expected, dispatcher.uploads.get(1));
+
+            testFile.delete();
+        }
+    }
+
     @Test
     public void testGetTokenShouldFail() throws Exception {
         
@@ -200,6 +568,78 @@ public class TestOperations {
         }
     }
     
+    @Test
+    public void shouldUploadMultipart() throws Exception {
+
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setResponseCode(201));
+            server.start();
+
+            Blob blob = new FileBlob(File.createTempFile("contract", ".pdf"));
+            Files.writeString(blob.getFile().toPath(), "This is a PDF content");
+            blob.setMimeType("application/pdf");
+            blob.setFilename("contract.pdf");
+
+            OperationContext ctx = new OperationContext(session);
+            ctx.setInput(blob);
+            Map<String, Object> params = new HashMap<>();
+            params.put("httpMethod", "POST");
+            params.put("url", server.url("/upload").toString());
+            params.put("multipart", true);
+            params.put("fileFieldName", "document");
+            params.put("formFieldsJsonStr", "{\"description\": \"The contract\"}");
+            params.put("headersJsonStr", "{\"Content-Type\": \"application/json\"}");
+
+            Blob resultBlob = (Blob) automationService.run(ctx, UploadFileOp.ID, params);
+            assertEquals(201, new JSONObject(resultBlob.getString()).getInt("responseCode"));
+
+            RecordedRequest request = server.takeRequest();
+            String contentType = request.getHeader("Content-Type");
+            assertTrue(contentType.startsWith("multipart/form-data; boundary="));
+            String boundary = StringUtils.substringAfter(contentType, "boundary=");
+            String body = request.getBody().readUtf8();
+            assertEquals(String.valueOf(request.getBodySize()), request.getHeader("Content-Length"));
+            assertEquals("--" + boundary + "\r\n" //
+                    + "Content-Disposition: form-data; name=\"description\"\r\n\r\n" //
+                    + "The contract\r\n" //
+                    + "--" + boundary + "\r\n" //
+                    + "Content-Disposition: form-data; name=\"document\"; filename=\"contract.pdf\"\r\n" //
+                    + "Content-Type: application/pdf\r\n\r\n" //
+                    + "This is a PDF content\r\n" //
+                    + "--" + boundary + "--\r\n", body);
+
+            blob.getFile().delete();
+        }
+    }
+
+    @Test
+    public void shouldRejectChunkedMultipart() throws Exception {
+
+        try (MockWebServer server = new MockWebServer()) {
+            server.start();
+
+            BlobList blobs = new BlobList();
+            blobs.add(new StringBlob("part 1", "text/plain"));
+            blobs.add(new StringBlob("part 2", "text/plain"));
+
+            OperationContext ctx = new OperationContext(session);
+            ctx.setInput(blobs);
+            Map<String, Object> params = new HashMap<>();
+            params.put("httpMethod", "POST");
+            params.put("url", server.url("/upload").toString());
+            params.put("multipart", true);
+            params.put("chunkedProtocol", "tus");
+
+            try {
+                automationService.run(ctx, UploadFileOp.ID, params);
+                fail("multipart and chunkedProtocol should be rejected");
+            } catch (Exception e) {
+                // Expected
+            }
+            assertEquals(0, server.getRequestCount());
+        }
+    }
+
     @Test
     public void testQuickRealDownload() throws Exception {
         
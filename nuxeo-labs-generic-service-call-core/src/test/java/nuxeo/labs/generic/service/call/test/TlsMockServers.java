@@ -0,0 +1,79 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.generic.service.call.test;
+
+import java.util.List;
+
+import javax.net.ssl.SSLContext;
+
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.tls.HandshakeCertificates;
+import okhttp3.tls.HeldCertificate;
+
+/**
+ * Helpers to run a <code>MockWebServer</code> over TLS (so HTTP/2 is negotiated with ALPN), with a self-signed
+ * certificate for localhost.
+ * 
+ * @since 2025.4
+ */
+public class TlsMockServers {
+
+    protected static final HeldCertificate LOCALHOST_CERTIFICATE = new HeldCertificate.Builder().addSubjectAlternativeName(
+            "localhost").build();
+
+    /**
+     * @param http2, if false the server only speaks HTTP/1.1
+     * @return a server (not started) using the localhost certificate
+     */
+    public static MockWebServer newServer(boolean http2) {
+
+        HandshakeCertificates serverCertificates = new HandshakeCertificates.Builder().heldCertificate(
+                LOCALHOST_CERTIFICATE).build();
+
+        MockWebServer server = new MockWebServer();
+        server.useHttps(serverCertificates.sslSocketFactory(), false);
+        if (http2) {
+            server.setProtocols(List.of(Protocol.HTTP_2, Protocol.HTTP_1_1));
+        } else {
+            server.setProtocols(List.of(Protocol.HTTP_1_1));
+        }
+
+        return server;
+    }
+
+    /**
+     * @return a client context trusting the localhost certificate
+     */
+    public static SSLContext clientSslContext() {
+
+        HandshakeCertificates clientCertificates = new HandshakeCertificates.Builder().addTrustedCertificate(
+                LOCALHOST_CERTIFICATE.certificate()).build();
+
+        return clientCertificates.sslContext();
+    }
+
+    /**
+     * The certificate is for "localhost", so we don't use <code>server.url()</code> (it may use the IP)
+     */
+    public static String url(MockWebServer server, String path) {
+        return "https://localhost:" + server.getPort() + path;
+    }
+
+}